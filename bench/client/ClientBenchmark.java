@@ -0,0 +1,103 @@
+package client;
+
+import edu.umass.cs.nio.nioutils.NIOHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import server.Envelope;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A request's way through {@link MyDBClient}: registering its callback,
+ * encoding it and handing it to the transport in
+ * {@link MyDBClient#callbackSend}, then matching the response in
+ * {@link MyDBClient#handleResponse} and invoking the callback. Requests go
+ * to a local socket that discards them, and the benchmark answers each
+ * request itself, so the response's encoding is part of the measurement
+ * (see {@link server.EnvelopeBenchmark#encodeResponse} for its share).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClientBenchmark {
+    private static final String UPDATE = "update grade SET events=events+" +
+            "[4242] where id=7;";
+
+    private ServerSocketChannel sink;
+    private Thread drainer;
+    private MyDBClient client;
+    private InetSocketAddress isa;
+    private NIOHeader header;
+    private Blackhole blackhole;
+    private final Client.Callback callback = new Client.Callback() {
+        @Override
+        public void handleResponse(byte[] bytes, NIOHeader header) {
+            blackhole.consume(bytes);
+        }
+    };
+    // the client numbers its requests from 1, one at a time here
+    private long nextId = 1;
+
+    @Setup
+    public void setup(Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        sink = ServerSocketChannel.open();
+        sink.bind(new InetSocketAddress("localhost", 0));
+        isa = (InetSocketAddress) sink.getLocalAddress();
+        drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+                try (SocketChannel channel = sink.accept()) {
+                    while (channel.read(buf) >= 0) buf.clear();
+                } catch (IOException e) {
+                    // closed by teardown
+                }
+            }
+        }, "bench-sink");
+        drainer.setDaemon(true);
+        drainer.start();
+        client = new MyDBClient(null, 1, 0);
+        header = new NIOHeader(isa, new InetSocketAddress("localhost", 0));
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        client.close();
+        sink.close();
+    }
+
+    @Benchmark
+    public void sendAndRespond() throws IOException {
+        client.callbackSend(isa, UPDATE, callback, 0, 0);
+        client.handleResponse(Envelope.encode(Envelope.RESPONSE, 0, nextId++,
+                null, "Executed the request"), header);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ClientBenchmark.class
+                .getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,75 @@
+package client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registering a request's callback and looking it up again when the
+ * response arrives, as {@link MyDBClient} does for every request, by one
+ * and by several threads sharing the table; a ConcurrentHashMap keyed by
+ * boxed ids serves as the baseline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PendingRequestsBenchmark {
+    private static final Object CALLBACK = new Object();
+
+    private final PendingRequests<Object> pending = new
+            PendingRequests<Object>();
+    private final ConcurrentHashMap<Long, Object> map = new
+            ConcurrentHashMap<Long, Object>();
+    private final AtomicLong nextId = new AtomicLong();
+
+    @Benchmark
+    @Threads(1)
+    public Object pendingRequests() {
+        return pending.remove(pending.put(CALLBACK));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object pendingRequestsShared() {
+        return pending.remove(pending.put(CALLBACK));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object concurrentHashMap() {
+        long id = nextId.incrementAndGet();
+        map.put(id, CALLBACK);
+        return map.remove(id);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object concurrentHashMapShared() {
+        long id = nextId.incrementAndGet();
+        map.put(id, CALLBACK);
+        return map.remove(id);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PendingRequestsBenchmark.class
+                .getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,96 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link Envelope} framing every request and response goes through:
+ * encoding and decoding single requests and responses, and batches of
+ * them, with the grader's list append as the statement.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EnvelopeBenchmark {
+    static final String UPDATE = "update grade SET events=events+[4242] " +
+            "where id=7;";
+    private static final int BATCH = 16;
+
+    private long id = 1 << 20;
+    private byte[] request;
+    private byte[] response;
+    private byte[] batch;
+    private final Envelope envelope = new Envelope();
+    private final Envelope member = new Envelope();
+
+    @Setup
+    public void setup() {
+        request = Envelope.encode(Envelope.REQUEST, 0, id, null, UPDATE);
+        response = Envelope.encode(Envelope.RESPONSE, 0, id, null, "Executed" +
+                " the request");
+        List<byte[]> responses = new ArrayList<byte[]>();
+        int bytes = 0;
+        for (int i = 0; i < BATCH; i++) {
+            responses.add(Envelope.encode(Envelope.RESPONSE, 0, id + i, null,
+                    "Executed the request"));
+            bytes += responses.get(i).length;
+        }
+        batch = Envelope.encodeBatch(responses, bytes);
+    }
+
+    @Benchmark
+    public byte[] encodeRequest() {
+        return Envelope.encode(Envelope.REQUEST, 0, id++, null, UPDATE);
+    }
+
+    @Benchmark
+    public String decodeRequest() {
+        envelope.wrap(request, 0);
+        return envelope.payloadString();
+    }
+
+    @Benchmark
+    public byte[] encodeResponse() {
+        return Envelope.encode(Envelope.RESPONSE, 0, id++, null, "Executed " +
+                "the request");
+    }
+
+    @Benchmark
+    public byte[] decodeResponse() {
+        envelope.wrap(response, 0);
+        return envelope.payloadBytes();
+    }
+
+    @Benchmark
+    public void splitBatch(Blackhole blackhole) {
+        envelope.wrap(batch, 0);
+        for (int pos = envelope.payloadOffset(); member.wrapMember(envelope,
+                pos); pos = member.end())
+            blackhole.consume(member.id());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EnvelopeBenchmark.class
+                .getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,115 @@
+package server;
+
+import edu.umass.cs.nio.nioutils.NIOHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@link MyDBSingleServer#handleMessageFromClient} does with a message
+ * before the statement is executed: decoding an envelope, a batch of them
+ * or a legacy text request into pending statements. The server hands the
+ * statements to a blackhole instead of the database, and messages are
+ * handled inline rather than by worker threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmydb.workerMode=inline")
+@State(Scope.Thread)
+public class ServerDecodeBenchmark {
+    private static final int BATCH = 16;
+
+    private DecodingServer server;
+    private NIOHeader header;
+    private byte[] request;
+    private byte[] batch;
+    private byte[] text;
+
+    /**
+     * Stops at the statement.
+     */
+    private static class DecodingServer extends MyDBSingleServer {
+        Blackhole blackhole;
+
+        DecodingServer() throws IOException {
+            super(new InetSocketAddress("localhost", 0), null, "bench");
+        }
+
+        @Override
+        protected StorageEngine createStorageEngine(InetSocketAddress isaDB,
+                                                    String keyspace) {
+            return new InMemoryStorageEngine(keyspace);
+        }
+
+        @Override
+        protected void handleRequest(PendingStatement stmt) {
+            blackhole.consume(stmt.cql);
+        }
+    }
+
+    @Setup
+    public void setup(Blackhole blackhole) throws IOException {
+        server = new DecodingServer();
+        server.blackhole = blackhole;
+        header = new NIOHeader(new InetSocketAddress("localhost", 50000), new
+                InetSocketAddress("localhost", 50001));
+        request = Envelope.encode(Envelope.REQUEST, 0, 1 << 20, null,
+                EnvelopeBenchmark.UPDATE);
+        List<byte[]> requests = new ArrayList<byte[]>();
+        int bytes = 0;
+        for (int i = 0; i < BATCH; i++) {
+            requests.add(Envelope.encode(Envelope.REQUEST, 0, (1 << 20) + i,
+                    null, EnvelopeBenchmark.UPDATE));
+            bytes += requests.get(i).length;
+        }
+        batch = Envelope.encodeBatch(requests, bytes);
+        text = (MyDBSingleServer.LEGACY_REQUEST_PREFIX + "7:" +
+                EnvelopeBenchmark.UPDATE).getBytes();
+    }
+
+    @TearDown
+    public void teardown() {
+        server.close();
+    }
+
+    @Benchmark
+    public void envelope() {
+        server.handleMessageFromClient(request, header);
+    }
+
+    @Benchmark
+    public void batchOf16() {
+        server.handleMessageFromClient(batch, header);
+    }
+
+    @Benchmark
+    public void legacyText() {
+        server.handleMessageFromClient(text, header);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ServerDecodeBenchmark.class
+                .getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,92 @@
+package client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values, e.g., latencies in microseconds,
+ * that any number of threads may record into without locking. Values below
+ * 128 are counted exactly; above, each power of two is split into 64
+ * buckets, so that a percentile is off by less than 1/64 of its value,
+ * whatever the range.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 6;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + 57 *
+            SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int index(long value) {
+        if (value < LINEAR) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) -
+                SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest value counted in the bucket
+     */
+    static long highest(int index) {
+        if (index < LINEAR) return index;
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        for (long m; value > (m = max.get()); )
+            if (max.compareAndSet(m, value)) break;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g., 0.999 for the 99.9th percentile
+     * @return a value that at least that fraction of the recorded values do
+     * not exceed, or 0 if nothing was recorded
+     */
+    public long getValueAt(double quantile) {
+        long n = count.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++)
+            if ((seen += counts.get(i)) >= rank)
+                return Math.min(highest(i), max.get());
+        return max.get();
+    }
+
+    /**
+     * Adds the counts of other to this histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long c = other.counts.get(i);
+            if (c != 0) counts.addAndGet(i, c);
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        for (long m, value = other.max.get(); value > (m = max.get()); )
+            if (max.compareAndSet(m, value)) break;
+    }
+}
@@ -0,0 +1,367 @@
+package client;
+
+import edu.umass.cs.nio.interfaces.NodeConfig;
+import edu.umass.cs.nio.nioutils.NodeConfigUtils;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import server.ReplicatedServer;
+import server.SingleServer;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Drives a workload through a {@link MyDBClient} against one or more
+ * servers and reports the throughput, latency percentiles and errors per
+ * kind of statement. The default workload is the one of the graders: list
+ * appends to the rows of a "grade" table, with some inserts and reads of
+ * those rows mixed in.
+ *
+ * In closed-loop mode a fixed number of requests is outstanding at all
+ * times, each answered request being replaced by a new one. In open-loop
+ * mode requests are sent at a fixed rate whether or not earlier ones have
+ * been answered, and a request's latency counts from when it was due
+ * rather than when it was sent, so that the generator falling behind shows
+ * as latency instead of going unnoticed. Either way only requests started
+ * after a warm-up period count.
+ *
+ * Run as {@code java client.LoadGenerator [servers.properties | host:port]}
+ * with the mydb.load.* properties below; the servers of a properties file
+ * are sent requests in turn.
+ */
+public class LoadGenerator {
+    /**
+     * "closed" (default) or "open".
+     */
+    public static final String MODE = System.getProperty("mydb.load.mode",
+            "closed");
+
+    /**
+     * The number of outstanding requests in closed-loop mode.
+     */
+    public static final int CONCURRENCY = Integer.getInteger(
+            "mydb.load.concurrency", 32);
+
+    /**
+     * Requests per second in open-loop mode.
+     */
+    public static final int RATE = Integer.getInteger("mydb.load.rate", 1000);
+
+    public static final int SECONDS = Integer.getInteger("mydb.load.seconds",
+            10);
+
+    public static final int WARMUP_SECONDS = Integer.getInteger(
+            "mydb.load.warmupSeconds", 2);
+
+    /**
+     * The number of rows the statements are spread over.
+     */
+    public static final int KEYS = Integer.getInteger("mydb.load.keys", 100);
+
+    /**
+     * Relative weights of inserts, updates and selects.
+     */
+    public static final String MIX = System.getProperty("mydb.load.mix",
+            "1:8:1");
+
+    public static final String TABLE = System.getProperty("mydb.load.table",
+            "grade");
+
+    /**
+     * Granularity of the open-loop schedule.
+     */
+    private static final long TICK_MICROS = 1000;
+
+    public static enum Op {
+        INSERT, UPDATE, SELECT
+    }
+
+    private final MyDBClient client;
+    private final List<InetSocketAddress> servers;
+    private final int keys;
+    private final String table;
+    // cumulative weights, by Op ordinal
+    private final int[] mix = new int[Op.values().length];
+
+    private final AtomicLong nextServer = new AtomicLong();
+    private final AtomicLong nextValue = new AtomicLong();
+
+    /**
+     * @param mix relative weights of inserts, updates and selects, e.g.,
+     *            "1:8:1"
+     */
+    public LoadGenerator(MyDBClient client, List<InetSocketAddress> servers,
+                         int keys, String mix, String table) {
+        if (servers.isEmpty())
+            throw new IllegalArgumentException("No servers to send to");
+        this.client = client;
+        this.servers = new ArrayList<InetSocketAddress>(servers);
+        this.keys = keys;
+        this.table = table;
+        String[] weights = mix.split(":");
+        if (weights.length != this.mix.length)
+            throw new IllegalArgumentException("Expected inserts:updates:" +
+                    "selects, got " + mix);
+        for (int i = 0, sum = 0; i < weights.length; i++)
+            this.mix[i] = sum += Integer.parseInt(weights[i].trim());
+        if (this.mix[this.mix.length - 1] <= 0)
+            throw new IllegalArgumentException("Empty mix " + mix);
+    }
+
+    /**
+     * Creates the table through the first server, which is enough for
+     * replicated servers too.
+     */
+    public void createTable() throws Exception {
+        client.sendAsync(servers.get(0), "create table if not exists " + table +
+                " (id int, events list<int>, primary key (id));").get();
+    }
+
+    private Op nextOp() {
+        int r = ThreadLocalRandom.current().nextInt(mix[mix.length - 1]);
+        for (Op op : Op.values())
+            if (r < mix[op.ordinal()]) return op;
+        throw new IllegalStateException();
+    }
+
+    private String cql(Op op) {
+        int key = ThreadLocalRandom.current().nextInt(keys);
+        switch (op) {
+            case INSERT:
+                return "insert into " + table + " (id, events) values (" + key +
+                        ", []);";
+            case UPDATE:
+                return "update " + table + " SET events=events+[" + nextValue
+                        .incrementAndGet() + "] where id=" + key + ";";
+            default:
+                return "select events from " + table + " where id=" + key + ";";
+        }
+    }
+
+    private InetSocketAddress nextServer() {
+        return servers.get((int) (nextServer.getAndIncrement() % servers
+                .size()));
+    }
+
+    /**
+     * One run's counters; requests started before measureFrom are not
+     * counted.
+     */
+    private class Run {
+        final long measureFrom;
+        final long end;
+        final Report report;
+        final AtomicLong outstanding = new AtomicLong(1);
+        final CountDownLatch drained = new CountDownLatch(1);
+
+        Run(long warmupNanos, long measureNanos, String mode) {
+            this.measureFrom = System.nanoTime() + warmupNanos;
+            this.end = measureFrom + measureNanos;
+            this.report = new Report(mode, measureNanos);
+        }
+
+        /**
+         * Sends a request due at the given time.
+         *
+         * @param done run once the request is answered or has failed
+         */
+        void send(final long due, final Runnable done) {
+            final Op op = nextOp();
+            outstanding.incrementAndGet();
+            client.sendAsync(nextServer(), cql(op)).whenComplete(new
+                    BiConsumer<byte[], Throwable>() {
+                @Override
+                public void accept(byte[] response, Throwable error) {
+                    if (due >= measureFrom) report.record(op, (System
+                            .nanoTime() - due) / 1000, error);
+                    if (done != null) done.run();
+                    finished();
+                }
+            });
+        }
+
+        /**
+         * Balances the initial count of outstanding, or a send.
+         */
+        void finished() {
+            if (outstanding.decrementAndGet() == 0) drained.countDown();
+        }
+
+        Report await() throws InterruptedException {
+            drained.await();
+            return report;
+        }
+    }
+
+    /**
+     * Keeps concurrency requests outstanding for warmupNanos plus
+     * measureNanos and waits for the last ones to be answered.
+     */
+    public Report runClosed(int concurrency, long warmupNanos, long
+            measureNanos) throws InterruptedException {
+        final Run run = new Run(warmupNanos, measureNanos, "closed-loop, " +
+                concurrency + " outstanding");
+        for (int i = 0; i < concurrency; i++) closedLoop(run);
+        run.finished();
+        return run.await();
+    }
+
+    private void closedLoop(final Run run) {
+        for (long now; (now = System.nanoTime()) < run.end; ) {
+            // whoever comes second, this loop or the response, carries on,
+            // so that requests that fail right away do not recurse
+            final AtomicBoolean handedOff = new AtomicBoolean();
+            run.send(now, new Runnable() {
+                @Override
+                public void run() {
+                    if (!handedOff.compareAndSet(false, true)) closedLoop(run);
+                }
+            });
+            if (handedOff.compareAndSet(false, true)) return;
+        }
+    }
+
+    /**
+     * Sends rate requests per second for warmupNanos plus measureNanos and
+     * waits for the last ones to be answered.
+     */
+    public Report runOpen(double rate, long warmupNanos, long measureNanos)
+            throws InterruptedException {
+        final Run run = new Run(warmupNanos, measureNanos, "open-loop, " +
+                rate + "/s");
+        final long start = System.nanoTime();
+        final double interval = 1e9 / rate;
+        final long total = (long) ((run.end - start) / interval);
+        final CountDownLatch sent = new CountDownLatch(1);
+        ScheduledExecutorService ticker = Executors
+                .newSingleThreadScheduledExecutor(new DefaultThreadFactory
+                        ("mydb-load-ticker", true));
+        ticker.scheduleAtFixedRate(new Runnable() {
+            long issued = 0;
+
+            @Override
+            public void run() {
+                long due = Math.min(total, (long) ((System.nanoTime() - start)
+                        / interval) + 1);
+                for (; issued < due; issued++)
+                    run.send(start + (long) (issued * interval), null);
+                if (issued >= total) sent.countDown();
+            }
+        }, 0, TICK_MICROS, TimeUnit.MICROSECONDS);
+        sent.await();
+        ticker.shutdownNow();
+        run.finished();
+        return run.await();
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    public static class Report {
+        private final String mode;
+        private final long measureNanos;
+        private final LatencyHistogram[] latencies = new LatencyHistogram[Op
+                .values().length];
+        private final AtomicLong[] errors = new AtomicLong[Op.values().length];
+
+        Report(String mode, long measureNanos) {
+            this.mode = mode;
+            this.measureNanos = measureNanos;
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+                errors[i] = new AtomicLong();
+            }
+        }
+
+        void record(Op op, long micros, Throwable error) {
+            if (error != null) errors[op.ordinal()].incrementAndGet();
+            else latencies[op.ordinal()].record(micros);
+        }
+
+        /**
+         * @return the latencies in microseconds of the answered requests of
+         * kind op, or of all if op is null
+         */
+        public LatencyHistogram getLatencies(Op op) {
+            if (op != null) return latencies[op.ordinal()];
+            LatencyHistogram all = new LatencyHistogram();
+            for (LatencyHistogram h : latencies) all.add(h);
+            return all;
+        }
+
+        public long getErrors(Op op) {
+            if (op != null) return errors[op.ordinal()].get();
+            long sum = 0;
+            for (AtomicLong e : errors) sum += e.get();
+            return sum;
+        }
+
+        /**
+         * @return answered requests per second started in the measured
+         * period
+         */
+        public double getThroughput() {
+            return getLatencies(null).getCount() * 1e9 / measureNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder(String.format("%s: %.1f " +
+                    "requests/s over %.1fs, %d errors%n", mode,
+                    getThroughput(), measureNanos / 1e9, getErrors(null)));
+            s.append(String.format("%-8s %10s %8s %10s %10s %10s %10s%n", "",
+                    "count", "errors", "p50(us)", "p99(us)", "p99.9(us)",
+                    "max(us)"));
+            for (Op op : Op.values())
+                row(s, op.name().toLowerCase(), getLatencies(op), getErrors(op));
+            row(s, "all", getLatencies(null), getErrors(null));
+            return s.toString();
+        }
+
+        private static void row(StringBuilder s, String name, LatencyHistogram
+                h, long errors) {
+            s.append(String.format("%-8s %10d %8d %10d %10d %10d %10d%n", name,
+                    h.getCount(), errors, h.getValueAt(0.5), h.getValueAt
+                            (0.99), h.getValueAt(0.999), h.getMax()));
+        }
+    }
+
+    /**
+     * @param args a properties file of servers, by default
+     *             conf/servers.properties, or the host:port of a single
+     *             server
+     */
+    public static void main(String[] args) throws Exception {
+        String target = args.length > 0 ? args[0] : "conf/servers.properties";
+        List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+        NodeConfig<String> nodeConfig = null;
+        if (new File(target).isFile()) {
+            nodeConfig = NodeConfigUtils.getNodeConfigFromFile(target,
+                    ReplicatedServer.SERVER_PREFIX);
+            for (String node : nodeConfig.getNodeIDs())
+                servers.add(new InetSocketAddress(nodeConfig.getNodeAddress
+                        (node), nodeConfig.getNodePort(node)));
+        } else servers.add(SingleServer.getSocketAddress(args));
+        MyDBClient client = new MyDBClient(nodeConfig);
+        try {
+            LoadGenerator load = new LoadGenerator(client, servers, KEYS, MIX,
+                    TABLE);
+            load.createTable();
+            long warmup = TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+            long measure = TimeUnit.SECONDS.toNanos(SECONDS);
+            System.out.print(MODE.equals("open") ? load.runOpen(RATE, warmup,
+                    measure) : load.runClosed(CONCURRENCY, warmup, measure));
+        } finally {
+            client.close();
+        }
+    }
+}
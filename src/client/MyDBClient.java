@@ -1,97 +1,629 @@
 package client;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
 import edu.umass.cs.nio.AbstractBytePacketDemultiplexer;
 import edu.umass.cs.nio.MessageNIOTransport;
 import edu.umass.cs.nio.interfaces.NodeConfig;
 import edu.umass.cs.nio.nioutils.NIOHeader;
-import server.SingleServer;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import server.Envelope;
+import server.FrameBatcher;
+import server.Metrics;
 import server.MyDBSingleServer;
+import server.Tracer;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This class should implement your DB client.
+ *
+ * The client records in its {@link Metrics}: "requests", a timer from
+ * sending a request to its response; "errors", a meter of error responses;
+ * and "timeouts", a meter of requests given up on. It traces the fraction
+ * of requests set by {@link Tracer#SAMPLE_RATE}.
+ *
+ * The rows returned by a SELECT arrive in pages ({@link Envelope#ROWS});
+ * the client puts them back in order and hands them to the callback either
+ * all at once, one row per line (see {@link #rows(byte[])}), or page by
+ * page to a {@link PageCallback}.
  */
 
 public class MyDBClient extends Client {
+    /**
+     * Deadline applied by {@link #callbackSend(InetSocketAddress, String,
+     * Callback)}; a request that is not answered in time is dropped from
+     * the pending table. 0 disables the deadline.
+     */
+    public static final long DEFAULT_TIMEOUT_MS = Long.getLong(
+            "mydb.client.timeoutMs", 30000);
+
+    /**
+     * Granularity of request deadlines.
+     */
+    public static final long TIMER_TICK_MS = Long.getLong(
+            "mydb.client.timerTickMs", 10);
+
+    /**
+     * Maximum number of requests coalesced into one batch per server; 1
+     * (the default) disables batching.
+     */
+    public static final int DEFAULT_BATCH_SIZE = Integer.getInteger(
+            "mydb.client.batchSize", 1);
+
+    /**
+     * How long the first request of a batch may wait for company.
+     */
+    public static final long DEFAULT_BATCH_LINGER_MICROS = Long.getLong(
+            "mydb.client.batchLingerMicros", 200);
+
+    /**
+     * A batch is sent once its encoded requests reach this many bytes.
+     */
+    public static final int BATCH_MAX_BYTES = Integer.getInteger(
+            "mydb.client.batchMaxBytes", 64 * 1024);
+
+    private static final Logger log = Logger.getLogger(MyDBClient.class
+            .getName());
+
     private NodeConfig<String> nodeConfig= null;
-    private SingleServer customServer;
-    
-    private Map<String, Callback> requestCallbackMap = new HashMap<>();
-    private int requestIdCounter = 1;
+    private final List<InetSocketAddress> servers;
+    // requests failed over from servers outside the node config
+    private final AtomicInteger failovers = new AtomicInteger();
+
+    private final PendingRequests<Outstanding> pending = new PendingRequests<Outstanding>();
+
+    /**
+     * A single timer thread drives the deadlines of all requests.
+     */
+    private final HashedWheelTimer timer = new HashedWheelTimer(new
+            DefaultThreadFactory("mydb-client-timer", true), TIMER_TICK_MS,
+            TimeUnit.MILLISECONDS);
+
+    /**
+     * Requests are sent as binary {@link Envelope}s on this transport;
+     * {@link Client#send} can only send strings. Responses arriving on
+     * either transport end up in {@link #handleResponse}.
+     */
+    private final MessageNIOTransport<String, byte[]> nio;
+
+    /**
+     * Coalesces requests to the same server if batching is enabled, else
+     * null.
+     */
+    private final FrameBatcher<InetSocketAddress> batcher;
+    private final ScheduledExecutorService batchFlusher;
+
+    private final Metrics metrics;
+    // whether the metrics are this client's own, to be closed with it
+    private final boolean ownMetrics;
+    private final Timer requests;
+    private final Meter errors;
+    private final Meter timeouts;
+    private final Tracer tracer;
 
     public MyDBClient(NodeConfig<String> nodeConfig) throws IOException {
+        this(nodeConfig, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_LINGER_MICROS);
+    }
+
+    /**
+     * @param batchSize if greater than 1, requests sent to the same server
+     *                  within lingerMicros of each other are coalesced into
+     *                  one message of up to batchSize requests; the server
+     *                  answers them with one batched response and each
+     *                  request's callback still fires individually
+     * @param lingerMicros the longest a request waits for its batch to fill
+     */
+    public MyDBClient(NodeConfig<String> nodeConfig, int batchSize, long
+            lingerMicros) throws IOException {
+        this(nodeConfig, batchSize, lingerMicros, null);
+    }
+
+    /**
+     * @param metrics where to record, e.g., shared with other clients, or
+     *                null for metrics of this client's own named "client"
+     *                and exported as set by the mydb.metrics.* properties;
+     *                metrics passed in are not closed with the client
+     */
+    public MyDBClient(NodeConfig<String> nodeConfig, int batchSize, long
+            lingerMicros, Metrics metrics) throws IOException {
+        this(nodeConfig, batchSize, lingerMicros, metrics, null);
+    }
+
+    /**
+     * @param tracer samples and records the requests to trace, or null for
+     *               a tracer named "client" with the properties' settings
+     */
+    public MyDBClient(NodeConfig<String> nodeConfig, int batchSize, long
+            lingerMicros, Metrics metrics, Tracer tracer) throws IOException {
+        this.tracer = tracer != null ? tracer : new Tracer("client");
+        this.ownMetrics = metrics == null;
+        this.metrics = ownMetrics ? new Metrics("client") : metrics;
+        this.requests = this.metrics.getRegistry().timer("requests");
+        this.errors = this.metrics.getRegistry().meter("errors");
+        this.timeouts = this.metrics.getRegistry().meter("timeouts");
         this.nodeConfig = nodeConfig;
+        this.nio = new MessageNIOTransport<String, byte[]>(new
+                AbstractBytePacketDemultiplexer() {
+                    @Override
+                    public boolean handleMessage(byte[] bytes, NIOHeader
+                            nioHeader) {
+                        handleResponse(bytes, nioHeader);
+                        return true;
+                    }
+                });
+        this.servers = new ArrayList<InetSocketAddress>();
+        if (nodeConfig != null)
+            for (String node : nodeConfig.getNodeIDs())
+                servers.add(new InetSocketAddress(nodeConfig.getNodeAddress
+                        (node), nodeConfig.getNodePort(node)));
+        if (batchSize > 1) {
+            this.batchFlusher = Executors.newSingleThreadScheduledExecutor(new
+                    DefaultThreadFactory("mydb-client-batcher", true));
+            this.batcher = new FrameBatcher<InetSocketAddress>(new FrameBatcher
+                    .Sink<InetSocketAddress>() {
+                @Override
+                public void send(InetSocketAddress dest, byte[] frame) throws
+                        IOException {
+                    nio.send(dest, frame);
+                }
+            }, batchSize, BATCH_MAX_BYTES, lingerMicros, batchFlusher);
+        } else {
+            this.batchFlusher = null;
+            this.batcher = null;
+        }
+    }
+
+    /**
+     * A callback that is also told when its request gives up waiting.
+     */
+    public static interface TimeoutCallback extends Callback {
+        /**
+         * Invoked instead of {@link #handleResponse} if no response arrived
+         * before the deadline of the last attempt.
+         *
+         * @param request the request that timed out
+         * @param isa the server the last attempt was sent to
+         */
+        public void handleTimeout(String request, InetSocketAddress isa);
+    }
+
+    /**
+     * A callback that takes the rows returned by a SELECT page by page as
+     * they arrive, rather than all of them at once, so that they need not
+     * be held in memory together.
+     */
+    public static interface PageCallback extends Callback {
+        /**
+         * Invoked with each page of rows, in order. {@link #handleResponse}
+         * follows the last page, with no bytes; it gets the response as
+         * usual for statements other than SELECTs.
+         */
+        public void handlePage(List<String> rows, NIOHeader header);
+    }
+
+    /**
+     * The pages of a SELECT's rows received so far.
+     */
+    private static class Pages {
+        // the server streaming them; pages from others, e.g., in answer to
+        // a retry, are ignored
+        final InetSocketAddress sndr;
+        // pages that arrived ahead of an earlier one, by index
+        final TreeMap<Integer, List<String>> early = new TreeMap<Integer,
+                List<String>>();
+        // the index of the next page to hand out
+        int next = 0;
+        // the number of pages, once the last one has arrived
+        int count = -1;
+        // for a callback that takes all rows at once, the rows handed out
+        final StringBuilder rows = new StringBuilder();
+
+        Pages(InetSocketAddress sndr) {
+            this.sndr = sndr;
+        }
     }
-    // public MyDBClient(SingleServer customServer) throws IOException {
 
-    //     super();
-    //     this.customServer = customServer;
-    // }
+    /**
+     * The state of a request from the time it is sent until its response
+     * arrives or its last attempt times out.
+     */
+    private static class Outstanding {
+        final String request;
+        final Callback callback;
+        final long timeoutMillis;
+        final int maxRetries;
+        InetSocketAddress isa;
+        int retries = 0;
+        volatile Timeout timeout;
+        final long sent = System.nanoTime();
+        // 0 if not traced
+        final long trace;
+        // once rows have started to arrive, else null
+        volatile Pages pages;
+
+        Outstanding(InetSocketAddress isa, String request, Callback callback,
+                    long timeoutMillis, int maxRetries, long trace) {
+            this.isa = isa;
+            this.trace = trace;
+            this.request = request;
+            this.callback = callback;
+            this.timeoutMillis = timeoutMillis;
+            this.maxRetries = maxRetries;
+        }
+    }
+
+    /**
+     * Responses to {@link #callbackSend} and {@link #sendAsync} are
+     * {@link Envelope}s carrying the request id; the matching callback is
+     * removed before it is invoked. Responses to plain {@link Client#send}
+     * requests are text of the form "N:response" and have no callback.
+     * A batched response is split and each member dispatched on its own.
+     */
     protected void handleResponse(byte[] bytes, NIOHeader header) {
-        // expect echo reply by default here
-        // try {
-        //     System.out.println("Here in HR");
-        //System.out.println(new String(bytes, SingleServer.DEFAULT_ENCODING));
-        // } catch (UnsupportedEncodingException e) {
-        //     e.printStackTrace();
-        // }
-        String responseString = new String(bytes);
-       // System.out.println("Line 41 DBClient: "+responseString);
-        int delimiterIndex = responseString.indexOf(':');
-
-        if (delimiterIndex == -1) {
-            System.out.println("*Received a response without a matching request");
+        if (!Envelope.isEnvelope(bytes, 0)) {
+            if (indexOf(bytes, (byte) ':') == -1)
+                System.out.println("*Received a response without a matching request");
             return;
         }
+        Envelope envelope = new Envelope();
+        if (!envelope.wrap(bytes, 0)) {
+            log.log(Level.WARNING, "Dropping malformed response from {0}",
+                    header.sndr);
+            return;
+        }
+        if (envelope.opcode() != Envelope.BATCH) {
+            dispatch(envelope, header);
+            return;
+        }
+        Envelope member = new Envelope();
+        for (int pos = envelope.payloadOffset(); member.wrapMember(envelope,
+                pos); pos = member.end())
+            dispatch(member, header);
+    }
 
-        String requestId = responseString.substring(0, delimiterIndex);
-        String response = responseString.substring(delimiterIndex + 1);
-        String requestToGet = "Request-"+requestId;
-        //System.out.println("Line 51: "+ requestToGet + " resp: "+ response);
-        // Get the callback associated with the request identifier
-
-        Callback callback = requestCallbackMap.get(requestToGet);
+    private void dispatch(Envelope envelope, NIOHeader header) {
+        if (envelope.opcode() == Envelope.ROWS) {
+            dispatchRows(envelope, header);
+            return;
+        }
+        Outstanding outstanding = pending.remove(envelope.id());
+        if (outstanding == null) return; // late or cancelled request
+        Timeout timeout = outstanding.timeout;
+        if (timeout != null) timeout.cancel();
+        requests.update(System.nanoTime() - outstanding.sent, TimeUnit
+                .NANOSECONDS);
+        if (envelope.opcode() == Envelope.ERROR) errors.mark();
+        tracer.record(outstanding.trace, Tracer.Event.CLIENT_RECEIVE);
+        if (envelope.opcode() == Envelope.ERROR && outstanding.callback
+                instanceof ResponseFuture)
+            ((ResponseFuture) outstanding.callback).completeExceptionally(new
+                    IOException(envelope.payloadString()));
+        else
+            outstanding.callback.handleResponse(envelope.payloadBytes(), header);
+    }
 
-        if (callback != null) {
-            // Invoke the callback with the response
-            callback.handleResponse(response.getBytes(), header);
-           // System.out.println("*Operation completed");
-        } else {
-          //  System.out.println("in callback: Received a response without a matching request");
+    /**
+     * Hands out the rows of a page and those that arrived ahead of it, in
+     * order, and completes the request once all pages are in. Every page
+     * renews the request's deadline, but a request whose rows have started
+     * to arrive is no longer retried.
+     */
+    private void dispatchRows(Envelope envelope, NIOHeader header) {
+        final long requestId = envelope.id();
+        Outstanding outstanding = pending.get(requestId);
+        if (outstanding == null) return; // late or cancelled request
+        List<String> rows;
+        try {
+            rows = envelope.rows();
+        } catch (IllegalArgumentException e) {
+            log.log(Level.WARNING, "Dropping malformed rows from {0}", header
+                    .sndr);
+            return;
         }
+        byte[] response;
+        synchronized (outstanding) {
+            Pages pages = outstanding.pages;
+            if (pages == null) outstanding.pages = pages = new Pages(header
+                    .sndr);
+            else if (!pages.sndr.equals(header.sndr)) return;
+            int index = envelope.rowsIndex();
+            if (index < pages.next || pages.early.containsKey(index)) return;
+            if ((envelope.flags() & Envelope.FLAG_MORE) == 0)
+                pages.count = index + 1;
+            pages.early.put(index, rows);
+            while (!pages.early.isEmpty() && pages.early.firstKey() == pages
+                    .next) {
+                List<String> page = pages.early.remove(pages.next++);
+                if (outstanding.callback instanceof PageCallback)
+                    ((PageCallback) outstanding.callback).handlePage(page,
+                            header);
+                else
+                    for (String row : page)
+                        pages.rows.append(row).append('\n');
+            }
+            if (pages.next != pages.count) {
+                Timeout timeout = outstanding.timeout;
+                if (timeout != null && timeout.cancel()) arm(requestId,
+                        outstanding);
+                return;
+            }
+            response = pages.rows.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        if (pending.remove(requestId) != outstanding) return;
+        Timeout timeout = outstanding.timeout;
+        if (timeout != null) timeout.cancel();
+        requests.update(System.nanoTime() - outstanding.sent, TimeUnit
+                .NANOSECONDS);
+        tracer.record(outstanding.trace, Tracer.Event.CLIENT_RECEIVE);
+        outstanding.callback.handleResponse(response, header);
+    }
+
+    /**
+     * @param response the response to a SELECT, as handed to a callback
+     * @return its rows, e.g., "Row[1, [4, 5]]"; rows are one per line, so
+     * text values with line breaks split their row
+     */
+    public static List<String> rows(byte[] response) {
+        if (response.length == 0) return Collections.emptyList();
+        String text = new String(response, StandardCharsets.UTF_8);
+        return Arrays.asList(text.substring(0, text.length() - 1).split("\n",
+                -1));
+    }
+
+    private static int indexOf(byte[] bytes, byte b) {
+        for (int i = 0; i < bytes.length; i++)
+            if (bytes[i] == b) return i;
+        return -1;
     }
+
     public void callbackSend(InetSocketAddress isa, String request, Callback
             callback) throws IOException {
+        callbackSend(isa, request, callback, DEFAULT_TIMEOUT_MS, 0);
+    }
+
+    /**
+     * Like {@link #callbackSend(InetSocketAddress, String, Callback)} but
+     * with an explicit deadline. When the deadline passes without a response
+     * the request is resent, up to maxRetries times, to the next server in
+     * the node config (or to isa again if there is no other server) with a
+     * fresh deadline. After the last attempt the request is dropped and, if
+     * the callback is a {@link TimeoutCallback}, it is told so.
+     *
+     * A retried write may be executed more than once; only the first
+     * response is delivered to the callback.
+     *
+     * @param timeoutMillis deadline of each attempt; 0 waits forever
+     * @param maxRetries number of resends after the first attempt
+     */
+    public void callbackSend(InetSocketAddress isa, String request, Callback
+            callback, long timeoutMillis, int maxRetries) throws IOException {
+        sendRequest(isa, request, callback, timeoutMillis, maxRetries);
+    }
+
+    /**
+     * Sends the request and returns a future completed with the response
+     * bytes. Any number of requests may be outstanding at once on the same
+     * server connection; responses are matched by request id exactly as for
+     * {@link #callbackSend}.
+     *
+     * The future is completed on the client's NIO thread, so dependent
+     * stages added with thenApply, thenCompose etc. run there too without
+     * any extra thread hand-off; use the *Async variants for stages that
+     * block or do heavy work. The future fails with an IOException if the
+     * request could not be sent and with a TimeoutException if no response
+     * arrived before the default deadline. Cancelling the future forgets the
+     * request.
+     */
+    public CompletableFuture<byte[]> sendAsync(InetSocketAddress isa, String
+            request) {
+        return sendAsync(isa, request, DEFAULT_TIMEOUT_MS, 0);
+    }
+
+    /**
+     * {@link #sendAsync(InetSocketAddress, String)} with an explicit
+     * deadline and retries as in {@link #callbackSend(InetSocketAddress,
+     * String, Callback, long, int)}.
+     */
+    public CompletableFuture<byte[]> sendAsync(InetSocketAddress isa, String
+            request, long timeoutMillis, int maxRetries) {
+        ResponseFuture future = new ResponseFuture();
+        try {
+            future.requestId = sendRequest(isa, request, future,
+                    timeoutMillis, maxRetries);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        // a cancellation before the id was known could not forget the
+        // request, so it is forgotten here
+        if (future.isCancelled() && future.requestId > 0)
+            forget(future.requestId);
+        return future;
+    }
+
+    /**
+     * Both the future handed out by sendAsync and the callback that
+     * completes it, so that a request costs a single allocation here.
+     */
+    private class ResponseFuture extends CompletableFuture<byte[]>
+            implements TimeoutCallback {
+        volatile long requestId = -1;
+
+        @Override
+        public void handleResponse(byte[] bytes, NIOHeader header) {
+            complete(bytes);
+        }
+
+        @Override
+        public void handleTimeout(String request, InetSocketAddress isa) {
+            completeExceptionally(new TimeoutException("No response from " +
+                    isa + " to [" + request + "]"));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            // if the id is not yet known, sendAsync forgets the request
+            // once it is
+            if (cancelled && requestId > 0) forget(requestId);
+            return cancelled;
+        }
+    }
+
+    /**
+     * @return the id of the request, which is outstanding until its
+     * response arrives or its last attempt times out
+     */
+    private long sendRequest(InetSocketAddress isa, String request, Callback
+            callback, long timeoutMillis, int maxRetries) throws IOException {
+        Outstanding outstanding = new Outstanding(isa, request, callback,
+                timeoutMillis, maxRetries, tracer.sample());
+        long requestId = pending.put(outstanding);
+        if (requestId < 0)
+            throw new IOException("Too many outstanding requests (" + pending
+                    .capacity() + ")");
+        try {
+            sendAttempt(requestId, outstanding);
+        } catch (IOException e) {
+            pending.remove(requestId);
+            throw e;
+        }
+        return requestId;
+    }
+
+    private void forget(long requestId) {
+        Outstanding outstanding = pending.remove(requestId);
+        if (outstanding != null && outstanding.timeout != null)
+            outstanding.timeout.cancel();
+    }
+
+    private void sendAttempt(final long requestId, final Outstanding
+            outstanding) throws IOException {
+        arm(requestId, outstanding);
+        byte[] envelope = Envelope.encode(Envelope.REQUEST, 0, requestId,
+                outstanding.trace, null, outstanding.request);
+        tracer.record(outstanding.trace, Tracer.Event.CLIENT_SEND);
+        if (batcher != null) batcher.add(outstanding.isa, envelope);
+        else this.nio.send(outstanding.isa, envelope);
+    }
+
+    /**
+     * Sets the deadline of the request's current attempt, if it has one.
+     */
+    private void arm(final long requestId, final Outstanding outstanding) {
+        if (outstanding.timeoutMillis > 0)
+            outstanding.timeout = timer.newTimeout(new TimerTask() {
+                @Override
+                public void run(Timeout timeout) {
+                    expire(requestId, outstanding);
+                }
+            }, outstanding.timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Invoked on the timer thread when an attempt's deadline passes.
+     */
+    private void expire(long requestId, Outstanding outstanding) {
+        if (pending.get(requestId) != outstanding) return; // answered
+        if (outstanding.retries < outstanding.maxRetries && outstanding.pages
+                == null) {
+            outstanding.retries++;
+            outstanding.isa = nextServer(outstanding.isa);
+            log.log(Level.FINE, "Retrying request {0} at {1} (attempt {2})",
+                    new Object[]{requestId, outstanding.isa, outstanding
+                            .retries + 1});
+            try {
+                sendAttempt(requestId, outstanding);
+                return;
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to retry request {0}: {1}", new
+                        Object[]{requestId, e});
+            }
+        }
+        if (pending.remove(requestId) != outstanding) return;
+        timeouts.mark();
+        log.log(Level.FINE, "Request {0} to {1} timed out", new Object[]{
+                requestId, outstanding.isa});
+        if (outstanding.callback instanceof TimeoutCallback)
+            ((TimeoutCallback) outstanding.callback).handleTimeout(outstanding
+                    .request, outstanding.isa);
+    }
 
-            String requestId = "Request-" + requestIdCounter;
+    /**
+     * @return the server after isa in the node config, or isa itself if the
+     * node config has no other server; a request first sent to a server
+     * outside the node config fails over to the configured servers in turn,
+     * each such request starting one server further along, so that they
+     * do not all land on the first
+     */
+    private InetSocketAddress nextServer(InetSocketAddress isa) {
+        if (servers.isEmpty()) return isa;
+        int i = servers.indexOf(isa);
+        if (i < 0)
+            return servers.get((failovers.getAndIncrement() & Integer
+                    .MAX_VALUE) % servers.size());
+        return servers.get((i + 1) % servers.size());
+    }
+
+    /**
+     * @return the number of requests sent with {@link #callbackSend} that
+     * are still awaiting a response
+     */
+    public int getNumOutstanding() {
+        return pending.size();
+    }
 
-            // Associate the request identifier with the callback
-            //System.out.println("Line 69: putting requestId in hashmap: "+ requestId);
-            requestCallbackMap.put(requestId, callback);
-    
-            // Send the request with the unique identifier
-            String reqToSend = requestId + ":" + request;
-           // System.out.print("Line 77: Request being sent: " + reqToSend);
-            super.send(isa, reqToSend);
-            requestIdCounter++;
+    public Metrics getMetrics() {
+        return metrics;
+    }
 
-        //throw new RuntimeException("Line77");
+    public Tracer getTracer() {
+        return tracer;
     }
+
+    public void close() {
+        if (batcher != null) {
+            batchFlusher.shutdownNow();
+            batcher.flushAll();
+        }
+        super.close();
+        this.nio.stop();
+        timer.stop();
+        if (ownMetrics) metrics.close();
+        try {
+            tracer.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to write the client's traces: {0}",
+                    e);
+        }
+    }
+
     public static void main(String[] args) throws IOException {
         String req = "SELECT * FROM users WHERE lastname='Jones'";
-        
+
         Callback callback = (bytes, header) -> {
             System.out.println("*Response from server: " + new String(bytes));
         };
 
-        // Create an instance of MyDBClient and pass the custom server to the constructor.
-        //new MyDBClient(customServer).send(MyDBSingleServer.getSocketAddress(args), req);//, callback);   
-        NodeConfig<String> nc = null;   
-        new MyDBClient(nc).callbackSend(MyDBSingleServer.getSocketAddress(args), req, callback);    
-         
+        NodeConfig<String> nc = null;
+        new MyDBClient(nc).callbackSend(MyDBSingleServer.getSocketAddress(args), req, callback);
+
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,109 @@
+package client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free table of outstanding requests keyed by a primitive long
+ * request id. The table has a fixed number of slots and a request id maps
+ * to slot (id mod capacity), so its memory footprint does not grow with the
+ * number of requests ever sent. Entries are removed when their response
+ * arrives.
+ *
+ * Ids are handed out in increasing order. If the slot of a freshly drawn id
+ * is still held by an older outstanding request, that id is skipped, so a
+ * full table is the only reason {@link #put(Object)} fails.
+ *
+ * @param <V> the type of the per-request state, e.g., a callback
+ */
+public class PendingRequests<V> {
+    /**
+     * Default number of slots, i.e., the maximum number of requests that can
+     * be outstanding at once.
+     */
+    public static final int DEFAULT_CAPACITY = Integer.getInteger(
+            "mydb.client.maxOutstanding", 1 << 16);
+
+    private static class Entry<V> {
+        long id;
+        final V value;
+
+        Entry(V value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry<V>> slots;
+    private final int mask;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicInteger size = new AtomicInteger();
+
+    public PendingRequests() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    public PendingRequests(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<Entry<V>>(slots);
+        this.mask = slots - 1;
+    }
+
+    /**
+     * @param value the state to associate with a new request
+     * @return the new request's id (always positive), or -1 if the table
+     * is full
+     */
+    public long put(V value) {
+        Entry<V> entry = new Entry<V>(value);
+        for (int attempt = 0; attempt <= mask; attempt++) {
+            long id = nextId.getAndIncrement();
+            entry.id = id; // published by the CAS below
+            if (slots.compareAndSet(index(id), null, entry)) {
+                size.incrementAndGet();
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the state of the request if it was still outstanding, else
+     * null; only one concurrent caller can win a given id
+     */
+    public V remove(long id) {
+        int i = index(id);
+        Entry<V> entry = slots.get(i);
+        if (entry == null || entry.id != id || !slots.compareAndSet(i, entry,
+                null))
+            return null;
+        size.decrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * @return the state of the request if it is still outstanding, else null
+     */
+    public V get(long id) {
+        Entry<V> entry = slots.get(index(id));
+        return entry != null && entry.id == id ? entry.value : null;
+    }
+
+    /**
+     * @return the number of outstanding requests
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    private int index(long id) {
+        return (int) (id & mask);
+    }
+}
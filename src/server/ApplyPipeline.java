@@ -0,0 +1,220 @@
+package server;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Applies an ordered stream of statements to a {@link StorageEngine} with
+ * up to window statements outstanding at once, while keeping the effect of
+ * executing them one by one in submission order.
+ *
+ * A statement starts as soon as the window has room and it conflicts
+ * ({@link Footprint}) neither with any statement still executing nor with
+ * any submitted before it that has not started yet. Writes to different
+ * rows thus overlap their round trips to the database and overtake one
+ * another, so a hot row or a slow statement holds up only what conflicts
+ * with it, while a schema change waits for everything before it and holds
+ * up everything after it. At most LOOKAHEAD_PER_SLOT times window waiting
+ * statements are considered for overtaking at once.
+ *
+ * @param <T> what the caller wants back with each outcome
+ */
+public class ApplyPipeline<T> {
+    private static final int LOOKAHEAD_PER_SLOT = 4;
+
+    /**
+     * Told the outcome of each statement, possibly out of submission order
+     * for statements that do not conflict.
+     */
+    public static interface Applied<T> {
+        /**
+         * @param error why the statement failed, or null if it succeeded
+         */
+        public void applied(T item, Throwable error);
+
+        /**
+         * Told when a statement or task is about to start, e.g., to trace
+         * it.
+         */
+        public default void started(T item) {
+        }
+    }
+
+    /**
+     * Work other than a statement, applied in order like one.
+     */
+    public static interface Task {
+        /**
+         * @return a future that completes once the task is done
+         */
+        public ListenableFuture<?> start();
+    }
+
+    private static class Op<T> {
+        final String cql;
+        final Task task;
+        final T item;
+        final Footprint footprint;
+
+        Op(String cql, Task task, T item, Footprint footprint) {
+            this.cql = cql;
+            this.task = task;
+            this.item = item;
+            this.footprint = footprint;
+        }
+    }
+
+    private final StorageEngine storage;
+    private final String keyspace;
+    private final int window;
+    private final Executor executor;
+    private final Applied<T> sink;
+
+    // guarded by this
+    private final LinkedList<Op<T>> waiting = new LinkedList<Op<T>>();
+    private final List<Op<T>> running = new ArrayList<Op<T>>();
+    private boolean drainScheduled = false;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param keyspace the keyspace of unqualified table names
+     * @param executor starts the statements, and runs those of a
+     *                 synchronous engine; a single thread suffices
+     */
+    public ApplyPipeline(StorageEngine storage, String keyspace, int window,
+                         Executor executor, Applied<T> sink) {
+        this.storage = storage;
+        this.keyspace = keyspace;
+        this.window = Math.max(1, window);
+        this.executor = executor;
+        this.sink = sink;
+    }
+
+    /**
+     * Queues a statement behind all previously submitted ones it conflicts
+     * with.
+     */
+    public void submit(String cql, T item) {
+        submit(cql, Footprint.of(cql, keyspace, storage), item);
+    }
+
+    /**
+     * @param footprint the statement's footprint, if the caller has it
+     */
+    public void submit(String cql, Footprint footprint, T item) {
+        submit(new Op<T>(cql, null, item, footprint));
+    }
+
+    /**
+     * Queues a task that touches what footprint says, e.g., {@link
+     * Footprint#EVERYTHING} to run it with nothing else in flight.
+     */
+    public void submit(Task task, Footprint footprint, T item) {
+        submit(new Op<T>(null, task, item, footprint));
+    }
+
+    private void submit(Op<T> op) {
+        synchronized (this) {
+            waiting.add(op);
+            if (drainScheduled) return;
+            drainScheduled = true;
+        }
+        executor.execute(drain);
+    }
+
+    private void drain() {
+        List<Op<T>> start = new ArrayList<Op<T>>();
+        synchronized (this) {
+            drainScheduled = false;
+            List<Op<T>> skipped = new ArrayList<Op<T>>();
+            int lookahead = window * LOOKAHEAD_PER_SLOT;
+            for (Iterator<Op<T>> it = waiting.iterator(); it.hasNext() &&
+                    running.size() < window && skipped.size() < lookahead; ) {
+                Op<T> op = it.next();
+                if (conflicts(op, running) || conflicts(op, skipped)) {
+                    skipped.add(op);
+                    // nothing can overtake a barrier
+                    if (op.footprint.table == null) break;
+                    continue;
+                }
+                it.remove();
+                running.add(op);
+                start.add(op);
+            }
+        }
+        for (Op<T> op : start) execute(op);
+    }
+
+    private static <T> boolean conflicts(Op<T> op, List<Op<T>> others) {
+        for (Op<T> other : others)
+            if (op.footprint.conflicts(other.footprint)) return true;
+        return false;
+    }
+
+    private void execute(final Op<T> op) {
+        sink.started(op.item);
+        ListenableFuture<?> future;
+        try {
+            future = op.task != null ? op.task.start() : storage.executeAsync
+                    (op.cql);
+        } catch (RuntimeException e) {
+            future = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(future, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                complete(op, null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                complete(op, t);
+            }
+        });
+    }
+
+    private void complete(Op<T> op, Throwable error) {
+        boolean schedule;
+        synchronized (this) {
+            running.remove(op);
+            schedule = !waiting.isEmpty() && !drainScheduled;
+            if (schedule) drainScheduled = true;
+        }
+        sink.applied(op.item, error);
+        if (schedule) executor.execute(drain);
+    }
+
+    /**
+     * Removes all statements and tasks that have not started yet, e.g.,
+     * because their effects are about to be installed otherwise. Their
+     * sink is not told about them.
+     *
+     * @return their items, in submission order
+     */
+    public synchronized List<T> discardWaiting() {
+        List<T> items = new ArrayList<T>(waiting.size());
+        for (Op<T> op : waiting) items.add(op.item);
+        waiting.clear();
+        return items;
+    }
+
+    /**
+     * @return the number of statements submitted but not yet completed
+     */
+    public synchronized int size() {
+        return waiting.size() + running.size();
+    }
+}
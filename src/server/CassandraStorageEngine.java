@@ -0,0 +1,235 @@
+package server;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Executes statements on a Cassandra cluster through the driver, bound to
+ * cached prepared statements ({@link PreparedStatementCache}) and, unless
+ * disabled, with concurrent writes grouped into batches ({@link
+ * WriteBatcher}).
+ */
+public class CassandraStorageEngine implements StorageEngine {
+    /**
+     * Maximum number of writes grouped into one unlogged Cassandra batch by
+     * the {@link WriteBatcher}. A value of 1 or less sends every write on
+     * its own.
+     */
+    public static final int WRITE_BATCH_SIZE = Integer.getInteger(
+            "mydb.writeBatchSize", 64);
+
+    /**
+     * Maximum number of batches the {@link WriteBatcher} executes at once;
+     * only batches that touch different rows overlap.
+     */
+    public static final int WRITE_BATCHES_IN_FLIGHT = Integer.getInteger(
+            "mydb.writeBatchesInFlight", 4);
+
+    /**
+     * How long an idle {@link WriteBatcher} waits for more writes before
+     * sending the first one. With 0, writes only accumulate while no more
+     * batches may start.
+     */
+    public static final long WRITE_LINGER_MICROS = Long.getLong(
+            "mydb.writeLingerMicros", 0);
+
+    private static final String CREATE_TABLE = "CREATE TABLE ";
+
+    private static final Function<Row, String> ROW_TO_STRING = new
+            Function<Row, String>() {
+        @Override
+        public String apply(Row row) {
+            return row.toString();
+        }
+    };
+
+    private static final Function<ResultSet, Iterable<String>> ROWS = new
+            Function<ResultSet, Iterable<String>>() {
+        @Override
+        public Iterable<String> apply(ResultSet rs) {
+            // rendered lazily, only if the caller looks at the rows
+            return Iterables.transform(rs, ROW_TO_STRING);
+        }
+    };
+
+    private static final Function<ResultSet, Page> PAGE = new
+            Function<ResultSet, Page>() {
+        @Override
+        public Page apply(ResultSet rs) {
+            return new ResultSetPage(rs);
+        }
+    };
+
+    /**
+     * The rows the driver has fetched so far and not handed out yet.
+     */
+    private static class ResultSetPage implements Page {
+        private final ResultSet rs;
+        private final List<String> rows;
+
+        ResultSetPage(ResultSet rs) {
+            this.rs = rs;
+            int available = rs.getAvailableWithoutFetching();
+            this.rows = new ArrayList<String>(available);
+            for (int i = 0; i < available; i++)
+                rows.add(rs.one().toString());
+        }
+
+        @Override
+        public List<String> rows() {
+            return rows;
+        }
+
+        @Override
+        public boolean last() {
+            return rs.isFullyFetched() && rs.getAvailableWithoutFetching() ==
+                    0;
+        }
+
+        @Override
+        public ListenableFuture<Page> next() {
+            return Futures.transform(rs.fetchMoreResults(), PAGE);
+        }
+    }
+
+    private final Cluster cluster;
+    private final Session session;
+    private final PreparedStatementCache statements;
+    // null if writes are not batched
+    private final WriteBatcher writes;
+    private final ScheduledExecutorService writeLinger;
+
+    /**
+     * @param isaDB the address of a Cassandra node
+     * @param keyspace the keyspace statements are executed in
+     */
+    public CassandraStorageEngine(InetSocketAddress isaDB, String keyspace) {
+        this(isaDB, keyspace, WRITE_BATCH_SIZE);
+    }
+
+    public CassandraStorageEngine(InetSocketAddress isaDB, String keyspace,
+                                  int writeBatchSize) {
+        this.cluster = Cluster.builder().addContactPointsWithPorts(isaDB)
+                .build();
+        this.session = cluster.connect(keyspace);
+        this.statements = new PreparedStatementCache(session);
+        this.writeLinger = writeBatchSize > 1 && WRITE_LINGER_MICROS > 0 ?
+                Executors.newSingleThreadScheduledExecutor(new
+                        DefaultThreadFactory("mydb-write-linger", true)) : null;
+        this.writes = writeBatchSize > 1 ? new WriteBatcher(session,
+                statements, writeBatchSize, WRITE_BATCHES_IN_FLIGHT,
+                WRITE_LINGER_MICROS, writeLinger) : null;
+    }
+
+    @Override
+    public ListenableFuture<Iterable<String>> executeAsync(String cql) {
+        return Futures.transform(writes != null ? writes.executeAsync(cql) :
+                statements.executeAsync(cql), ROWS);
+    }
+
+    /**
+     * Pages are fetched by the driver, pageSize rows at a time, only once
+     * the previous page has been handed out. Reads go straight to the
+     * prepared statements rather than through the {@link WriteBatcher}.
+     */
+    @Override
+    public ListenableFuture<Page> executePagedAsync(String cql, int pageSize) {
+        return Futures.transform(statements.executeAsync(cql, pageSize), PAGE);
+    }
+
+    @Override
+    public Iterable<String> execute(String cql) {
+        return ROWS.apply(statements.execute(cql));
+    }
+
+    @Override
+    public List<String> primaryKey(String keyspace, String table) {
+        return WriteBatcher.primaryKey(session, keyspace, table);
+    }
+
+    /**
+     * Tables are recreated with {@link TableMetadata#asCQLQuery()} and rows
+     * reinserted with INSERT ... JSON.
+     */
+    @Override
+    public List<String> snapshot() {
+        return Lists.newArrayList(snapshotLazily());
+    }
+
+    /**
+     * Reads each table once the statements of the previous one have been
+     * iterated, and its rows a page at a time as the driver fetches them.
+     */
+    @Override
+    public Iterable<String> snapshotLazily() {
+        KeyspaceMetadata ks = cluster.getMetadata().getKeyspace(session
+                .getLoggedKeyspace());
+        if (ks == null) return Collections.emptyList();
+        return Iterables.concat(Iterables.transform(new ArrayList
+                <TableMetadata>(ks.getTables()), new Function<TableMetadata,
+                Iterable<String>>() {
+            @Override
+            public Iterable<String> apply(TableMetadata table) {
+                String ddl = table.asCQLQuery();
+                // drop the keyspace from "CREATE TABLE ks.t (...) WITH ..."
+                int dot = ddl.indexOf('.', CREATE_TABLE.length());
+                final String name = Metadata.quote(table.getName());
+                return Iterables.concat(Collections.singletonList(CREATE_TABLE
+                        + ddl.substring(dot + 1)), Iterables.transform(session
+                        .execute("SELECT JSON * FROM " + name), new
+                        Function<Row, String>() {
+                    @Override
+                    public String apply(Row row) {
+                        return "INSERT INTO " + name + " JSON '" + row
+                                .getString(0).replace("'", "''") + "'";
+                    }
+                }));
+            }
+        }));
+    }
+
+    @Override
+    public void restore(List<String> statements) {
+        KeyspaceMetadata ks = cluster.getMetadata().getKeyspace(session
+                .getLoggedKeyspace());
+        if (ks != null)
+            for (TableMetadata table : ks.getTables())
+                session.execute("DROP TABLE " + Metadata.quote(table
+                        .getName()));
+        for (String statement : statements) session.execute(statement);
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    @Override
+    public void close() {
+        if (writeLinger != null) writeLinger.shutdownNow();
+        cluster.close();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + statements + (writes != null
+                ? ", " + writes : "") + "]";
+    }
+}
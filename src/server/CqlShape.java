@@ -0,0 +1,194 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The shape of a CQL statement, i.e., its text with every literal replaced
+ * by a bind marker, together with the literals in the order they were
+ * removed. Statements that differ only in their literal values have equal
+ * shapes and can therefore share a single prepared statement.
+ *
+ * Only DML statements (select, insert, update, delete) are normalized.
+ * Anything the scanner is not sure about (comments, $$ strings, batches,
+ * DDL) has no shape and should be sent to the database as raw text.
+ */
+public class CqlShape {
+    public final String text;
+    public final List<String> literals;
+
+    private CqlShape(String text, List<String> literals) {
+        this.text = text;
+        this.literals = Collections.unmodifiableList(literals);
+    }
+
+    /**
+     * @param cql the raw statement
+     * @return the statement's shape or null if it can not be normalized
+     */
+    public static CqlShape of(String cql) {
+        String kind = firstKeyword(cql);
+        if (!("select".equals(kind) || "insert".equals(kind) || "update"
+                .equals(kind) || "delete".equals(kind)))
+            return null;
+
+        StringBuilder shape = new StringBuilder(cql.length());
+        List<String> literals = new ArrayList<String>();
+        int n = cql.length();
+        int i = 0;
+        while (i < n) {
+            char c = cql.charAt(i);
+            if (c == '\'') {
+                int end = endOfString(cql, i);
+                if (end < 0) return null;
+                literals.add(cql.substring(i, end));
+                shape.append('?');
+                i = end;
+            } else if (c == '$' || (c == '-' && i + 1 < n && cql.charAt(i + 1)
+                    == '-') || (c == '/' && i + 1 < n && cql.charAt(i + 1) ==
+                    '*') || c == '"' || c == '?') {
+                // dollar strings, comments, quoted identifiers and markers
+                return null;
+            } else if ((c == '[' || c == '{') && !isIdentifierPart(prev(cql, i))) {
+                int end = endOfCollection(cql, i);
+                if (end > 0) {
+                    literals.add(cql.substring(i, end));
+                    shape.append('?');
+                    i = end;
+                } else {
+                    shape.append(c);
+                    i++;
+                }
+            } else if (startsNumber(cql, i)) {
+                int end = endOfNumber(cql, i);
+                if (end < 0) return null;
+                literals.add(cql.substring(i, end));
+                shape.append('?');
+                i = end;
+            } else if (isIdentifierPart(c)) {
+                int end = i;
+                while (end < n && isIdentifierPart(cql.charAt(end))) end++;
+                shape.append(cql, i, end);
+                i = end;
+            } else {
+                shape.append(c);
+                i++;
+            }
+        }
+        return new CqlShape(shape.toString(), literals);
+    }
+
+    /**
+     * @return the lower-cased first word of the statement, or "" if none
+     */
+    public static String firstKeyword(String cql) {
+        int n = cql.length();
+        int i = 0;
+        while (i < n && Character.isWhitespace(cql.charAt(i))) i++;
+        int start = i;
+        while (i < n && Character.isLetter(cql.charAt(i))) i++;
+        return cql.substring(start, i).toLowerCase();
+    }
+
+    static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    static char prev(String cql, int i) {
+        while (--i >= 0)
+            if (!Character.isWhitespace(cql.charAt(i))) return cql.charAt(i);
+        return ' ';
+    }
+
+    static boolean startsNumber(String cql, int i) {
+        char c = cql.charAt(i);
+        if (i > 0 && (isIdentifierPart(cql.charAt(i - 1)) || cql.charAt(i - 1)
+                == '.'))
+            return false;
+        if (Character.isDigit(c)) return true;
+        // a sign belongs to the literal only where an operand is expected
+        if ((c == '-' || c == '+') && i + 1 < cql.length() && Character
+                .isDigit(cql.charAt(i + 1))) {
+            char p = prev(cql, i);
+            return p == '=' || p == '(' || p == ',' || p == '[' || p == '{'
+                    || p == '<' || p == '>' || p == ':';
+        }
+        return false;
+    }
+
+    /**
+     * Numbers, blobs (0x...) and uuids all start with a digit. Returns -1
+     * for anything that looks like none of them.
+     */
+    static int endOfNumber(String cql, int i) {
+        int n = cql.length();
+        int end = i;
+        while (end < n && (isIdentifierPart(cql.charAt(end)) || cql.charAt
+                (end) == '.' || cql.charAt(end) == '-' || ((cql.charAt(end) ==
+                '+') && (cql.charAt(end - 1) == 'e' || cql.charAt(end - 1) ==
+                'E'))))
+            end++;
+        String token = cql.substring(i, end);
+        if (token.matches("[+-]?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")
+                || token.matches("0[xX][0-9a-fA-F]*")
+                || token.matches("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}"
+                + "-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}"))
+            return end;
+        return -1;
+    }
+
+    static int endOfString(String cql, int i) {
+        int n = cql.length();
+        for (int j = i + 1; j < n; j++)
+            if (cql.charAt(j) == '\'') {
+                if (j + 1 < n && cql.charAt(j + 1) == '\'') j++; // escaped
+                else return j + 1;
+            }
+        return -1;
+    }
+
+    /**
+     * @return the index just past the collection literal starting at i, or
+     * -1 if the brackets enclose anything other than literals (e.g., bind
+     * markers, identifiers or function calls).
+     */
+    static int endOfCollection(String cql, int i) {
+        int depth = 0;
+        int n = cql.length();
+        int j = i;
+        while (j < n) {
+            char c = cql.charAt(j);
+            if (c == '[' || c == '{') {
+                depth++;
+                j++;
+            } else if (c == ']' || c == '}') {
+                j++;
+                if (--depth == 0) return j;
+            } else if (c == '\'') {
+                j = endOfString(cql, j);
+                if (j < 0) return -1;
+            } else if (c == ',' || c == ':' || Character.isWhitespace(c)) {
+                j++;
+            } else if (startsNumber(cql, j)) {
+                j = endOfNumber(cql, j);
+                if (j < 0) return -1;
+            } else {
+                String rest = cql.substring(j).toLowerCase();
+                if (rest.startsWith("true"))
+                    j += 4;
+                else if (rest.startsWith("false"))
+                    j += 5;
+                else
+                    return -1;
+                if (j < n && isIdentifierPart(cql.charAt(j))) return -1;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return text + " " + literals;
+    }
+}
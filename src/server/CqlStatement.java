@@ -0,0 +1,431 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A shallow classification of a CQL statement: its kind, the table it
+ * targets and the columns it pins to a single value, i.e., the equality
+ * conditions of a where clause or the columns and values of an insert.
+ * Together with the table's primary key columns the latter identify the
+ * row a write touches.
+ *
+ * The parser only understands the statement forms the servers need to
+ * reason about and errs on the side of caution: anything it does not
+ * recognize is {@link Kind#OTHER}, and a write whose row can not be
+ * determined has no key.
+ */
+public class CqlStatement {
+    public static enum Kind {
+        SELECT, INSERT, UPDATE, DELETE,
+        /** create, drop, alter, truncate, use, grant, ... */
+        DDL,
+        /** batches and anything unparseable */
+        OTHER;
+
+        public boolean isWrite() {
+            return this == INSERT || this == UPDATE || this == DELETE;
+        }
+    }
+
+    public final Kind kind;
+    /** the keyspace named in the statement, lower-cased, or null */
+    public final String keyspace;
+    /** the target table, lower-cased, or null if unknown */
+    public final String table;
+    /** column name (lower-cased) to literal for every column pinned to one value */
+    public final Map<String, String> pinned;
+    /** true for lightweight transactions (IF ...) */
+    public final boolean conditional;
+    /**
+     * true if some assignment is of the form c = c + number or c = c -
+     * number, i.e., a counter update
+     */
+    public final boolean counterUpdate;
+    /*
+     * For an unconditional update without USING, column (lower-cased) to
+     * what the update does to it: "+n" adds a number (a counter update), "+{}"
+     * and "-{}" add to or remove from a set, "=" followed by a literal
+     * overwrites it and "?" is anything else; null for other statements.
+     */
+    private final Map<String, String> effects;
+    // see isIdempotent()
+    private final boolean idempotent;
+
+    private CqlStatement(Kind kind, String keyspace, String table, Map<String,
+            String> pinned, boolean conditional, boolean counterUpdate,
+                         boolean idempotent) {
+        this(kind, keyspace, table, pinned, conditional, counterUpdate, null,
+                idempotent);
+    }
+
+    private CqlStatement(Kind kind, String keyspace, String table, Map<String,
+            String> pinned, boolean conditional, boolean counterUpdate,
+                         Map<String, String> effects, boolean idempotent) {
+        this.kind = kind;
+        this.keyspace = keyspace;
+        this.table = table;
+        this.pinned = Collections.unmodifiableMap(pinned);
+        this.conditional = conditional;
+        this.counterUpdate = counterUpdate;
+        this.effects = effects;
+        this.idempotent = idempotent;
+    }
+
+    private static final CqlStatement OTHER = new CqlStatement(Kind.OTHER,
+            null, null, new HashMap<String, String>(), false, false, false);
+
+    /**
+     * Tells whether executing this statement twice has the same effect as
+     * executing it once, so that it may be retried after a failure that
+     * may or may not have applied it. That is the case for reads,
+     * unconditional inserts of literal values, unconditional deletes of
+     * rows or whole columns, and updates that only overwrite columns with
+     * literals or add to or remove from sets. Counter updates, list
+     * appends and removals by index, conditional statements, values
+     * computed on the server, e.g., now(), and anything not understood
+     * are not idempotent.
+     */
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    /**
+     * Tells whether this statement and other, both applied to the same row,
+     * have the same effect in either order. That is the case for updates
+     * that, column by column, either touch different columns, both add
+     * numbers to a counter, both add to or both remove from a set, or
+     * overwrite it with the same value. List appends, inserts, deletes,
+     * conditional updates and anything not understood commute with
+     * nothing.
+     */
+    public boolean commutesWith(CqlStatement other) {
+        if (effects == null || other == null || other.effects == null)
+            return false;
+        for (Map.Entry<String, String> effect : effects.entrySet()) {
+            String otherEffect = other.effects.get(effect.getKey());
+            if (effect.getValue().equals("?") || "?".equals(otherEffect))
+                return false;
+            if (otherEffect != null && !otherEffect.equals(effect.getValue()))
+                return false;
+        }
+        return !other.effects.containsValue("?");
+    }
+
+    /**
+     * @return for an update that only adds to or removes from counters and
+     * sets, the columns and what it does to each, e.g., "n+n,tags+{}"; two
+     * updates with the same class commute ({@link #commutesWith}). null for
+     * all other statements.
+     */
+    public String commutativity() {
+        if (effects == null || effects.isEmpty()) return null;
+        StringBuilder commutes = new StringBuilder();
+        for (Map.Entry<String, String> effect : effects.entrySet()) {
+            if (!effect.getValue().equals("+n") && !effect.getValue().equals
+                    ("+{}") && !effect.getValue().equals("-{}"))
+                return null;
+            if (commutes.length() > 0) commutes.append(',');
+            commutes.append(effect.getKey()).append(effect.getValue());
+        }
+        return commutes.toString();
+    }
+
+    /**
+     * @param primaryKey the table's primary key columns in order
+     * @return the values of the primary key columns joined by commas, or
+     * null if the statement does not pin all of them
+     */
+    public String key(List<String> primaryKey) {
+        if (primaryKey == null || primaryKey.isEmpty()) return null;
+        StringBuilder key = new StringBuilder();
+        for (String column : primaryKey) {
+            String value = pinned.get(column.toLowerCase());
+            if (value == null) return null;
+            if (key.length() > 0) key.append(',');
+            key.append(value);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the table qualified by the statement's keyspace or the given
+     * default keyspace
+     */
+    public String qualifiedTable(String defaultKeyspace) {
+        return (keyspace != null ? keyspace : defaultKeyspace) + "." + table;
+    }
+
+    public static CqlStatement parse(String cql) {
+        List<String> tokens = tokenize(cql);
+        if (tokens == null || tokens.isEmpty()) return OTHER;
+        String first = tokens.get(0).toLowerCase();
+        try {
+            if (first.equals("select")) return parseSelectOrDelete(tokens,
+                    Kind.SELECT);
+            if (first.equals("delete")) return parseSelectOrDelete(tokens,
+                    Kind.DELETE);
+            if (first.equals("insert")) return parseInsert(tokens);
+            if (first.equals("update")) return parseUpdate(tokens);
+        } catch (IndexOutOfBoundsException e) {
+            return OTHER;
+        }
+        if (first.equals("begin") || first.equals("apply")) return OTHER;
+        return new CqlStatement(Kind.DDL, null, null, new HashMap<String,
+                String>(), false, false, false);
+    }
+
+    private static CqlStatement parseSelectOrDelete(List<String> tokens,
+                                                    Kind kind) {
+        int from = indexOfKeyword(tokens, "from", 1);
+        if (from < 0) return OTHER;
+        String[] table = new String[2];
+        int i = parseTable(tokens, from + 1, table);
+        Map<String, String> pinned = new HashMap<String, String>();
+        int where = indexOfKeyword(tokens, "where", i);
+        boolean conditional = false;
+        if (where >= 0) conditional = parseConditions(tokens, where + 1, pinned);
+        // deleting a list element by index shifts the others
+        boolean idempotent = kind == Kind.SELECT || (!conditional && !tokens
+                .subList(1, from).contains("["));
+        return new CqlStatement(kind, table[0], table[1], pinned, conditional,
+                false, idempotent);
+    }
+
+    private static CqlStatement parseInsert(List<String> tokens) {
+        if (!tokens.get(1).equalsIgnoreCase("into")) return OTHER;
+        String[] table = new String[2];
+        int i = parseTable(tokens, 2, table);
+        if (!tokens.get(i).equals("(")) return OTHER; // e.g., insert ... json
+        List<String> columns = new ArrayList<String>();
+        for (i++; !tokens.get(i).equals(")"); i++)
+            if (!tokens.get(i).equals(",")) columns.add(tokens.get(i)
+                    .toLowerCase());
+        i++;
+        if (!tokens.get(i).equalsIgnoreCase("values") || !tokens.get(i + 1)
+                .equals("("))
+            return OTHER;
+        Map<String, String> pinned = new HashMap<String, String>();
+        int column = 0;
+        boolean literals = true;
+        for (i += 2; !tokens.get(i).equals(")"); i++) {
+            String token = tokens.get(i);
+            if (token.equals(",")) continue;
+            if (column >= columns.size()) return OTHER;
+            if (isLiteral(token)) pinned.put(columns.get(column), token);
+            else literals = false;
+            column++;
+        }
+        boolean conditional = indexOfKeyword(tokens, "if", i) >= 0;
+        return new CqlStatement(Kind.INSERT, table[0], table[1], pinned,
+                conditional, false, literals && column == columns.size() &&
+                !conditional);
+    }
+
+    private static CqlStatement parseUpdate(List<String> tokens) {
+        String[] table = new String[2];
+        int i = parseTable(tokens, 1, table);
+        int set = indexOfKeyword(tokens, "set", i);
+        int where = indexOfKeyword(tokens, "where", set);
+        if (set < 0 || where < 0) return OTHER;
+        boolean counter = false;
+        // c = c + 5 / c = c - 5
+        for (int j = set + 1; j + 4 < where; j++)
+            if (tokens.get(j + 1).equals("=") && tokens.get(j).equalsIgnoreCase
+                    (tokens.get(j + 2)) && (tokens.get(j + 3).equals("+") ||
+                    tokens.get(j + 3).equals("-")) && isNumber(tokens.get(j + 4)))
+                counter = true;
+        Map<String, String> pinned = new HashMap<String, String>();
+        boolean conditional = parseConditions(tokens, where + 1, pinned);
+        // with USING TIMESTAMP or TTL, the order of even set additions shows
+        Map<String, String> effects = conditional || set != i ? null :
+                parseAssignments(tokens, set + 1, where);
+        boolean idempotent = effects != null && !effects.isEmpty();
+        if (idempotent)
+            for (String effect : effects.values())
+                if (!effect.startsWith("=") && !effect.equals("+{}") && !effect
+                        .equals("-{}"))
+                    idempotent = false;
+        return new CqlStatement(Kind.UPDATE, table[0], table[1], pinned,
+                conditional, counter, effects, idempotent);
+    }
+
+    /**
+     * Classifies the comma-separated assignments between from and to; see
+     * {@link #effects}.
+     */
+    private static Map<String, String> parseAssignments(List<String> tokens,
+                                                       int from, int to) {
+        Map<String, String> effects = new TreeMap<String, String>();
+        int start = from, depth = 0;
+        for (int j = from; j <= to; j++) {
+            if (j < to && tokens.get(j).equals("(")) depth++;
+            if (j < to && tokens.get(j).equals(")")) depth--;
+            if (j < to && (depth > 0 || !tokens.get(j).equals(","))) continue;
+            List<String> a = tokens.subList(start, j);
+            start = j + 1;
+            if (a.size() < 3 || !a.get(1).equals("=")) return null;
+            String column = a.get(0).toLowerCase(), effect = "?";
+            if (a.size() == 3 && isLiteral(a.get(2)))
+                effect = "=" + a.get(2);
+            else if (a.size() == 5 && a.get(2).equalsIgnoreCase(a.get(0)) &&
+                    (a.get(3).equals("+") || a.get(3).equals("-")) &&
+                    isLiteral(a.get(4))) {
+                String literal = a.get(4);
+                if (isNumber(literal)) effect = "+n";
+                else if (literal.charAt(0) == '{' && !isMap(literal))
+                    effect = a.get(3) + "{}";
+            }
+            // the same column assigned twice is not understood
+            if (effects.put(column, effect) != null) effects.put(column, "?");
+        }
+        return effects;
+    }
+
+    /**
+     * @return true if a collection literal in braces is a map rather than a
+     * set, i.e., has a colon outside of strings
+     */
+    private static boolean isMap(String literal) {
+        boolean quoted = false;
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            if (c == '\'') quoted = !quoted;
+            else if (c == ':' && !quoted) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses "k1 = v1 AND k2 = v2 ..." until the end of the where clause.
+     *
+     * @return true if the where clause is followed by an IF condition
+     */
+    private static boolean parseConditions(List<String> tokens, int i,
+                                           Map<String, String> pinned) {
+        while (i + 2 < tokens.size()) {
+            String column = tokens.get(i);
+            if (column.equals(";") || isClauseKeyword(column)) break;
+            if (tokens.get(i + 1).equals("=") && isLiteral(tokens.get(i + 2))) {
+                pinned.put(column.toLowerCase(), tokens.get(i + 2));
+                i += 3;
+            } else {
+                // skip a condition we do not understand, e.g., in (...)
+                int depth = 0;
+                while (i < tokens.size() && (depth > 0 || !(tokens.get(i)
+                        .equalsIgnoreCase("and") || tokens.get(i).equals(";")
+                        || isClauseKeyword(tokens.get(i))))) {
+                    if (tokens.get(i).equals("(")) depth++;
+                    if (tokens.get(i).equals(")")) depth--;
+                    i++;
+                }
+            }
+            if (i < tokens.size() && tokens.get(i).equalsIgnoreCase("and")) i++;
+        }
+        return indexOfKeyword(tokens, "if", i) >= 0;
+    }
+
+    private static boolean isClauseKeyword(String token) {
+        String t = token.toLowerCase();
+        return t.equals("if") || t.equals("limit") || t.equals("allow") || t
+                .equals("order") || t.equals("group") || t.equals("per") || t
+                .equals("using");
+    }
+
+    /**
+     * Parses [keyspace.]table starting at i into table[0] and table[1].
+     *
+     * @return the index after the table name
+     */
+    private static int parseTable(List<String> tokens, int i, String[] table) {
+        if (i + 2 < tokens.size() && tokens.get(i + 1).equals(".")) {
+            table[0] = tokens.get(i).toLowerCase();
+            table[1] = tokens.get(i + 2).toLowerCase();
+            return i + 3;
+        }
+        table[1] = tokens.get(i).toLowerCase();
+        return i + 1;
+    }
+
+    private static int indexOfKeyword(List<String> tokens, String keyword,
+                                      int from) {
+        if (from < 0) return -1;
+        for (int i = from; i < tokens.size(); i++)
+            if (tokens.get(i).equalsIgnoreCase(keyword)) return i;
+        return -1;
+    }
+
+    private static boolean isLiteral(String token) {
+        char c = token.charAt(0);
+        return c == '\'' || c == '[' || c == '{' || isNumber(token);
+    }
+
+    private static boolean isNumber(String token) {
+        char c = token.charAt(0);
+        return Character.isDigit(c) || ((c == '-' || c == '+') && token
+                .length() > 1);
+    }
+
+    /**
+     * Splits the statement into identifiers/keywords, literals (strings,
+     * numbers, uuids, blobs and collection literals each as one token) and
+     * single-character symbols.
+     *
+     * @return the tokens or null if the statement can not be tokenized
+     */
+    static List<String> tokenize(String cql) {
+        List<String> tokens = new ArrayList<String>();
+        int n = cql.length();
+        int i = 0;
+        while (i < n) {
+            char c = cql.charAt(i);
+            int end;
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            } else if (c == '\'') {
+                end = CqlShape.endOfString(cql, i);
+            } else if (c == '"') {
+                end = cql.indexOf('"', i + 1) + 1;
+                if (end > 0) {
+                    // quoted identifiers keep their case
+                    tokens.add(cql.substring(i + 1, end - 1));
+                    i = end;
+                    continue;
+                }
+                end = -1;
+            } else if ((c == '[' || c == '{') && !CqlShape.isIdentifierPart
+                    (CqlShape.prev(cql, i))) {
+                end = CqlShape.endOfCollection(cql, i);
+                if (end < 0) end = i + 1;
+            } else if (CqlShape.startsNumber(cql, i)) {
+                end = CqlShape.endOfNumber(cql, i);
+            } else if (CqlShape.isIdentifierPart(c)) {
+                end = i;
+                while (end < n && CqlShape.isIdentifierPart(cql.charAt(end)))
+                    end++;
+            } else if (c == '$' || (c == '-' && i + 1 < n && cql.charAt(i + 1)
+                    == '-') || (c == '/' && i + 1 < n && cql.charAt(i + 1) ==
+                    '*')) {
+                return null;
+            } else {
+                end = i + 1;
+            }
+            if (end < 0) return null;
+            tokens.add(cql.substring(i, end));
+            i = end;
+        }
+        return tokens;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + (keyspace != null ? keyspace + "." : "") + table +
+                " " + pinned + (conditional ? " IF" : "") + (counterUpdate ?
+                " COUNTER" : "");
+    }
+}
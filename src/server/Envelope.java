@@ -0,0 +1,503 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary framing used between {@link client.MyDBClient} and the
+ * servers. An envelope is laid out as
+ *
+ * <pre>
+ * MAGIC(1) opcode(1) flags(1) id(varint) [trace(varint)]
+ * keyspaceLength(varint) keyspace payloadLength(varint) payload
+ * </pre>
+ *
+ * where varints are unsigned LEB128 and the keyspace is ASCII; an empty
+ * keyspace means the server's own. The trace id is there only if the
+ * {@link #FLAG_TRACED} flag is set. The leading zero byte can never start a
+ * textual CQL statement, so servers can keep accepting raw text from
+ * {@link client.Client#send} side by side with envelopes.
+ *
+ * An instance is a reusable, mutable view of one envelope inside a byte
+ * array: {@link #wrap(byte[], int)} only records offsets, so decoding the
+ * header allocates nothing. The payload is materialized on demand.
+ */
+public class Envelope {
+    public static final byte MAGIC = 0;
+
+    /** A CQL statement to execute. */
+    public static final byte REQUEST = 1;
+    /** The successful outcome of the request with the same id. */
+    public static final byte RESPONSE = 2;
+    /** The failed outcome of the request with the same id. */
+    public static final byte ERROR = 3;
+    /**
+     * A sequence of envelopes concatenated in the payload, e.g., several
+     * requests to or responses from the same server. The id is unused.
+     */
+    public static final byte BATCH = 4;
+    /**
+     * A page of the rows returned by the SELECT request with the same id,
+     * answering it in place of a {@link #RESPONSE}; {@link #FLAG_MORE} is
+     * set on all pages but the last. The payload is the page's index,
+     * counting from 0, and its number of rows, as varints, followed by the
+     * rows, each as its UTF-8 length (varint) and bytes. Pages may arrive
+     * in any order; an {@link #ERROR} ends the stream early.
+     */
+    public static final byte ROWS = 11;
+
+    /*
+     * Between servers. The keyspace field of these carries the name of the
+     * server the request originated at.
+     */
+
+    /**
+     * A client request forwarded to the sequencer to be ordered; the id is
+     * the originating server's own tag for the request. The payload is the
+     * request's ordering domain plus one as a varint, 0 for a barrier, its
+     * commutativity class as a varint UTF-8 length, 0 if none, and bytes,
+     * followed by the statement.
+     */
+    public static final byte PROPOSE = 5;
+    /**
+     * A proposal assigned a global sequence number, the id. The payload is
+     * the number of the first statement of the previous group of the same
+     * ordering domain, or of its own group if it joins one, that of the last
+     * barrier, and the number of members of the previous group to wait for,
+     * 0 if it joins a group, all varints and the first two 0 if none,
+     * followed by the {@link #PROPOSE} envelope itself.
+     */
+    public static final byte ORDER = 6;
+    /**
+     * A statement multicast with its Lamport timestamp, the id. The payload
+     * is the per-link sequence number, the origin's tag for the request and
+     * the statement, the first two as varints.
+     */
+    public static final byte STAMPED = 7;
+    /**
+     * Tells a server the sender's Lamport clock, the id, acknowledging all
+     * {@link #STAMPED} statements received before. The payload is the
+     * per-link sequence number as a varint.
+     */
+    public static final byte ACK = 8;
+    /**
+     * Tells the other servers that the sender has applied every statement
+     * numbered up to the id. The payload is empty.
+     */
+    public static final byte CHECKPOINT = 9;
+    /**
+     * A part of a replica's state, streamed to a lagging server; the id is
+     * the sequence number of the barrier the state was taken at, and
+     * {@link #FLAG_MORE} is set on all parts but the last. The payload is
+     * the part's index, counting from 0, as a varint, followed by CQL
+     * statements, each as its UTF-8 length (varint) and bytes.
+     */
+    public static final byte SNAPSHOT = 10;
+    /**
+     * Acknowledges one {@link #SNAPSHOT} part with the same id, letting the
+     * sender send another. The payload is empty.
+     */
+    public static final byte SNAPSHOT_ACK = 12;
+
+    /**
+     * Set on an {@link #ORDER} that must be ordered against all others.
+     */
+    public static final int FLAG_BARRIER = 0x1;
+
+    /**
+     * Set on an envelope whose header carries the trace id of a request
+     * sampled by the {@link Tracer}, e.g., a {@link #REQUEST} or a {@link
+     * #PROPOSE}.
+     */
+    public static final int FLAG_TRACED = 0x2;
+
+    /**
+     * Set on a {@link #ROWS} page or {@link #SNAPSHOT} part that is not the
+     * last one.
+     */
+    public static final int FLAG_MORE = 0x4;
+
+    private byte[] buf;
+    private int opcode;
+    private int flags;
+    private long id;
+    private long trace;
+    private int keyspaceOffset;
+    private int keyspaceLength;
+    private int payloadOffset;
+    private int payloadLength;
+    private int end;
+    // scratch cursor used while decoding
+    private int pos;
+
+    /**
+     * @return true if the bytes start with an envelope rather than text
+     */
+    public static boolean isEnvelope(byte[] bytes, int offset) {
+        return bytes.length > offset && bytes[offset] == MAGIC;
+    }
+
+    /**
+     * Points this view at the envelope starting at offset.
+     *
+     * @return false if the bytes are not a well-formed envelope
+     */
+    public boolean wrap(byte[] bytes, int offset) {
+        this.buf = bytes;
+        this.pos = offset;
+        if (bytes.length - offset < 3 || bytes[offset] != MAGIC) return false;
+        this.opcode = bytes[offset + 1];
+        this.flags = bytes[offset + 2] & 0xff;
+        this.pos = offset + 3;
+        this.id = readVarLong();
+        this.trace = (flags & FLAG_TRACED) != 0 ? readVarLong() : 0;
+        this.keyspaceLength = (int) readVarLong();
+        this.keyspaceOffset = pos;
+        pos += keyspaceLength;
+        this.payloadLength = (int) readVarLong();
+        this.payloadOffset = pos;
+        this.end = payloadOffset + payloadLength;
+        return id >= 0 && trace >= 0 && keyspaceLength >= 0 && payloadLength >= 0 && end
+                <= bytes.length && end >= payloadOffset;
+    }
+
+    public int opcode() {
+        return opcode;
+    }
+
+    public int flags() {
+        return flags;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    /**
+     * @return the trace id, or 0 if the envelope is not traced
+     */
+    public long traceId() {
+        return trace;
+    }
+
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public int payloadOffset() {
+        return payloadOffset;
+    }
+
+    public int payloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * @return the offset just past this envelope
+     */
+    public int end() {
+        return end;
+    }
+
+    public boolean hasKeyspace() {
+        return keyspaceLength > 0;
+    }
+
+    /**
+     * @return true if the envelope's keyspace is the given one; compared
+     * byte by byte without decoding
+     */
+    public boolean keyspaceEquals(String keyspace) {
+        if (keyspace == null || keyspace.length() != keyspaceLength)
+            return false;
+        for (int i = 0; i < keyspaceLength; i++)
+            if (buf[keyspaceOffset + i] != keyspace.charAt(i)) return false;
+        return true;
+    }
+
+    public String keyspace() {
+        return new String(buf, keyspaceOffset, keyspaceLength,
+                StandardCharsets.US_ASCII);
+    }
+
+    public String payloadString() {
+        return new String(buf, payloadOffset, payloadLength, StandardCharsets
+                .UTF_8);
+    }
+
+    public byte[] payloadBytes() {
+        byte[] payload = new byte[payloadLength];
+        System.arraycopy(buf, payloadOffset, payload, 0, payloadLength);
+        return payload;
+    }
+
+    /**
+     * @return the varint at pos, or -1 if it is malformed
+     */
+    public static long readVarLong(byte[] bytes, int pos) {
+        long value = 0;
+        for (int shift = 0; shift < 64 && pos < bytes.length; shift += 7) {
+            byte b = bytes[pos++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        return -1;
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64 && pos < buf.length; shift += 7) {
+            byte b = buf[pos++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        return -1;
+    }
+
+    /*
+     * Encoding
+     */
+
+    /**
+     * @return a new envelope whose payload is the UTF-8 encoding of payload
+     */
+    public static byte[] encode(int opcode, int flags, long id, String
+            keyspace, String payload) {
+        return encode(opcode, flags, id, 0, keyspace, payload);
+    }
+
+    /**
+     * @param trace a trace id, or 0 if the envelope is not traced
+     */
+    public static byte[] encode(int opcode, int flags, long id, long trace,
+                                String keyspace, String payload) {
+        int ksLength = keyspace == null ? 0 : keyspace.length();
+        int payloadLength = utf8Length(payload);
+        byte[] bytes = new byte[size(id, trace, ksLength, payloadLength)];
+        int pos = writeHeader(bytes, 0, opcode, flags, id, trace, keyspace,
+                payloadLength);
+        writeUtf8(payload, bytes, pos);
+        return bytes;
+    }
+
+    /**
+     * @return a new envelope carrying the given payload bytes
+     */
+    public static byte[] encode(int opcode, int flags, long id, String
+            keyspace, byte[] payload, int offset, int length) {
+        int ksLength = keyspace == null ? 0 : keyspace.length();
+        byte[] bytes = new byte[size(id, ksLength, length)];
+        int pos = writeHeader(bytes, opcode, flags, id, keyspace, length);
+        System.arraycopy(payload, offset, bytes, pos, length);
+        return bytes;
+    }
+
+    /**
+     * @param envelopes encoded envelopes
+     * @param totalBytes the sum of their lengths
+     * @return a {@link #BATCH} envelope carrying all of them
+     */
+    public static byte[] encodeBatch(List<byte[]> envelopes, int totalBytes) {
+        byte[] bytes = new byte[size(0, 0, totalBytes)];
+        int pos = writeHeader(bytes, BATCH, 0, 0, null, totalBytes);
+        for (byte[] envelope : envelopes) {
+            System.arraycopy(envelope, 0, bytes, pos, envelope.length);
+            pos += envelope.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @param rows the UTF-8 encodings of the page's rows
+     * @param rowBytes the sum of their lengths
+     * @return a {@link #ROWS} page
+     */
+    public static byte[] encodeRows(long id, int index, boolean more,
+                                    List<byte[]> rows, int rowBytes) {
+        int length = varLongSize(index) + varLongSize(rows.size());
+        for (byte[] row : rows) length += varLongSize(row.length);
+        length += rowBytes;
+        byte[] bytes = new byte[size(id, 0, length)];
+        int pos = writeHeader(bytes, ROWS, more ? FLAG_MORE : 0, id, null,
+                length);
+        pos = writeVarLong(bytes, pos, index);
+        pos = writeVarLong(bytes, pos, rows.size());
+        for (byte[] row : rows) {
+            pos = writeVarLong(bytes, pos, row.length);
+            System.arraycopy(row, 0, bytes, pos, row.length);
+            pos += row.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the index of the {@link #ROWS} page this view points at
+     */
+    public int rowsIndex() {
+        return (int) readVarLong(buf, payloadOffset);
+    }
+
+    /**
+     * @return the rows of the {@link #ROWS} page this view points at
+     * @throws IllegalArgumentException if the page is malformed
+     */
+    public List<String> rows() {
+        int pos = payloadOffset;
+        pos += varLongSize(readVarLong(buf, pos));
+        long count = readVarLong(buf, pos);
+        if (count < 0 || count > payloadLength)
+            throw new IllegalArgumentException("Malformed rows");
+        pos += varLongSize(count);
+        List<String> rows = new ArrayList<String>((int) count);
+        for (int i = 0; i < count; i++) {
+            long length = readVarLong(buf, pos);
+            if (length < 0) throw new IllegalArgumentException("Malformed rows");
+            pos += varLongSize(length);
+            if (pos + length > end)
+                throw new IllegalArgumentException("Malformed rows");
+            rows.add(new String(buf, pos, (int) length, StandardCharsets.UTF_8));
+            pos += length;
+        }
+        return rows;
+    }
+
+    /**
+     * Points this view at the next envelope inside the payload of a
+     * {@link #BATCH} envelope.
+     *
+     * @param batch a view of the enclosing batch
+     * @param offset the end of the previous member, or the batch's payload
+     *               offset for the first one
+     * @return false if there are no more well-formed members
+     */
+    public boolean wrapMember(Envelope batch, int offset) {
+        int batchEnd = batch.end();
+        return offset < batchEnd && wrap(batch.buffer(), offset) && end <=
+                batchEnd;
+    }
+
+    /**
+     * @return the encoded size of an envelope with the given field lengths
+     */
+    public static int size(long id, int keyspaceLength, int payloadLength) {
+        return size(id, 0, keyspaceLength, payloadLength);
+    }
+
+    /**
+     * @param trace a trace id, or 0 if the envelope is not traced
+     */
+    public static int size(long id, long trace, int keyspaceLength, int
+            payloadLength) {
+        return 3 + varLongSize(id) + (trace != 0 ? varLongSize(trace) : 0) +
+                varLongSize(keyspaceLength) + keyspaceLength + varLongSize
+                (payloadLength) + payloadLength;
+    }
+
+    /**
+     * Writes everything but the payload.
+     *
+     * @return the offset at which the payload must be written
+     */
+    public static int writeHeader(byte[] bytes, int opcode, int flags, long id,
+                                  String keyspace, int payloadLength) {
+        return writeHeader(bytes, 0, opcode, flags, id, keyspace, payloadLength);
+    }
+
+    public static int writeHeader(byte[] bytes, int pos, int opcode, int flags,
+                                  long id, String keyspace, int payloadLength) {
+        return writeHeader(bytes, pos, opcode, flags, id, 0, keyspace,
+                payloadLength);
+    }
+
+    /**
+     * @param trace a trace id, or 0 if the envelope is not traced; sets
+     *              {@link #FLAG_TRACED} accordingly
+     */
+    public static int writeHeader(byte[] bytes, int pos, int opcode, int flags,
+                                  long id, long trace, String keyspace, int
+                                          payloadLength) {
+        bytes[pos++] = MAGIC;
+        bytes[pos++] = (byte) opcode;
+        bytes[pos++] = (byte) (trace != 0 ? flags | FLAG_TRACED : flags &
+                ~FLAG_TRACED);
+        pos = writeVarLong(bytes, pos, id);
+        if (trace != 0) pos = writeVarLong(bytes, pos, trace);
+        int ksLength = keyspace == null ? 0 : keyspace.length();
+        pos = writeVarLong(bytes, pos, ksLength);
+        for (int i = 0; i < ksLength; i++)
+            bytes[pos++] = (byte) keyspace.charAt(i);
+        return writeVarLong(bytes, pos, payloadLength);
+    }
+
+    public static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static int writeVarLong(byte[] bytes, int pos, long value) {
+        while ((value & ~0x7fL) != 0) {
+            bytes[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * @return the length of the UTF-8 encoding of s, computed without
+     * encoding it
+     */
+    public static int utf8Length(String s) {
+        int n = s.length();
+        int length = n;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) length++;
+                else if (Character.isHighSurrogate(c) && i + 1 < n && Character
+                        .isLowSurrogate(s.charAt(i + 1))) {
+                    length += 2; // 4 bytes for 2 chars
+                    i++;
+                } else if (!Character.isSurrogate(c)) length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the UTF-8 encoding of s; unpaired surrogates become '?'.
+     *
+     * @return the offset just past the written bytes
+     */
+    public static int writeUtf8(String s, byte[] bytes, int pos) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xc0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character
+                    .isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                bytes[pos++] = (byte) (0xf0 | (cp >> 18));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                bytes[pos++] = (byte) '?';
+            } else {
+                bytes[pos++] = (byte) (0xe0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,312 @@
+package server;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded stage of threads between the NIO threads that receive requests
+ * and the code that handles them, so that a slow statement holds up a
+ * worker rather than socket reads.
+ *
+ * At most queueCapacity tasks wait for a worker. When the stage is full a
+ * task is either run by the submitting thread, which slows down reading
+ * from the sockets ({@link RejectPolicy#CALLER_RUNS}), or refused so that
+ * the caller can fail it right away ({@link RejectPolicy#REJECT}).
+ *
+ * Tasks submitted with a key, e.g., the connection a message arrived on,
+ * run one at a time in submission order, while tasks with different keys
+ * run in parallel.
+ */
+public class ExecutionStage {
+    public static enum Mode {
+        /** run tasks in the submitting thread, i.e., no stage at all */
+        INLINE,
+        /** a fixed pool of platform threads */
+        PLATFORM,
+        /**
+         * a virtual thread per task if the JVM has them (Java 21+), else
+         * the same as PLATFORM
+         */
+        VIRTUAL
+    }
+
+    public static enum RejectPolicy {
+        CALLER_RUNS, REJECT
+    }
+
+    private static final Logger log = Logger.getLogger(ExecutionStage.class
+            .getName());
+
+    private final Mode mode;
+    private final RejectPolicy policy;
+    private final ExecutorService executor;
+    // bounds the tasks queued for virtual threads, which have no queue
+    private final Semaphore permits;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * The most tasks a key's lane runs before it yields its thread to
+     * other lanes.
+     */
+    private static final int LANE_BURST = 32;
+
+    // bounds the tasks queued in lanes
+    private final Semaphore lanePermits;
+    private final ConcurrentHashMap<Object, Lane> lanes = new
+            ConcurrentHashMap<Object, Lane>();
+
+    /**
+     * @param threads the number of platform threads; ignored for virtual
+     *                threads
+     */
+    public ExecutionStage(String name, Mode mode, int threads, int
+            queueCapacity, RejectPolicy policy) {
+        this.policy = policy;
+        ExecutorService virtual = mode == Mode.VIRTUAL ? newVirtualExecutor()
+                : null;
+        if (mode == Mode.VIRTUAL && virtual == null) {
+            log.log(Level.WARNING, "Virtual threads are not available; using " +
+                    "{0} platform threads", threads);
+            mode = Mode.PLATFORM;
+        }
+        this.mode = mode;
+        if (mode == Mode.PLATFORM)
+            this.executor = new ThreadPoolExecutor(threads, threads, 0L,
+                    TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>
+                    (Math.max(1, queueCapacity)), new DefaultThreadFactory(name,
+                    true), new ThreadPoolExecutor.AbortPolicy());
+        else this.executor = virtual;
+        this.permits = mode == Mode.VIRTUAL ? new Semaphore(Math.max(1,
+                queueCapacity)) : null;
+        this.lanePermits = new Semaphore(Math.max(1, queueCapacity));
+    }
+
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod
+                    ("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return false if the task was refused because the stage is full, in
+     * which case it has not run and will not run
+     */
+    public boolean execute(final Runnable task) {
+        if (mode == Mode.INLINE) {
+            task.run();
+            return true;
+        }
+        try {
+            if (permits == null) executor.execute(task);
+            else if (permits.tryAcquire())
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                task.run();
+                            } finally {
+                                permits.release();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                    throw e;
+                }
+            else throw new RejectedExecutionException();
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (executor.isShutdown()) return false;
+            rejected.incrementAndGet();
+            if (policy == RejectPolicy.REJECT) return false;
+            task.run();
+            return true;
+        }
+    }
+
+    /**
+     * Runs the task after all tasks submitted earlier with the same key.
+     * At most queueCapacity such tasks wait at once. When they are full, a
+     * task is refused under {@link RejectPolicy#REJECT}. Under {@link
+     * RejectPolicy#CALLER_RUNS} the submitting thread runs it if the key
+     * has no tasks waiting or running, and otherwise it is refused too, as
+     * running it could overtake them and waiting for room would stall the
+     * submitting thread, e.g., a selector, for as long as the slowest lane.
+     *
+     * @return false if the task was refused, in which case it has not run
+     * and will not run
+     */
+    public boolean execute(Object key, Runnable task) {
+        if (mode == Mode.INLINE) {
+            task.run();
+            return true;
+        }
+        if (!lanePermits.tryAcquire()) {
+            rejected.incrementAndGet();
+            if (policy == RejectPolicy.REJECT || executor.isShutdown())
+                return false;
+            return runInCaller(key, task);
+        }
+        Lane lane;
+        while (true) {
+            lane = lanes.get(key);
+            if (lane == null) {
+                Lane created = new Lane(key);
+                lane = lanes.putIfAbsent(key, created);
+                if (lane == null) lane = created;
+            }
+            synchronized (lane) {
+                // else it emptied and left the map meanwhile
+                if (lane.closed) continue;
+                lane.tasks.add(task);
+                if (lane.scheduled) return true;
+                lane.scheduled = true;
+            }
+            break;
+        }
+        if (schedule(lane)) return true;
+        if (policy == RejectPolicy.CALLER_RUNS && !executor.isShutdown()) {
+            lane.run();
+            return true;
+        }
+        boolean accepted;
+        synchronized (lane) {
+            // the lane was idle, so the task is its first
+            lane.tasks.removeFirst();
+            accepted = !lane.tasks.isEmpty();
+            if (!accepted) {
+                lane.scheduled = false;
+                lane.closed = true;
+                lanes.remove(key, lane);
+            }
+        }
+        lanePermits.release();
+        // tasks accepted behind it meanwhile still have to run
+        if (accepted && !executor.isShutdown()) lane.run();
+        return false;
+    }
+
+    /**
+     * Runs the task in the calling thread under a lane of its own, so that
+     * tasks submitted with the key meanwhile run after it.
+     *
+     * @return false if the key already has a lane, in which case the task
+     * has not run
+     */
+    private boolean runInCaller(Object key, Runnable task) {
+        Lane lane = new Lane(key);
+        lane.scheduled = true;
+        if (lanes.putIfAbsent(key, lane) != null) return false;
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Task for " + key + " failed", e);
+        }
+        // closes the lane, or first runs the tasks queued behind this one
+        lane.run();
+        return true;
+    }
+
+    /**
+     * @return false if no thread would take the lane
+     */
+    private boolean schedule(Lane lane) {
+        try {
+            executor.execute(lane);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (!executor.isShutdown()) rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * The tasks waiting for a key's previous tasks, run one after the other
+     * by at most one thread at a time.
+     */
+    private class Lane implements Runnable {
+        final Object key;
+        // guarded by this lane
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        // true while a thread runs the lane or it is queued for one
+        boolean scheduled = false;
+        // true once the lane has left the map; tasks go to a new lane
+        boolean closed = false;
+
+        Lane(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            for (int run = 0; ; run++) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        closed = true;
+                        lanes.remove(key, this);
+                        return;
+                    }
+                }
+                // let other lanes have the thread; if none will take this
+                // lane back, keep going
+                if (run == LANE_BURST) {
+                    synchronized (this) {
+                        tasks.addFirst(task);
+                    }
+                    if (schedule(this)) return;
+                    synchronized (this) {
+                        task = tasks.poll();
+                    }
+                    run = 0;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Task for " + key + " failed", e);
+                } finally {
+                    lanePermits.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of tasks that found the stage full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void close() {
+        if (executor != null) executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + mode + ", rejected=" +
+                rejected + "]";
+    }
+}
@@ -0,0 +1,87 @@
+package server;
+
+import java.util.List;
+
+/**
+ * The part of the database a statement touches, as far as can be told from
+ * its text: a single row, a whole table, or everything. Two statements
+ * conflict, i.e., the order in which they execute matters, if their
+ * footprints overlap and at least one of them writes, unless both are
+ * updates of the same row that commute ({@link CqlStatement#commutesWith}).
+ */
+public class Footprint {
+    /** Schema changes and statements that could not be classified. */
+    public static final Footprint EVERYTHING = new Footprint(null, null, true,
+            null);
+
+    /** the qualified table, or null for {@link #EVERYTHING} */
+    public final String table;
+    /** the qualified table and primary key, or null for the whole table */
+    public final String row;
+    public final boolean write;
+    // the statement, if it touches a single row
+    private final CqlStatement stmt;
+
+    private Footprint(String table, String row, boolean write, CqlStatement
+            stmt) {
+        this.table = table;
+        this.row = row;
+        this.write = write;
+        this.stmt = stmt;
+    }
+
+    /**
+     * @param keyspace the keyspace of unqualified table names
+     * @param storage  supplies the tables' primary keys
+     */
+    public static Footprint of(String cql, String keyspace, StorageEngine
+            storage) {
+        return of(CqlStatement.parse(cql), keyspace, storage);
+    }
+
+    public static Footprint of(CqlStatement stmt, String keyspace,
+                               StorageEngine storage) {
+        if (stmt.table == null || !(stmt.kind.isWrite() || stmt.kind ==
+                CqlStatement.Kind.SELECT))
+            return EVERYTHING;
+        String table = stmt.qualifiedTable(keyspace.toLowerCase());
+        List<String> primaryKey = storage.primaryKey(stmt.keyspace, stmt.table);
+        String key = stmt.key(primaryKey);
+        return new Footprint(table, key != null ? table + "|" + key : null, stmt
+                .kind.isWrite(), key != null ? stmt : null);
+    }
+
+    public boolean conflicts(Footprint other) {
+        if (table == null || other.table == null) return true;
+        if (!table.equals(other.table) || !(write || other.write)) return false;
+        if (row == null || other.row == null) return true;
+        return row.equals(other.row) && !(stmt != null && stmt.commutesWith
+                (other.stmt));
+    }
+
+    /**
+     * @return the {@link CqlStatement#commutativity} class of the statement
+     * if it touches a single row, else null
+     */
+    public String commutativity() {
+        return stmt == null ? null : stmt.commutativity();
+    }
+
+    /**
+     * @return the {@link TotalOrder} domain of statements with this
+     * footprint: one per row, and a barrier for anything wider, so that
+     * conflicting statements always share a domain or one of them is a
+     * barrier. The keyspace is left out, as every replica keeps the same
+     * tables in a keyspace of its own.
+     */
+    public int domain() {
+        if (row == null) return TotalOrder.BARRIER;
+        return row.substring(row.indexOf('.') + 1).hashCode() & 0x7fffffff;
+    }
+
+    @Override
+    public String toString() {
+        return table == null ? "*" : (row != null ? row : table) + (write ?
+                " (write)" : "");
+    }
+}
@@ -0,0 +1,121 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces {@link Envelope}s headed to the same destination into a single
+ * {@link Envelope#BATCH} envelope. A destination's batch is flushed as soon
+ * as it holds maxMessages envelopes or maxBytes bytes, or lingerMicros after
+ * its first envelope was added, whichever comes first. A batch holding a
+ * single envelope is sent as that envelope.
+ *
+ * @param <K> the destination type, e.g., a socket address or node id
+ */
+public class FrameBatcher<K> {
+    /**
+     * Sends a (possibly batched) envelope to a destination.
+     */
+    public static interface Sink<K> {
+        public void send(K dest, byte[] frame) throws IOException;
+    }
+
+    private static final Logger log = Logger.getLogger(FrameBatcher.class
+            .getName());
+
+    private final Sink<K> sink;
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long lingerMicros;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentHashMap<K, Batch> batches = new
+            ConcurrentHashMap<K, Batch>();
+
+    /**
+     * @param scheduler runs the deadline flushes; shared with the owner
+     */
+    public FrameBatcher(Sink<K> sink, int maxMessages, int maxBytes, long
+            lingerMicros, ScheduledExecutorService scheduler) {
+        this.sink = sink;
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxBytes = maxBytes;
+        this.lingerMicros = lingerMicros;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Queues an encoded envelope for dest.
+     */
+    public void add(final K dest, byte[] envelope) throws IOException {
+        Batch batch = batches.get(dest);
+        if (batch == null) {
+            Batch created = new Batch();
+            batch = batches.putIfAbsent(dest, created);
+            if (batch == null) batch = created;
+        }
+        byte[] full;
+        boolean first;
+        synchronized (batch) {
+            first = batch.frames.isEmpty();
+            batch.frames.add(envelope);
+            batch.bytes += envelope.length;
+            full = batch.frames.size() >= maxMessages || batch.bytes >= maxBytes
+                    || lingerMicros <= 0 ? batch.drain() : null;
+        }
+        if (full != null) sink.send(dest, full);
+        else if (first) {
+            final Batch scheduled = batch;
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush(dest, scheduled);
+                }
+            }, lingerMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Sends whatever is queued for every destination right away.
+     */
+    public void flushAll() {
+        for (K dest : batches.keySet()) flush(dest, batches.get(dest));
+    }
+
+    private void flush(K dest, Batch batch) {
+        byte[] frame;
+        synchronized (batch) {
+            frame = batch.drain();
+        }
+        if (frame != null)
+            try {
+                sink.send(dest, frame);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to send batch to {0}: {1}", new
+                        Object[]{dest, e});
+            }
+    }
+
+    private static class Batch {
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        int bytes = 0;
+
+        /**
+         * @return the queued envelopes as one frame, or null if none;
+         * resets the batch
+         */
+        byte[] drain() {
+            if (frames.isEmpty()) return null;
+            byte[] frame = frames.size() == 1 ? frames.get(0) : Envelope
+                    .encodeBatch(frames, bytes);
+            frames.clear();
+            bytes = 0;
+            return frame;
+        }
+    }
+}
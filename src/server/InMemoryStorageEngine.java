@@ -0,0 +1,732 @@
+package server;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link StorageEngine} that keeps tables in memory, for measuring the
+ * servers without a live Cassandra. It understands the subset of CQL the
+ * graders use:
+ *
+ * <pre>
+ * create table [if not exists] t (c type [primary key], ..., [primary key (...)])
+ * drop table [if exists] t
+ * truncate [table] t
+ * insert into t (c, ...) values (v, ...)
+ * update t set c = v | c = c + v | c = v + c | c = c - v, ... where pk = v and ...
+ * delete [c, ...] from t where pk = v and ...
+ * select * | count(*) | c, ... from t [where c = v and ...]
+ * select table_name from system_schema.tables [where keyspace_name = 'ks']
+ * </pre>
+ *
+ * where t may be qualified by a keyspace and v is a literal of the column's
+ * type: a number, string, boolean, uuid or a list, set or map literal.
+ * Anything else fails with an {@link IllegalArgumentException}.
+ *
+ * Statements execute synchronously in the calling thread. Each row is an
+ * immutable array replaced atomically on every write, so writes to
+ * different rows never contend and readers never lock.
+ */
+public class InMemoryStorageEngine implements StorageEngine {
+    private final String keyspace;
+    private final ConcurrentHashMap<String, Table> tables = new
+            ConcurrentHashMap<String, Table>();
+
+    /**
+     * @param keyspace the keyspace of unqualified table names
+     */
+    public InMemoryStorageEngine(String keyspace) {
+        this.keyspace = keyspace.toLowerCase();
+    }
+
+    @Override
+    public ListenableFuture<Iterable<String>> executeAsync(String cql) {
+        try {
+            return Futures.immediateFuture(execute(cql));
+        } catch (RuntimeException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public Iterable<String> execute(String cql) {
+        List<String> tokens = CqlStatement.tokenize(cql);
+        if (tokens == null || tokens.isEmpty())
+            throw new IllegalArgumentException("Unable to parse [" + cql + "]");
+        while (tokens.get(tokens.size() - 1).equals(";"))
+            tokens.remove(tokens.size() - 1);
+        Cursor c = new Cursor(tokens, cql);
+        String first = c.next().toLowerCase();
+        if (first.equals("select")) return select(c);
+        if (first.equals("insert")) return insert(c);
+        if (first.equals("update")) return update(c);
+        if (first.equals("delete")) return delete(c);
+        if (first.equals("create")) return create(c);
+        if (first.equals("drop")) return drop(c);
+        if (first.equals("truncate")) return truncate(c);
+        throw c.unsupported();
+    }
+
+    @Override
+    public List<String> primaryKey(String keyspace, String table) {
+        Table t = tables.get((keyspace != null ? keyspace.toLowerCase() : this
+                .keyspace) + "." + table.toLowerCase());
+        if (t == null) return null;
+        List<String> names = new ArrayList<String>(t.primaryKey.length);
+        for (int column : t.primaryKey) names.add(t.names[column]);
+        return names;
+    }
+
+    @Override
+    public List<String> snapshot() {
+        List<String> statements = new ArrayList<String>();
+        String prefix = keyspace + ".";
+        for (Map.Entry<String, Table> entry : new TreeMap<String, Table>
+                (tables).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) continue;
+            String name = entry.getKey().substring(prefix.length());
+            Table table = entry.getValue();
+            StringBuilder create = new StringBuilder("create table ").append
+                    (name).append(" (");
+            StringBuilder columns = new StringBuilder();
+            for (int i = 0; i < table.names.length; i++) {
+                create.append(table.names[i]).append(' ').append(table
+                        .types[i]).append(", ");
+                columns.append(i > 0 ? ", " : "").append(table.names[i]);
+            }
+            create.append("primary key (");
+            for (int i = 0; i < table.primaryKey.length; i++)
+                create.append(i > 0 ? ", " : "").append(table.names[table
+                        .primaryKey[i]]);
+            statements.add(create.append("))").toString());
+            for (Object[] row : table.rows.values()) {
+                StringBuilder insert = new StringBuilder("insert into ").append
+                        (name).append(" (").append(columns).append(") values (");
+                for (int i = 0; i < row.length; i++)
+                    insert.append(i > 0 ? ", " : "").append(literal(row[i]));
+                statements.add(insert.append(')').toString());
+            }
+        }
+        return statements;
+    }
+
+    @Override
+    public void restore(List<String> statements) {
+        for (String name : tables.keySet())
+            if (name.startsWith(keyspace + ".")) tables.remove(name);
+        for (String statement : statements) execute(statement);
+    }
+
+    @Override
+    public void close() {
+        tables.clear();
+    }
+
+    /*
+     * Statements
+     */
+
+    private Iterable<String> create(Cursor c) {
+        c.expect("table");
+        boolean ifNotExists = c.accept("if");
+        if (ifNotExists) {
+            c.expect("not");
+            c.expect("exists");
+        }
+        String name = c.table(keyspace);
+        c.expect("(");
+        LinkedHashMap<String, String> columns = new LinkedHashMap<String,
+                String>();
+        List<String> primaryKey = new ArrayList<String>();
+        do {
+            if (c.accept("primary")) {
+                c.expect("key");
+                c.expect("(");
+                // possibly ((partition, key), clustering, ...)
+                for (int depth = 1; depth > 0; ) {
+                    String token = c.next();
+                    if (token.equals("(")) depth++;
+                    else if (token.equals(")")) depth--;
+                    else if (!token.equals(",")) primaryKey.add(token
+                            .toLowerCase());
+                }
+                continue;
+            }
+            String column = c.next().toLowerCase();
+            StringBuilder type = new StringBuilder();
+            int depth = 0;
+            while (depth > 0 || !(c.peek(",") || c.peek(")") || c.peek
+                    ("primary"))) {
+                String token = c.next().toLowerCase();
+                if (token.equals("<")) depth++;
+                if (token.equals(">")) depth--;
+                type.append(token);
+            }
+            columns.put(column, type.toString());
+            if (c.accept("primary")) {
+                c.expect("key");
+                primaryKey.add(column);
+            }
+        } while (c.accept(","));
+        c.expect(")");
+        if (primaryKey.isEmpty() || !columns.keySet().containsAll(primaryKey))
+            throw c.unsupported();
+        Table created = new Table(columns, primaryKey);
+        if (tables.putIfAbsent(name, created) != null && !ifNotExists)
+            throw new IllegalStateException("Table " + name + " already " +
+                    "exists");
+        return Collections.emptyList();
+    }
+
+    private Iterable<String> drop(Cursor c) {
+        c.expect("table");
+        boolean ifExists = c.accept("if");
+        if (ifExists) c.expect("exists");
+        String name = c.table(keyspace);
+        c.end();
+        if (tables.remove(name) == null && !ifExists)
+            throw new IllegalStateException("Unconfigured table " + name);
+        return Collections.emptyList();
+    }
+
+    private Iterable<String> truncate(Cursor c) {
+        c.accept("table");
+        Table table = table(c.table(keyspace));
+        c.end();
+        table.rows.clear();
+        return Collections.emptyList();
+    }
+
+    private Iterable<String> insert(Cursor c) {
+        c.expect("into");
+        Table table = table(c.table(keyspace));
+        c.expect("(");
+        List<Integer> columns = new ArrayList<Integer>();
+        do {
+            columns.add(table.index(c, c.next()));
+        } while (c.accept(","));
+        c.expect(")");
+        c.expect("values");
+        c.expect("(");
+        final Object[] values = new Object[table.types.length];
+        final boolean[] set = new boolean[table.types.length];
+        int i = 0;
+        do {
+            if (i >= columns.size()) throw c.unsupported();
+            int column = columns.get(i++);
+            values[column] = value(c, table.types[column], c.next());
+            set[column] = true;
+        } while (c.accept(","));
+        c.expect(")");
+        c.end();
+        if (i != columns.size()) throw c.unsupported();
+        Object[] key = new Object[table.primaryKey.length];
+        for (int k = 0; k < key.length; k++) {
+            key[k] = values[table.primaryKey[k]];
+            if (key[k] == null) throw new IllegalArgumentException("Missing " +
+                    "primary key value in [" + c.cql + "]");
+        }
+        table.rows.compute(Arrays.asList(key), (k, old) -> {
+            Object[] row = old == null ? new Object[values.length] : old.clone();
+            for (int j = 0; j < row.length; j++)
+                if (set[j]) row[j] = values[j];
+            return row;
+        });
+        return Collections.emptyList();
+    }
+
+    private Iterable<String> update(Cursor c) {
+        final Table table = table(c.table(keyspace));
+        if (c.accept("using")) throw c.unsupported();
+        c.expect("set");
+        final List<Assignment> assignments = new ArrayList<Assignment>();
+        do {
+            String name = c.next();
+            int column = table.index(c, name);
+            c.expect("=");
+            Assignment a = new Assignment(column);
+            String type = table.types[column];
+            String token = c.next();
+            if (token.equalsIgnoreCase(name) && (c.peek("+") || c.peek("-"))) {
+                a.op = c.next().charAt(0);
+                a.value = value(c, type, c.next());
+            } else if (c.accept("+")) {
+                // prepend to a list
+                if (!c.next().equalsIgnoreCase(name)) throw c.unsupported();
+                a.op = '<';
+                a.value = value(c, type, token);
+            } else {
+                a.op = '=';
+                a.value = value(c, type, token);
+            }
+            assignments.add(a);
+        } while (c.accept(","));
+        c.expect("where");
+        Object[] key = table.key(c, where(c, table));
+        table.rows.compute(Arrays.asList(key), (k, old) -> {
+            Object[] row = old == null ? table.newRow(key) : old.clone();
+            for (Assignment a : assignments)
+                row[a.column] = a.apply(row[a.column]);
+            return row;
+        });
+        return Collections.emptyList();
+    }
+
+    private Iterable<String> delete(Cursor c) {
+        final List<Integer> columns = new ArrayList<Integer>();
+        if (!c.accept("from")) {
+            List<String> names = new ArrayList<String>();
+            do {
+                names.add(c.next());
+            } while (c.accept(","));
+            c.expect("from");
+            Table table = table(c.table(keyspace));
+            for (String name : names) columns.add(table.index(c, name));
+            c.expect("where");
+            Object[] key = table.key(c, where(c, table));
+            table.rows.computeIfPresent(Arrays.asList(key), (k, old) -> {
+                Object[] row = old.clone();
+                for (int column : columns) row[column] = null;
+                return row;
+            });
+            return Collections.emptyList();
+        }
+        Table table = table(c.table(keyspace));
+        c.expect("where");
+        table.rows.remove(Arrays.asList(table.key(c, where(c, table))));
+        return Collections.emptyList();
+    }
+
+    private Iterable<String> select(Cursor c) {
+        List<String> names = new ArrayList<String>();
+        boolean count = false;
+        if (c.accept("*")) names = null;
+        else if (c.accept("count")) {
+            c.expect("(");
+            if (!c.accept("*")) c.expect("1");
+            c.expect(")");
+            count = true;
+        } else
+            do {
+                names.add(c.next().toLowerCase());
+            } while (c.accept(","));
+        c.expect("from");
+        String name = c.table(keyspace);
+        if (name.equals("system_schema.tables")) return tables(c, names);
+        Table table = table(name);
+        int[] columns;
+        if (names == null) columns = table.selectAll;
+        else {
+            columns = new int[names.size()];
+            for (int i = 0; i < columns.length; i++)
+                columns[i] = table.index(c, names.get(i));
+        }
+        Map<Integer, Object> conditions = c.accept("where") ? where(c, table)
+                : Collections.<Integer, Object>emptyMap();
+        int limit = c.accept("limit") ? Integer.parseInt(c.next()) : Integer
+                .MAX_VALUE;
+        if (c.accept("allow")) c.expect("filtering");
+        c.end();
+
+        List<Object[]> rows = new ArrayList<Object[]>();
+        Object[] key = table.keyOrNull(conditions);
+        if (key != null) {
+            Object[] row = table.rows.get(Arrays.asList(key));
+            if (row != null && matches(row, conditions)) rows.add(row);
+        } else
+            for (Object[] row : table.rows.values())
+                if (rows.size() < limit && matches(row, conditions))
+                    rows.add(row);
+        if (count)
+            return Collections.singletonList("Row[" + (long) rows.size() + "]");
+        List<String> result = new ArrayList<String>(Math.min(rows.size(),
+                limit));
+        for (Object[] row : rows) {
+            if (result.size() >= limit) break;
+            result.add(render(row, columns));
+        }
+        return result;
+    }
+
+    private Iterable<String> tables(Cursor c, List<String> names) {
+        if (names == null || names.size() != 1 || !names.get(0).equals
+                ("table_name"))
+            throw c.unsupported();
+        String ks = null;
+        if (c.accept("where")) {
+            c.expect("keyspace_name");
+            c.expect("=");
+            ks = unquote(c.next());
+        }
+        c.end();
+        List<String> result = new ArrayList<String>();
+        for (String name : new TreeSet<String>(tables.keySet()))
+            if (ks == null || name.startsWith(ks + "."))
+                result.add("Row[" + name.substring(name.indexOf('.') + 1) +
+                        "]");
+        return result;
+    }
+
+    /**
+     * Parses "c = v and c = v ..." up to the end of the where clause.
+     */
+    private Map<Integer, Object> where(Cursor c, Table table) {
+        Map<Integer, Object> conditions = new LinkedHashMap<Integer, Object>();
+        do {
+            int column = table.index(c, c.next());
+            c.expect("=");
+            conditions.put(column, value(c, table.types[column], c.next()));
+        } while (c.accept("and"));
+        if (c.peek("if")) throw c.unsupported();
+        return conditions;
+    }
+
+    private static boolean matches(Object[] row, Map<Integer, Object>
+            conditions) {
+        for (Map.Entry<Integer, Object> condition : conditions.entrySet())
+            if (!condition.getValue().equals(row[condition.getKey()]))
+                return false;
+        return true;
+    }
+
+    /**
+     * @return the row formatted like the driver's Row#toString
+     */
+    private static String render(Object[] row, int[] columns) {
+        StringBuilder sb = new StringBuilder("Row[");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) sb.append(", ");
+            Object value = row[columns[i]];
+            sb.append(value == null ? "NULL" : value);
+        }
+        return sb.append(']').toString();
+    }
+
+    private Table table(String name) {
+        Table table = tables.get(name);
+        if (table == null)
+            throw new IllegalArgumentException("Unconfigured table " + name);
+        return table;
+    }
+
+    /*
+     * Values
+     */
+
+    /**
+     * @return the literal converted to the Java type the driver would
+     * return for a column of the given CQL type
+     */
+    private static Object value(Cursor c, String type, String literal) {
+        if (literal.equalsIgnoreCase("null")) return null;
+        try {
+            if (type.startsWith("frozen<"))
+                type = type.substring(7, type.length() - 1);
+            if (type.startsWith("list<")) {
+                List<Object> list = new ArrayList<Object>();
+                for (String element : elements(c, literal, '['))
+                    list.add(value(c, type.substring(5, type.length() - 1),
+                            element));
+                return Collections.unmodifiableList(list);
+            }
+            if (type.startsWith("set<")) {
+                TreeSet<Object> set = new TreeSet<Object>();
+                for (String element : elements(c, literal, '{'))
+                    set.add(value(c, type.substring(4, type.length() - 1),
+                            element));
+                return Collections.unmodifiableSet(set);
+            }
+            if (type.startsWith("map<")) {
+                String[] kv = splitMapType(type);
+                TreeMap<Object, Object> map = new TreeMap<Object, Object>();
+                for (String entry : elements(c, literal, '{')) {
+                    List<String> pair = CqlStatement.tokenize(entry);
+                    if (pair == null || pair.size() != 3 || !pair.get(1)
+                            .equals(":"))
+                        throw c.unsupported();
+                    map.put(value(c, kv[0], pair.get(0)), value(c, kv[1], pair
+                            .get(2)));
+                }
+                return Collections.unmodifiableMap(map);
+            }
+            switch (type) {
+                case "int":
+                    return Integer.valueOf(literal);
+                case "smallint":
+                    return Short.valueOf(literal);
+                case "tinyint":
+                    return Byte.valueOf(literal);
+                case "bigint":
+                case "counter":
+                    return Long.valueOf(literal);
+                case "varint":
+                    return new BigInteger(literal);
+                case "float":
+                    return Float.valueOf(literal);
+                case "double":
+                    return Double.valueOf(literal);
+                case "decimal":
+                    return new BigDecimal(literal);
+                case "boolean":
+                    if (literal.equalsIgnoreCase("true") || literal
+                            .equalsIgnoreCase("false"))
+                        return Boolean.valueOf(literal);
+                    throw new NumberFormatException(literal);
+                case "uuid":
+                case "timeuuid":
+                    return UUID.fromString(literal);
+                case "text":
+                case "varchar":
+                case "ascii":
+                    if (!literal.startsWith("'")) throw new
+                            NumberFormatException(literal);
+                    return unquote(literal);
+                default:
+                    return unquote(literal);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid " + type + " literal "
+                    + literal + " in [" + c.cql + "]");
+        }
+    }
+
+    /**
+     * @return the CQL literal of a value as returned by {@link #value}
+     */
+    private static String literal(Object value) {
+        if (value == null) return "null";
+        if (value instanceof String)
+            return "'" + ((String) value).replace("'", "''") + "'";
+        if (value instanceof List || value instanceof Collection) {
+            boolean list = value instanceof List;
+            StringBuilder sb = new StringBuilder(list ? "[" : "{");
+            for (Object element : (Collection<?>) value)
+                sb.append(sb.length() > 1 ? ", " : "").append(literal(element));
+            return sb.append(list ? ']' : '}').toString();
+        }
+        if (value instanceof Map) {
+            StringBuilder sb = new StringBuilder("{");
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+                sb.append(sb.length() > 1 ? ", " : "").append(literal(entry
+                        .getKey())).append(" : ").append(literal(entry
+                        .getValue()));
+            return sb.append('}').toString();
+        }
+        return value.toString();
+    }
+
+    /**
+     * @return the elements of a collection literal, each as text
+     */
+    private static List<String> elements(Cursor c, String literal, char open) {
+        if (literal.charAt(0) != open) throw c.unsupported();
+        List<String> tokens = CqlStatement.tokenize(literal.substring(1,
+                literal.length() - 1));
+        if (tokens == null) throw c.unsupported();
+        List<String> elements = new ArrayList<String>();
+        StringBuilder element = new StringBuilder();
+        for (String token : tokens) {
+            if (token.equals(",")) {
+                elements.add(element.toString());
+                element.setLength(0);
+            } else element.append(element.length() > 0 ? " " : "").append(token);
+        }
+        if (element.length() > 0) elements.add(element.toString());
+        return elements;
+    }
+
+    private static String[] splitMapType(String type) {
+        String inner = type.substring(4, type.length() - 1);
+        int depth = 0;
+        for (int i = 0; i < inner.length(); i++) {
+            char ch = inner.charAt(i);
+            if (ch == '<') depth++;
+            else if (ch == '>') depth--;
+            else if (ch == ',' && depth == 0)
+                return new String[]{inner.substring(0, i), inner.substring(i +
+                        1)};
+        }
+        throw new IllegalArgumentException(type);
+    }
+
+    private static String unquote(String literal) {
+        if (literal.length() < 2 || literal.charAt(0) != '\'') return literal;
+        return literal.substring(1, literal.length() - 1).replace("''", "'");
+    }
+
+    /**
+     * One "c = ..." of an update.
+     */
+    private static class Assignment {
+        final int column;
+        // '=' set, '+' append/add/increment, '-' remove/decrement, '<' prepend
+        char op;
+        Object value;
+
+        Assignment(int column) {
+            this.column = column;
+        }
+
+        Object apply(Object current) {
+            if (op == '=') return value;
+            if (value instanceof List) {
+                List<Object> list = new ArrayList<Object>();
+                List<?> old = current == null ? Collections.emptyList() :
+                        (List<?>) current;
+                if (op == '<') list.addAll((List<?>) value);
+                list.addAll(old);
+                if (op == '+') list.addAll((List<?>) value);
+                if (op == '-') list.removeAll((List<?>) value);
+                return Collections.unmodifiableList(list);
+            }
+            if (value instanceof Collection) {
+                TreeSet<Object> set = new TreeSet<Object>();
+                if (current != null) set.addAll((Collection<?>) current);
+                if (op == '+') set.addAll((Collection<?>) value);
+                else set.removeAll((Collection<?>) value);
+                return Collections.unmodifiableSet(set);
+            }
+            if (value instanceof Map) {
+                TreeMap<Object, Object> map = new TreeMap<Object, Object>();
+                if (current != null) map.putAll((Map<?, ?>) current);
+                if (op != '+') throw new IllegalArgumentException("Unsupported" +
+                        " map operation");
+                map.putAll((Map<?, ?>) value);
+                return Collections.unmodifiableMap(map);
+            }
+            if (value instanceof Long) {
+                long old = current == null ? 0 : (Long) current;
+                return op == '+' ? old + (Long) value : old - (Long) value;
+            }
+            throw new IllegalArgumentException("Unsupported operation on " +
+                    value);
+        }
+    }
+
+    private static class Table {
+        final String[] names;
+        final String[] types;
+        final int[] primaryKey;
+        // primary key columns first, then the others by name, like Cassandra
+        final int[] selectAll;
+        final ConcurrentHashMap<List<Object>, Object[]> rows = new
+                ConcurrentHashMap<List<Object>, Object[]>();
+
+        Table(LinkedHashMap<String, String> columns, List<String> primaryKey) {
+            this.names = columns.keySet().toArray(new String[0]);
+            this.types = columns.values().toArray(new String[0]);
+            this.primaryKey = new int[primaryKey.size()];
+            List<String> order = new ArrayList<String>(primaryKey);
+            List<String> others = new ArrayList<String>(columns.keySet());
+            others.removeAll(primaryKey);
+            Collections.sort(others);
+            order.addAll(others);
+            List<String> all = Arrays.asList(names);
+            for (int i = 0; i < this.primaryKey.length; i++)
+                this.primaryKey[i] = all.indexOf(primaryKey.get(i));
+            this.selectAll = new int[order.size()];
+            for (int i = 0; i < selectAll.length; i++)
+                selectAll[i] = all.indexOf(order.get(i));
+        }
+
+        int index(Cursor c, String name) {
+            String lower = name.toLowerCase();
+            for (int i = 0; i < names.length; i++)
+                if (names[i].equals(lower)) return i;
+            throw new IllegalArgumentException("Undefined column name " + name +
+                    " in [" + c.cql + "]");
+        }
+
+        /**
+         * @return the primary key pinned by the conditions, or null
+         */
+        Object[] keyOrNull(Map<Integer, Object> conditions) {
+            Object[] key = new Object[primaryKey.length];
+            for (int i = 0; i < key.length; i++)
+                if ((key[i] = conditions.get(primaryKey[i])) == null)
+                    return null;
+            return key;
+        }
+
+        Object[] key(Cursor c, Map<Integer, Object> conditions) {
+            c.end();
+            Object[] key = keyOrNull(conditions);
+            if (key == null || conditions.size() != key.length)
+                throw new IllegalArgumentException("Where clause must pin " +
+                        "exactly the primary key in [" + c.cql + "]");
+            return key;
+        }
+
+        Object[] newRow(Object[] key) {
+            Object[] row = new Object[names.length];
+            for (int i = 0; i < key.length; i++) row[primaryKey[i]] = key[i];
+            return row;
+        }
+    }
+
+    /**
+     * A position in the token list of one statement.
+     */
+    private static class Cursor {
+        final List<String> tokens;
+        final String cql;
+        int pos = 0;
+
+        Cursor(List<String> tokens, String cql) {
+            this.tokens = tokens;
+            this.cql = cql;
+        }
+
+        String next() {
+            if (pos >= tokens.size()) throw unsupported();
+            return tokens.get(pos++);
+        }
+
+        boolean peek(String token) {
+            return pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(token);
+        }
+
+        boolean accept(String token) {
+            if (!peek(token)) return false;
+            pos++;
+            return true;
+        }
+
+        void expect(String token) {
+            if (!accept(token)) throw unsupported();
+        }
+
+        void end() {
+            if (pos < tokens.size()) throw unsupported();
+        }
+
+        /**
+         * @return the possibly qualified table name, lower-cased
+         */
+        String table(String keyspace) {
+            String name = next().toLowerCase();
+            if (accept(".")) return name + "." + next().toLowerCase();
+            return keyspace + "." + name;
+        }
+
+        IllegalArgumentException unsupported() {
+            return new IllegalArgumentException("Unsupported statement [" + cql
+                    + "]" + (pos < tokens.size() ? " at " + tokens.get(pos) :
+                    ""));
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package server;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Leaderless total order broadcast with Lamport clocks. A server stamps
+ * each of its clients' statements with its clock and multicasts it in a
+ * {@link Envelope#STAMPED}; every server keeps the statements it knows of
+ * in a priority queue ordered by (timestamp, origin) and delivers the head
+ * once every other server has sent it a message stamped no earlier than
+ * the head. Messages from each server are processed in the order they
+ * were sent, so nothing earlier can still arrive from it.
+ *
+ * The transport does not guarantee FIFO delivery, so every message carries
+ * a per-link sequence number and early arrivals wait in a per-link buffer.
+ *
+ * A server that received statements owes everyone an acknowledgement,
+ * i.e., some message with a later timestamp. Acknowledgements are not sent
+ * per statement: the statements a server multicasts itself carry its
+ * clock and settle the debt, and otherwise a single {@link Envelope#ACK}
+ * per server covers everything received within ackLingerMicros. Under
+ * load each write thus costs close to n messages rather than n^2.
+ */
+public class LamportOrder implements TotalOrder {
+    /**
+     * How long a server waits for a statement of its own to piggyback an
+     * acknowledgement on before sending a separate one; 0 acknowledges
+     * right after every received message.
+     */
+    public static final long DEFAULT_ACK_LINGER_MICROS = Long.getLong(
+            "mydb.lamport.ackLingerMicros", 100);
+
+    private static final Logger log = Logger.getLogger(LamportOrder.class
+            .getName());
+
+    private final String myID;
+    private final Transport transport;
+    private final Delivery delivery;
+    private final long ackLingerMicros;
+    private final ScheduledExecutorService acker;
+
+    // all guarded by this
+    private long clock = 0;
+    private long delivered = 0;
+    private final HashMap<String, Link> links = new HashMap<String, Link>();
+    private final PriorityQueue<Stamped> queue = new PriorityQueue<Stamped>();
+    private boolean ackOwed = false;
+    private boolean ackScheduled = false;
+    private long acksSent = 0;
+
+    private final Envelope envelope = new Envelope();
+
+    public LamportOrder(String myID, Set<String> nodes, Transport transport,
+                        Delivery delivery) {
+        this(myID, nodes, transport, delivery, DEFAULT_ACK_LINGER_MICROS);
+    }
+
+    public LamportOrder(String myID, Set<String> nodes, Transport transport,
+                        Delivery delivery, long ackLingerMicros) {
+        this.myID = myID;
+        for (String node : new TreeSet<String>(nodes))
+            if (!node.equals(myID)) links.put(node, new Link(node));
+        this.transport = transport;
+        this.delivery = delivery;
+        this.ackLingerMicros = ackLingerMicros;
+        this.acker = ackLingerMicros > 0 ? Executors
+                .newSingleThreadScheduledExecutor(new DefaultThreadFactory
+                        ("mydb-lamport-ack", true)) : null;
+    }
+
+    /**
+     * A statement with its timestamp, ordered by (clock, origin).
+     */
+    private static class Stamped implements Comparable<Stamped> {
+        final long clock;
+        final String origin;
+        final long tag;
+        final String cql;
+
+        Stamped(long clock, String origin, long tag, String cql) {
+            this.clock = clock;
+            this.origin = origin;
+            this.tag = tag;
+            this.cql = cql;
+        }
+
+        @Override
+        public int compareTo(Stamped o) {
+            if (clock != o.clock) return clock < o.clock ? -1 : 1;
+            return origin.compareTo(o.origin);
+        }
+    }
+
+    /**
+     * The state of the channels to and from one other server.
+     */
+    private static class Link {
+        final String node;
+        long nextOut = 1;
+        long nextIn = 1;
+        // messages received ahead of nextIn
+        final HashMap<Long, byte[]> early = new HashMap<Long, byte[]>();
+        // the timestamp of the last message processed from node
+        long lastClock = 0;
+
+        Link(String node) {
+            this.node = node;
+        }
+
+        /**
+         * @return true if the last message from node is stamped no earlier
+         * than s, so that nothing earlier than s can still come from it
+         */
+        boolean covers(Stamped s) {
+            if (lastClock != s.clock) return lastClock > s.clock;
+            return node.compareTo(s.origin) >= 0;
+        }
+    }
+
+    /**
+     * An encoded message and its destination.
+     */
+    private static class Outgoing {
+        final String node;
+        final byte[] bytes;
+
+        Outgoing(String node, byte[] bytes) {
+            this.node = node;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Orders all statements in one total order, whatever their domain and
+     * whether they commute.
+     */
+    @Override
+    public void propose(long tag, String cql, int domain, String commutes)
+            throws IOException {
+        byte[] utf8 = cql.getBytes(StandardCharsets.UTF_8);
+        List<Outgoing> out = new ArrayList<Outgoing>(links.size());
+        synchronized (this) {
+            long stamp = ++clock;
+            queue.add(new Stamped(stamp, myID, tag, cql));
+            for (Link link : links.values())
+                out.add(new Outgoing(link.node, encode(Envelope.STAMPED, stamp,
+                        link.nextOut++, tag, utf8)));
+            // our clock now exceeds everything received so far
+            ackOwed = false;
+            deliverReady();
+        }
+        send(out);
+    }
+
+    @Override
+    public boolean handleMessage(byte[] bytes) {
+        List<Outgoing> acks = null;
+        boolean schedule = false;
+        synchronized (this) {
+            if (!envelope.wrap(bytes, 0) || (envelope.opcode() != Envelope
+                    .STAMPED && envelope.opcode() != Envelope.ACK))
+                return false;
+            Link link = links.get(envelope.keyspace());
+            long linkSeq = Envelope.readVarLong(bytes, envelope.payloadOffset());
+            if (link == null || linkSeq < 0) {
+                log.log(Level.WARNING, "{0} dropping malformed message from " +
+                        "{1}", new Object[]{myID, envelope.keyspace()});
+                return true;
+            }
+            if (linkSeq < link.nextIn) return true; // duplicate
+            if (linkSeq > link.nextIn) {
+                link.early.put(linkSeq, bytes);
+                return true;
+            }
+            do {
+                process(link, bytes);
+                link.nextIn++;
+            } while ((bytes = link.early.remove(link.nextIn)) != null);
+            deliverReady();
+            if (ackOwed && !ackScheduled) {
+                if (acker == null) acks = acks();
+                else schedule = ackScheduled = true;
+            }
+        }
+        if (acks != null) send(acks);
+        if (schedule)
+            acker.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    List<Outgoing> acks;
+                    synchronized (LamportOrder.this) {
+                        ackScheduled = false;
+                        acks = acks();
+                    }
+                    send(acks);
+                }
+            }, ackLingerMicros, TimeUnit.MICROSECONDS);
+        return true;
+    }
+
+    /**
+     * Processes the next message on the link; called in link order.
+     */
+    private void process(Link link, byte[] bytes) {
+        if (!envelope.wrap(bytes, 0)) return;
+        long stamp = envelope.id();
+        clock = Math.max(clock, stamp) + 1;
+        link.lastClock = stamp;
+        if (envelope.opcode() != Envelope.STAMPED) return;
+        int pos = envelope.payloadOffset();
+        pos += Envelope.varLongSize(Envelope.readVarLong(bytes, pos));
+        long tag = Envelope.readVarLong(bytes, pos);
+        pos += Envelope.varLongSize(tag);
+        queue.add(new Stamped(stamp, link.node, tag, new String(bytes, pos,
+                envelope.end() - pos, StandardCharsets.UTF_8)));
+        ackOwed = true;
+    }
+
+    private void deliverReady() {
+        for (Stamped head; (head = queue.peek()) != null; ) {
+            for (Link link : links.values())
+                if (!link.covers(head)) return;
+            queue.poll();
+            delivery.deliver(++delivered, head.origin, head.tag, head.cql);
+        }
+    }
+
+    /**
+     * @return an acknowledgement for every other server if one is owed
+     */
+    private List<Outgoing> acks() {
+        List<Outgoing> out = new ArrayList<Outgoing>(links.size());
+        if (!ackOwed) return out;
+        ackOwed = false;
+        acksSent++;
+        for (Link link : links.values())
+            out.add(new Outgoing(link.node, encode(Envelope.ACK, clock, link
+                    .nextOut++, -1, null)));
+        return out;
+    }
+
+    private byte[] encode(int opcode, long stamp, long linkSeq, long tag,
+                          byte[] cql) {
+        int payloadLength = Envelope.varLongSize(linkSeq) + (cql == null ? 0 :
+                Envelope.varLongSize(tag) + cql.length);
+        byte[] bytes = new byte[Envelope.size(stamp, myID.length(),
+                payloadLength)];
+        int pos = Envelope.writeHeader(bytes, opcode, 0, stamp, myID,
+                payloadLength);
+        pos = Envelope.writeVarLong(bytes, pos, linkSeq);
+        if (cql != null) {
+            pos = Envelope.writeVarLong(bytes, pos, tag);
+            System.arraycopy(cql, 0, bytes, pos, cql.length);
+        }
+        return bytes;
+    }
+
+    private void send(List<Outgoing> out) {
+        for (Outgoing o : out)
+            try {
+                transport.send(o.node, o.bytes);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "{0} unable to send to {1}: {2}", new
+                        Object[]{myID, o.node, e});
+            }
+    }
+
+    /**
+     * Refuses to, as the per-link sequence numbers and the clock start over
+     * on a restart, and the other servers would drop this server's messages
+     * as duplicates.
+     */
+    @Override
+    public boolean resume(long seq) throws IOException {
+        throw new IOException(myID + " cannot resume Lamport ordering " +
+                "after statement " + seq);
+    }
+
+    /**
+     * @return the number of statements known but not yet deliverable
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of rounds of separate acknowledgements sent
+     */
+    public synchronized long getAcksSent() {
+        return acksSent;
+    }
+
+    @Override
+    public void close() {
+        if (acker != null) acker.shutdownNow();
+    }
+}
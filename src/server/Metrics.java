@@ -0,0 +1,137 @@
+package server;
+
+import com.codahale.metrics.CsvReporter;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.jvm.BufferPoolMetricSet;
+import com.codahale.metrics.jvm.ClassLoadingGaugeSet;
+import com.codahale.metrics.jvm.GarbageCollectorMetricSet;
+import com.codahale.metrics.jvm.MemoryUsageGaugeSet;
+import com.codahale.metrics.jvm.ThreadStatesGaugeSet;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metrics of a client or server: a {@link MetricRegistry} with JVM
+ * gauges under "jvm", and the reporters that export it, selected by the
+ * mydb.metrics.* properties. The metrics themselves are created by the
+ * code that records them, e.g., {@link MyDBSingleServer} and
+ * {@link client.MyDBClient}, under names relative to the registry, which
+ * several clients or servers may share.
+ */
+public class Metrics {
+    /**
+     * Whether the metrics are published as MBeans in the domain
+     * "mydb.&lt;name&gt;".
+     */
+    public static final boolean JMX = Boolean.parseBoolean(System.getProperty(
+            "mydb.metrics.jmx", "false"));
+
+    /**
+     * The directory under which the metrics are written as CSV files, in a
+     * subdirectory per name, every {@link #CSV_PERIOD_SECONDS}; none if
+     * unset.
+     */
+    public static final String CSV_DIR = System.getProperty(
+            "mydb.metrics.csvDir");
+
+    public static final long CSV_PERIOD_SECONDS = Long.getLong(
+            "mydb.metrics.csvPeriodSeconds", 10);
+
+    /**
+     * Whether JVM memory, GC, thread, buffer pool and class loading gauges
+     * are registered.
+     */
+    public static final boolean JVM = Boolean.parseBoolean(System.getProperty(
+            "mydb.metrics.jvm", "true"));
+
+    private final String name;
+    private final MetricRegistry registry;
+    // null if not enabled
+    private final JmxReporter jmx;
+    private final CsvReporter csv;
+
+    /**
+     * With the reporters selected by the properties.
+     */
+    public Metrics(String name) {
+        this(name, new MetricRegistry(), JMX, CSV_DIR == null ? null : new
+                File(CSV_DIR), CSV_PERIOD_SECONDS);
+    }
+
+    /**
+     * @param csvDir null for no CSV files
+     */
+    public Metrics(String name, MetricRegistry registry, boolean jmx, File
+            csvDir, long csvPeriodSeconds) {
+        this.name = name;
+        this.registry = registry;
+        if (JVM) {
+            register("jvm.memory", new MemoryUsageGaugeSet());
+            register("jvm.gc", new GarbageCollectorMetricSet());
+            register("jvm.threads", new ThreadStatesGaugeSet());
+            register("jvm.buffers", new BufferPoolMetricSet(ManagementFactory
+                    .getPlatformMBeanServer()));
+            register("jvm.classes", new ClassLoadingGaugeSet());
+        }
+        if (jmx) {
+            this.jmx = JmxReporter.forRegistry(registry).inDomain("mydb." +
+                    name).convertDurationsTo(TimeUnit.MICROSECONDS).build();
+            this.jmx.start();
+        } else this.jmx = null;
+        if (csvDir != null) {
+            File dir = new File(csvDir, name);
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IllegalArgumentException("Unable to create " + dir);
+            this.csv = CsvReporter.forRegistry(registry).formatFor(Locale.US)
+                    .convertDurationsTo(TimeUnit.MICROSECONDS).build(dir);
+            this.csv.start(csvPeriodSeconds, TimeUnit.SECONDS);
+        } else this.csv = null;
+    }
+
+    /**
+     * Registers the set's metrics under the prefix unless a registry shared
+     * with another client or server already has them.
+     */
+    private void register(String prefix, MetricSet set) {
+        synchronized (registry) {
+            for (Map.Entry<String, Metric> entry : set.getMetrics().entrySet()) {
+                String full = MetricRegistry.name(prefix, entry.getKey());
+                if (!registry.getMetrics().containsKey(full))
+                    registry.register(full, entry.getValue());
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Writes the CSV files now rather than at the next period.
+     */
+    public void report() {
+        if (csv != null) csv.report();
+    }
+
+    /**
+     * Writes the CSV files a last time and stops the reporters.
+     */
+    public void close() {
+        if (csv != null) {
+            csv.report();
+            csv.stop();
+        }
+        if (jmx != null) jmx.stop();
+    }
+}
@@ -1,27 +1,1308 @@
 package server;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import edu.umass.cs.nio.AbstractBytePacketDemultiplexer;
 import edu.umass.cs.nio.MessageNIOTransport;
 import edu.umass.cs.nio.interfaces.NodeConfig;
 import edu.umass.cs.nio.nioutils.NIOHeader;
-import edu.umass.cs.nio.nioutils.NodeConfigUtils;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 /**
- * This class should implement your replicated database server. Refer to
- * {@link ReplicatedServer} for a starting point.
+ * A replicated database server. Client statements are totally ordered
+ * across all servers by a {@link TotalOrder}, either through a sequencer
+ * ({@link SequencerOrder}), leaderless with Lamport clocks ({@link
+ * LamportOrder}) or by Paxos ({@link PaxosOrder}), and every server
+ * applies them to its own keyspace with the same effect as executing them
+ * one by one in that order, so the replicas never diverge. Only
+ * statements on the same row are ordered against each other, while schema
+ * changes and statements on whole tables are ordered against everything
+ * ({@link Footprint#domain}); with the sequencer, a row's statements need
+ * not wait for unrelated rows to be delivered. Ordering goes on while
+ * earlier statements are still being applied, and statements that touch
+ * different rows are applied concurrently and out of order ({@link
+ * ApplyPipeline}). A client gets its reply from the server it sent the
+ * statement to once that server has applied it.
+ *
+ * Reads are not ordered unless {@link #READS} says so: a SELECT is served
+ * by the server it was sent to from its own replica right away, which sees
+ * every write this server has applied but possibly not the latest writes
+ * of other servers' clients. Without a log that includes every write this
+ * server has acknowledged; with one ({@link #WAL_DIR}), a write may be
+ * acknowledged before it is applied, and only "ryw" reads are sure to see
+ * their client's own writes.
+ *
+ * Every {@link #CHECKPOINT_EVERY} statements a server records how far it
+ * has applied everything and tells the others, which lets them drop log
+ * segments and notice when they have fallen far behind; a server that has
+ * fallen far behind catches up by installing another's state ({@link
+ * #catchUp}). A server restarted with a log applies the writes it logged
+ * but had not applied before it applies anything new, and the order
+ * resumes numbering after the last one logged ({@link TotalOrder#resume}),
+ * which Lamport ordering cannot do.
+ *
+ * Besides those of {@link MyDBSingleServer}, the server's {@link Metrics}
+ * include "order", a timer from proposing a client's statement to its
+ * delivery; "apply", a timer from delivering a statement to having applied
+ * it; and "messages.sent" and "messages.received", meters of the messages
+ * exchanged with other servers, counting each message of a batch. With
+ * the sequencer, a traced statement ({@link Tracer}) is traced at every
+ * server, otherwise at its origin only.
  */
 public class MyDBReplicatedServer extends MyDBSingleServer {
+    /**
+     * The total order protocol: "sequencer" (default), "lamport" or
+     * "paxos" ({@link PaxosOrder}), which needs Apache Derby and c3p0 on
+     * the class path.
+     */
+    public static final String ORDER = System.getProperty("mydb.order",
+            "sequencer");
+
+    /**
+     * Maximum number of delivered statements being applied to the database
+     * at once; see {@link ApplyPipeline}. A value of 1 applies them one at a
+     * time.
+     */
+    public static final int APPLY_WINDOW = Integer.getInteger(
+            "mydb.applyWindow", 64);
+
+    /**
+     * How SELECTs are served: "local" (default) executes them on this
+     * server's replica without any coordination; "ryw" does so as well but
+     * first waits until all writes the same client sent earlier have been
+     * applied here, so that a client pipelining a write and a read of it
+     * reads its own write; "ordered" orders them like writes, and replies
+     * to them without their rows.
+     */
+    public static final String READS = System.getProperty("mydb.reads",
+            "local");
+
+    /**
+     * The directory under which each server keeps a {@link WriteAheadLog}
+     * of the writes delivered to it, in a subdirectory named by its id; no
+     * log if unset. With a log, a server acknowledges its clients' writes
+     * to single rows of existing tables once they are durable in its log,
+     * or applied if that happens first, rather than only once applied;
+     * other writes, which may well fail, and schema changes are still
+     * acknowledged once applied, with their outcome. Applying a logged
+     * write is marked in the log, and on restart the writes logged after
+     * the last checkpoint and not marked are applied. A write applied just
+     * before a crash whose mark had not reached the disk is applied again,
+     * so a statement that is not idempotent may then take effect twice.
+     */
+    public static final String WAL_DIR = System.getProperty("mydb.wal.dir");
+
+    public static final int WAL_SEGMENT_BYTES = Integer.getInteger(
+            "mydb.wal.segmentBytes", 64 << 20);
+
+    /**
+     * Whether log appends are forced to disk before they count as durable.
+     */
+    public static final boolean WAL_SYNC = Boolean.parseBoolean(System
+            .getProperty("mydb.wal.sync", "true"));
+
+    /**
+     * A server checkpoints, i.e., records and tells the others the sequence
+     * number up to which it has applied everything, after applying this
+     * many statements. Log segments holding nothing beyond every server's
+     * last checkpoint are deleted.
+     */
+    public static final int CHECKPOINT_EVERY = Integer.getInteger(
+            "mydb.checkpointEvery", 10000);
+
+    /**
+     * A server that learns from a checkpoint that it has fallen this many
+     * statements behind asks the checkpointing server for its state rather
+     * than applying the backlog; see {@link #catchUp}.
+     */
+    public static final long CATCH_UP_LAG = Long.getLong("mydb.catchUpLag",
+            100000);
+
+    /**
+     * How long a server catching up waits for the next part of the state
+     * before asking another server for it, and a server sending its state
+     * waits for the next part to be acknowledged before giving up.
+     */
+    public static final long SNAPSHOT_TIMEOUT_MILLIS = Long.getLong(
+            "mydb.snapshotTimeoutMillis", 5000);
+
+    /**
+     * Maximum number of messages to the same server coalesced into one
+     * {@link Envelope#BATCH} ({@link FrameBatcher}); 1 sends each message on
+     * its own.
+     */
+    public static final int SERVER_BATCH_SIZE = Integer.getInteger(
+            "mydb.server.batchSize", 64);
+
+    /**
+     * How long the first message of a batch to another server may wait for
+     * company.
+     */
+    public static final long SERVER_BATCH_LINGER_MICROS = Long.getLong(
+            "mydb.server.batchLingerMicros", 50);
+
+    public static final int SERVER_BATCH_MAX_BYTES = Integer.getInteger(
+            "mydb.server.batchMaxBytes", 64 * 1024);
+
+    /*
+     * Ordered like a statement, "-- snapshot requester donor" is a barrier
+     * at which the donor sends the requester its state.
+     */
+    private static final String SNAPSHOT_REQUEST = "-- snapshot ";
+    private static final int SNAPSHOT_PART_BYTES = 64 * 1024;
+    // parts of a state sent ahead of those acknowledged
+    private static final int SNAPSHOT_WINDOW = 8;
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    protected final String myID;
+    protected final NodeConfig<String> nodeConfig;
+    protected final MessageNIOTransport<String, byte[]> serverMessenger;
+    // coalesces messages to other servers, or null if SERVER_BATCH_SIZE is 1
+    private final FrameBatcher<String> batcher;
+    private final ScheduledExecutorService batchFlusher;
+    // streams states and times out their transfers
+    private final ScheduledExecutorService snapshotter;
+    private final TotalOrder order;
+    private final Timer ordering;
+    private final Timer applying;
+    private final Meter messagesSent;
+    private final Meter messagesReceived;
+
+    // statements of this server's clients, by tag, until applied
+    private final ConcurrentHashMap<Long, Write> awaiting = new
+            ConcurrentHashMap<Long, Write>();
+    private final AtomicLong nextTag = new AtomicLong();
+
+    // clients with writes not yet applied, if READS is "ryw"; guarded by it
+    private final HashMap<InetSocketAddress, Session> sessions = new
+            HashMap<InetSocketAddress, Session>();
+
+    private final ExecutorService applier;
+    private final ApplyPipeline<Delivered> pipeline;
+    // null if there is none
+    protected final WriteAheadLog wal;
+
+    // all guarded by progress
+    private final Object progress = new Object();
+    private long appliedThrough = 0; // everything up to here is applied
+    private final HashSet<Long> appliedAbove = new HashSet<Long>();
+    private long sinceCheckpoint = 0;
+    private final HashMap<String, Long> checkpoints = new HashMap<String,
+            Long>();
+    private boolean catchingUp = false;
+    private final HashMap<Long, Incoming> snapshots = new HashMap<Long,
+            Incoming>();
+    // states requested up to here are installed or given up on
+    private long snapshotsSettled = 0;
+    // states being sent, by the sequence number they were taken at
+    private final ConcurrentHashMap<Long, Outgoing> outgoing = new
+            ConcurrentHashMap<Long, Outgoing>();
+    // logged writes replayed on restart and not yet applied, and the last
+    // sequence number logged before the restart
+    private long replaying = 0;
+    private long recoveredThrough = 0;
+    // statements delivered before the log has been replayed, or null once
+    // it has; guarded by progress
+    private volatile List<Delivered> early = new ArrayList<Delivered>();
+
     public MyDBReplicatedServer(NodeConfig<String> nodeConfig, String myID,
                                 InetSocketAddress isaDB) throws IOException {
         super(new InetSocketAddress(nodeConfig.getNodeAddress(myID),
                 nodeConfig.getNodePort(myID)-ReplicatedServer
                         .SERVER_PORT_OFFSET), isaDB, myID);
+        this.myID = myID;
+        this.nodeConfig = nodeConfig;
+        this.ordering = metrics.getRegistry().timer("order");
+        this.applying = metrics.getRegistry().timer("apply");
+        this.messagesSent = metrics.getRegistry().meter("messages.sent");
+        this.messagesReceived = metrics.getRegistry().meter(
+                "messages.received");
+        this.serverMessenger = new MessageNIOTransport<String, byte[]>(myID,
+                nodeConfig, new AbstractBytePacketDemultiplexer() {
+            @Override
+            public boolean handleMessage(byte[] bytes, NIOHeader header) {
+                handleMessageFromServer(bytes, header);
+                return true;
+            }
+        }, true);
+        if (SERVER_BATCH_SIZE > 1) {
+            this.batchFlusher = Executors.newSingleThreadScheduledExecutor(new
+                    DefaultThreadFactory("mydb-batcher-" + myID, true));
+            this.batcher = new FrameBatcher<String>(new FrameBatcher.Sink
+                    <String>() {
+                @Override
+                public void send(String node, byte[] frame) throws
+                        IOException {
+                    serverMessenger.send(node, frame);
+                }
+            }, SERVER_BATCH_SIZE, SERVER_BATCH_MAX_BYTES,
+                    SERVER_BATCH_LINGER_MICROS, batchFlusher);
+        } else {
+            this.batchFlusher = null;
+            this.batcher = null;
+        }
+        this.applier = Executors.newSingleThreadExecutor(new
+                DefaultThreadFactory("mydb-apply-" + myID, true));
+        this.snapshotter = Executors.newSingleThreadScheduledExecutor(new
+                DefaultThreadFactory("mydb-snapshot-" + myID, true));
+        this.pipeline = new ApplyPipeline<Delivered>(storage, myID,
+                APPLY_WINDOW, applier, new ApplyPipeline.Applied<Delivered>() {
+            @Override
+            public void applied(Delivered delivered, Throwable error) {
+                MyDBReplicatedServer.this.applied(delivered, error);
+            }
+
+            @Override
+            public void started(Delivered delivered) {
+                tracer.record(delivered.trace, Tracer.Event.DB_START);
+            }
+        });
+        this.wal = createWriteAheadLog();
+        for (String node : nodeConfig.getNodeIDs())
+            if (!node.equals(myID)) checkpoints.put(node, 0L);
+        this.order = createOrder(nodeConfig.getNodeIDs(), new TotalOrder
+                .Transport() {
+            @Override
+            public void send(String node, byte[] bytes) throws IOException {
+                sendToServer(node, bytes);
+            }
+        }, new TotalOrder.Delivery() {
+            @Override
+            public void deliver(long seq, String origin, long tag, String cql) {
+                deliver(seq, origin, tag, cql, 0);
+            }
+
+            @Override
+            public void deliver(long seq, String origin, long tag, String
+                    cql, long trace) {
+                Delivered delivered = new Delivered(seq, origin, tag, cql,
+                        trace);
+                if (!holdBack(delivered))
+                    MyDBReplicatedServer.this.deliver(delivered);
+            }
+        });
+        try {
+            recover();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        log.log(Level.INFO, "Server {0} started on {1} with {2} ordering",
+                new Object[]{this.myID, this.clientMessenger
+                        .getListeningSocketAddress(), ORDER});
+    }
+
+    /**
+     * @return the log of this server's delivered writes, in a subdirectory
+     * of {@link #WAL_DIR} named by its id, or null if there is none
+     */
+    protected WriteAheadLog createWriteAheadLog() throws IOException {
+        return WAL_DIR == null ? null : new WriteAheadLog(new File(WAL_DIR,
+                myID), WAL_SEGMENT_BYTES, WAL_SYNC);
+    }
+
+    /**
+     * Has the writes logged after the last checkpoint but not marked as
+     * applied applied now, as this server may have acknowledged them
+     * without having applied them before it stopped, and the order number
+     * statements after the last one logged. Statements delivered meanwhile
+     * are held back and applied after the replayed ones.
+     *
+     * @throws IOException if the order cannot resume
+     */
+    private void recover() throws IOException {
+        final long checkpoint = wal == null ? 0 : readCheckpoint();
+        final List<Delivered> written = new ArrayList<Delivered>();
+        final HashSet<Long> marked = new HashSet<Long>();
+        if (wal != null)
+            wal.replay(new WriteAheadLog.Visitor() {
+                @Override
+                public void visit(long seq, byte[] record) {
+                    if (seq <= checkpoint) return;
+                    Envelope envelope = new Envelope();
+                    if (!envelope.wrap(record, 0)) {
+                        log.log(Level.SEVERE, "{0} skipping malformed log " +
+                                "record {1}", new Object[]{myID, seq});
+                        return;
+                    }
+                    if (envelope.opcode() == Envelope.RESPONSE) {
+                        marked.add(seq);
+                        return;
+                    }
+                    Delivered delivered = new Delivered(seq, envelope
+                            .keyspace(), envelope.id(), envelope
+                            .payloadString(), 0);
+                    delivered.replayed = true;
+                    delivered.logged = true;
+                    written.add(delivered);
+                }
+            });
+        List<Delivered> logged = new ArrayList<Delivered>();
+        for (Delivered delivered : written)
+            if (!marked.contains(delivered.seq)) logged.add(delivered);
+        long last = wal == null ? 0 : Math.max(checkpoint, wal.getLastSeq());
+        if (last > 0 && order.resume(last)) {
+            synchronized (progress) {
+                recoveredThrough = last;
+                replaying = logged.size();
+                appliedThrough = replaying == 0 ? last : checkpoint;
+            }
+            log.log(Level.INFO, "{0} replaying {1} writes logged but not " +
+                    "applied after checkpoint {2} and resuming after {3}", new
+                    Object[]{myID, logged.size(), checkpoint, last});
+            for (Delivered delivered : logged)
+                pipeline.submit(delivered.cql, Footprint.of(delivered.cql,
+                        keyspace, storage), delivered);
+        }
+        releaseHeldBack();
+    }
+
+    /**
+     * Delivers the statements held back, and those that arrive meanwhile,
+     * and stops holding statements back.
+     */
+    private void releaseHeldBack() {
+        while (true) {
+            List<Delivered> held;
+            synchronized (progress) {
+                held = early;
+                if (held == null) return;
+                early = held.isEmpty() ? null : new ArrayList<Delivered>();
+            }
+            for (Delivered delivered : held) deliver(delivered);
+        }
+    }
+
+    /**
+     * Waits until every statement up to seq is applied. A protocol that
+     * recovers by itself may wait while this server is being created, so
+     * the statements held back are let through first.
+     */
+    private void awaitApplied(long seq) {
+        releaseHeldBack();
+        boolean interrupted = false;
+        synchronized (progress) {
+            while (appliedThrough < seq)
+                try {
+                    progress.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return whether the statement is held back until the log has been
+     * replayed
+     */
+    private boolean holdBack(Delivered delivered) {
+        if (early == null) return false;
+        synchronized (progress) {
+            if (early == null) return false;
+            early.add(delivered);
+            return true;
+        }
+    }
+
+    /**
+     * @return the protocol selected by {@link #ORDER}
+     */
+    protected TotalOrder createOrder(Set<String> nodes, TotalOrder.Transport
+            transport, TotalOrder.Delivery delivery) throws IOException {
+        if (ORDER.equals("lamport"))
+            return new LamportOrder(myID, nodes, transport, delivery);
+        if (ORDER.equals("paxos"))
+            return new PaxosOrder(myID, nodeConfig, delivery, new PaxosOrder
+                    .State() {
+                @Override
+                public List<String> take(long seq) {
+                    awaitApplied(seq);
+                    return storage.snapshot();
+                }
+
+                @Override
+                public void install(long applied, long seq, List<String>
+                        statements) {
+                    awaitApplied(applied);
+                    storage.restore(statements);
+                    synchronized (progress) {
+                        appliedThrough = Math.max(appliedThrough, seq);
+                        while (appliedAbove.remove(appliedThrough + 1))
+                            appliedThrough++;
+                    }
+                    log.log(Level.INFO, "{0} installed the Paxos checkpoint " +
+                            "at {1}", new Object[]{myID, seq});
+                }
+            });
+        return new SequencerOrder(myID, nodes, transport, delivery);
+    }
+
+    /**
+     * Instead of executing the statement right away, submits it to be
+     * ordered; it is executed and replied to once delivered. Reads are
+     * served locally as set by {@link #READS}.
+     */
+    @Override
+    protected void handleRequest(PendingStatement stmt) {
+        if (stmt.cql.startsWith(SNAPSHOT_REQUEST)) {
+            reply(stmt, false, "Reserved statement");
+            return;
+        }
+        CqlStatement parsed = CqlStatement.parse(stmt.cql);
+        if (parsed.kind == CqlStatement.Kind.SELECT && !READS.equals
+                ("ordered")) {
+            if (!READS.equals("ryw") || !park(stmt)) super.handleRequest(stmt);
+            return;
+        }
+        long tag = nextTag.incrementAndGet();
+        Write write = new Write(stmt, READS.equals("ryw") ? issue(stmt.sndr)
+                : 0);
+        awaiting.put(tag, write);
+        try {
+            Footprint footprint = Footprint.of(parsed, keyspace, storage);
+            order.propose(tag, stmt.cql, footprint.domain(), footprint
+                    .commutativity(), stmt.trace);
+        } catch (IOException e) {
+            if (awaiting.remove(tag) != null) completed(write, e);
+        }
+    }
+
+    /**
+     * A client statement proposed by this server and, for "ryw" reads, its
+     * number among the writes of its client.
+     */
+    private static class Write {
+        final PendingStatement stmt;
+        final long sessionSeq;
+        // whether the client got its reply, which may precede applying it
+        final AtomicBoolean replied = new AtomicBoolean();
+        final long proposed = System.nanoTime();
+
+        Write(PendingStatement stmt, long sessionSeq) {
+            this.stmt = stmt;
+            this.sessionSeq = sessionSeq;
+        }
+    }
+
+    /**
+     * The writes of one client that are not all applied yet, and the reads
+     * waiting for them.
+     */
+    private static class Session {
+        long issued = 0;
+        long applied = 0; // all writes up to here have been applied
+        final HashSet<Long> appliedAbove = new HashSet<Long>();
+        final ArrayDeque<PendingStatement> reads = new
+                ArrayDeque<PendingStatement>();
+        // the number of the last write each read waits for
+        final ArrayDeque<Long> readsAwait = new ArrayDeque<Long>();
+
+        boolean idle() {
+            return applied == issued && reads.isEmpty();
+        }
+    }
+
+    /**
+     * @return the number of the new write within its client's session
+     */
+    private long issue(InetSocketAddress sndr) {
+        synchronized (sessions) {
+            Session session = sessions.get(sndr);
+            if (session == null) sessions.put(sndr, session = new Session());
+            return ++session.issued;
+        }
+    }
+
+    /**
+     * @return false if the client has no unapplied writes, so that the read
+     * may go ahead; otherwise the read is held until they are applied
+     */
+    private boolean park(PendingStatement read) {
+        synchronized (sessions) {
+            Session session = sessions.get(read.sndr);
+            if (session == null || session.applied == session.issued)
+                return false;
+            session.reads.add(read);
+            session.readsAwait.add(session.issued);
+            return true;
+        }
+    }
+
+    private void completed(Write write, Throwable error) {
+        if (write.replied.compareAndSet(false, true))
+            complete(write.stmt, error);
+        else if (error != null)
+            log.log(Level.WARNING, "{0} failed to apply acknowledged [{1}]: " +
+                    "{2}", new Object[]{myID, write.stmt.cql, error});
+        if (write.sessionSeq == 0) return;
+        List<PendingStatement> ready = new ArrayList<PendingStatement>();
+        synchronized (sessions) {
+            Session session = sessions.get(write.stmt.sndr);
+            if (session == null) return;
+            session.appliedAbove.add(write.sessionSeq);
+            while (session.appliedAbove.remove(session.applied + 1))
+                session.applied++;
+            while (!session.reads.isEmpty() && session.readsAwait.peek() <=
+                    session.applied) {
+                session.readsAwait.poll();
+                ready.add(session.reads.poll());
+            }
+            if (session.idle()) sessions.remove(write.stmt.sndr);
+        }
+        for (final PendingStatement read : ready)
+            // not on the thread that completed the write
+            if (!workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    MyDBReplicatedServer.super.handleRequest(read);
+                }
+            }))
+                reply(read, false, OVERLOADED);
+    }
+
+    /**
+     * Sends an envelope to another server, batched with others to it if
+     * batching is enabled.
+     */
+    protected void sendToServer(String node, byte[] bytes) throws IOException {
+        messagesSent.mark();
+        if (batcher != null) batcher.add(node, bytes);
+        else serverMessenger.send(node, bytes);
+    }
+
+    /**
+     * Handles a message from another server; the envelopes of a {@link
+     * Envelope#BATCH} are handled one by one.
+     */
+    protected void handleMessageFromServer(byte[] bytes, NIOHeader header) {
+        Envelope envelope = new Envelope();
+        if (envelope.wrap(bytes, 0) && envelope.opcode() == Envelope.BATCH) {
+            Envelope member = new Envelope();
+            for (int pos = envelope.payloadOffset(); member.wrapMember
+                    (envelope, pos); pos = member.end())
+                handleMessageFromServer(Arrays.copyOfRange(bytes, pos, member
+                        .end()), header);
+            return;
+        }
+        messagesReceived.mark();
+        if (envelope.wrap(bytes, 0) && envelope.opcode() == Envelope
+                .CHECKPOINT) {
+            checkpointed(envelope.keyspace(), envelope.id());
+            return;
+        }
+        if (envelope.wrap(bytes, 0) && envelope.opcode() == Envelope.SNAPSHOT) {
+            receiveSnapshot(envelope);
+            return;
+        }
+        if (envelope.wrap(bytes, 0) && envelope.opcode() == Envelope
+                .SNAPSHOT_ACK) {
+            Outgoing state = outgoing.get(envelope.id());
+            if (state != null) state.acknowledged();
+            return;
+        }
+        if (!order.handleMessage(bytes))
+            log.log(Level.WARNING, "{0} dropping unknown message from {1}", new
+                    Object[]{myID, header.sndr});
+    }
+
+    private static class Delivered {
+        final long seq;
+        final String origin;
+        final long tag;
+        final String cql;
+        // System.nanoTime() at delivery
+        final long at = System.nanoTime();
+        // 0 if not traced, or if the order dropped the trace and this is not
+        // the origin
+        long trace;
+        // for a snapshot request at its requester, the statements it replaces
+        List<Delivered> superseded;
+        // replayed from the log on restart
+        boolean replayed = false;
+        // for a snapshot request at its requester, whether a later request
+        // took it over
+        boolean abandoned = false;
+        // in the log, so that applying it is marked there
+        boolean logged = false;
+
+        Delivered(long seq, String origin, long tag, String cql, long trace) {
+            this.seq = seq;
+            this.origin = origin;
+            this.tag = tag;
+            this.cql = cql;
+            this.trace = trace;
+        }
     }
+
+    /**
+     * Logs a delivered write, if there is a log, and has it applied.
+     */
+    private void deliver(Delivered delivered) {
+        if (delivered.cql.startsWith(SNAPSHOT_REQUEST)) {
+            deliverSnapshotRequest(delivered);
+            return;
+        }
+        Write own = delivered.origin.equals(myID) ? awaiting.get(delivered
+                .tag) : null;
+        if (own != null) {
+            ordering.update(delivered.at - own.proposed, TimeUnit.NANOSECONDS);
+            if (delivered.trace == 0) delivered.trace = own.stmt.trace;
+        }
+        tracer.record(delivered.trace, Tracer.Event.ORDERED, delivered.at);
+        Footprint footprint = Footprint.of(delivered.cql, keyspace, storage);
+        if (wal != null && footprint.write) {
+            // a write to one row of an existing table that gives its whole
+            // primary key is unlikely to fail, while others are acknowledged
+            // with their outcome
+            final Write write = footprint.row != null ? own : null;
+            try {
+                // the record is the statement and where it came from
+                wal.append(delivered.seq, Envelope.encode(Envelope.REQUEST, 0,
+                        delivered.tag, delivered.origin, delivered.cql), write
+                        == null ? null : new Runnable() {
+                    @Override
+                    public void run() {
+                        if (write.replied.compareAndSet(false, true))
+                            complete(write.stmt, null);
+                    }
+                });
+                delivered.logged = true;
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "{0} unable to log {1}: {2}", new
+                        Object[]{myID, delivered.seq, e});
+            }
+        }
+        pipeline.submit(delivered.cql, footprint, delivered);
+    }
+
+    private void applied(Delivered delivered, Throwable error) {
+        if (delivered.logged) markApplied(delivered);
+        if (delivered.replayed) {
+            if (error != null)
+                log.log(Level.WARNING, "{0} failed to replay {1} [{2}]: {3}",
+                        new Object[]{myID, delivered.seq, delivered.cql, error});
+            replayed();
+            return;
+        }
+        advance(delivered.seq);
+        if (delivered.superseded != null) {
+            if (error != null)
+                log.log(Level.SEVERE, "{0} failed to install the state at {1}" +
+                        ": {2}", new Object[]{myID, delivered.seq, error});
+            // their effects are part of the installed state
+            for (Delivered d : delivered.superseded) applied(d, error);
+            if (!delivered.abandoned)
+                synchronized (progress) {
+                    catchingUp = false;
+                }
+            return;
+        }
+        applying.update(System.nanoTime() - delivered.at, TimeUnit.NANOSECONDS);
+        tracer.record(delivered.trace, Tracer.Event.DB_END);
+        if (!delivered.origin.equals(myID)) {
+            if (error != null)
+                log.log(Level.WARNING, "{0} failed to apply {1} [{2}]: {3}",
+                        new Object[]{myID, delivered.seq, delivered.cql, error});
+            return;
+        }
+        Write write = awaiting.remove(delivered.tag);
+        if (write != null) completed(write, error);
+    }
+
+    /**
+     * Logs that the write logged under the statement's number has been
+     * applied, successfully or not, so that a restart does not apply it
+     * again. The mark is forced to disk with the next record to be.
+     */
+    private void markApplied(Delivered delivered) {
+        try {
+            wal.append(delivered.seq, Envelope.encode(Envelope.RESPONSE, 0,
+                    delivered.tag, delivered.origin, ""), null);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "{0} unable to mark {1} as applied: {2}",
+                    new Object[]{myID, delivered.seq, e});
+        }
+    }
+
+    /*
+     * Checkpoints and catching up
+     */
+
+    /**
+     * Moves the applied watermark and checkpoints every CHECKPOINT_EVERY
+     * statements.
+     */
+    private void advance(long seq) {
+        long checkpoint = 0;
+        synchronized (progress) {
+            appliedAbove.add(seq);
+            while (appliedAbove.remove(appliedThrough + 1)) appliedThrough++;
+            progress.notifyAll();
+            if (++sinceCheckpoint >= CHECKPOINT_EVERY) {
+                sinceCheckpoint = 0;
+                checkpoint = appliedThrough;
+            }
+        }
+        if (checkpoint > 0) checkpoint(checkpoint);
+    }
+
+    /**
+     * Once the last replayed write is applied, moves the applied watermark
+     * past everything logged before the restart.
+     */
+    private void replayed() {
+        synchronized (progress) {
+            if (--replaying > 0) return;
+            appliedThrough = Math.max(appliedThrough, recoveredThrough);
+            while (appliedAbove.remove(appliedThrough + 1)) appliedThrough++;
+            progress.notifyAll();
+        }
+    }
+
+    private void checkpoint(long seq) {
+        record(seq);
+        byte[] bytes = Envelope.encode(Envelope.CHECKPOINT, 0, seq, myID, "");
+        for (String node : checkpointNodes())
+            try {
+                sendToServer(node, bytes);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "{0} unable to send checkpoint to {1}: " +
+                        "{2}", new Object[]{myID, node, e});
+            }
+        truncate();
+    }
+
+    /**
+     * Records the checkpoint next to the log, if there is one.
+     */
+    private void record(long seq) {
+        if (wal != null)
+            try {
+                File dir = wal.getDirectory();
+                File tmp = new File(dir, CHECKPOINT_FILE + ".tmp");
+                Files.write(tmp.toPath(), (keyspace + " " + seq).getBytes
+                        (StandardCharsets.UTF_8));
+                Files.move(tmp.toPath(), new File(dir, CHECKPOINT_FILE)
+                        .toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "{0} unable to record checkpoint {1}: " +
+                        "{2}", new Object[]{myID, seq, e});
+            }
+    }
+
+    /**
+     * @return the sequence number of the last recorded checkpoint, or 0 if
+     * there is none
+     */
+    private long readCheckpoint() {
+        String recorded;
+        try {
+            // "keyspace seq"
+            recorded = new String(Files.readAllBytes(new File(wal
+                    .getDirectory(), CHECKPOINT_FILE).toPath()),
+                    StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(recorded.substring(recorded.lastIndexOf(' ')
+                    + 1));
+        } catch (NumberFormatException e) {
+            log.log(Level.WARNING, "{0} ignoring malformed checkpoint {1}", new
+                    Object[]{myID, recorded});
+            return 0;
+        }
+    }
+
+    private List<String> checkpointNodes() {
+        synchronized (progress) {
+            return new ArrayList<String>(checkpoints.keySet());
+        }
+    }
+
+    /**
+     * Drops the log segments every server has checkpointed beyond.
+     */
+    private void truncate() {
+        if (wal == null) return;
+        long min;
+        synchronized (progress) {
+            min = appliedThrough;
+            for (long seq : checkpoints.values()) min = Math.min(min, seq);
+        }
+        if (min > 0) wal.truncate(min);
+    }
+
+    private void checkpointed(String node, long seq) {
+        String donor = null;
+        synchronized (progress) {
+            Long last = checkpoints.get(node);
+            if (last == null) return;
+            checkpoints.put(node, Math.max(last, seq));
+            // until the log is replayed, appliedThrough is not yet what was
+            // recorded at the last checkpoint
+            if (!catchingUp && early == null && seq - appliedThrough >
+                    CATCH_UP_LAG)
+                donor = node;
+        }
+        truncate();
+        if (donor != null)
+            try {
+                catchUp(donor);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "{0} unable to request a snapshot: {1}",
+                        new Object[]{myID, e});
+            }
+    }
+
+    /**
+     * Has this server install the state of donor instead of applying the
+     * statements it has yet to apply. The request is ordered like a schema
+     * change: the donor takes its state once it has applied everything
+     * ordered before it and streams it over the server messenger, while
+     * this server drops the statements ordered before it that it has not
+     * started yet and installs the state once the others are done. The
+     * cost is proportional to the size of the state, not of the backlog.
+     * If no part of the state arrives for {@link #SNAPSHOT_TIMEOUT_MILLIS},
+     * this server asks the next server for it, and the later request takes
+     * over the statements the earlier one dropped.
+     */
+    public void catchUp(String donor) throws IOException {
+        synchronized (progress) {
+            catchingUp = true;
+        }
+        order.propose(nextTag.incrementAndGet(), SNAPSHOT_REQUEST + myID + " " +
+                donor, TotalOrder.BARRIER, null);
+    }
+
+    private void deliverSnapshotRequest(final Delivered delivered) {
+        String[] nodes = delivered.cql.substring(SNAPSHOT_REQUEST.length())
+                .split(" ");
+        final String requester = nodes[0];
+        final String donor = nodes.length > 1 ? nodes[1] : null;
+        ApplyPipeline.Task task;
+        if (requester.equals(myID)) {
+            delivered.superseded = pipeline.discardWaiting();
+            final Incoming incoming = takeOver(delivered);
+            task = new ApplyPipeline.Task() {
+                @Override
+                public ListenableFuture<?> start() {
+                    watch(incoming, donor, 0);
+                    return Futures.transform(incoming.future, new Function
+                            <List<String>, Object>() {
+                        @Override
+                        public Object apply(List<String> statements) {
+                            // taken over by a later request
+                            if (statements == null) return null;
+                            storage.restore(statements);
+                            synchronized (progress) {
+                                snapshots.remove(delivered.seq);
+                                snapshotsSettled = Math.max(snapshotsSettled,
+                                        delivered.seq);
+                            }
+                            log.log(Level.INFO, "{0} installed the state at " +
+                                    "{1} in place of {2} statements", new
+                                    Object[]{myID, delivered.seq, delivered
+                                    .superseded.size()});
+                            return statements.size();
+                        }
+                    }, applier);
+                }
+            };
+        } else if (myID.equals(donor)) {
+            task = new ApplyPipeline.Task() {
+                @Override
+                public ListenableFuture<?> start() {
+                    Outgoing state = new Outgoing(requester, delivered.seq);
+                    outgoing.put(delivered.seq, state);
+                    state.schedule(state, 0);
+                    return state.done;
+                }
+            };
+        } else {
+            task = new ApplyPipeline.Task() {
+                @Override
+                public ListenableFuture<?> start() {
+                    return Futures.immediateFuture(null);
+                }
+            };
+        }
+        pipeline.submit(task, Footprint.EVERYTHING, delivered);
+    }
+
+    /**
+     * Gives up on the earlier requests of this server still waiting for
+     * their state and hands the statements they dropped to the delivered
+     * one, which installs a later state.
+     *
+     * @return the parts of the state the delivered request asks for
+     */
+    private Incoming takeOver(Delivered delivered) {
+        List<Incoming> abandoned = new ArrayList<Incoming>();
+        Incoming incoming;
+        synchronized (progress) {
+            Iterator<Map.Entry<Long, Incoming>> entries = snapshots.entrySet()
+                    .iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Long, Incoming> entry = entries.next();
+                if (entry.getKey() >= delivered.seq) continue;
+                Incoming earlier = entry.getValue();
+                synchronized (earlier) {
+                    // being installed
+                    if (earlier.complete && earlier.request != null) continue;
+                    earlier.complete = true;
+                }
+                entries.remove();
+                // parts that came too late
+                if (earlier.request == null) continue;
+                earlier.request.abandoned = true;
+                // in order, as they are applied in that order
+                delivered.superseded.addAll(0, earlier.request.superseded);
+                earlier.request.superseded = new ArrayList<Delivered>();
+                abandoned.add(earlier);
+            }
+            snapshotsSettled = Math.max(snapshotsSettled, delivered.seq - 1);
+            incoming = incoming(delivered.seq);
+            incoming.request = delivered;
+        }
+        for (Incoming earlier : abandoned) {
+            log.log(Level.INFO, "{0} gave up on the state at {1} for the one " +
+                    "at {2}", new Object[]{myID, earlier.request.seq,
+                    delivered.seq});
+            earlier.future.set(null);
+        }
+        return incoming;
+    }
+
+    /**
+     * Asks the server after donor for the state if no part of it arrives
+     * within SNAPSHOT_TIMEOUT_MILLIS, and goes on watching until a part
+     * arrives or a later request takes over.
+     *
+     * @param seen the number of parts received so far
+     */
+    private void watch(final Incoming incoming, final String donor, final
+            int seen) {
+        try {
+            snapshotter.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (incoming.future.isDone()) return;
+                    int received = incoming.received();
+                    if (received > seen) {
+                        watch(incoming, donor, received);
+                        return;
+                    }
+                    String next = nextDonor(donor);
+                    log.log(Level.WARNING, "{0} received no state from {1} " +
+                            "for {2} ms, asking {3}", new Object[]{myID, donor,
+                            SNAPSHOT_TIMEOUT_MILLIS, next});
+                    try {
+                        catchUp(next);
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, "{0} unable to request a " +
+                                "snapshot: {1}", new Object[]{myID, e});
+                    }
+                    watch(incoming, next, seen);
+                }
+            }, SNAPSHOT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    /**
+     * @return the first server after donor, in the order of their ids, that
+     * is not this one
+     */
+    private String nextDonor(String donor) {
+        List<String> nodes = new ArrayList<String>(new TreeSet<String>
+                (nodeConfig.getNodeIDs()));
+        int at = nodes.indexOf(donor);
+        for (int i = 1; i <= nodes.size(); i++) {
+            String node = nodes.get((at + i) % nodes.size());
+            if (!node.equals(myID)) return node;
+        }
+        return donor;
+    }
+
+    /**
+     * This server's state being sent to a server catching up, a part at a
+     * time on the snapshotter thread. At most SNAPSHOT_WINDOW parts are
+     * sent ahead of those the requester has acknowledged, so the state is
+     * neither held in memory nor queued in the messenger as a whole, and
+     * the transfer is given up if nothing is acknowledged for
+     * SNAPSHOT_TIMEOUT_MILLIS. No later statement is applied here until it
+     * is done, so the state read is the one at the barrier.
+     */
+    private class Outgoing implements Runnable {
+        final String node;
+        final long seq;
+        final SettableFuture<Object> done = SettableFuture.create();
+        // all but acked only used on the snapshotter thread
+        private Iterator<String> statements;
+        private boolean lastTaken = false;
+        // a part the messenger had no room for
+        private byte[] unsent;
+        private long sent = 0;
+        private long acked = 0; // guarded by this
+        private long ackedAtCheck = 0;
+
+        private final Runnable check = new Runnable() {
+            @Override
+            public void run() {
+                if (done.isDone()) return;
+                long acked = acked();
+                if (acked == ackedAtCheck && sent > acked) {
+                    giveUp("nothing acknowledged for " +
+                            SNAPSHOT_TIMEOUT_MILLIS + " ms");
+                    return;
+                }
+                ackedAtCheck = acked;
+                schedule(this, SNAPSHOT_TIMEOUT_MILLIS);
+            }
+        };
+
+        Outgoing(String node, long seq) {
+            this.node = node;
+            this.seq = seq;
+        }
+
+        void acknowledged() {
+            synchronized (this) {
+                acked++;
+            }
+            schedule(this, 0);
+        }
+
+        private synchronized long acked() {
+            return acked;
+        }
+
+        void schedule(Runnable task, long millis) {
+            try {
+                snapshotter.schedule(task, millis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                giveUp("closed");
+            }
+        }
+
+        @Override
+        public void run() {
+            if (done.isDone()) return;
+            try {
+                if (statements == null) {
+                    statements = storage.snapshotLazily().iterator();
+                    schedule(check, SNAPSHOT_TIMEOUT_MILLIS);
+                }
+                while (unsent != null || !lastTaken) {
+                    // resumed by acknowledgements
+                    if (sent - acked() >= SNAPSHOT_WINDOW) return;
+                    if (unsent == null) unsent = takePart();
+                    int written = serverMessenger.send(node, unsent);
+                    if (written < 0)
+                        throw new IOException(node + " is unreachable");
+                    if (written == 0) {
+                        // dropped as the messenger's queue is full
+                        schedule(this, 10);
+                        return;
+                    }
+                    messagesSent.mark();
+                    unsent = null;
+                    sent++;
+                }
+            } catch (Exception e) {
+                giveUp(e.toString());
+                return;
+            }
+            outgoing.remove(seq);
+            done.set(null);
+            log.log(Level.INFO, "{0} sent its state at {1} to {2} in {3} " +
+                    "parts", new Object[]{myID, seq, node, sent});
+        }
+
+        /**
+         * @return the next part, of the statements that fit in
+         * SNAPSHOT_PART_BYTES but at least one
+         */
+        private byte[] takePart() {
+            List<byte[]> part = new ArrayList<byte[]>();
+            int length = Envelope.varLongSize(sent);
+            while (length < SNAPSHOT_PART_BYTES && statements.hasNext()) {
+                byte[] utf8 = statements.next().getBytes(StandardCharsets
+                        .UTF_8);
+                part.add(utf8);
+                length += Envelope.varLongSize(utf8.length) + utf8.length;
+            }
+            lastTaken = !statements.hasNext();
+            byte[] bytes = new byte[Envelope.size(seq, myID.length(), length)];
+            int pos = Envelope.writeHeader(bytes, Envelope.SNAPSHOT, lastTaken
+                    ? 0 : Envelope.FLAG_MORE, seq, myID, length);
+            pos = Envelope.writeVarLong(bytes, pos, sent);
+            for (byte[] utf8 : part) {
+                pos = Envelope.writeVarLong(bytes, pos, utf8.length);
+                System.arraycopy(utf8, 0, bytes, pos, utf8.length);
+                pos += utf8.length;
+            }
+            return bytes;
+        }
+
+        /**
+         * Lets later statements be applied; the requester asks another
+         * server once it times out.
+         */
+        private void giveUp(String reason) {
+            outgoing.remove(seq);
+            if (done.set(null))
+                log.log(Level.SEVERE, "{0} gave up sending its state at {1} " +
+                        "to {2}: {3}", new Object[]{myID, seq, node, reason});
+        }
+    }
+
+    /**
+     * The parts of a snapshot received so far.
+     */
+    private static class Incoming {
+        final SettableFuture<List<String>> future = SettableFuture.create();
+        // all guarded by the instance
+        final HashMap<Long, List<String>> parts = new HashMap<Long,
+                List<String>>();
+        // the number of parts, once the last one has arrived
+        long count = -1;
+        // whether the parts are all there, or the request was taken over
+        boolean complete = false;
+        // the request, once delivered; guarded by progress
+        Delivered request;
+
+        synchronized int received() {
+            return parts.size();
+        }
+    }
+
+    /**
+     * @return the parts of the state at seq, or null if it has already been
+     * installed or given up on
+     */
+    private Incoming incoming(long seq) {
+        synchronized (progress) {
+            if (seq <= snapshotsSettled) return null;
+            Incoming incoming = snapshots.get(seq);
+            if (incoming == null) snapshots.put(seq, incoming = new Incoming());
+            return incoming;
+        }
+    }
+
+    private void receiveSnapshot(Envelope envelope) {
+        byte[] bytes = envelope.buffer();
+        int pos = envelope.payloadOffset();
+        long index = Envelope.readVarLong(bytes, pos);
+        pos += Envelope.varLongSize(index);
+        if (index < 0) {
+            log.log(Level.SEVERE, "{0} dropping malformed state from {1}", new
+                    Object[]{myID, envelope.keyspace()});
+            return;
+        }
+        List<String> statements = new ArrayList<String>();
+        while (pos < envelope.end()) {
+            long length = Envelope.readVarLong(bytes, pos);
+            // the length's own bytes come before the statement
+            if (length < 0 || pos + Envelope.varLongSize(length) + length >
+                    envelope.end()) {
+                log.log(Level.SEVERE, "{0} dropping malformed state from {1}",
+                        new Object[]{myID, envelope.keyspace()});
+                return;
+            }
+            pos += Envelope.varLongSize(length);
+            statements.add(new String(bytes, pos, (int) length,
+                    StandardCharsets.UTF_8));
+            pos += length;
+        }
+        try {
+            sendToServer(envelope.keyspace(), Envelope.encode(Envelope
+                    .SNAPSHOT_ACK, 0, envelope.id(), myID, ""));
+        } catch (IOException e) {
+            log.log(Level.WARNING, "{0} unable to acknowledge state to {1}: " +
+                    "{2}", new Object[]{myID, envelope.keyspace(), e});
+        }
+        Incoming incoming = incoming(envelope.id());
+        // installed or given up on already
+        if (incoming == null) return;
+        List<String> all = null;
+        synchronized (incoming) {
+            if (incoming.complete) return;
+            incoming.parts.put(index, statements);
+            if ((envelope.flags() & Envelope.FLAG_MORE) == 0)
+                incoming.count = index + 1;
+            if (incoming.parts.size() == incoming.count) {
+                all = new ArrayList<String>();
+                for (long i = 0; i < incoming.count && all != null; i++) {
+                    List<String> part = incoming.parts.get(i);
+                    if (part == null) all = null;
+                    else all.addAll(part);
+                }
+                incoming.complete = all != null;
+            }
+        }
+        if (all != null) incoming.future.set(all);
+    }
+
+    /**
+     * @return the sequence number up to which this server has applied
+     * every statement
+     */
+    public long getAppliedThrough() {
+        synchronized (progress) {
+            return appliedThrough;
+        }
+    }
+
     public void close() {
         super.close();
+        snapshotter.shutdownNow();
+        if (batcher != null) {
+            batchFlusher.shutdownNow();
+            batcher.flushAll();
+        }
+        this.serverMessenger.stop();
+        order.close();
+        applier.shutdownNow();
+        if (wal != null) {
+            // so that a restart need not look at what was applied, unless the
+            // log has not been replayed yet
+            if (early == null) record(getAppliedThrough());
+            wal.close();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,9 @@
 package server;
-import com.datastax.driver.core.*;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 
 import edu.umass.cs.nio.nioutils.NIOHeader;
@@ -7,67 +11,710 @@ import edu.umass.cs.nio.AbstractBytePacketDemultiplexer;
 import edu.umass.cs.nio.MessageNIOTransport;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This class should implement the logic necessary to perform the requested
  * operation on the database and return the response back to the client.
+ *
+ * The rows returned by a SELECT from {@link client.MyDBClient} are
+ * streamed back as {@link Envelope#ROWS} pages of at most {@link
+ * #PAGE_BYTES} each, fetched from the database {@link #PAGE_ROWS} at a time
+ * as the previous ones are sent, so the server never holds the whole
+ * result. Other statements, and all text requests, are answered with a
+ * fixed acknowledgement.
+ *
+ * The server records in its {@link Metrics}: "requests", a timer from
+ * receiving a request to replying to it; "errors", a meter of failed
+ * requests; "queue", a timer of how long received messages wait for a
+ * worker; and "execute", a timer of the statements run by the database.
+ * Requests traced by the client ({@link Tracer}) are traced through the
+ * server too.
  */
 public class MyDBSingleServer extends SingleServer {
-    Cluster cluster;
-	Session session;
+    /**
+     * If true, statements are submitted with executeAsync and the reply is
+     * sent from the driver's completion listener, so the NIO thread never
+     * waits on Cassandra. Set -Dmydb.async=false to execute inline.
+     */
+    public static final boolean ASYNC_EXECUTION = Boolean.parseBoolean(
+            System.getProperty("mydb.async", "true"));
+
+    /**
+     * Maximum number of statements from a single client connection that may
+     * be outstanding at Cassandra at once. Further statements from that
+     * connection are queued in arrival order until one completes. The
+     * default of 1 executes a connection's statements one after the other
+     * in arrival order, so that a client may pipeline statements that
+     * depend on each other; a larger window lets a client's independent
+     * statements overlap, but they may then take effect in any order.
+     */
+    public static final int MAX_IN_FLIGHT_PER_CONNECTION = Integer.getInteger(
+            "mydb.maxInFlight", 1);
+
+    /**
+     * Header of text requests sent by older clients, "Request-N:cql".
+     */
+    public static final String LEGACY_REQUEST_PREFIX = "Request-";
+
+    /**
+     * The {@link StorageEngine} behind the server: "cassandra" (default) or
+     * "memory" for an {@link InMemoryStorageEngine}, which lets the server
+     * be measured without a live database.
+     */
+    public static final String STORAGE = System.getProperty("mydb.storage",
+            "cassandra");
+
+    /**
+     * How requests are handed from the NIO threads to the code handling
+     * them: "platform" (default) or "virtual" worker threads, or "inline"
+     * to handle them in the NIO thread. See {@link ExecutionStage}.
+     */
+    public static final ExecutionStage.Mode WORKER_MODE = ExecutionStage.Mode
+            .valueOf(System.getProperty("mydb.workerMode", "platform")
+                    .toUpperCase());
+
+    /**
+     * Number of platform worker threads.
+     */
+    public static final int WORKERS = Integer.getInteger("mydb.workers",
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Maximum number of received messages waiting for a worker.
+     */
+    public static final int WORKER_QUEUE = Integer.getInteger(
+            "mydb.workerQueue", 4096);
+
+    /**
+     * What happens to a message that finds the worker queue full:
+     * "caller_runs" (default) handles it in the NIO thread, which slows
+     * down reading from the clients, "reject" fails its requests right
+     * away.
+     */
+    public static final ExecutionStage.RejectPolicy WORKER_REJECT_POLICY =
+            ExecutionStage.RejectPolicy.valueOf(System.getProperty(
+                    "mydb.workerReject", "caller_runs").toUpperCase());
+
+    /**
+     * The number of rows of a SELECT the database is asked for at a time;
+     * see {@link StorageEngine#executePagedAsync}.
+     */
+    public static final int PAGE_ROWS = Integer.getInteger("mydb.pageRows",
+            1000);
+
+    /**
+     * A page of rows sent to a client is cut once its rows reach this many
+     * bytes, so that a large result never makes a large message.
+     */
+    public static final int PAGE_BYTES = Integer.getInteger("mydb.pageBytes",
+            64 * 1024);
+
+    static final String OVERLOADED = "Server overloaded";
+
+    private static final String EXECUTED = "Executed the request";
+
+    final String keyspace;
+    final StorageEngine storage;
+    final ExecutionStage workers;
+    protected final Metrics metrics;
+    protected final Tracer tracer;
+    private final Timer requests;
+    private final Timer queue;
+    private final Meter errors;
+
+    private final ConcurrentHashMap<InetSocketAddress, Connection> connections =
+            new ConcurrentHashMap<InetSocketAddress, Connection>();
+
     public MyDBSingleServer(InetSocketAddress isa, InetSocketAddress isaDB,
                             String keyspace) throws IOException {
         super(isa, isaDB, keyspace);
-        cluster = Cluster.builder().addContactPoint("127.0.0.1").build();
-		session = cluster.connect("demo");
-        //session.execute("create table if not exists users (lastname text, age int, city text, email text, firstname text, PRIMARY KEY (lastname))");
+        this.keyspace = keyspace;
+        metrics = createMetrics(keyspace);
+        requests = metrics.getRegistry().timer("requests");
+        queue = metrics.getRegistry().timer("queue");
+        errors = metrics.getRegistry().meter("errors");
+        tracer = new Tracer(keyspace);
+        storage = new TimedStorageEngine(createStorageEngine(isaDB, keyspace),
+                metrics.getRegistry().timer("execute"));
+        workers = new ExecutionStage("mydb-worker-" + isa.getPort(),
+                WORKER_MODE, WORKERS, WORKER_QUEUE, WORKER_REJECT_POLICY);
+        // the transport's own demultiplexer hands messages to a pool of
+        // threads, which may reorder those of a connection; this one, ahead
+        // of it, hands them on from the selector thread in the order the
+        // connection delivered them, and the workers keep that order
+        clientMessenger.precedePacketDemultiplexer(new
+                AbstractBytePacketDemultiplexer() {
+            @Override
+            public boolean handleMessage(byte[] bytes, NIOHeader header) {
+                handleMessageFromClient(bytes, header);
+                return true;
+            }
+
+            @Override
+            public boolean isOrderPreserving(byte[] message) {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * @return the engine selected by {@link #STORAGE}
+     */
+    protected StorageEngine createStorageEngine(InetSocketAddress isaDB, String
+            keyspace) {
+        if (STORAGE.equals("memory")) return new InMemoryStorageEngine(keyspace);
+        return new CassandraStorageEngine(isaDB, keyspace);
+    }
+
+    /**
+     * @return the in-flight window of each client connection, {@link
+     * #MAX_IN_FLIGHT_PER_CONNECTION} by default
+     */
+    protected int maxInFlightPerConnection() {
+        return MAX_IN_FLIGHT_PER_CONNECTION;
+    }
+
+    /**
+     * @return metrics named after the keyspace and exported as set by the
+     * mydb.metrics.* properties
+     */
+    protected Metrics createMetrics(String keyspace) {
+        return new Metrics(keyspace);
+    }
 
-		// Insert one record into the users table
-		//session.execute("INSERT INTO users (lastname, age, city, email, firstname) VALUES ('Jones', 35, 'Austin', 'bob@example.com', 'Bob')");
+    public Metrics getMetrics() {
+        return metrics;
+    }
 
+    public Tracer getTracer() {
+        return tracer;
     }
-    protected void handleMessageFromClient(byte[] bytes, NIOHeader header) {
-        // simple echo server
+
+    /**
+     * @return the number of clients with statements in flight or waiting
+     */
+    public int getConnections() {
+        return connections.size();
+    }
+
+    /**
+     * Requests arrive either as binary {@link Envelope}s from
+     * {@link client.MyDBClient} or as plain text, optionally prefixed with a
+     * legacy "Request-N:" header, from {@link client.Client#send}. Replies
+     * use the same format as the request. The requests of a
+     * {@link Envelope#BATCH} are executed individually and answered together
+     * in one batch once all of them have completed.
+     *
+     * Messages are handled by the {@link #workers}, those from the same
+     * client connection one at a time in arrival order; if the workers are
+     * overloaded the message's requests fail with {@link #OVERLOADED}.
+     */
+    protected void handleMessageFromClient(final byte[] bytes, final NIOHeader
+            header) {
+        final long received = System.nanoTime();
+        boolean accepted = workers.execute(header.sndr, new Runnable() {
+            @Override
+            public void run() {
+                queue.update(System.nanoTime() - received, TimeUnit
+                        .NANOSECONDS);
+                handleMessage(bytes, header, received, false);
+            }
+        });
+        if (!accepted) handleMessage(bytes, header, received, true);
+    }
+
+    private void handleMessage(byte[] bytes, NIOHeader header, long received,
+                               boolean overloaded) {
+        if (!Envelope.isEnvelope(bytes, 0)) {
+            PendingStatement stmt = parseText(bytes, header.sndr, received);
+            if (overloaded) reply(stmt, false, OVERLOADED);
+            else handleRequest(stmt);
+            return;
+        }
+        Envelope envelope = new Envelope();
+        if (!envelope.wrap(bytes, 0)) {
+            log.log(Level.WARNING, "{0} rejecting malformed envelope from " +
+                    "{1}", new Object[]{this.clientMessenger
+                    .getListeningSocketAddress(), header.sndr});
+            // the id is answered if it could be read, so that the request
+            // fails rather than times out; ids are positive, so a reply to
+            // 0 matches no request
+            reply(new PendingStatement(header.sndr, Math.max(envelope.id(),
+                    0), true, "", null, received, 0), false, "Malformed " +
+                    "envelope");
+            return;
+        }
+        if (envelope.opcode() == Envelope.REQUEST)
+            handleRequest(envelope, header.sndr, received, null, overloaded);
+        else if (envelope.opcode() == Envelope.BATCH) {
+            Envelope member = new Envelope();
+            int count = 0;
+            for (int pos = envelope.payloadOffset(); member.wrapMember
+                    (envelope, pos); pos = member.end())
+                count++;
+            BatchReply batch = new BatchReply(header.sndr, count);
+            for (int pos = envelope.payloadOffset(); member.wrapMember
+                    (envelope, pos); pos = member.end())
+                handleRequest(member, header.sndr, received, batch,
+                        overloaded);
+        } else
+            log.log(Level.WARNING, "{0} dropping malformed envelope from " +
+                    "{1}", new Object[]{this.clientMessenger
+                    .getListeningSocketAddress(), header.sndr});
+    }
+
+    private void handleRequest(Envelope envelope, InetSocketAddress sndr, long
+            received, BatchReply batch, boolean overloaded) {
+        PendingStatement stmt = new PendingStatement(sndr, envelope.id(), true,
+                envelope.payloadString(), batch, received, envelope.traceId());
+        tracer.record(stmt.trace, Tracer.Event.SERVER_RECEIVE, received);
+        if (envelope.opcode() != Envelope.REQUEST)
+            reply(stmt, false, "Unexpected opcode " + envelope.opcode());
+        else if (envelope.hasKeyspace() && !envelope.keyspaceEquals
+                (keyspace))
+            reply(stmt, false, "Unknown keyspace " + envelope.keyspace());
+        else if (overloaded)
+            reply(stmt, false, OVERLOADED);
+        else
+            handleRequest(stmt);
+    }
+
+    /**
+     * Executes a client statement and replies to it. Subclasses may instead
+     * coordinate the statement with other servers and reply with
+     * {@link #complete(PendingStatement, Throwable)} later.
+     */
+    protected void handleRequest(PendingStatement stmt) {
+        if (ASYNC_EXECUTION) {
+            submit(stmt);
+            return;
+        }
+        tracer.record(stmt.trace, Tracer.Event.DB_START);
         try {
-            String x = new String(bytes, SingleServer.DEFAULT_ENCODING);
-           // System.out.println("line 36 of DBSS: "+x);
-
-            String[] parts = x.split(":");
-            String[] idParts = parts[0].split("-");
-
-            // Extract the numeric part of the requestId
-            //System.out.println("LINE 42  "+parts[0]);
-            int requestId = 0;
-            String requestContent;
-            if(parts.length == 2){
-                requestId = Integer.parseInt(idParts[1]);
-                requestContent = parts[1];
-            }else{
-                requestId = 0;
-                requestContent = parts[0];
+            if (returnsRows(stmt)) {
+                int index = 0;
+                StorageEngine.Page page = Futures.getUnchecked(storage
+                        .executePagedAsync(stmt.cql, PAGE_ROWS));
+                for (; !page.last(); page = Futures.getUnchecked(page.next()))
+                    if ((index = sendRows(stmt, index, page)) < 0) return;
+                tracer.record(stmt.trace, Tracer.Event.DB_END);
+                sendRows(stmt, index, page);
+                return;
             }
-            
+            storage.execute(stmt.cql);
+            tracer.record(stmt.trace, Tracer.Event.DB_END);
+            reply(stmt, true, EXECUTED);
+        } catch (RuntimeException e) {
+            tracer.record(stmt.trace, Tracer.Event.DB_END);
+            reply(stmt, false, "Failed to execute the request: " + e
+                    .getMessage());
+        }
+    }
 
-            //System.out.println("Before execution: " + requestId + " and " + requestContent);
-            ResultSet results = session.execute(requestContent);
-            // for (Row row : results) {
-            //     System.out.format("%s %d\n", row.getString("firstname"),
-            //             row.getInt("age"));
-            // }
-            log.log(Level.INFO, "line 50: Overrided function {0} received message from {1}", new Object[]
-                    {this.clientMessenger.getListeningSocketAddress(), header.sndr});
-            String resp = requestId+":"+"Executed the request";
+    /**
+     * Parses "Request-N:cql" or plain "cql"; only the first colon ends the
+     * header, so the statement itself may contain colons.
+     */
+    private static PendingStatement parseText(byte[] bytes, InetSocketAddress
+            sndr, long received) {
+        String text;
+        try {
+            text = new String(bytes, SingleServer.DEFAULT_ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // ISO-8859-1 always exists
+        }
+        int colon = text.indexOf(':');
+        if (text.startsWith(LEGACY_REQUEST_PREFIX) && colon > 0)
+            try {
+                return new PendingStatement(sndr, Long.parseLong(text.substring
+                        (LEGACY_REQUEST_PREFIX.length(), colon)), false, text
+                        .substring(colon + 1), null, received, 0);
+            } catch (NumberFormatException e) {
+                // not a header after all
+            }
+        return new PendingStatement(sndr, 0, false, text, null, received, 0);
+    }
+
+    /**
+     * @return true if the statement is a SELECT from a client that takes
+     * its rows in {@link Envelope#ROWS} pages
+     */
+    private static boolean returnsRows(PendingStatement stmt) {
+        String cql = stmt.cql;
+        int i = 0;
+        while (i < cql.length() && Character.isWhitespace(cql.charAt(i))) i++;
+        return stmt.framed && cql.regionMatches(true, i, "select", 0, 6) &&
+                (i + 6 == cql.length() || !Character.isLetterOrDigit(cql
+                        .charAt(i + 6)));
+    }
 
-            byte[] b = resp.getBytes();
+    /**
+     * Sends a page of rows from the database as one or more {@link
+     * Envelope#ROWS} pages of at most {@link #PAGE_BYTES} each, or at least
+     * one row. The last page of the result is the statement's reply.
+     *
+     * @param index the index of the first page to send
+     * @return the index of the next page to send, or -1 if a page could not
+     * be sent, so that the rest need not be fetched
+     */
+    private int sendRows(PendingStatement stmt, int index, StorageEngine.Page
+            page) {
+        boolean last = page.last();
+        List<byte[]> rows = new ArrayList<byte[]>();
+        int bytes = 0;
+        for (String row : page.rows()) {
+            byte[] utf8 = row.getBytes(StandardCharsets.UTF_8);
+            if (bytes + utf8.length > PAGE_BYTES && !rows.isEmpty()) {
+                if (!send(stmt, Envelope.encodeRows(stmt.requestId, index++,
+                        true, rows, bytes)))
+                    return -1;
+                rows.clear();
+                bytes = 0;
+            }
+            rows.add(utf8);
+            bytes += utf8.length;
+        }
+        if (last)
+            reply(stmt, true, Envelope.encodeRows(stmt.requestId, index++,
+                    false, rows, bytes));
+        else if (!rows.isEmpty() && !send(stmt, Envelope.encodeRows(stmt
+                .requestId, index++, true, rows, bytes)))
+            return -1;
+        return index;
+    }
 
-            this.clientMessenger.send(header.sndr, b);
+    protected void reply(PendingStatement stmt, boolean success, String
+            response) {
+        reply(stmt, success, stmt.framed ? Envelope.encode(success ? Envelope
+                .RESPONSE : Envelope.ERROR, 0, stmt.requestId, null, response)
+                : (stmt.requestId + ":" + response).getBytes());
+    }
+
+    /**
+     * Sends the statement's reply, in its batch if it came in one.
+     */
+    private void reply(PendingStatement stmt, boolean success, byte[] bytes) {
+        requests.update(System.nanoTime() - stmt.received, TimeUnit
+                .NANOSECONDS);
+        if (!success) errors.mark();
+        // or queued in its batch
+        tracer.record(stmt.trace, Tracer.Event.REPLY_SENT);
+        if (stmt.batch != null)
+            for (byte[] batch : stmt.batch.add(bytes)) send(stmt, batch);
+        else
+            send(stmt, bytes);
+    }
+
+    /**
+     * Sends a message to the statement's client right away, e.g., a page of
+     * its rows that is not the last.
+     *
+     * @return false if the messenger did not take the message, e.g., as the
+     * client is gone, in which case the client's statements still waiting
+     * for an in-flight slot are dropped
+     */
+    private boolean send(PendingStatement stmt, byte[] bytes) {
+        int written;
+        try {
+            // -1 if unreachable, 0 if dropped as the client's queue is full
+            written = this.clientMessenger.send(stmt.sndr, bytes);
         } catch (IOException e) {
-            System.out.println("Failed: Line 61 ");
-            e.printStackTrace();
+            log.log(Level.WARNING, "{0} unable to reply to {1}: {2}", new
+                    Object[]{this.clientMessenger.getListeningSocketAddress(),
+                    stmt.sndr, e});
+            written = -1;
         }
+        if (written > 0) return true;
+        Connection conn = connections.get(stmt.sndr);
+        int dropped = conn == null ? 0 : conn.dropWaiting();
+        log.log(Level.WARNING, "{0} unable to reply to {1}, dropping {2} " +
+                "waiting statements", new Object[]{this.clientMessenger
+                .getListeningSocketAddress(), stmt.sndr, dropped});
+        return false;
     }
-}
 
+    /**
+     * Hands the statement to the connection's in-flight window; it is
+     * executed right away if the window has room, else queued behind it.
+     */
+    private void submit(PendingStatement stmt) {
+        while (true) {
+            Connection conn = connections.get(stmt.sndr);
+            if (conn == null) {
+                Connection created = new Connection(stmt.sndr,
+                        maxInFlightPerConnection());
+                conn = connections.putIfAbsent(stmt.sndr, created);
+                if (conn == null) conn = created;
+            }
+            PendingStatement next = conn.admit(stmt);
+            if (next == Connection.RETIRED) {
+                // idle and being removed; the client gets a new one
+                connections.remove(stmt.sndr, conn);
+                continue;
+            }
+            if (next != null) executeAsync(conn, next);
+            return;
+        }
+    }
+
+    private void executeAsync(final Connection conn, final PendingStatement stmt) {
+        ListenableFuture<Iterable<String>> future;
+        tracer.record(stmt.trace, Tracer.Event.DB_START);
+        if (returnsRows(stmt)) {
+            try {
+                stream(conn, stmt, storage.executePagedAsync(stmt.cql,
+                        PAGE_ROWS), 0);
+            } catch (RuntimeException e) {
+                complete(conn, stmt, e);
+            }
+            return;
+        }
+        try {
+            future = storage.executeAsync(stmt.cql);
+        } catch (RuntimeException e) {
+            // e.g., a syntax error detected while building the request
+            complete(conn, stmt, e);
+            return;
+        }
+        Futures.addCallback(future, new FutureCallback<Iterable<String>>() {
+            @Override
+            public void onSuccess(Iterable<String> result) {
+                complete(conn, stmt, null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                complete(conn, stmt, t);
+            }
+        });
+    }
+
+    /**
+     * Sends each page of rows once it is fetched and only then fetches the
+     * next; the statement holds its in-flight slot until the last page.
+     *
+     * @param index the index of the first page to send
+     */
+    private void stream(final Connection conn, final PendingStatement stmt,
+                        ListenableFuture<StorageEngine.Page> future, final
+                        int index) {
+        Futures.addCallback(future, new FutureCallback<StorageEngine.Page>() {
+            @Override
+            public void onSuccess(StorageEngine.Page page) {
+                if (!page.last()) {
+                    int next = sendRows(stmt, index, page);
+                    if (next < 0) {
+                        release(conn);
+                        return;
+                    }
+                    try {
+                        stream(conn, stmt, page.next(), next);
+                    } catch (RuntimeException e) {
+                        complete(conn, stmt, e);
+                    }
+                    return;
+                }
+                tracer.record(stmt.trace, Tracer.Event.DB_END);
+                sendRows(stmt, index, page);
+                release(conn);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                complete(conn, stmt, t);
+            }
+        });
+    }
+
+    private void complete(Connection conn, PendingStatement stmt, Throwable error) {
+        tracer.record(stmt.trace, Tracer.Event.DB_END);
+        complete(stmt, error);
+        release(conn);
+    }
+
+    /**
+     * Frees the statement's in-flight slot for the next one waiting, and
+     * forgets the connection once it is idle.
+     */
+    private void release(Connection conn) {
+        PendingStatement next = conn.release();
+        if (next == Connection.RETIRED) connections.remove(conn.sndr, conn);
+        else if (next != null) executeAsync(conn, next);
+    }
+
+    /**
+     * Replies to a statement with the outcome of its execution.
+     *
+     * @param error why the statement failed, or null if it succeeded
+     */
+    protected void complete(PendingStatement stmt, Throwable error) {
+        if (error == null)
+            reply(stmt, true, EXECUTED);
+        else {
+            log.log(Level.WARNING, "{0} failed to execute [{1}]: {2}",
+                    new Object[]{this.clientMessenger
+                            .getListeningSocketAddress(), stmt.cql, error});
+            reply(stmt, false, "Failed to execute the request: " + error
+                    .getMessage());
+        }
+    }
+
+    public void close() {
+        super.close();
+        log.log(Level.INFO, "{0} closing with {1}", new Object[]{this
+                .clientMessenger.getListeningSocketAddress(), storage});
+        workers.close();
+        storage.close();
+        metrics.close();
+        try {
+            tracer.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "{0} unable to write its traces: {1}", new
+                    Object[]{keyspace, e});
+        }
+    }
+
+    /**
+     * A client statement waiting for or undergoing execution.
+     */
+    protected static class PendingStatement {
+        final InetSocketAddress sndr;
+        final long requestId;
+        // whether the request came in an envelope and expects one back
+        final boolean framed;
+        final String cql;
+        // the client batch this request arrived in, if any
+        final BatchReply batch;
+        // System.nanoTime() when the request's message was received
+        final long received;
+        // the request's trace id, 0 if not traced
+        final long trace;
+
+        PendingStatement(InetSocketAddress sndr, long requestId, boolean
+                framed, String cql, BatchReply batch, long received, long
+                trace) {
+            this.sndr = sndr;
+            this.requestId = requestId;
+            this.framed = framed;
+            this.cql = cql;
+            this.batch = batch;
+            this.received = received;
+            this.trace = trace;
+        }
+    }
+
+    /**
+     * Collects the responses to the requests of one client batch. They are
+     * sent together once all members have answered, except that responses
+     * that together exceed {@link #PAGE_BYTES}, such as the last pages of
+     * several large SELECTs, are sent in several batches.
+     */
+    private static class BatchReply {
+        final InetSocketAddress sndr;
+        private final List<byte[]> responses;
+        private final int expected;
+        private int answered = 0;
+        private int bytes = 0;
+
+        BatchReply(InetSocketAddress sndr, int expected) {
+            this.sndr = sndr;
+            this.expected = expected;
+            this.responses = new ArrayList<byte[]>(expected);
+        }
+
+        /**
+         * @return the batches to send now, none while members that fit
+         * with this one are still executing
+         */
+        synchronized List<byte[]> add(byte[] response) {
+            List<byte[]> batches = new ArrayList<byte[]>(1);
+            if (!responses.isEmpty() && bytes + response.length > PAGE_BYTES)
+                batches.add(take());
+            responses.add(response);
+            bytes += response.length;
+            if (++answered == expected) batches.add(take());
+            return batches;
+        }
+
+        private byte[] take() {
+            byte[] batch = Envelope.encodeBatch(responses, bytes);
+            responses.clear();
+            bytes = 0;
+            return batch;
+        }
+    }
+
+    /**
+     * Per-client bookkeeping of statements in flight at Cassandra and those
+     * waiting for a free slot. A connection with neither is retired and
+     * removed, so that clients that come and go leave nothing behind.
+     */
+    private static class Connection {
+        /**
+         * Returned in place of a statement by a retired connection.
+         */
+        static final PendingStatement RETIRED = new PendingStatement(null, 0,
+                false, "", null, 0, 0);
+
+        final InetSocketAddress sndr;
+        private final ArrayDeque<PendingStatement> waiting = new
+                ArrayDeque<PendingStatement>();
+        private final int maxInFlight;
+        private int inFlight = 0;
+        private boolean retired = false;
+
+        Connection(InetSocketAddress sndr, int maxInFlight) {
+            this.sndr = sndr;
+            this.maxInFlight = Math.max(1, maxInFlight);
+        }
+
+        /**
+         * @return the statement itself if it may be executed now, else null
+         * after queueing it, or {@link #RETIRED} if the connection was
+         * retired and the statement must go to a new one.
+         */
+        synchronized PendingStatement admit(PendingStatement stmt) {
+            if (retired) return RETIRED;
+            if (inFlight < maxInFlight) {
+                inFlight++;
+                return stmt;
+            }
+            waiting.add(stmt);
+            return null;
+        }
+
+        /**
+         * @return the next queued statement that takes over the freed slot,
+         * null if none is waiting, or {@link #RETIRED} if none is in flight
+         * either and the connection has been retired.
+         */
+        synchronized PendingStatement release() {
+            PendingStatement next = waiting.poll();
+            if (next != null) return next;
+            if (--inFlight > 0) return null;
+            retired = true;
+            return RETIRED;
+        }
+
+        /**
+         * Drops the statements waiting for a slot.
+         *
+         * @return how many were dropped
+         */
+        synchronized int dropWaiting() {
+            int dropped = waiting.size();
+            waiting.clear();
+            return dropped;
+        }
+    }
+}
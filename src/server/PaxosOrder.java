@@ -0,0 +1,285 @@
+package server;
+
+import edu.umass.cs.gigapaxos.PaxosManager;
+import edu.umass.cs.gigapaxos.interfaces.Replicable;
+import edu.umass.cs.gigapaxos.interfaces.Request;
+import edu.umass.cs.gigapaxos.paxospackets.RequestPacket;
+import edu.umass.cs.nio.JSONMessenger;
+import edu.umass.cs.nio.MessageNIOTransport;
+import edu.umass.cs.nio.SSLDataProcessingWorker;
+import edu.umass.cs.nio.interfaces.IntegerPacketType;
+import edu.umass.cs.nio.interfaces.NodeConfig;
+import edu.umass.cs.reconfiguration.reconfigurationutils
+        .RequestParseException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Total order broadcast through the Paxos implementation bundled with the
+ * transport library (gigapaxos). All servers are members of one Paxos
+ * group, and the server is its application ({@link Replicable}): the
+ * statements a server proposes are batched with others and agreed on by
+ * Paxos, and each server is handed the decisions one at a time in the same
+ * order, which it delivers as they come.
+ *
+ * Paxos talks over its own connections, on the server ports shifted by
+ * {@link #PORT_OFFSET}, rather than over the servers' {@link Transport},
+ * and keeps its log under {@link #LOG_DIR}. Its checkpoints carry the
+ * number of statements delivered and the database state once they are all
+ * applied ({@link State}), so that a replica restored from one, on restart
+ * or when it has fallen behind the others' logs, ends up with the same
+ * rows as those that executed the decisions.
+ *
+ * The Paxos log is kept in an embedded SQL database, so Apache Derby and
+ * c3p0 must be on the class path in this mode. Neither ships in lib/; the
+ * mode is unavailable without them ({@link #isAvailable}) and creating the
+ * order fails.
+ */
+public class PaxosOrder implements TotalOrder {
+    /**
+     * Added to a server's port to get the port Paxos listens on.
+     */
+    public static final int PORT_OFFSET = Integer.getInteger(
+            "mydb.paxos.portOffset", 1000);
+
+    /**
+     * The directory under which Paxos keeps its logs.
+     */
+    public static final String LOG_DIR = System.getProperty("mydb.paxos" +
+            ".logDir", "paxos_logs");
+
+    private static final String GROUP = "mydb";
+
+    // needed by the Paxos log
+    private static final String[] LOG_CLASSES = {"org.apache.derby.jdbc" +
+            ".EmbeddedDriver", "com.mchange.v2.c3p0.ComboPooledDataSource"};
+
+    private static final String DELIVERED = "delivered";
+    private static final String STATE = "state";
+
+    private static final Logger log = Logger.getLogger(PaxosOrder.class
+            .getName());
+
+    private final String myID;
+    private final JSONMessenger<String> messenger;
+    private final PaxosManager<String> paxos;
+
+    /**
+     * The application state that checkpoints carry.
+     */
+    public static interface State {
+        /**
+         * @return the statements that recreate the state once everything
+         * delivered up to seq is applied, which the call waits for
+         */
+        public List<String> take(long seq);
+
+        /**
+         * Waits until everything delivered up to applied is applied and
+         * replaces the state with one taken at seq.
+         */
+        public void install(long applied, long seq, List<String> statements);
+    }
+
+    /**
+     * @return whether the classes the Paxos log needs are on the class path
+     */
+    public static boolean isAvailable() {
+        for (String name : LOG_CLASSES)
+            try {
+                Class.forName(name);
+            } catch (ClassNotFoundException e) {
+                return false;
+            }
+        return true;
+    }
+
+    /**
+     * @throws IOException if the mode is not available
+     */
+    public PaxosOrder(String myID, final NodeConfig<String> nodeConfig,
+                      Delivery delivery, State state) throws IOException {
+        if (!isAvailable())
+            throw new IOException("Paxos ordering needs Apache Derby and c3p0 " +
+                    "on the class path");
+        this.myID = myID;
+        this.messenger = new JSONMessenger<String>(new MessageNIOTransport
+                <String, JSONObject>(myID, new NodeConfig<String>() {
+            @Override
+            public boolean nodeExists(String id) {
+                return nodeConfig.nodeExists(id);
+            }
+
+            @Override
+            public InetAddress getNodeAddress(String id) {
+                return nodeConfig.getNodeAddress(id);
+            }
+
+            @Override
+            public InetAddress getBindAddress(String id) {
+                return nodeConfig.getBindAddress(id);
+            }
+
+            @Override
+            public int getNodePort(String id) {
+                return nodeConfig.getNodePort(id) + PORT_OFFSET;
+            }
+
+            @Override
+            public Set<String> getNodeIDs() {
+                return nodeConfig.getNodeIDs();
+            }
+
+            @Override
+            public String valueOf(String id) {
+                return nodeConfig.valueOf(id);
+            }
+        }, SSLDataProcessingWorker.SSL_MODES.CLEAR));
+        this.paxos = new PaxosManager<String>(myID, nodeConfig, messenger, new
+                Application(myID, delivery, state), LOG_DIR, false);
+        if (!paxos.createPaxosInstance(GROUP, new HashSet<String>(nodeConfig
+                .getNodeIDs()), null))
+            log.log(Level.INFO, "{0} resuming existing Paxos group {1}", new
+                    Object[]{myID, GROUP});
+    }
+
+    /**
+     * Orders all statements in one total order, whatever their domain and
+     * whether they commute.
+     */
+    @Override
+    public void propose(long tag, String cql, int domain, String commutes)
+            throws IOException {
+        if (paxos.propose(GROUP, new RequestPacket(myID + " " + tag + " " +
+                cql, false), null) == null)
+            throw new IOException("No Paxos group " + GROUP + " at " + myID);
+    }
+
+    @Override
+    public boolean handleMessage(byte[] bytes) {
+        return false;
+    }
+
+    /**
+     * Receives the decisions of the group; a decision's value is "origin
+     * tag cql".
+     */
+    public static class Application implements Replicable {
+        private final String myID;
+        private final Delivery delivery;
+        private final State state;
+        private long delivered = 0; // guarded by this
+
+        public Application(String myID, Delivery delivery, State state) {
+            this.myID = myID;
+            this.delivery = delivery;
+            this.state = state;
+        }
+
+        @Override
+        public boolean execute(Request request, boolean noReplyToClient) {
+            if (!(request instanceof RequestPacket)) return true;
+            String value = ((RequestPacket) request).getRequestValue();
+            if (value.equals(Request.NO_OP)) return true;
+            int space = value.indexOf(' ');
+            int space2 = value.indexOf(' ', space + 1);
+            if (space < 0 || space2 < 0) {
+                log.log(Level.WARNING, "{0} dropping malformed decision {1}",
+                        new Object[]{myID, value});
+                return true;
+            }
+            synchronized (this) {
+                delivery.deliver(++delivered, value.substring(0, space), Long
+                        .parseLong(value.substring(space + 1, space2)), value
+                        .substring(space2 + 1));
+            }
+            return true;
+        }
+
+        @Override
+        public boolean execute(Request request) {
+            return execute(request, false);
+        }
+
+        /**
+         * @return {"delivered": n, "state": [statements]}
+         */
+        @Override
+        public String checkpoint(String name) {
+            synchronized (this) {
+                try {
+                    return new JSONObject().put(DELIVERED, delivered).put
+                            (STATE, new JSONArray(state.take(delivered)))
+                            .toString();
+                } catch (JSONException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        /**
+         * A null or empty checkpoint is the initial state of a new group,
+         * which leaves the database as it is.
+         */
+        @Override
+        public boolean restore(String name, String checkpoint) {
+            synchronized (this) {
+                if (checkpoint == null || checkpoint.isEmpty()) {
+                    delivered = 0;
+                    return true;
+                }
+                try {
+                    JSONObject json = new JSONObject(checkpoint);
+                    long seq = json.getLong(DELIVERED);
+                    JSONArray array = json.getJSONArray(STATE);
+                    List<String> statements = new ArrayList<String>(array
+                            .length());
+                    for (int i = 0; i < array.length(); i++)
+                        statements.add(array.getString(i));
+                    state.install(delivered, seq, statements);
+                    delivered = seq;
+                    return true;
+                } catch (JSONException e) {
+                    log.log(Level.SEVERE, "{0} unable to restore checkpoint: " +
+                            "{1}", new Object[]{myID, e});
+                    return false;
+                }
+            }
+        }
+
+        @Override
+        public Request getRequest(String value) throws RequestParseException {
+            return new RequestPacket(value, false);
+        }
+
+        @Override
+        public Set<IntegerPacketType> getRequestTypes() {
+            return new HashSet<IntegerPacketType>();
+        }
+    }
+
+    /**
+     * Paxos restores its last checkpoint and delivers the decisions it
+     * logged after it again by itself.
+     */
+    @Override
+    public boolean resume(long seq) {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        paxos.close();
+        messenger.stop();
+    }
+}
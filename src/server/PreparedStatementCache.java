@@ -0,0 +1,244 @@
+package server;
+
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.SyntaxError;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executes raw CQL text as bound prepared statements. Statements are
+ * normalized into a {@link CqlShape}; the first statement of each shape is
+ * prepared and later statements of the same shape only bind their literals,
+ * so the coordinator does not have to re-parse them.
+ *
+ * Prepared statements are kept in a bounded LRU per keyspace. Statements
+ * without a shape, and shapes that Cassandra refuses to prepare, are
+ * executed as plain text. Any schema change (create, drop, alter) flushes
+ * the cache.
+ */
+public class PreparedStatementCache {
+    /**
+     * Maximum number of prepared statements kept per keyspace; 0 disables
+     * the cache.
+     */
+    public static final int DEFAULT_CAPACITY = Integer.getInteger(
+            "mydb.preparedCacheSize", 1024);
+
+    private static final Logger log = Logger.getLogger(PreparedStatementCache
+            .class.getName());
+
+    private final Session session;
+    private final int capacity;
+    private final CodecRegistry codecs;
+    private final ProtocolVersion protocolVersion;
+
+    private final Map<String, Map<String, ListenableFuture<PreparedStatement>>>
+            keyspaces = new HashMap<String, Map<String,
+            ListenableFuture<PreparedStatement>>>();
+    private final Set<String> unpreparable = new HashSet<String>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong unprepared = new AtomicLong();
+
+    public PreparedStatementCache(Session session) {
+        this(session, DEFAULT_CAPACITY);
+    }
+
+    public PreparedStatementCache(Session session, int capacity) {
+        this.session = session;
+        this.capacity = capacity;
+        this.codecs = session.getCluster().getConfiguration().getCodecRegistry();
+        this.protocolVersion = session.getCluster().getConfiguration()
+                .getProtocolOptions().getProtocolVersion();
+    }
+
+    /**
+     * @param cql the raw statement
+     * @return the future result of executing the statement, bound to a
+     * cached prepared statement whenever possible
+     */
+    public ListenableFuture<ResultSet> executeAsync(final String cql) {
+        return executeAsync(cql, 0);
+    }
+
+    /**
+     * @param fetchSize the number of rows the driver fetches at a time, or
+     *                  0 for its default
+     */
+    public ListenableFuture<ResultSet> executeAsync(final String cql, final
+            int fetchSize) {
+        return Futures.transform(statementFor(cql), new AsyncFunction<Statement,
+                ResultSet>() {
+            @Override
+            public ListenableFuture<ResultSet> apply(Statement statement) {
+                if (fetchSize > 0) statement.setFetchSize(fetchSize);
+                return session.executeAsync(statement);
+            }
+        });
+    }
+
+    /**
+     * @param cql the raw statement
+     * @return the statement to execute for cql: a bound statement if the
+     * shape is or can be prepared, else the raw text
+     */
+    public ListenableFuture<Statement> statementFor(final String cql) {
+        final CqlShape shape = capacity > 0 ? CqlShape.of(cql) : null;
+        if (shape == null) {
+            unprepared.incrementAndGet();
+            if (isSchemaChange(cql)) clear();
+            return Futures.<Statement>immediateFuture(new SimpleStatement(cql));
+        }
+
+        final ListenableFuture<PreparedStatement> prepared = lookup(shape);
+        if (prepared == null) {
+            unprepared.incrementAndGet();
+            return Futures.<Statement>immediateFuture(new SimpleStatement(cql));
+        }
+        return Futures.transform(prepared, new Function<PreparedStatement,
+                Statement>() {
+            @Override
+            public Statement apply(PreparedStatement ps) {
+                Statement bound = bind(ps, shape);
+                return bound != null ? bound : new SimpleStatement(cql);
+            }
+        });
+    }
+
+    /**
+     * Blocking variant of {@link #executeAsync(String)}.
+     */
+    public ResultSet execute(String cql) {
+        return Futures.getUnchecked(executeAsync(cql));
+    }
+
+    /**
+     * @return the pending or completed preparation of the shape, or null if
+     * the shape is known to be unpreparable
+     */
+    private ListenableFuture<PreparedStatement> lookup(final CqlShape shape) {
+        final String keyspace = session.getLoggedKeyspace();
+        synchronized (this) {
+            if (unpreparable.contains(shape.text)) return null;
+            Map<String, ListenableFuture<PreparedStatement>> lru = keyspace(keyspace);
+            ListenableFuture<PreparedStatement> prepared = lru.get(shape.text);
+            if (prepared != null) {
+                hits.incrementAndGet();
+                return prepared;
+            }
+            misses.incrementAndGet();
+            // cache the future itself so that concurrent misses of the same
+            // shape share a single preparation; a failed preparation
+            // completes with null so that callers fall back to raw text
+            prepared = Futures.withFallback(session.prepareAsync(shape.text),
+                    new FutureFallback<PreparedStatement>() {
+                        @Override
+                        public ListenableFuture<PreparedStatement> create
+                                (Throwable t) {
+                            forget(keyspace, shape, t);
+                            return Futures.immediateFuture(null);
+                        }
+                    });
+            if (!prepared.isDone() || Futures.getUnchecked(prepared) != null)
+                lru.put(shape.text, prepared);
+            return prepared;
+        }
+    }
+
+    private synchronized void forget(String keyspace, CqlShape shape,
+                                     Throwable t) {
+        keyspace(keyspace).remove(shape.text);
+        if (t instanceof SyntaxError) unpreparable.add(shape.text);
+        log.log(Level.FINE, "Unable to prepare [{0}]: {1}", new Object[]{shape
+                .text, t});
+    }
+
+    private Map<String, ListenableFuture<PreparedStatement>> keyspace(String
+                                                                          keyspace) {
+        Map<String, ListenableFuture<PreparedStatement>> lru = keyspaces.get
+                (keyspace);
+        if (lru == null) {
+            lru = new LinkedHashMap<String, ListenableFuture<PreparedStatement>>(
+                    16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String,
+                        ListenableFuture<PreparedStatement>> eldest) {
+                    return size() > capacity;
+                }
+            };
+            keyspaces.put(keyspace, lru);
+        }
+        return lru;
+    }
+
+    /**
+     * @return the statement with the shape's literals bound, or null if
+     * they do not fit the prepared statement's variables
+     */
+    private Statement bind(PreparedStatement ps, CqlShape shape) {
+        if (ps == null) return null;
+        ColumnDefinitions variables = ps.getVariables();
+        List<String> literals = shape.literals;
+        if (variables.size() != literals.size()) return null;
+        BoundStatement bound = ps.bind();
+        try {
+            for (int i = 0; i < literals.size(); i++) {
+                TypeCodec<Object> codec = codecs.codecFor(variables.getType(i));
+                bound.setBytesUnsafe(i, codec.serialize(codec.parse(literals
+                        .get(i)), protocolVersion));
+            }
+        } catch (RuntimeException e) {
+            // e.g., a literal that does not parse as the column's type; the
+            // raw text will produce the proper error message
+            return null;
+        }
+        return bound;
+    }
+
+    private static boolean isSchemaChange(String cql) {
+        String kind = CqlShape.firstKeyword(cql);
+        return "create".equals(kind) || "drop".equals(kind) || "alter".equals
+                (kind);
+    }
+
+    public synchronized void clear() {
+        keyspaces.clear();
+        unpreparable.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of statements executed as raw text because they
+     * could not be normalized or prepared
+     */
+    public long getUnprepared() {
+        return unprepared.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[hits=" + getHits() + ", " +
+                "misses=" + getMisses() + ", unprepared=" + getUnprepared() + "]";
+    }
+}
@@ -0,0 +1,359 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Total order broadcast through a sequencer. Every server forwards its
+ * clients' statements to the sequencer in a {@link Envelope#PROPOSE}; the
+ * sequencer stamps each with the next global sequence number and sends it
+ * back to all servers, itself included, as an {@link Envelope#ORDER}.
+ *
+ * Statements are ordered only within their domain. Along with the sequence
+ * number, the sequencer names in each order the previous statement of the
+ * same domain and the last barrier; a server delivers a statement once it
+ * has delivered those two, and a barrier once it has delivered everything
+ * numbered before it. Domains are hashed into DOMAIN_BUCKETS buckets, so
+ * unrelated domains sharing a bucket are still ordered, which is merely
+ * conservative.
+ *
+ * Consecutive statements of a bucket with the same commutativity class
+ * form a group whose members need not be ordered among themselves: each
+ * names the group's first statement as its predecessor, and the statement
+ * after the group waits until all of the group's members, whose number it
+ * is told, have been delivered. Any other statement forms a group of one.
+ *
+ * Since the transport does not guarantee FIFO delivery, orders may arrive
+ * out of sequence. Each server holds those whose predecessors are missing
+ * and delivers them as soon as the predecessors arrive, so every domain is
+ * delivered in the same sequence at all servers without any waiting on
+ * timers, while a missing order holds up only its own domain.
+ *
+ * The sequencer is the first server in sorted order of the node ids. It is
+ * a single point of failure, and a lost message stalls delivery at the
+ * servers that miss it; the transport's TCP connections are relied upon
+ * not to lose messages.
+ */
+public class SequencerOrder implements TotalOrder {
+    private static final Logger log = Logger.getLogger(SequencerOrder.class
+            .getName());
+
+    private static final int DOMAIN_BUCKETS = 4096;
+
+    private final String myID;
+    private final String sequencer;
+    private final List<String> others = new ArrayList<String>();
+    private final Transport transport;
+    private final Delivery delivery;
+
+    // sequencer only; guarded by the sequencing lock
+    private final Object sequencing = new Object();
+    private long nextSeq = 1;
+    // the first statement, size and commutativity class of the last group
+    private final long[] group = new long[DOMAIN_BUCKETS];
+    private final long[] groupSize = new long[DOMAIN_BUCKETS];
+    private final String[] groupClass = new String[DOMAIN_BUCKETS];
+    private long lastBarrier = 0;
+
+    // guarded by this
+    private long delivered = 0; // everything up to here has been delivered
+    private final HashSet<Long> deliveredAbove = new HashSet<Long>();
+    private final HashMap<Long, Order> held = new HashMap<Long, Order>();
+    // the number of members delivered of each group that may be waited for
+    private final HashMap<Long, Long> groupDelivered = new HashMap<Long,
+            Long>();
+    // held orders by the sequence number each is waiting for
+    private final HashMap<Long, List<Order>> waiting = new HashMap<Long,
+            List<Order>>();
+    private final Envelope order = new Envelope();
+    private final Envelope proposal = new Envelope();
+
+    /**
+     * A received order and the statements it must be delivered after.
+     */
+    private static class Order {
+        final long seq;
+        final byte[] bytes;
+        // the first statement of the previous group in the same domain, or of
+        // its own group if it joins one, or 0
+        final long previous;
+        // the number of members of the previous group, or 0 if it joins a
+        // group and only waits for its first statement
+        final long wait;
+        final long group; // the first statement of its group
+        final long barrier; // the last barrier before it, or 0
+        final boolean isBarrier;
+
+        Order(long seq, byte[] bytes, long previous, long wait, long barrier,
+              boolean isBarrier) {
+            this.seq = seq;
+            this.bytes = bytes;
+            this.previous = previous;
+            this.wait = wait;
+            this.group = wait == 0 && previous != 0 ? previous : seq;
+            this.barrier = barrier;
+            this.isBarrier = isBarrier;
+        }
+    }
+
+    public SequencerOrder(String myID, Set<String> nodes, Transport
+            transport, Delivery delivery) {
+        this.myID = myID;
+        TreeSet<String> sorted = new TreeSet<String>(nodes);
+        this.sequencer = sorted.first();
+        for (String node : sorted)
+            if (!node.equals(myID)) others.add(node);
+        this.transport = transport;
+        this.delivery = delivery;
+    }
+
+    @Override
+    public void propose(long tag, String cql, int domain, String commutes)
+            throws IOException {
+        propose(tag, cql, domain, commutes, 0);
+    }
+
+    /**
+     * The trace id goes in the header of the proposal, which the order
+     * carries to every server.
+     */
+    @Override
+    public void propose(long tag, String cql, int domain, String commutes,
+                        long trace) throws IOException {
+        long domainField = domain < 0 ? 0 : domain + 1L;
+        int commutesLength = commutes == null || domain < 0 ? 0 : Envelope
+                .utf8Length(commutes);
+        int payloadLength = Envelope.varLongSize(domainField) + Envelope
+                .varLongSize(commutesLength) + commutesLength + Envelope
+                .utf8Length(cql);
+        byte[] bytes = new byte[Envelope.size(tag, trace, myID.length(),
+                payloadLength)];
+        int pos = Envelope.writeHeader(bytes, 0, Envelope.PROPOSE, 0, tag,
+                trace, myID, payloadLength);
+        pos = Envelope.writeVarLong(bytes, pos, domainField);
+        pos = Envelope.writeVarLong(bytes, pos, commutesLength);
+        if (commutesLength > 0) pos = Envelope.writeUtf8(commutes, bytes, pos);
+        Envelope.writeUtf8(cql, bytes, pos);
+        if (isSequencer()) sequence(bytes);
+        else transport.send(sequencer, bytes);
+    }
+
+    @Override
+    public boolean handleMessage(byte[] bytes) {
+        Envelope envelope = new Envelope();
+        if (!envelope.wrap(bytes, 0)) return false;
+        if (envelope.opcode() == Envelope.PROPOSE) {
+            if (isSequencer()) sequence(bytes);
+            else log.log(Level.WARNING, "{0} is not the sequencer; dropping " +
+                    "proposal from {1}", new Object[]{myID, envelope.keyspace()});
+            return true;
+        }
+        if (envelope.opcode() == Envelope.ORDER) {
+            receive(envelope.id(), bytes);
+            return true;
+        }
+        return false;
+    }
+
+    private void sequence(byte[] propose) {
+        Envelope envelope = new Envelope();
+        long domainField = -1;
+        String commutes = null;
+        if (envelope.wrap(propose, 0)) {
+            int pos = envelope.payloadOffset();
+            domainField = Envelope.readVarLong(propose, pos);
+            pos += Envelope.varLongSize(domainField);
+            long commutesLength = domainField < 0 ? -1 : Envelope.readVarLong
+                    (propose, pos);
+            pos += Envelope.varLongSize(commutesLength);
+            if (commutesLength > 0 && pos + commutesLength <= envelope.end())
+                commutes = new String(propose, pos, (int) commutesLength,
+                        StandardCharsets.UTF_8);
+        }
+        boolean isBarrier = domainField <= 0;
+        long seq, previous = 0, wait = 0, barrier;
+        synchronized (sequencing) {
+            seq = nextSeq++;
+            barrier = lastBarrier;
+            if (isBarrier) {
+                lastBarrier = seq;
+            } else {
+                int bucket = (int) ((domainField - 1) % DOMAIN_BUCKETS);
+                previous = group[bucket];
+                if (commutes != null && previous != 0 && commutes.equals
+                        (groupClass[bucket])) {
+                    groupSize[bucket]++;
+                } else {
+                    wait = groupSize[bucket];
+                    group[bucket] = seq;
+                    groupSize[bucket] = 1;
+                    groupClass[bucket] = commutes;
+                }
+            }
+        }
+        int payloadLength = Envelope.varLongSize(previous) + Envelope
+                .varLongSize(barrier) + Envelope.varLongSize(wait) + propose
+                .length;
+        byte[] bytes = new byte[Envelope.size(seq, 0, payloadLength)];
+        int pos = Envelope.writeHeader(bytes, Envelope.ORDER, isBarrier ?
+                Envelope.FLAG_BARRIER : 0, seq, null, payloadLength);
+        pos = Envelope.writeVarLong(bytes, pos, previous);
+        pos = Envelope.writeVarLong(bytes, pos, barrier);
+        pos = Envelope.writeVarLong(bytes, pos, wait);
+        System.arraycopy(propose, 0, bytes, pos, propose.length);
+        for (String node : others)
+            try {
+                transport.send(node, bytes);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "{0} unable to send order to {1}: {2}",
+                        new Object[]{myID, node, e});
+            }
+        receive(seq, bytes);
+    }
+
+    private synchronized void receive(long seq, byte[] bytes) {
+        if (isDelivered(seq) || held.containsKey(seq)) return; // duplicate
+        if (!order.wrap(bytes, 0)) return;
+        int pos = order.payloadOffset();
+        long previous = Envelope.readVarLong(bytes, pos);
+        pos += Envelope.varLongSize(previous);
+        long barrier = previous < 0 ? -1 : Envelope.readVarLong(bytes, pos);
+        pos += Envelope.varLongSize(barrier);
+        long wait = barrier < 0 ? -1 : Envelope.readVarLong(bytes, pos);
+        if (wait < 0) {
+            log.log(Level.SEVERE, "{0} skipping malformed order {1}", new
+                    Object[]{myID, seq});
+            return;
+        }
+        ArrayDeque<Order> ready = new ArrayDeque<Order>();
+        ready.add(new Order(seq, bytes, previous, wait, barrier, (order.flags()
+                & Envelope.FLAG_BARRIER) != 0));
+        for (Order next; (next = ready.poll()) != null; ) {
+            long missing = missing(next);
+            if (missing != 0) {
+                held.put(next.seq, next);
+                List<Order> list = waiting.get(missing);
+                if (list == null) waiting.put(missing, list = new
+                        ArrayList<Order>(1));
+                list.add(next);
+                continue;
+            }
+            held.remove(next.seq);
+            deliver(next.seq, next.bytes);
+            deliveredAbove.add(next.seq);
+            while (deliveredAbove.remove(delivered + 1)) delivered++;
+            // nothing else waits for the members of the previous group
+            if (next.wait > 0) groupDelivered.remove(next.previous);
+            if (!next.isBarrier) {
+                Long members = groupDelivered.get(next.group);
+                groupDelivered.put(next.group, members == null ? 1 : members +
+                        1);
+            }
+            List<Order> woken = waiting.remove(next.seq);
+            if (woken != null) ready.addAll(woken);
+            if (next.group != next.seq && (woken = waiting.remove(next.group))
+                    != null)
+                ready.addAll(woken);
+        }
+    }
+
+    /**
+     * Numbering goes on after seq, and everything up to it counts as
+     * delivered and, at the sequencer, as a barrier. Orders received before
+     * the call may wait for earlier statements that will not come, so they
+     * are received again.
+     */
+    @Override
+    public synchronized boolean resume(long seq) {
+        synchronized (sequencing) {
+            nextSeq = Math.max(nextSeq, seq + 1);
+            lastBarrier = Math.max(lastBarrier, seq);
+        }
+        delivered = Math.max(delivered, seq);
+        for (Iterator<Long> it = deliveredAbove.iterator(); it.hasNext(); )
+            if (it.next() <= delivered) it.remove();
+        while (deliveredAbove.remove(delivered + 1)) delivered++;
+        List<Order> retry = new ArrayList<Order>(new TreeMap<Long, Order>
+                (held).values());
+        held.clear();
+        waiting.clear();
+        for (Order o : retry) receive(o.seq, o.bytes);
+        return true;
+    }
+
+    private boolean isDelivered(long seq) {
+        return seq <= delivered || deliveredAbove.contains(seq);
+    }
+
+    /**
+     * @return a sequence number that o must wait for, or 0 if o can be
+     * delivered now
+     */
+    private long missing(Order o) {
+        if (o.wait == 0 && !isDelivered(o.previous)) return o.previous;
+        if (o.wait > 0) {
+            Long members = groupDelivered.get(o.previous);
+            if (members == null || members < o.wait) return o.previous;
+        }
+        if (!isDelivered(o.barrier)) return o.barrier;
+        if (o.isBarrier && delivered < o.seq - 1) return delivered + 1;
+        return 0;
+    }
+
+    private void deliver(long seq, byte[] bytes) {
+        if (!order.wrap(bytes, 0)) return;
+        int pos = order.payloadOffset();
+        for (int i = 0; i < 3; i++)
+            pos += Envelope.varLongSize(Envelope.readVarLong(bytes, pos));
+        if (!proposal.wrapMember(order, pos)) {
+            log.log(Level.SEVERE, "{0} skipping malformed order {1}", new
+                    Object[]{myID, seq});
+            return;
+        }
+        pos = proposal.payloadOffset();
+        pos += Envelope.varLongSize(Envelope.readVarLong(bytes, pos));
+        long commutesLength = Envelope.readVarLong(bytes, pos);
+        pos += Envelope.varLongSize(commutesLength) + (int) commutesLength;
+        delivery.deliver(seq, proposal.keyspace(), proposal.id(), new String
+                (bytes, pos, proposal.end() - pos, StandardCharsets.UTF_8),
+                proposal.traceId());
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public boolean isSequencer() {
+        return sequencer.equals(myID);
+    }
+
+    public String getSequencer() {
+        return sequencer;
+    }
+
+    /**
+     * @return the number of orders received but waiting for a missing one
+     */
+    public synchronized int getReorderBacklog() {
+        return held.size();
+    }
+
+    /**
+     * @return the highest sequence number up to which every statement has
+     * been delivered
+     */
+    public synchronized long getDelivered() {
+        return delivered;
+    }
+}
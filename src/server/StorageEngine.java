@@ -0,0 +1,149 @@
+package server;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The database behind a server. Statements are CQL text; results are the
+ * rows returned, each rendered the way the Cassandra driver prints a row,
+ * e.g., "Row[1, [4, 5]]", and are empty for statements that return none.
+ *
+ * Implementations must be safe for concurrent use. Statements that are
+ * outstanding at the same time may take effect in any order; a caller that
+ * needs an order waits for one to complete before submitting the next, as
+ * {@link ApplyPipeline} does for conflicting statements.
+ */
+public interface StorageEngine {
+    /**
+     * @return the future rows returned by the statement; failed if the
+     * statement could not be executed
+     */
+    public ListenableFuture<Iterable<String>> executeAsync(String cql);
+
+    /**
+     * Executes the statement and waits for it.
+     *
+     * @throws RuntimeException if the statement could not be executed
+     */
+    public Iterable<String> execute(String cql);
+
+    /**
+     * The rows returned by a statement, a page at a time.
+     */
+    public static interface Page {
+        /**
+         * @return this page's rows, possibly none even if more follow
+         */
+        public List<String> rows();
+
+        /**
+         * @return true if no rows follow this page's
+         */
+        public boolean last();
+
+        /**
+         * Fetches the next page; only for a page that is not the last.
+         */
+        public ListenableFuture<Page> next();
+    }
+
+    /**
+     * Like {@link #executeAsync} but hands out the rows a page at a time,
+     * so that a large result need not be held in memory at once. This
+     * implementation pages through the rows of {@link #executeAsync}, which
+     * suits engines that hold their results in memory anyway; engines that
+     * fetch rows lazily should fetch them a page at a time instead.
+     *
+     * @param pageSize the maximum number of rows per page
+     * @return the future first page; failed if the statement could not be
+     * executed
+     */
+    public default ListenableFuture<Page> executePagedAsync(String cql, final
+            int pageSize) {
+        return Futures.transform(executeAsync(cql), new Function<Iterable
+                <String>, Page>() {
+            @Override
+            public Page apply(Iterable<String> rows) {
+                return new IteratorPage(rows.iterator(), pageSize);
+            }
+        });
+    }
+
+    /**
+     * A page of up to pageSize rows taken from an iterator.
+     */
+    static class IteratorPage implements Page {
+        private final Iterator<String> rows;
+        private final int pageSize;
+        private final List<String> page;
+
+        IteratorPage(Iterator<String> rows, int pageSize) {
+            this.rows = rows;
+            this.pageSize = pageSize;
+            this.page = new ArrayList<String>();
+            while (page.size() < pageSize && rows.hasNext())
+                page.add(rows.next());
+        }
+
+        @Override
+        public List<String> rows() {
+            return page;
+        }
+
+        @Override
+        public boolean last() {
+            return !rows.hasNext();
+        }
+
+        @Override
+        public ListenableFuture<Page> next() {
+            return Futures.<Page>immediateFuture(new IteratorPage(rows,
+                    pageSize));
+        }
+    }
+
+    /**
+     * @param keyspace null for the engine's own keyspace
+     * @return the names of the table's primary key columns, partition key
+     * first, or null if the table does not exist
+     */
+    public List<String> primaryKey(String keyspace, String table);
+
+    /**
+     * Reads the whole keyspace. The caller must keep writes away meanwhile
+     * for the result to be consistent.
+     *
+     * @return statements that recreate the keyspace's tables and rows in
+     * an empty keyspace, with table names unqualified, so that they can be
+     * run against another replica's keyspace
+     */
+    public List<String> snapshot();
+
+    /**
+     * Like {@link #snapshot()}, but the statements may be produced as they
+     * are iterated, so that a large keyspace need not be held in memory at
+     * once; the caller keeps writes away until it is done iterating. This
+     * implementation returns {@link #snapshot()}.
+     *
+     * @return statements that can be iterated once
+     */
+    public default Iterable<String> snapshotLazily() {
+        return snapshot();
+    }
+
+    /**
+     * Drops all tables of the keyspace and executes the statements, as
+     * returned by {@link #snapshot()}, in their place.
+     */
+    public void restore(List<String> statements);
+
+    /**
+     * Releases the connections and threads held by the engine.
+     */
+    public void close();
+}
@@ -0,0 +1,103 @@
+package server;
+
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.List;
+
+/**
+ * Times the statements executed by another engine, from submission to
+ * completion, whether they succeed or fail. Snapshots and restores are not
+ * timed.
+ */
+public class TimedStorageEngine implements StorageEngine {
+    private final StorageEngine engine;
+    private final Timer timer;
+
+    public TimedStorageEngine(StorageEngine engine, Timer timer) {
+        this.engine = engine;
+        this.timer = timer;
+    }
+
+    @Override
+    public ListenableFuture<Iterable<String>> executeAsync(String cql) {
+        final Timer.Context context = timer.time();
+        ListenableFuture<Iterable<String>> future;
+        try {
+            future = engine.executeAsync(cql);
+        } catch (RuntimeException e) {
+            context.stop();
+            throw e;
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                context.stop();
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    /**
+     * Times the statement until its first page is fetched.
+     */
+    @Override
+    public ListenableFuture<Page> executePagedAsync(String cql, int pageSize) {
+        final Timer.Context context = timer.time();
+        ListenableFuture<Page> future;
+        try {
+            future = engine.executePagedAsync(cql, pageSize);
+        } catch (RuntimeException e) {
+            context.stop();
+            throw e;
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                context.stop();
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    @Override
+    public Iterable<String> execute(String cql) {
+        Timer.Context context = timer.time();
+        try {
+            return engine.execute(cql);
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public List<String> primaryKey(String keyspace, String table) {
+        return engine.primaryKey(keyspace, table);
+    }
+
+    @Override
+    public List<String> snapshot() {
+        return engine.snapshot();
+    }
+
+    @Override
+    public Iterable<String> snapshotLazily() {
+        return engine.snapshotLazily();
+    }
+
+    @Override
+    public void restore(List<String> statements) {
+        engine.restore(statements);
+    }
+
+    @Override
+    public void close() {
+        engine.close();
+    }
+
+    @Override
+    public String toString() {
+        return engine.toString();
+    }
+}
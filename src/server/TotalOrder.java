@@ -0,0 +1,101 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * Total order broadcast among the replicated servers: statements proposed
+ * at any server are delivered at every server in the same order.
+ *
+ * Each statement names an ordering domain, e.g., derived from the row it
+ * touches. An implementation may deliver statements of different domains
+ * in different orders at different servers, but orders each domain the
+ * same everywhere, and orders a {@link #BARRIER} statement the same
+ * relative to all others. It may also let statements of a domain that
+ * commute with each other, i.e., were proposed with the same commutativity
+ * class and follow each other in the domain's order, be delivered in
+ * different orders among themselves.
+ */
+public interface TotalOrder {
+    /**
+     * The domain of statements that must be ordered against all others,
+     * e.g., schema changes.
+     */
+    public static final int BARRIER = -1;
+
+    /**
+     * Receives statements in the total order, one at a time.
+     */
+    public static interface Delivery {
+        /**
+         * @param seq    the statement's number, counting from 1 and the same
+         *               at every server; statements of a domain are
+         *               delivered in increasing order of their numbers,
+         *               but for runs of commuting statements
+         * @param origin the server whose client issued the statement
+         * @param tag    the origin's tag passed to {@link #propose}
+         */
+        public void deliver(long seq, String origin, long tag, String cql);
+
+        /**
+         * Like {@link #deliver(long, String, long, String)}, for protocols
+         * that carry the trace id the statement was proposed with.
+         *
+         * @param trace the {@link Tracer} id, or 0 if not traced
+         */
+        public default void deliver(long seq, String origin, long tag, String
+                cql, long trace) {
+            deliver(seq, origin, tag, cql);
+        }
+    }
+
+    /**
+     * Sends bytes to a server.
+     */
+    public static interface Transport {
+        public void send(String node, byte[] bytes) throws IOException;
+    }
+
+    /**
+     * Submits a statement to be ordered.
+     *
+     * @param tag    identifies the statement at this server
+     * @param domain   a non-negative ordering domain or {@link #BARRIER}
+     * @param commutes the statement's commutativity class: statements with
+     *                 the same class commute with each other; null if it
+     *                 commutes with nothing
+     * @throws IOException if the statement could not be sent
+     */
+    public void propose(long tag, String cql, int domain, String commutes)
+            throws IOException;
+
+    /**
+     * Like {@link #propose(long, String, int, String)} for a statement
+     * traced by the {@link Tracer}. Protocols that do not carry trace ids
+     * drop it, so the statement is delivered untraced.
+     *
+     * @param trace the trace id, or 0 if not traced
+     */
+    public default void propose(long tag, String cql, int domain, String
+            commutes, long trace) throws IOException {
+        propose(tag, cql, domain, commutes);
+    }
+
+    /**
+     * Tells the protocol that this server had delivered everything up to
+     * seq before it restarted, as recovered from its {@link WriteAheadLog},
+     * so that it numbers and delivers statements from seq + 1 on. Called
+     * once, right after the protocol is created.
+     *
+     * @return false if the protocol recovers by itself and delivers the
+     * statements again, so that the server must not replay its log
+     * @throws IOException if the protocol cannot go on after a restart
+     */
+    public boolean resume(long seq) throws IOException;
+
+    /**
+     * @return false if the bytes are not a message of this protocol
+     */
+    public boolean handleMessage(byte[] bytes);
+
+    public void close();
+}
@@ -0,0 +1,249 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sampled request tracing. The client picks a fraction of its requests,
+ * {@link #SAMPLE_RATE}, and gives each a trace id that travels with the
+ * request in its {@link Envelope} header ({@link Envelope#FLAG_TRACED}),
+ * and with the sequencer's ordering messages to the other replicas. Every
+ * client and server records when a traced request passes the points of
+ * {@link Event}, and {@link #dump} lists what it has recorded, by trace.
+ *
+ * Events go to lock-free ring buffers, one per thread for up to twice as
+ * many threads as there are processors, beyond which threads share them;
+ * a full ring overwrites its oldest events. A request that is not sampled
+ * has trace id 0, which every {@link #record} call returns on right away,
+ * so it costs a comparison and allocates nothing; a sampled one allocates
+ * nothing either.
+ */
+public class Tracer {
+    /**
+     * The fraction of requests a client traces, between 0 (default, no
+     * tracing) and 1.
+     */
+    public static final double SAMPLE_RATE = Double.parseDouble(System
+            .getProperty("mydb.trace.sampleRate", "0"));
+
+    /**
+     * Events kept per ring.
+     */
+    public static final int RING_SIZE = Integer.getInteger(
+            "mydb.trace.ringSize", 4096);
+
+    /**
+     * The directory a client or server writes its {@link #dump} to when it
+     * closes, as &lt;name&gt;.trace; none if unset.
+     */
+    public static final String DUMP_DIR = System.getProperty(
+            "mydb.trace.dumpDir");
+
+    /**
+     * The points a request is traced at, in the order it passes them.
+     */
+    public static enum Event {
+        CLIENT_SEND, SERVER_RECEIVE, ORDERED, DB_START, DB_END, REPLY_SENT,
+        CLIENT_RECEIVE
+    }
+
+    private static final Event[] EVENTS = Event.values();
+
+    /**
+     * One recorded event.
+     */
+    public static class Record {
+        public final long trace;
+        public final Event event;
+        // System.nanoTime()
+        public final long nanos;
+        public final long thread;
+
+        Record(long trace, Event event, long nanos, long thread) {
+            this.trace = trace;
+            this.event = event;
+            this.nanos = nanos;
+            this.thread = thread;
+        }
+    }
+
+    /**
+     * A ring of events. Writers claim a slot by incrementing head and
+     * publish it by setting its sequence number; a reader keeps a slot
+     * only if its sequence number is the same before and after reading it.
+     */
+    private static class Ring {
+        final AtomicLong head = new AtomicLong();
+        final AtomicLongArray published;
+        final AtomicLongArray traces;
+        final AtomicLongArray nanos;
+        final AtomicLongArray threads;
+        final AtomicIntegerArray events;
+        final int mask;
+
+        Ring(int size) {
+            published = new AtomicLongArray(size);
+            traces = new AtomicLongArray(size);
+            nanos = new AtomicLongArray(size);
+            threads = new AtomicLongArray(size);
+            events = new AtomicIntegerArray(size);
+            mask = size - 1;
+        }
+
+        void add(long trace, Event event, long time, long thread) {
+            long index = head.getAndIncrement();
+            int slot = (int) (index & mask);
+            published.set(slot, 0); // torn until set again below
+            traces.set(slot, trace);
+            nanos.set(slot, time);
+            threads.set(slot, thread);
+            events.set(slot, event.ordinal());
+            published.set(slot, index + 1);
+        }
+
+        void collect(List<Record> records) {
+            for (int slot = 0; slot <= mask; slot++) {
+                long seq = published.get(slot);
+                if (seq == 0) continue;
+                Record record = new Record(traces.get(slot), EVENTS[events.get
+                        (slot)], nanos.get(slot), threads.get(slot));
+                if (published.get(slot) == seq) records.add(record);
+            }
+        }
+    }
+
+    private final String name;
+    private final double sampleRate;
+    private final Ring[] rings;
+
+    /**
+     * With the properties' sample rate and ring size.
+     */
+    public Tracer(String name) {
+        this(name, SAMPLE_RATE, RING_SIZE);
+    }
+
+    /**
+     * @param ringSize rounded up to the next power of two
+     */
+    public Tracer(String name, double sampleRate, int ringSize) {
+        this.name = name;
+        this.sampleRate = sampleRate;
+        int stripes = Integer.highestOneBit(Math.max(2, 2 * Runtime
+                .getRuntime().availableProcessors()) - 1) << 1;
+        int size = Integer.highestOneBit(Math.max(2, ringSize) - 1) << 1;
+        this.rings = new Ring[stripes];
+        for (int i = 0; i < stripes; i++) rings[i] = new Ring(size);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return a new trace id for a request to be traced, else 0
+     */
+    public long sample() {
+        if (sampleRate <= 0) return 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (sampleRate < 1 && random.nextDouble() >= sampleRate) return 0;
+        long trace;
+        do trace = random.nextLong() & Long.MAX_VALUE; while (trace == 0);
+        return trace;
+    }
+
+    /**
+     * Records that the traced request has passed the event now.
+     *
+     * @param trace 0 if the request is not traced
+     */
+    public void record(long trace, Event event) {
+        if (trace == 0) return;
+        record(trace, event, System.nanoTime());
+    }
+
+    /**
+     * @param nanos when the event happened, by System.nanoTime()
+     */
+    public void record(long trace, Event event, long nanos) {
+        if (trace == 0) return;
+        long thread = Thread.currentThread().getId();
+        rings[(int) (thread & (rings.length - 1))].add(trace, event, nanos,
+                thread);
+    }
+
+    /**
+     * @return the events still in the rings, by trace and in order of time
+     * within each trace, traces in order of their first event
+     */
+    public List<Record> records() {
+        List<Record> records = new ArrayList<Record>();
+        for (Ring ring : rings) ring.collect(records);
+        Collections.sort(records, new Comparator<Record>() {
+            @Override
+            public int compare(Record a, Record b) {
+                return Long.compare(a.nanos, b.nanos);
+            }
+        });
+        Map<Long, List<Record>> byTrace = new LinkedHashMap<Long,
+                List<Record>>();
+        for (Record record : records) {
+            List<Record> trace = byTrace.get(record.trace);
+            if (trace == null) byTrace.put(record.trace, trace = new
+                    ArrayList<Record>());
+            trace.add(record);
+        }
+        records.clear();
+        for (List<Record> trace : byTrace.values()) records.addAll(trace);
+        return records;
+    }
+
+    /**
+     * @return the recorded traces, one line per trace with the time of each
+     * event in microseconds since the first of the trace recorded here,
+     * e.g., "3f2a... server_receive +0 db_start +12 db_end +301"
+     */
+    public String dump() {
+        StringBuilder s = new StringBuilder();
+        long trace = 0, first = 0;
+        for (Record record : records()) {
+            if (record.trace != trace) {
+                if (trace != 0) s.append('\n');
+                trace = record.trace;
+                first = record.nanos;
+                s.append(name).append(' ').append(Long.toHexString(trace));
+            }
+            s.append(' ').append(record.event.name().toLowerCase()).append(
+                    " +").append((record.nanos - first) / 1000);
+        }
+        if (trace != 0) s.append('\n');
+        return s.toString();
+    }
+
+    /**
+     * Writes the {@link #dump} to {@link #DUMP_DIR}, if set and anything was
+     * recorded.
+     */
+    public void close() throws IOException {
+        if (DUMP_DIR == null) return;
+        String dump = dump();
+        if (dump.isEmpty()) return;
+        File dir = new File(DUMP_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+        Files.write(new File(dir, name + ".trace").toPath(), dump.getBytes
+                (StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,318 @@
+package server;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of ordered statements, keyed by their sequence
+ * numbers, in a directory of memory-mapped segment files of a fixed size.
+ * An append copies the record into the mapped segment and returns; a
+ * single flusher thread then forces the segments to disk and tells the
+ * appenders, so that all records appended while one force is under way
+ * share the next one (group commit). When a record does not fit into the
+ * current segment the log rolls over to a new one.
+ *
+ * A record is its length (4 bytes), a CRC32 of the rest (4 bytes), the
+ * sequence number (8 bytes) and the caller's bytes. The rest of a segment
+ * is zeros, so a length of 0 ends it. On opening, the segments are
+ * scanned up to the first record that is torn or fails its checksum, and
+ * anything after it is zeroed before appending resumes there.
+ *
+ * Sequence numbers need not be appended in increasing order. Once every
+ * replica has applied all statements up to some number, the segments
+ * holding nothing above it can be dropped with {@link #truncate}.
+ */
+public class WriteAheadLog {
+    /**
+     * Receives the records of the log in the order they were appended.
+     */
+    public static interface Visitor {
+        public void visit(long seq, byte[] record);
+    }
+
+    private static final Logger log = Logger.getLogger(WriteAheadLog.class
+            .getName());
+
+    private static final int HEADER = 16;
+    private static final String SUFFIX = ".wal";
+
+    private static class Segment {
+        final long index;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // guarded by the log
+        long records = 0;
+        long maxSeq = 0; // the highest sequence number in the segment
+
+        Segment(File dir, long index, int size) throws IOException {
+            this.index = index;
+            this.file = new File(dir, String.format("%020d%s", index, SUFFIX));
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math
+                    .max(size, raf.length()));
+        }
+    }
+
+    private final File dir;
+    private final int segmentBytes;
+    private final boolean sync;
+    private final ExecutorService flusher;
+
+    // guarded by this
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private Segment current;
+    private final LinkedHashSet<Segment> dirty = new LinkedHashSet<Segment>();
+    private List<Runnable> waiting = new ArrayList<Runnable>();
+    private boolean flushScheduled = false;
+    private long records = 0;
+    private long lastSeq = 0;
+    private long forces = 0;
+    private final CRC32 crc = new CRC32();
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Opens the log in dir, creating it if need be.
+     *
+     * @param sync whether records are forced to disk before appenders are
+     *             told they are durable; if not, they are told right away
+     *             and the operating system writes them back in its time
+     */
+    public WriteAheadLog(File dir, int segmentBytes, boolean sync) throws
+            IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.sync = sync;
+        this.flusher = sync ? Executors.newSingleThreadExecutor(new
+                DefaultThreadFactory("mydb-wal-" + dir.getName(), true)) : null;
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        for (File file : files)
+            if (file.getName().endsWith(SUFFIX))
+                segments.add(new Segment(dir, Long.parseLong(file.getName()
+                        .substring(0, file.getName().length() - SUFFIX
+                                .length())), segmentBytes));
+        if (segments.isEmpty()) segments.add(new Segment(dir, 1, segmentBytes));
+        for (Segment segment : segments) scan(segment, null);
+        current = segments.get(segments.size() - 1);
+        // zero whatever follows the last intact record
+        for (int pos = current.buffer.position(); pos < current.buffer
+                .capacity(); pos++)
+            current.buffer.put(pos, (byte) 0);
+        current.buffer.force();
+    }
+
+    /**
+     * Moves segment's position past its intact records and counts them,
+     * handing each to visitor if it is not null.
+     */
+    private void scan(Segment segment, Visitor visitor) {
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.position(0);
+        while (buffer.remaining() >= HEADER) {
+            int pos = buffer.position();
+            int length = buffer.getInt(pos);
+            if (length <= 0 || length > buffer.remaining() - HEADER) break;
+            byte[] bytes = new byte[8 + length];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = buffer.get(pos + 8 + i);
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            if ((int) crc.getValue() != buffer.getInt(pos + 4)) break;
+            long seq = buffer.getLong(pos + 8);
+            if (visitor != null)
+                visitor.visit(seq, Arrays.copyOfRange(bytes, 8, bytes.length));
+            else {
+                records++;
+                lastSeq = Math.max(lastSeq, seq);
+                segment.records++;
+                segment.maxSeq = Math.max(segment.maxSeq, seq);
+            }
+            buffer.position(pos + HEADER + length);
+        }
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param onDurable run once the record is on disk, by the flusher thread
+     */
+    public void append(long seq, byte[] record, Runnable onDurable) throws
+            IOException {
+        if (HEADER + record.length > segmentBytes)
+            throw new IOException("Record of " + record.length + " bytes " +
+                    "exceeds the segment size");
+        boolean schedule = false;
+        synchronized (this) {
+            if (current.buffer.remaining() < HEADER + record.length) roll();
+            MappedByteBuffer buffer = current.buffer;
+            byte[] seqBytes = new byte[8];
+            for (int i = 0; i < 8; i++) seqBytes[i] = (byte) (seq >>> (56 - 8
+                    * i));
+            crc.reset();
+            crc.update(seqBytes, 0, 8);
+            crc.update(record, 0, record.length);
+            buffer.putInt(record.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.putLong(seq);
+            buffer.put(record);
+            records++;
+            lastSeq = Math.max(lastSeq, seq);
+            current.records++;
+            current.maxSeq = Math.max(current.maxSeq, seq);
+            if (sync) {
+                dirty.add(current);
+                if (onDurable != null) waiting.add(onDurable);
+                if (!flushScheduled) schedule = flushScheduled = true;
+            }
+        }
+        if (schedule) flusher.execute(flush);
+        else if (!sync && onDurable != null) onDurable.run();
+    }
+
+    private void roll() throws IOException {
+        // the flusher still forces the old segment if it is dirty
+        current = new Segment(dir, current.index + 1, segmentBytes);
+        segments.add(current);
+    }
+
+    private void flush() {
+        List<Segment> force;
+        List<Runnable> durable;
+        synchronized (this) {
+            flushScheduled = false;
+            force = new ArrayList<Segment>(dirty);
+            dirty.clear();
+            durable = waiting;
+            waiting = new ArrayList<Runnable>();
+            forces++;
+        }
+        for (Segment segment : force) segment.buffer.force();
+        for (Runnable r : durable)
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Durability callback failed", e);
+            }
+    }
+
+    /**
+     * Deletes the segments, other than the one being appended to, that
+     * hold no sequence number above seq.
+     *
+     * @return the number of segments deleted
+     */
+    public int truncate(long seq) {
+        List<Segment> deleted = new ArrayList<Segment>();
+        synchronized (this) {
+            for (Segment segment : segments)
+                if (segment != current && segment.maxSeq <= seq) {
+                    deleted.add(segment);
+                    records -= segment.records;
+                }
+            segments.removeAll(deleted);
+            // if still dirty, the segment is no longer wanted anyway
+            dirty.removeAll(deleted);
+        }
+        for (Segment segment : deleted)
+            try {
+                segment.channel.close();
+                if (!segment.file.delete())
+                    log.log(Level.WARNING, "Unable to delete {0}", segment
+                            .file);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to close {0}: {1}", new
+                        Object[]{segment.file, e});
+            }
+        return deleted.size();
+    }
+
+    /**
+     * Hands every intact record to visitor, oldest first.
+     */
+    public synchronized void replay(Visitor visitor) {
+        for (Segment segment : segments) {
+            int position = segment.buffer.position();
+            scan(segment, visitor);
+            segment.buffer.position(position);
+        }
+    }
+
+    /**
+     * @return the number of records in the log
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the highest sequence number in the log, or 0 if it is empty
+     */
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public synchronized int getSegments() {
+        return segments.size();
+    }
+
+    /**
+     * @return the number of group commits so far
+     */
+    public synchronized long getForces() {
+        return forces;
+    }
+
+    /**
+     * Forces what has been appended and closes the segments; appenders not
+     * yet told their records are durable are told now.
+     */
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flush();
+        }
+        synchronized (this) {
+            for (Segment segment : segments)
+                try {
+                    segment.channel.close();
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Unable to close {0}: {1}", new
+                            Object[]{segment.file, e});
+                }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + dir + ", " + getRecords() +
+                " records in " + getSegments() + " segments]";
+    }
+}
@@ -0,0 +1,385 @@
+package server;
+
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.QueryValidationException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Groups concurrently arriving writes into unlogged {@link BatchStatement}s
+ * so that many of them cost a single round trip to Cassandra.
+ *
+ * Up to maxInFlight batches execute at once. Batches start in submission
+ * order, and a batch never holds two writes to the same row, nor starts
+ * while it shares a row with a batch still executing (a write whose row is
+ * unknown conflicts with every write to its table). A write therefore never
+ * overtakes an earlier write to the same row, while writes to different
+ * rows proceed in parallel. Once no more batches may start, newly arriving
+ * writes accumulate into the next one (group commit); otherwise a write is
+ * sent right away, or after lingerMicros if that is positive.
+ *
+ * Reads bypass the batcher. Schema changes, conditional (IF) writes, counter
+ * updates and anything else that can not go into an unlogged batch are
+ * executed on their own, after all batches before them have completed and
+ * before any after them start.
+ *
+ * A failed unlogged batch may have been partly applied. Its writes are
+ * re-executed one at a time, so that only the offending ones fail, only if
+ * Cassandra rejected the batch before executing it or all of them are
+ * idempotent ({@link CqlStatement#isIdempotent}); otherwise all of them fail.
+ */
+public class WriteBatcher {
+    private static final Logger log = Logger.getLogger(WriteBatcher.class
+            .getName());
+
+    private final Session session;
+    private final PreparedStatementCache statements;
+    private final int maxBatchSize;
+    private final int maxInFlight;
+    private final long lingerMicros;
+    private final ScheduledExecutorService scheduler;
+
+    private Batch open = new Batch();
+    private final ArrayDeque<Batch> sealed = new ArrayDeque<Batch>();
+    private final List<Batch> inFlight = new ArrayList<Batch>();
+    private boolean flushScheduled = false;
+
+    private long batches = 0;
+    private long batchedWrites = 0;
+
+    /**
+     * @param maxInFlight the most batches executing at once
+     * @param scheduler used only if lingerMicros is positive
+     */
+    public WriteBatcher(Session session, PreparedStatementCache statements,
+                        int maxBatchSize, int maxInFlight, long lingerMicros,
+                        ScheduledExecutorService scheduler) {
+        this.session = session;
+        this.statements = statements;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.lingerMicros = lingerMicros;
+        this.scheduler = scheduler;
+    }
+
+    private static class Entry {
+        final String cql;
+        final SettableFuture<ResultSet> result = SettableFuture.create();
+        final String table;
+        // table|key, or null if the row is unknown
+        final String key;
+        final boolean batchable;
+        final boolean idempotent;
+
+        Entry(String cql, String table, String key, boolean batchable,
+              boolean idempotent) {
+            this.cql = cql;
+            this.table = table;
+            this.key = key;
+            this.batchable = batchable;
+            this.idempotent = idempotent;
+        }
+    }
+
+    /**
+     * The writes of a batch and the rows they touch.
+     */
+    private static class Batch {
+        final List<Entry> entries = new ArrayList<Entry>();
+        final Set<String> keys = new HashSet<String>();
+        final Set<String> tables = new HashSet<String>();
+        final Set<String> unkeyedTables = new HashSet<String>();
+        // a statement executed on its own, which nothing may overlap
+        boolean barrier = false;
+        boolean idempotent = true;
+
+        void add(Entry entry) {
+            entries.add(entry);
+            idempotent &= entry.idempotent;
+            if (!entry.batchable) {
+                barrier = true;
+                return;
+            }
+            tables.add(entry.table);
+            if (entry.key != null) keys.add(entry.key);
+            else unkeyedTables.add(entry.table);
+        }
+
+        /**
+         * @return true if the entry may touch a row written by this batch
+         */
+        boolean conflictsWith(Entry entry) {
+            if (barrier || !entry.batchable) return true;
+            return entry.key != null ? keys.contains(entry.key) ||
+                    unkeyedTables.contains(entry.table) : tables.contains
+                    (entry.table);
+        }
+
+        boolean conflictsWith(Batch other) {
+            if (barrier || other.barrier) return true;
+            for (Entry entry : entries)
+                if (other.conflictsWith(entry)) return true;
+            return false;
+        }
+    }
+
+    /**
+     * @return the future result of the statement, completed once the batch
+     * it went into has been executed
+     */
+    public ListenableFuture<ResultSet> executeAsync(String cql) {
+        CqlStatement stmt = CqlStatement.parse(cql);
+        if (stmt.kind == CqlStatement.Kind.SELECT)
+            return statements.executeAsync(cql);
+
+        boolean batchable = stmt.kind.isWrite() && !stmt.conditional && !stmt
+                .counterUpdate && stmt.table != null;
+        String table = batchable ? stmt.qualifiedTable(session
+                .getLoggedKeyspace()) : null;
+        String key = batchable ? stmt.key(primaryKey(session, stmt.keyspace,
+                stmt.table)) : null;
+        Entry entry = new Entry(cql, table, key == null ? null : table + "|"
+                + key, batchable, stmt.isIdempotent());
+
+        List<Batch> ready;
+        boolean scheduleFlush = false;
+        synchronized (this) {
+            enqueue(entry);
+            ready = next(lingerMicros <= 0);
+            if (ready == null && inFlight.size() < maxInFlight && !open
+                    .entries.isEmpty() && !flushScheduled) {
+                flushScheduled = scheduleFlush = true;
+            }
+        }
+        execute(ready);
+        if (scheduleFlush)
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, lingerMicros, TimeUnit.MICROSECONDS);
+        return entry.result;
+    }
+
+    /**
+     * @param keyspace null for the session's keyspace
+     * @return the table's primary key columns as known to the driver's
+     * schema metadata, or null if the table is unknown
+     */
+    static List<String> primaryKey(Session session, String keyspace, String
+            table) {
+        KeyspaceMetadata ks = session.getCluster().getMetadata().getKeyspace
+                (keyspace != null ? keyspace : session.getLoggedKeyspace());
+        TableMetadata metadata = ks != null && table != null ? ks.getTable
+                (table) : null;
+        if (metadata == null) return null;
+        List<String> names = new ArrayList<String>();
+        for (ColumnMetadata column : metadata.getPrimaryKey())
+            names.add(column.getName());
+        return names;
+    }
+
+    private void enqueue(Entry entry) {
+        if (!entry.batchable) {
+            seal();
+            Batch single = new Batch();
+            single.add(entry);
+            sealed.add(single);
+            return;
+        }
+        if (open.conflictsWith(entry)) seal();
+        open.add(entry);
+        if (open.entries.size() >= maxBatchSize) seal();
+    }
+
+    private void seal() {
+        if (open.entries.isEmpty()) return;
+        sealed.add(open);
+        open = new Batch();
+    }
+
+    /**
+     * @param takeOpen whether a partially filled open batch may be sent
+     * @return the batches that may start now, in order, or null if none
+     */
+    private List<Batch> next(boolean takeOpen) {
+        List<Batch> ready = null;
+        while (inFlight.size() < maxInFlight) {
+            if (sealed.isEmpty() && takeOpen && !conflictsInFlight(open))
+                seal();
+            // only the eldest may start, so batches never overtake
+            Batch batch = sealed.peek();
+            if (batch == null || conflictsInFlight(batch)) break;
+            inFlight.add(sealed.poll());
+            if (ready == null) ready = new ArrayList<Batch>(1);
+            ready.add(batch);
+        }
+        return ready;
+    }
+
+    private boolean conflictsInFlight(Batch batch) {
+        for (Batch executing : inFlight)
+            if (batch.conflictsWith(executing)) return true;
+        return false;
+    }
+
+    private void flush() {
+        List<Batch> ready;
+        synchronized (this) {
+            flushScheduled = false;
+            ready = next(true);
+        }
+        execute(ready);
+    }
+
+    private void done(Batch batch) {
+        List<Batch> ready;
+        synchronized (this) {
+            inFlight.remove(batch);
+            // whatever arrived meanwhile goes out right away
+            ready = next(true);
+        }
+        execute(ready);
+    }
+
+    private void execute(List<Batch> ready) {
+        if (ready != null)
+            for (Batch batch : ready) execute(batch);
+    }
+
+    private void execute(final Batch batch) {
+        final List<Entry> entries = batch.entries;
+        synchronized (this) {
+            batches++;
+            batchedWrites += entries.size();
+        }
+        final Runnable done = new Runnable() {
+            @Override
+            public void run() {
+                done(batch);
+            }
+        };
+        if (entries.size() == 1) {
+            executeOne(entries.get(0), done);
+            return;
+        }
+        List<ListenableFuture<Statement>> members = new
+                ArrayList<ListenableFuture<Statement>>(entries.size());
+        // bound only now so that preceding schema changes have been applied
+        for (Entry entry : entries)
+            members.add(statements.statementFor(entry.cql));
+        Futures.addCallback(Futures.allAsList(members), new
+                FutureCallback<List<Statement>>() {
+            @Override
+            public void onSuccess(List<Statement> result) {
+                BatchStatement statement = new BatchStatement(BatchStatement
+                        .Type.UNLOGGED);
+                statement.addAll(result);
+                Futures.addCallback(session.executeAsync(statement), new
+                        FutureCallback<ResultSet>() {
+                    @Override
+                    public void onSuccess(ResultSet rs) {
+                        for (Entry entry : entries) entry.result.set(rs);
+                        done.run();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        if (batch.idempotent || t instanceof
+                                QueryValidationException)
+                            retryIndividually(entries, 0, t, done);
+                        else
+                            fail(entries, t, done);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // nothing was executed
+                retryIndividually(entries, 0, t, done);
+            }
+        });
+    }
+
+    /**
+     * Re-executes a failed batch one statement at a time, in order, so that
+     * only the offending statements fail.
+     */
+    private void retryIndividually(final List<Entry> entries, final int i,
+                                   Throwable cause, final Runnable done) {
+        if (i == 0)
+            log.log(Level.FINE, "Batch of {0} failed ({1}); executing " +
+                    "individually", new Object[]{entries.size(), cause});
+        if (i == entries.size()) {
+            done.run();
+            return;
+        }
+        executeOne(entries.get(i), new Runnable() {
+            @Override
+            public void run() {
+                retryIndividually(entries, i + 1, null, done);
+            }
+        });
+    }
+
+    /**
+     * Fails every statement of a batch that may have been partly applied
+     * and holds statements that must not be executed twice.
+     */
+    private void fail(List<Entry> entries, Throwable cause, Runnable done) {
+        log.log(Level.FINE, "Batch of {0} failed ({1}); not retried as it " +
+                "holds writes that are not idempotent", new Object[]{entries
+                .size(), cause});
+        for (Entry entry : entries) entry.result.setException(cause);
+        done.run();
+    }
+
+    private void executeOne(final Entry entry, final Runnable then) {
+        ListenableFuture<ResultSet> rs;
+        try {
+            rs = statements.executeAsync(entry.cql);
+        } catch (RuntimeException e) {
+            rs = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(rs, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                entry.result.set(result);
+                then.run();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                entry.result.setException(t);
+                then.run();
+            }
+        });
+    }
+
+    /**
+     * @return the average number of writes per round trip so far
+     */
+    public synchronized double getAverageBatchSize() {
+        return batches == 0 ? 0 : (double) batchedWrites / batches;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "[batches=" + batches + ", " +
+                "writes=" + batchedWrites + "]";
+    }
+}
@@ -0,0 +1,188 @@
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.ApplyPipeline;
+import server.StorageEngine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that the apply pipeline overlaps and reorders non-conflicting
+ * statements and holds back conflicting ones.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class ApplyPipelineTest {
+
+    /**
+     * Records the statements started; they complete when the test says so.
+     */
+    private static class ManualEngine implements StorageEngine {
+        final Map<String, SettableFuture<Iterable<String>>> started = new
+                LinkedHashMap<String, SettableFuture<Iterable<String>>>();
+
+        @Override
+        public ListenableFuture<Iterable<String>> executeAsync(String cql) {
+            SettableFuture<Iterable<String>> future = SettableFuture.create();
+            started.put(cql, future);
+            return future;
+        }
+
+        @Override
+        public Iterable<String> execute(String cql) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> primaryKey(String keyspace, String table) {
+            return Arrays.asList("k");
+        }
+
+        @Override
+        public List<String> snapshot() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void restore(List<String> statements) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        void complete(String cql) {
+            started.get(cql).set(Collections.<String>emptyList());
+        }
+    }
+
+    private static ApplyPipeline<String> pipeline(ManualEngine engine, int
+            window, final List<String> applied) {
+        return new ApplyPipeline<String>(engine, "ks", window, MoreExecutors
+                .directExecutor(), new ApplyPipeline.Applied<String>() {
+            @Override
+            public void applied(String item, Throwable error) {
+                applied.add(item);
+            }
+        });
+    }
+
+    @Test
+    public void test01_NonConflictingOverlap() {
+        ManualEngine engine = new ManualEngine();
+        List<String> applied = new ArrayList<String>();
+        ApplyPipeline<String> pipeline = pipeline(engine, 2, applied);
+        String a = "update t set v = 1 where k = 1";
+        String b = "update t set v = 1 where k = 2";
+        String c = "update t set v = 1 where k = 3";
+        pipeline.submit(a, "a");
+        pipeline.submit(b, "b");
+        pipeline.submit(c, "c");
+        // the window holds two
+        Assert.assertEquals(Arrays.asList(a, b), new ArrayList<String>(engine
+                .started.keySet()));
+        engine.complete(b);
+        Assert.assertEquals(Arrays.asList("b"), applied);
+        Assert.assertTrue(engine.started.containsKey(c));
+        engine.complete(a);
+        engine.complete(c);
+        Assert.assertEquals(0, pipeline.size());
+    }
+
+    @Test
+    public void test02_ConflictsWait() {
+        ManualEngine engine = new ManualEngine();
+        List<String> applied = new ArrayList<String>();
+        ApplyPipeline<String> pipeline = pipeline(engine, 8, applied);
+        String a = "update t set v = v + [1] where k = 1";
+        String b = "update t set v = v + [2] where k = 1";
+        String c = "update t set v = v + [3] where k = 2";
+        pipeline.submit(a, "a");
+        pipeline.submit(b, "b");
+        // c does not conflict and overtakes b, which waits for a
+        pipeline.submit(c, "c");
+        Assert.assertEquals(Arrays.asList(a, c), new ArrayList<String>(engine
+                .started.keySet()));
+        engine.complete(a);
+        Assert.assertEquals(Arrays.asList(a, c, b), new ArrayList<String>
+                (engine.started.keySet()));
+
+        // a schema change waits for everything before it and blocks the rest
+        String drop = "drop table u";
+        String d = "select * from t where k = 5";
+        pipeline.submit(drop, "drop");
+        pipeline.submit(d, "d");
+        Assert.assertFalse(engine.started.containsKey(drop));
+        engine.complete(b);
+        engine.complete(c);
+        Assert.assertTrue(engine.started.containsKey(drop));
+        Assert.assertFalse(engine.started.containsKey(d));
+        engine.complete(drop);
+        engine.complete(d);
+        Assert.assertEquals(Arrays.asList("a", "b", "c", "drop", "d"), applied);
+    }
+
+    @Test
+    public void test03_ReadsShareRows() {
+        ManualEngine engine = new ManualEngine();
+        List<String> applied = new ArrayList<String>();
+        ApplyPipeline<String> pipeline = pipeline(engine, 8, applied);
+        pipeline.submit("select v from t where k = 1", "r1");
+        pipeline.submit("select k, v from t where k = 1", "r2");
+        pipeline.submit("select v from t", "r3");
+        Assert.assertEquals(3, engine.started.size());
+        pipeline.submit("insert into t (k, v) values (1, 2)", "w");
+        Assert.assertEquals(3, engine.started.size());
+        engine.complete("select v from t where k = 1");
+        engine.complete("select k, v from t where k = 1");
+        Assert.assertEquals(3, engine.started.size()); // r3 reads the table
+        engine.complete("select v from t");
+        Assert.assertEquals(4, engine.started.size());
+    }
+
+    @Test
+    public void test04_WaitingDoNotOvertakeEachOther() {
+        ManualEngine engine = new ManualEngine();
+        List<String> applied = new ArrayList<String>();
+        ApplyPipeline<String> pipeline = pipeline(engine, 8, applied);
+        String a = "update t set v = 1 where k = 1";
+        String b = "update t set v = 2 where k = 1";
+        String c = "select v from t";
+        String d = "update t set v = 3 where k = 2";
+        pipeline.submit(a, "a");
+        pipeline.submit(b, "b");
+        // c conflicts only with the waiting b, d with the waiting c
+        pipeline.submit(c, "c");
+        pipeline.submit(d, "d");
+        Assert.assertEquals(Arrays.asList(a), new ArrayList<String>(engine
+                .started.keySet()));
+        engine.complete(a);
+        Assert.assertEquals(Arrays.asList(a, b), new ArrayList<String>(engine
+                .started.keySet()));
+        engine.complete(b);
+        Assert.assertEquals(Arrays.asList(a, b, c), new ArrayList<String>
+                (engine.started.keySet()));
+        engine.complete(c);
+        engine.complete(d);
+        Assert.assertEquals(Arrays.asList("a", "b", "c", "d"), applied);
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(ApplyPipelineTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+import client.MyDBClient;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import edu.umass.cs.nio.interfaces.NodeConfig;
+import edu.umass.cs.nio.nioutils.NodeConfigUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.InMemoryStorageEngine;
+import server.MyDBReplicatedServer;
+import server.ReplicatedServer;
+import server.StorageEngine;
+import server.TotalOrder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A replica whose database stalls falls behind; asked to catch up, it
+ * installs another replica's state instead of applying its backlog and
+ * ends up with the same rows as the others. A state too large to be sent
+ * at once is streamed part by part, and when the donor fails to send its
+ * state, the replica gets it from another one.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class CatchUpTest {
+    private static final String TABLE = "grade";
+    private static final int NUM_REQS = 1000;
+    private static final int KEYS = 10;
+
+    private static NodeConfig<String> nodeConfigServer;
+    private static final Map<String, StorageEngine> engines = new
+            HashMap<String, StorageEngine>();
+    private static final List<MyDBReplicatedServer> replicas = new
+            ArrayList<MyDBReplicatedServer>();
+    private static final List<InetSocketAddress> addresses = new
+            ArrayList<InetSocketAddress>();
+    private static MyDBClient client;
+    private static StalledEngine stalled;
+    private static FailingEngine failing;
+
+    /**
+     * Holds back all statements until released, then runs them.
+     */
+    private static class StalledEngine extends InMemoryStorageEngine {
+        final List<Runnable> held = new ArrayList<Runnable>();
+        final AtomicInteger executed = new AtomicInteger();
+        boolean released = false;
+
+        StalledEngine(String keyspace) {
+            super(keyspace);
+        }
+
+        @Override
+        public ListenableFuture<Iterable<String>> executeAsync(final String
+                                                                       cql) {
+            final SettableFuture<Iterable<String>> future = SettableFuture
+                    .create();
+            Runnable run = new Runnable() {
+                @Override
+                public void run() {
+                    executed.incrementAndGet();
+                    try {
+                        future.set(execute(cql));
+                    } catch (RuntimeException e) {
+                        future.setException(e);
+                    }
+                }
+            };
+            synchronized (this) {
+                if (!released) {
+                    held.add(run);
+                    return future;
+                }
+            }
+            run.run();
+            return future;
+        }
+
+        void release() {
+            List<Runnable> runs;
+            synchronized (this) {
+                released = true;
+                runs = new ArrayList<Runnable>(held);
+                held.clear();
+            }
+            for (Runnable run : runs) run.run();
+        }
+    }
+
+    /**
+     * Fails to read its state the first time.
+     */
+    private static class FailingEngine extends InMemoryStorageEngine {
+        final AtomicInteger snapshots = new AtomicInteger();
+
+        FailingEngine(String keyspace) {
+            super(keyspace);
+        }
+
+        @Override
+        public Iterable<String> snapshotLazily() {
+            if (snapshots.getAndIncrement() == 0)
+                throw new IllegalStateException("Unable to read the state");
+            return super.snapshotLazily();
+        }
+    }
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        File config = File.createTempFile("catchup", ".properties");
+        config.deleteOnExit();
+        FileWriter writer = new FileWriter(config);
+        for (int i = 0; i < 3; i++)
+            writer.write(ReplicatedServer.SERVER_PREFIX + "replica" + i + " " +
+                    "= localhost:" + (2320 + i) + "\n");
+        writer.close();
+        nodeConfigServer = NodeConfigUtils.getNodeConfigFromFile(config
+                .getPath(), ReplicatedServer.SERVER_PREFIX, ReplicatedServer
+                .SERVER_PORT_OFFSET);
+        NodeConfig<String> nodeConfigClient = NodeConfigUtils
+                .getNodeConfigFromFile(config.getPath(), ReplicatedServer
+                        .SERVER_PREFIX);
+        for (final String node : nodeConfigServer.getNodeIDs()) {
+            replicas.add(new MyDBReplicatedServer(nodeConfigServer, node, null) {
+                @Override
+                protected StorageEngine createStorageEngine(InetSocketAddress
+                        isaDB, String keyspace) {
+                    StorageEngine engine = keyspace.equals("replica2") ?
+                            (stalled = new StalledEngine(keyspace)) : keyspace
+                            .equals("replica1") ? (failing = new
+                            FailingEngine(keyspace)) : new
+                            InMemoryStorageEngine(keyspace);
+                    engine.execute("create table " + TABLE + " (id int, " +
+                            "events list<int>, primary key (id))");
+                    engines.put(keyspace, engine);
+                    return engine;
+                }
+
+                @Override
+                protected TotalOrder createOrder(Set<String> nodes, TotalOrder
+                        .Transport transport, final TotalOrder.Delivery
+                        delivery) throws IOException {
+                    if (!node.equals("replica2"))
+                        return super.createOrder(nodes, transport, delivery);
+                    // the database recovers once the catch-up is under way
+                    return super.createOrder(nodes, transport, new TotalOrder
+                            .Delivery() {
+                        @Override
+                        public void deliver(long seq, String origin, long tag,
+                                            String cql) {
+                            delivery.deliver(seq, origin, tag, cql);
+                            if (cql.startsWith("-- snapshot")) stalled.release();
+                        }
+                    });
+                }
+            });
+            addresses.add(new InetSocketAddress(nodeConfigClient
+                    .getNodeAddress(node), nodeConfigClient.getNodePort(node)));
+        }
+        client = new MyDBClient(nodeConfigClient);
+    }
+
+    private static String rows(String node) {
+        return engines.get(node).execute("select * from " + TABLE).toString();
+    }
+
+    @Test
+    public void test01_InstallStateOfAnotherReplica() throws Exception {
+        List<CompletableFuture<byte[]>> futures = new
+                ArrayList<CompletableFuture<byte[]>>();
+        for (int key = 0; key < KEYS; key++)
+            futures.add(client.sendAsync(addresses.get(0), "insert into " +
+                    TABLE + " (id, events) values (" + key + ", [])"));
+        for (int i = 0; i < NUM_REQS; i++)
+            futures.add(client.sendAsync(addresses.get(i % 2), "update " +
+                    TABLE + " SET events=events+[" + i + "] where id=" + i %
+                    KEYS + ";"));
+        // acknowledged by the replicas that apply them
+        for (CompletableFuture<byte[]> future : futures)
+            future.get(30, TimeUnit.SECONDS);
+        Assert.assertTrue(replicas.get(2).getAppliedThrough() < NUM_REQS);
+
+        replicas.get(2).catchUp("replica0");
+        // a schema change is ordered after the catch-up, so it completes once
+        // the state has been installed
+        barrier();
+
+        Assert.assertEquals(rows("replica0"), rows("replica2"));
+        Assert.assertEquals(rows("replica0"), rows("replica1"));
+        Assert.assertEquals(replicas.get(0).getAppliedThrough(), replicas.get
+                (2).getAppliedThrough());
+        // most of the backlog was never applied
+        Assert.assertTrue(stalled.executed.get() < NUM_REQS / 2);
+    }
+
+    /**
+     * Orders a schema change at every replica, which completes once
+     * everything ordered before it, such as a catch-up, is done.
+     */
+    private static void barrier() throws Exception {
+        for (InetSocketAddress isa : addresses)
+            client.sendAsync(isa, "create table if not exists barrier (id " +
+                    "int, primary key (id))").get(30, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void test02_StreamStateLargerThanWindow() throws Exception {
+        client.sendAsync(addresses.get(0), "create table big (id int, text " +
+                "text, primary key (id))").get(30, TimeUnit.SECONDS);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 1000) text.append("lorem ipsum ");
+        List<CompletableFuture<byte[]>> futures = new
+                ArrayList<CompletableFuture<byte[]>>();
+        // about 1 MB, i.e., more parts than are sent ahead of acknowledgements
+        for (int i = 0; i < 1000; i++)
+            futures.add(client.sendAsync(addresses.get(i % 2), "insert into " +
+                    "big (id, text) values (" + i + ", '" + text + "')"));
+        for (CompletableFuture<byte[]> future : futures)
+            future.get(30, TimeUnit.SECONDS);
+
+        replicas.get(2).catchUp("replica0");
+        barrier();
+        Assert.assertEquals(engines.get("replica0").execute("select * from " +
+                "big").toString(), engines.get("replica2").execute("select * " +
+                "from big").toString());
+        Assert.assertEquals(rows("replica0"), rows("replica2"));
+    }
+
+    @Test
+    public void test03_AnotherDonorAfterFailure() throws Exception {
+        client.sendAsync(addresses.get(0), "update " + TABLE + " SET events=" +
+                "events+[" + NUM_REQS + "] where id=0;").get(30, TimeUnit
+                .SECONDS);
+        replicas.get(2).catchUp("replica1");
+        // replica2 asks replica0 once it gives up waiting for replica1
+        barrier();
+        Assert.assertEquals(1, failing.snapshots.get());
+        Assert.assertEquals(rows("replica0"), rows("replica2"));
+        Assert.assertEquals(replicas.get(0).getAppliedThrough(), replicas.get
+                (2).getAppliedThrough());
+    }
+
+    @AfterClass
+    public static void teardown() {
+        if (client != null) client.close();
+        for (MyDBReplicatedServer replica : replicas) replica.close();
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(CatchUpTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.CqlShape;
+
+import java.util.Arrays;
+
+/**
+ * Checks the literal extraction used by the server's prepared statement
+ * cache. These tests do not need a running Cassandra instance.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class CqlShapeTest {
+
+    @Test
+    public void test01_UpdateWithListAppend() {
+        CqlShape shape = CqlShape.of("update grade SET events=events+[42] " +
+                "where id=-7;");
+        Assert.assertEquals("update grade SET events=events+? where id=?;",
+                shape.text);
+        Assert.assertEquals(Arrays.asList("[42]", "-7"), shape.literals);
+    }
+
+    @Test
+    public void test02_SameShapeForDifferentLiterals() {
+        Assert.assertEquals(CqlShape.of("insert into users (ssn, firstname) " +
+                        "values (1, 'John0')").text,
+                CqlShape.of("insert into users (ssn, firstname) values " +
+                        "(99, 'O''Brien')").text);
+    }
+
+    @Test
+    public void test03_IdentifiersWithDigitsAreKept() {
+        CqlShape shape = CqlShape.of("select c1 from ks2.t3 where k=5 limit 10");
+        Assert.assertEquals("select c1 from ks2.t3 where k=? limit ?",
+                shape.text);
+        Assert.assertEquals(Arrays.asList("5", "10"), shape.literals);
+    }
+
+    @Test
+    public void test04_UuidsAndBlobs() {
+        CqlShape shape = CqlShape.of("delete from t where id=123e4567-e89b" +
+                "-12d3-a456-426655440000 and b=0xCAFE");
+        Assert.assertEquals("delete from t where id=? and b=?", shape.text);
+        Assert.assertEquals(2, shape.literals.size());
+    }
+
+    @Test
+    public void test05_NoShape() {
+        Assert.assertNull(CqlShape.of("create table if not exists grade (id " +
+                "int, events list<int>, primary key (id));"));
+        Assert.assertNull(CqlShape.of("truncate users"));
+        Assert.assertNull(CqlShape.of("select * from t where k=? -- marker"));
+        Assert.assertNull(CqlShape.of("select * from t where k='unterminated"));
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(CqlShapeTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.CqlStatement;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Checks the statement classification used for batching and ordering.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class CqlStatementTest {
+
+    @Test
+    public void test01_GraderStatements() {
+        CqlStatement insert = CqlStatement.parse("insert into grade (id, " +
+                "events) values (42, []);");
+        Assert.assertEquals(CqlStatement.Kind.INSERT, insert.kind);
+        Assert.assertEquals("grade", insert.table);
+        Assert.assertEquals("42", insert.key(Collections.singletonList("id")));
+
+        CqlStatement update = CqlStatement.parse("update grade SET events=" +
+                "events+[7] where id=42;");
+        Assert.assertEquals(CqlStatement.Kind.UPDATE, update.kind);
+        Assert.assertEquals("42", update.key(Collections.singletonList("id")));
+        Assert.assertFalse(update.counterUpdate);
+
+        CqlStatement select = CqlStatement.parse("select events from demo" +
+                ".grade where id=42;");
+        Assert.assertEquals(CqlStatement.Kind.SELECT, select.kind);
+        Assert.assertEquals("demo.grade", select.qualifiedTable("other"));
+    }
+
+    @Test
+    public void test02_PartialKey() {
+        CqlStatement delete = CqlStatement.parse("DELETE FROM t WHERE a = 1 " +
+                "AND b IN (2, 3)");
+        Assert.assertEquals(CqlStatement.Kind.DELETE, delete.kind);
+        Assert.assertEquals("1", delete.key(Collections.singletonList("a")));
+        Assert.assertNull(delete.key(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void test03_CountersAndConditions() {
+        Assert.assertTrue(CqlStatement.parse("update c set n = n + 1 where " +
+                "k='x'").counterUpdate);
+        Assert.assertTrue(CqlStatement.parse("update t set v=1 where k=1 if " +
+                "v=0").conditional);
+        Assert.assertTrue(CqlStatement.parse("insert into t (k) values (1) " +
+                "if not exists").conditional);
+    }
+
+    @Test
+    public void test04_Ddl() {
+        Assert.assertEquals(CqlStatement.Kind.DDL, CqlStatement.parse(
+                "truncate users").kind);
+        Assert.assertEquals(CqlStatement.Kind.DDL, CqlStatement.parse(
+                "create table if not exists grade (id int, events list<int>, " +
+                        "primary key (id));").kind);
+        Assert.assertEquals(CqlStatement.Kind.OTHER, CqlStatement.parse(
+                "begin batch insert into t (k) values (1) apply batch").kind);
+    }
+
+    @Test
+    public void test05_Commutativity() {
+        CqlStatement append = CqlStatement.parse("update grade SET events=" +
+                "events+[7] where id=42;");
+        CqlStatement add = CqlStatement.parse("update t set tags = tags + " +
+                "{'a:b'} where k = 1");
+        CqlStatement remove = CqlStatement.parse("update t set tags = tags - " +
+                "{'c'} where k = 1");
+        CqlStatement counter = CqlStatement.parse("update c set n = n - 2 " +
+                "where k = 'x'");
+        CqlStatement overwrite = CqlStatement.parse("update t set v = 3 where " +
+                "k = 1");
+        Assert.assertNull(append.commutativity());
+        Assert.assertFalse(append.commutesWith(append));
+        Assert.assertEquals("tags+{}", add.commutativity());
+        Assert.assertEquals("n+n", counter.commutativity());
+        Assert.assertTrue(add.commutesWith(add));
+        Assert.assertFalse(add.commutesWith(remove));
+        Assert.assertTrue(remove.commutesWith(remove));
+        // different columns, and the same value written twice
+        Assert.assertTrue(add.commutesWith(overwrite));
+        Assert.assertTrue(overwrite.commutesWith(overwrite));
+        Assert.assertNull(overwrite.commutativity());
+        Assert.assertFalse(overwrite.commutesWith(CqlStatement.parse("update " +
+                "t set v = 4 where k = 1")));
+        // maps, conditions, timestamps and inserts are not understood
+        Assert.assertNull(CqlStatement.parse("update t set m = m + {'k': 1} " +
+                "where k = 1").commutativity());
+        Assert.assertNull(CqlStatement.parse("update t set s = s + {1} where " +
+                "k = 1 if v = 0").commutativity());
+        Assert.assertNull(CqlStatement.parse("update t using ttl 5 set s = s + " +
+                "{1} where k = 1").commutativity());
+        CqlStatement insert = CqlStatement.parse("insert into t (k, v) values " +
+                "(1, 3)");
+        Assert.assertFalse(insert.commutesWith(insert));
+        Assert.assertFalse(overwrite.commutesWith(insert));
+    }
+
+    @Test
+    public void test06_Idempotence() {
+        String[] idempotent = {
+                "select * from t where k = 1",
+                "insert into t (k, v, l) values (1, 'a', [1, 2])",
+                "delete from t where k = 1",
+                "delete v, s from t where k = 1",
+                "update t set v = 3, l = [1] where k = 1",
+                "update t set s = s + {1}, r = r - {2} where k = 1",
+        };
+        for (String cql : idempotent)
+            Assert.assertTrue(cql, CqlStatement.parse(cql).isIdempotent());
+        String[] not = {
+                "insert into t (k, v) values (1, 2) if not exists",
+                "insert into t (k, v) values (1, now())",
+                "delete l[0] from t where k = 1",
+                "delete from t where k = 1 if v = 2",
+                "update t set l = l + [1] where k = 1",
+                "update t set n = n + 1 where k = 1",
+                "update t set v = 3 where k = 1 if v = 2",
+                "update t set v = v where k = 1",
+                "create table u (k int primary key)",
+                "begin batch insert into t (k) values (1) apply batch",
+        };
+        for (String cql : not)
+            Assert.assertFalse(cql, CqlStatement.parse(cql).isIdempotent());
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(CqlStatementTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
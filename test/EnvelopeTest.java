@@ -0,0 +1,143 @@
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.Envelope;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the binary request/response framing shared by client and servers.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class EnvelopeTest {
+
+    @Test
+    public void test01_RoundTrip() {
+        String cql = "insert into t (k, v) values (1, 'a:b:c')";
+        byte[] bytes = Envelope.encode(Envelope.REQUEST, 0, 300L, "demo", cql);
+        Envelope envelope = new Envelope();
+        Assert.assertTrue(Envelope.isEnvelope(bytes, 0));
+        Assert.assertTrue(envelope.wrap(bytes, 0));
+        Assert.assertEquals(Envelope.REQUEST, envelope.opcode());
+        Assert.assertEquals(300L, envelope.id());
+        Assert.assertTrue(envelope.keyspaceEquals("demo"));
+        Assert.assertFalse(envelope.keyspaceEquals("demo2"));
+        Assert.assertEquals(cql, envelope.payloadString());
+        Assert.assertEquals(bytes.length, envelope.end());
+    }
+
+    @Test
+    public void test02_Utf8Payload() {
+        String text = "caf\u00e9 \u20ac \ud83d\ude00";
+        byte[] bytes = Envelope.encode(Envelope.RESPONSE, 0, Long.MAX_VALUE,
+                null, text);
+        Envelope envelope = new Envelope();
+        Assert.assertTrue(envelope.wrap(bytes, 0));
+        Assert.assertFalse(envelope.hasKeyspace());
+        Assert.assertEquals(Long.MAX_VALUE, envelope.id());
+        Assert.assertEquals(text, envelope.payloadString());
+        Assert.assertEquals(text.getBytes(StandardCharsets.UTF_8).length,
+                Envelope.utf8Length(text));
+    }
+
+    @Test
+    public void test03_TextIsNotAnEnvelope() throws Exception {
+        byte[] text = "Request-1:select * from t".getBytes("ISO-8859-1");
+        Assert.assertFalse(Envelope.isEnvelope(text, 0));
+        Assert.assertFalse(new Envelope().wrap(text, 0));
+    }
+
+    @Test
+    public void test04_Truncated() {
+        byte[] bytes = Envelope.encode(Envelope.REQUEST, 0, 7, null, "select " +
+                "* from t");
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        Assert.assertFalse(new Envelope().wrap(truncated, 0));
+    }
+
+    @Test
+    public void test05_BatchMembers() {
+        byte[] a = Envelope.encode(Envelope.REQUEST, 0, 1, null, "select 1");
+        byte[] b = Envelope.encode(Envelope.REQUEST, 0, 2, null, "select 2");
+        byte[] batch = Envelope.encodeBatch(Arrays.asList(a, b), a.length + b
+                .length);
+        Envelope envelope = new Envelope();
+        Assert.assertTrue(envelope.wrap(batch, 0));
+        Assert.assertEquals(Envelope.BATCH, envelope.opcode());
+
+        Envelope member = new Envelope();
+        long ids = 0;
+        int count = 0;
+        for (int pos = envelope.payloadOffset(); member.wrapMember(envelope,
+                pos); pos = member.end()) {
+            ids += member.id();
+            count++;
+        }
+        Assert.assertEquals(2, count);
+        Assert.assertEquals(3, ids);
+    }
+
+    @Test
+    public void test06_TraceId() {
+        String cql = "update t SET v=v+[1] where k=1;";
+        long trace = 0x3f2a17L << 32;
+        byte[] bytes = Envelope.encode(Envelope.REQUEST, 0, 9, trace, "demo",
+                cql);
+        Assert.assertEquals(Envelope.size(9, trace, 4, cql.length()), bytes
+                .length);
+        Envelope envelope = new Envelope();
+        Assert.assertTrue(envelope.wrap(bytes, 0));
+        Assert.assertEquals(Envelope.FLAG_TRACED, envelope.flags());
+        Assert.assertEquals(trace, envelope.traceId());
+        Assert.assertEquals(9, envelope.id());
+        Assert.assertTrue(envelope.keyspaceEquals("demo"));
+        Assert.assertEquals(cql, envelope.payloadString());
+
+        // untraced envelopes are laid out as before
+        byte[] plain = Envelope.encode(Envelope.REQUEST, 0, 9, 0, "demo", cql);
+        Assert.assertArrayEquals(Envelope.encode(Envelope.REQUEST, 0, 9,
+                "demo", cql), plain);
+        Assert.assertTrue(envelope.wrap(plain, 0));
+        Assert.assertEquals(0, envelope.traceId());
+        Assert.assertEquals(0, envelope.flags());
+    }
+
+    @Test
+    public void test07_Rows() {
+        List<byte[]> rows = new ArrayList<byte[]>();
+        int bytes = 0;
+        for (String row : Arrays.asList("Row[1, [4, 5]]", "", "Row[caf\u00e9]")) {
+            rows.add(row.getBytes(StandardCharsets.UTF_8));
+            bytes += rows.get(rows.size() - 1).length;
+        }
+        Envelope envelope = new Envelope();
+        Assert.assertTrue(envelope.wrap(Envelope.encodeRows(300, 129, true,
+                rows, bytes), 0));
+        Assert.assertEquals(Envelope.ROWS, envelope.opcode());
+        Assert.assertEquals(Envelope.FLAG_MORE, envelope.flags());
+        Assert.assertEquals(300, envelope.id());
+        Assert.assertEquals(129, envelope.rowsIndex());
+        Assert.assertEquals(Arrays.asList("Row[1, [4, 5]]", "", "Row[caf" +
+                "\u00e9]"), envelope.rows());
+
+        Assert.assertTrue(envelope.wrap(Envelope.encodeRows(7, 0, false, new
+                ArrayList<byte[]>(), 0), 0));
+        Assert.assertEquals(0, envelope.flags());
+        Assert.assertTrue(envelope.rows().isEmpty());
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(EnvelopeTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
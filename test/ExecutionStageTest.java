@@ -0,0 +1,206 @@
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.ExecutionStage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the worker stage's bounds and reject policies, and that tasks
+ * with a key run in order without the submitting thread waiting for room.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class ExecutionStageTest {
+
+    private static Runnable blocker(final CountDownLatch started, final
+    CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static void testFull(ExecutionStage.Mode mode) throws
+            InterruptedException {
+        ExecutionStage stage = new ExecutionStage("test", mode, 1, 1,
+                ExecutionStage.RejectPolicy.REJECT);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            Assert.assertTrue(stage.execute(blocker(started, release)));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            // one more may wait for platform threads; virtual ones take one
+            // permit per task
+            boolean second = stage.execute(blocker(new CountDownLatch(1),
+                    release));
+            Assert.assertEquals(stage.getMode() == ExecutionStage.Mode
+                    .PLATFORM, second);
+            Assert.assertFalse(stage.execute(blocker(new CountDownLatch(1),
+                    release)));
+            Assert.assertTrue(stage.getRejected() > 0);
+        } finally {
+            release.countDown();
+            stage.close();
+        }
+    }
+
+    @Test
+    public void test01_RejectWhenFull() throws InterruptedException {
+        testFull(ExecutionStage.Mode.PLATFORM);
+    }
+
+    @Test
+    public void test02_VirtualOrFallback() throws InterruptedException {
+        testFull(ExecutionStage.Mode.VIRTUAL);
+    }
+
+    @Test
+    public void test03_CallerRuns() throws InterruptedException {
+        ExecutionStage stage = new ExecutionStage("test", ExecutionStage.Mode
+                .PLATFORM, 1, 1, ExecutionStage.RejectPolicy.CALLER_RUNS);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger ranHere = new AtomicInteger();
+        final Thread caller = Thread.currentThread();
+        try {
+            stage.execute(blocker(started, release));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            stage.execute(blocker(new CountDownLatch(1), release));
+            Assert.assertTrue(stage.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (Thread.currentThread() == caller) ranHere.incrementAndGet();
+                }
+            }));
+            Assert.assertEquals(1, ranHere.get());
+        } finally {
+            release.countDown();
+            stage.close();
+        }
+    }
+
+    @Test
+    public void test04_KeyedTasksInOrder() throws InterruptedException {
+        ExecutionStage stage = new ExecutionStage("test", ExecutionStage.Mode
+                .PLATFORM, 4, 1024, ExecutionStage.RejectPolicy.CALLER_RUNS);
+        final int keys = 4, tasks = 2000;
+        final List<List<Integer>> ran = new ArrayList<List<Integer>>();
+        for (int key = 0; key < keys; key++)
+            ran.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        final CountDownLatch done = new CountDownLatch(tasks);
+        try {
+            for (int i = 0; i < tasks; i++) {
+                final int key = i % keys, seq = i;
+                Runnable task = new Runnable() {
+                    @Override
+                    public void run() {
+                        ran.get(key).add(seq);
+                        done.countDown();
+                    }
+                };
+                // a task refused when the lanes are full is sent again
+                while (!stage.execute(key, task)) Thread.yield();
+            }
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            for (int key = 0; key < keys; key++) {
+                List<Integer> expected = new ArrayList<Integer>();
+                for (int i = key; i < tasks; i += keys) expected.add(i);
+                Assert.assertEquals(expected, ran.get(key));
+            }
+        } finally {
+            stage.close();
+        }
+    }
+
+    @Test
+    public void test05_KeysRunInParallel() throws InterruptedException {
+        ExecutionStage stage = new ExecutionStage("test", ExecutionStage.Mode
+                .PLATFORM, 2, 3, ExecutionStage.RejectPolicy.REJECT);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger behind = new AtomicInteger();
+        try {
+            Assert.assertTrue(stage.execute("a", blocker(started, release)));
+            // waits behind the blocked task of its key
+            Assert.assertTrue(stage.execute("a", new Runnable() {
+                @Override
+                public void run() {
+                    behind.incrementAndGet();
+                }
+            }));
+            // while another key is not held up
+            Assert.assertTrue(stage.execute("b", blocker(started, release)));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(0, behind.get());
+            // three tasks are running or waiting, which is all that may
+            Assert.assertFalse(stage.execute("c", blocker(new CountDownLatch
+                    (1), release)));
+            Assert.assertTrue(stage.getRejected() > 0);
+            release.countDown();
+            for (int i = 0; i < 1000 && behind.get() == 0; i++)
+                Thread.sleep(10);
+            Assert.assertEquals(1, behind.get());
+        } finally {
+            release.countDown();
+            stage.close();
+        }
+    }
+
+    @Test
+    public void test06_KeyedCallerRunsDoesNotWait() throws
+            InterruptedException {
+        ExecutionStage stage = new ExecutionStage("test", ExecutionStage.Mode
+                .PLATFORM, 1, 1, ExecutionStage.RejectPolicy.CALLER_RUNS);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger ranHere = new AtomicInteger();
+        final Thread caller = Thread.currentThread();
+        try {
+            Assert.assertTrue(stage.execute("a", blocker(started, release)));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            // refused rather than waited for, as it would overtake the
+            // running task of its key
+            Assert.assertFalse(stage.execute("a", new Runnable() {
+                @Override
+                public void run() {
+                    ranHere.incrementAndGet();
+                }
+            }));
+            // while a key with nothing running is run by the caller
+            Assert.assertTrue(stage.execute("b", new Runnable() {
+                @Override
+                public void run() {
+                    if (Thread.currentThread() == caller) ranHere.incrementAndGet();
+                }
+            }));
+            Assert.assertEquals(1, ranHere.get());
+            Assert.assertEquals(2, stage.getRejected());
+        } finally {
+            release.countDown();
+            stage.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(ExecutionStageTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import client.MyDBClient;
+import edu.umass.cs.nio.interfaces.NodeConfig;
+import edu.umass.cs.nio.nioutils.NIOHeader;
+import edu.umass.cs.nio.nioutils.NodeConfigUtils;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.Envelope;
+import server.FrameBatcher;
+import server.InMemoryStorageEngine;
+import server.MyDBReplicatedServer;
+import server.ReplicatedServer;
+import server.StorageEngine;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queues envelopes in a batcher whose sink records what it is handed and
+ * checks when batches are sent and what they carry, then runs replicated
+ * servers that batch their messages to each other and checks that batches
+ * do go between them and that the replicas still agree.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class FrameBatcherTest {
+    private static final ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor(new DefaultThreadFactory
+                    ("test-batcher", true));
+    private static final List<MyDBReplicatedServer> replicas = new
+            ArrayList<MyDBReplicatedServer>();
+    private static MyDBClient client;
+
+    /**
+     * A frame handed to the sink.
+     */
+    private static class Sent {
+        final String dest;
+        final byte[] frame;
+
+        Sent(String dest, byte[] frame) {
+            this.dest = dest;
+            this.frame = frame;
+        }
+
+        /**
+         * @return the ids of the envelopes the frame carries
+         */
+        List<Long> ids() {
+            Envelope envelope = new Envelope();
+            Assert.assertTrue(envelope.wrap(frame, 0));
+            List<Long> ids = new ArrayList<Long>();
+            if (envelope.opcode() != Envelope.BATCH) {
+                ids.add(envelope.id());
+                return ids;
+            }
+            Envelope member = new Envelope();
+            for (int pos = envelope.payloadOffset(); member.wrapMember(envelope,
+                    pos); pos = member.end())
+                ids.add(member.id());
+            return ids;
+        }
+    }
+
+    private static final BlockingQueue<Sent> sent = new LinkedBlockingQueue
+            <Sent>();
+
+    private static FrameBatcher<String> batcher(int maxMessages, int maxBytes,
+                                                long lingerMicros) {
+        sent.clear();
+        return new FrameBatcher<String>(new FrameBatcher.Sink<String>() {
+            @Override
+            public void send(String dest, byte[] frame) {
+                sent.add(new Sent(dest, frame));
+            }
+        }, maxMessages, maxBytes, lingerMicros, scheduler);
+    }
+
+    private static byte[] envelope(long id) {
+        return Envelope.encode(Envelope.REQUEST, 0, id, null, "insert into t " +
+                "(k) values (" + id + ")");
+    }
+
+    @Test
+    public void test01_SentWhenFull() throws Exception {
+        FrameBatcher<String> batcher = batcher(3, 1 << 20, 10000000);
+        for (long id = 1; id <= 7; id++) batcher.add("a", envelope(id));
+        Sent first = sent.poll(1, TimeUnit.SECONDS);
+        Sent second = sent.poll(1, TimeUnit.SECONDS);
+        Assert.assertEquals("[1, 2, 3]", first.ids().toString());
+        Assert.assertEquals("[4, 5, 6]", second.ids().toString());
+        // the seventh waits for company
+        Assert.assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+        batcher.flushAll();
+        Assert.assertEquals("[7]", sent.poll(1, TimeUnit.SECONDS).ids()
+                .toString());
+    }
+
+    @Test
+    public void test02_SentAtByteLimit() throws Exception {
+        int size = envelope(1).length;
+        FrameBatcher<String> batcher = batcher(100, 2 * size, 10000000);
+        batcher.add("a", envelope(1));
+        Assert.assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+        batcher.add("a", envelope(2));
+        Assert.assertEquals("[1, 2]", sent.poll(1, TimeUnit.SECONDS).ids()
+                .toString());
+    }
+
+    @Test
+    public void test03_LingerSendsLoneEnvelopeAsItself() throws Exception {
+        FrameBatcher<String> batcher = batcher(100, 1 << 20, 1000);
+        byte[] envelope = envelope(1);
+        batcher.add("a", envelope);
+        Sent lone = sent.poll(1, TimeUnit.SECONDS);
+        Assert.assertNotNull(lone);
+        Assert.assertArrayEquals(envelope, lone.frame);
+
+        // nor is a batch full at one envelope
+        batcher(1, 1 << 20, 1000).add("a", envelope);
+        Assert.assertArrayEquals(envelope, sent.poll(1, TimeUnit.SECONDS)
+                .frame);
+    }
+
+    @Test
+    public void test04_DestinationsBatchedApart() throws Exception {
+        FrameBatcher<String> batcher = batcher(2, 1 << 20, 10000000);
+        batcher.add("a", envelope(1));
+        batcher.add("b", envelope(2));
+        batcher.add("a", envelope(3));
+        Sent a = sent.poll(1, TimeUnit.SECONDS);
+        Assert.assertEquals("a", a.dest);
+        Assert.assertEquals("[1, 3]", a.ids().toString());
+        Assert.assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+        batcher.flushAll();
+        Sent b = sent.poll(1, TimeUnit.SECONDS);
+        Assert.assertEquals("b", b.dest);
+        Assert.assertEquals("[2]", b.ids().toString());
+    }
+
+    @Test
+    public void test05_ServersBatchMessages() throws Exception {
+        Assume.assumeTrue(MyDBReplicatedServer.SERVER_BATCH_SIZE > 1);
+        File config = File.createTempFile("batching", ".properties");
+        config.deleteOnExit();
+        FileWriter writer = new FileWriter(config);
+        for (int i = 0; i < 3; i++)
+            writer.write(ReplicatedServer.SERVER_PREFIX + "replica" + i + " " +
+                    "= localhost:" + (2400 + i) + "\n");
+        writer.close();
+        NodeConfig<String> nodeConfigServer = NodeConfigUtils
+                .getNodeConfigFromFile(config.getPath(), ReplicatedServer
+                        .SERVER_PREFIX, ReplicatedServer.SERVER_PORT_OFFSET);
+        NodeConfig<String> nodeConfigClient = NodeConfigUtils
+                .getNodeConfigFromFile(config.getPath(), ReplicatedServer
+                        .SERVER_PREFIX);
+        final Map<String, StorageEngine> engines = new HashMap<String,
+                StorageEngine>();
+        final AtomicInteger batches = new AtomicInteger();
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (String node : nodeConfigServer.getNodeIDs()) {
+            replicas.add(new MyDBReplicatedServer(nodeConfigServer, node, null) {
+                @Override
+                protected StorageEngine createStorageEngine(InetSocketAddress
+                        isaDB, String keyspace) {
+                    StorageEngine engine = new InMemoryStorageEngine(keyspace);
+                    engine.execute("create table t (k int, v int, primary " +
+                            "key (k))");
+                    engines.put(keyspace, engine);
+                    return engine;
+                }
+
+                @Override
+                protected void handleMessageFromServer(byte[] bytes, NIOHeader
+                        header) {
+                    Envelope envelope = new Envelope();
+                    if (envelope.wrap(bytes, 0) && envelope.opcode() ==
+                            Envelope.BATCH)
+                        batches.incrementAndGet();
+                    super.handleMessageFromServer(bytes, header);
+                }
+            });
+            addresses.add(new InetSocketAddress(nodeConfigClient
+                    .getNodeAddress(node), nodeConfigClient.getNodePort(node)));
+        }
+        client = new MyDBClient(nodeConfigClient);
+
+        // a burst, so that messages to each server queue up together
+        List<CompletableFuture<byte[]>> futures = new
+                ArrayList<CompletableFuture<byte[]>>();
+        for (int k = 0; k < 500; k++)
+            futures.add(client.sendAsync(addresses.get(k % addresses.size()),
+                    "insert into t (k, v) values (" + k + ", " + k + ")"));
+        for (CompletableFuture<byte[]> future : futures)
+            future.get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(batches.get() > 0);
+        for (MyDBReplicatedServer replica : replicas)
+            for (int i = 0; i < 1000 && replica.getAppliedThrough() < 500; i++)
+                Thread.sleep(10);
+        for (StorageEngine engine : engines.values())
+            Assert.assertEquals("[Row[500]]", engine.execute("select count(*) " +
+                    "from t").toString());
+        // members are counted one by one
+        long sent = 0, received = 0;
+        for (MyDBReplicatedServer replica : replicas) {
+            sent += replica.getMetrics().getRegistry().meter("messages.sent")
+                    .getCount();
+            received += replica.getMetrics().getRegistry().meter(
+                    "messages.received").getCount();
+        }
+        Assert.assertEquals(sent, received);
+        Assert.assertTrue(sent > batches.get());
+    }
+
+    @AfterClass
+    public static void teardown() {
+        if (client != null) client.close();
+        for (MyDBReplicatedServer replica : replicas) replica.close();
+        scheduler.shutdownNow();
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(FrameBatcherTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
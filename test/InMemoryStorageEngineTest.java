@@ -0,0 +1,145 @@
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.InMemoryStorageEngine;
+import server.StorageEngine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the statements the graders issue against the in-memory engine.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class InMemoryStorageEngineTest {
+
+    private static List<String> rows(StorageEngine engine, String cql) {
+        List<String> rows = new ArrayList<String>();
+        for (String row : engine.execute(cql)) rows.add(row);
+        return rows;
+    }
+
+    @Test
+    public void test01_InsertSelectCount() {
+        StorageEngine engine = new InMemoryStorageEngine("demo");
+        engine.execute("create table if not exists demo.users (age int, " +
+                "firstname text, lastname text, ssn int, address text, hash " +
+                "bigint, primary key (ssn))");
+        engine.execute("create table if not exists demo.users (ssn int " +
+                "primary key)");
+        for (int i = 0; i < 10; i++)
+            engine.execute("insert into users (ssn, firstname, lastname) " +
+                    "values (" + i + ", 'John" + i + "', 'O''Smith" + i + "')");
+        Assert.assertEquals("[Row[10]]", rows(engine, "select count(*) from " +
+                "demo.users").toString());
+        Assert.assertEquals("[Row[John3, O'Smith3]]", rows(engine, "select " +
+                "firstname, lastname from users where ssn = 3;").toString());
+        Assert.assertEquals("[Row[3, NULL, NULL, John3, NULL, O'Smith3]]",
+                rows(engine, "select * from users where ssn = 3").toString());
+        Assert.assertEquals("[Row[users]]", rows(engine, "select table_name " +
+                "from system_schema.tables where keyspace_name='demo'")
+                .toString());
+
+        engine.execute("truncate table demo.users");
+        Assert.assertEquals("[Row[0]]", rows(engine, "select count(*) from " +
+                "users").toString());
+        engine.execute("drop table if exists demo.users");
+        Assert.assertTrue(rows(engine, "select table_name from system_schema" +
+                ".tables").isEmpty());
+    }
+
+    @Test
+    public void test02_ListAppend() {
+        StorageEngine engine = new InMemoryStorageEngine("server0");
+        engine.execute("create table if not exists server0.grade (id int, " +
+                "events list<int>, primary key (id));");
+        engine.execute("insert into grade (id, events) values (7, []);");
+        for (int i = 1; i <= 3; i++)
+            engine.execute("update grade SET events=events+[" + i + "] where " +
+                    "id=7;");
+        engine.execute("update grade SET events=[0]+events where id=7;");
+        Assert.assertEquals("[Row[[0, 1, 2, 3]]]", rows(engine, "select " +
+                "events from server0.grade where id=7;").toString());
+        // an update creates the row
+        engine.execute("update grade set events=events+[5] where id=8");
+        Assert.assertEquals("[Row[[5]]]", rows(engine, "select events from " +
+                "grade where id=8").toString());
+        engine.execute("delete from grade where id=8");
+        Assert.assertTrue(rows(engine, "select events from grade where id=8")
+                .isEmpty());
+    }
+
+    @Test
+    public void test03_Errors() {
+        StorageEngine engine = new InMemoryStorageEngine("demo");
+        try {
+            engine.execute("insert into missing (k) values (1)");
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        engine.execute("create table t (k int primary key, v text)");
+        try {
+            engine.execute("insert into t (k, v) values ('a', 'b')");
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        Assert.assertTrue(engine.executeAsync("select * from t where v > 'a'")
+                .isDone());
+        try {
+            engine.executeAsync("select * from t where v > 'a'").get();
+            Assert.fail();
+        } catch (Exception expected) {
+        }
+    }
+
+    @Test
+    public void test04_CompoundKeyAndCollections() {
+        StorageEngine engine = new InMemoryStorageEngine("demo");
+        engine.execute("create table t (a int, b text, s set<int>, m " +
+                "map<text, int>, c counter, primary key ((a), b))");
+        engine.execute("update t set s = s + {3, 1}, m = m + {'x': 1} where " +
+                "a = 1 and b = 'p'");
+        engine.execute("update t set s = s - {3} where a = 1 and b = 'p'");
+        Assert.assertEquals("[Row[1, p, NULL, {x=1}, [1]]]", rows(engine,
+                "select * from t where a = 1 and b = 'p'").toString());
+        engine.execute("update t set c = c + 5 where a = 1 and b = 'q'");
+        engine.execute("update t set c = c - 2 where a = 1 and b = 'q'");
+        Assert.assertEquals("[Row[3]]", rows(engine, "select c from t where " +
+                "a = 1 and b = 'q'").toString());
+        Assert.assertEquals("[Row[2]]", rows(engine, "select count(*) from t " +
+                "where a = 1").toString());
+    }
+
+    @Test
+    public void test05_SnapshotRestore() {
+        StorageEngine source = new InMemoryStorageEngine("one");
+        source.execute("create table t (a int, b text, l list<int>, s " +
+                "set<text>, m map<text, int>, primary key ((a), b))");
+        source.execute("insert into t (a, b, l, s, m) values (1, 'it''s', " +
+                "[3, 1], {'x', 'y'}, {'k': 2})");
+        source.execute("insert into t (a, b) values (2, 'q')");
+        source.execute("create table u (k int primary key, v int)");
+
+        StorageEngine target = new InMemoryStorageEngine("two");
+        target.execute("create table old (k int primary key)");
+        target.restore(source.snapshot());
+        Assert.assertNull(target.primaryKey(null, "old"));
+        Assert.assertEquals(rows(source, "select * from t where a = 1"), rows
+                (target, "select * from t where a = 1"));
+        Assert.assertEquals("[Row[2, q, NULL, NULL, NULL]]", rows(target,
+                "select * from t where a = 2").toString());
+        Assert.assertEquals("[Row[0]]", rows(target, "select count(*) from u")
+                .toString());
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(InMemoryStorageEngineTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import client.LatencyHistogram;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+/**
+ * Checks the percentiles of the load generator's histogram against known
+ * distributions.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class LatencyHistogramTest {
+
+    private static void assertClose(long expected, long actual) {
+        Assert.assertTrue(expected + " vs " + actual, actual >= expected &&
+                actual <= expected + expected / 64 + 1);
+    }
+
+    @Test
+    public void test01_Uniform() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 100000; v++) h.record(v);
+        Assert.assertEquals(100000, h.getCount());
+        Assert.assertEquals(100000, h.getMax());
+        Assert.assertEquals(50000.5, h.getMean(), 1e-9);
+        assertClose(50000, h.getValueAt(0.5));
+        assertClose(99000, h.getValueAt(0.99));
+        assertClose(99900, h.getValueAt(0.999));
+        Assert.assertEquals(100000, h.getValueAt(1));
+    }
+
+    @Test
+    public void test02_SmallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) h.record(3);
+        h.record(Long.MAX_VALUE);
+        Assert.assertEquals(3, h.getValueAt(0.5));
+        Assert.assertEquals(3, h.getValueAt(0.99));
+        Assert.assertEquals(Long.MAX_VALUE, h.getValueAt(0.999));
+        Assert.assertEquals(0, new LatencyHistogram().getValueAt(0.5));
+    }
+
+    @Test
+    public void test03_Add() {
+        LatencyHistogram a = new LatencyHistogram(), b = new LatencyHistogram();
+        for (int i = 0; i < 900; i++) a.record(10);
+        for (int i = 0; i < 100; i++) b.record(5000);
+        a.add(b);
+        Assert.assertEquals(1000, a.getCount());
+        Assert.assertEquals(10, a.getValueAt(0.9));
+        assertClose(5000, a.getValueAt(0.95));
+        Assert.assertEquals(5000, a.getMax());
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(LatencyHistogramTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
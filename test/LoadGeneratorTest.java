@@ -0,0 +1,131 @@
+import client.LatencyHistogram;
+import client.LoadGenerator;
+import client.MyDBClient;
+import edu.umass.cs.nio.interfaces.NodeConfig;
+import edu.umass.cs.nio.nioutils.NodeConfigUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.InMemoryStorageEngine;
+import server.MyDBReplicatedServer;
+import server.ReplicatedServer;
+import server.StorageEngine;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs short closed- and open-loop workloads against in-memory replicated
+ * servers and checks that every request is accounted for.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class LoadGeneratorTest {
+    private static final List<MyDBReplicatedServer> replicas = new
+            ArrayList<MyDBReplicatedServer>();
+    private static MyDBClient client;
+    private static LoadGenerator load;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        File config = File.createTempFile("load", ".properties");
+        config.deleteOnExit();
+        FileWriter writer = new FileWriter(config);
+        for (int i = 0; i < 3; i++)
+            writer.write(ReplicatedServer.SERVER_PREFIX + "replica" + i + " " +
+                    "= localhost:" + (2330 + i) + "\n");
+        writer.close();
+        NodeConfig<String> nodeConfigServer = NodeConfigUtils
+                .getNodeConfigFromFile(config.getPath(), ReplicatedServer
+                        .SERVER_PREFIX, ReplicatedServer.SERVER_PORT_OFFSET);
+        NodeConfig<String> nodeConfigClient = NodeConfigUtils
+                .getNodeConfigFromFile(config.getPath(), ReplicatedServer
+                        .SERVER_PREFIX);
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (String node : nodeConfigServer.getNodeIDs()) {
+            replicas.add(new MyDBReplicatedServer(nodeConfigServer, node, null) {
+                @Override
+                protected StorageEngine createStorageEngine(InetSocketAddress
+                        isaDB, String keyspace) {
+                    return new InMemoryStorageEngine(keyspace);
+                }
+            });
+            addresses.add(new InetSocketAddress(nodeConfigClient
+                    .getNodeAddress(node), nodeConfigClient.getNodePort(node)));
+        }
+        client = new MyDBClient(nodeConfigClient);
+        load = new LoadGenerator(client, addresses, 10, "1:8:1", "grade");
+        load.createTable();
+    }
+
+    /**
+     * Checks that the report's totals add up over the kinds of requests,
+     * that its rate matches its count over the measured second, and that
+     * its percentiles are present and ordered.
+     */
+    private static void checkReport(LoadGenerator.Report report) {
+        LatencyHistogram all = report.getLatencies(null);
+        long count = 0, errors = 0;
+        for (LoadGenerator.Op op : LoadGenerator.Op.values()) {
+            count += report.getLatencies(op).getCount();
+            errors += report.getErrors(op);
+        }
+        Assert.assertEquals(all.getCount(), count);
+        Assert.assertEquals(report.getErrors(null), errors);
+        Assert.assertEquals(all.getCount(), report.getThroughput(), 1e-6);
+        Assert.assertTrue(all.getValueAt(0.5) > 0);
+        Assert.assertTrue(all.getValueAt(0.5) <= all.getValueAt(0.99));
+        Assert.assertTrue(all.getValueAt(0.99) <= all.getMax());
+        String text = report.toString();
+        for (LoadGenerator.Op op : LoadGenerator.Op.values())
+            Assert.assertTrue(text, text.contains(op.name().toLowerCase()));
+        Assert.assertTrue(text, text.contains("p99.9(us)"));
+    }
+
+    @Test
+    public void test01_ClosedLoop() throws Exception {
+        LoadGenerator.Report report = load.runClosed(8, TimeUnit
+                .MILLISECONDS.toNanos(200), TimeUnit.SECONDS.toNanos(1));
+        checkReport(report);
+        Assert.assertEquals(0, report.getErrors(null));
+        Assert.assertTrue(report.getLatencies(LoadGenerator.Op.UPDATE)
+                .getCount() > 0);
+        Assert.assertTrue(report.getThroughput() > 0);
+        Assert.assertEquals(0, client.getNumOutstanding());
+    }
+
+    @Test
+    public void test02_OpenLoop() throws Exception {
+        LoadGenerator.Report report = load.runOpen(500, TimeUnit
+                .MILLISECONDS.toNanos(200), TimeUnit.SECONDS.toNanos(1));
+        checkReport(report);
+        Assert.assertEquals(0, report.getErrors(null));
+        // the requests due in the measured second, give or take the first
+        long count = report.getLatencies(null).getCount();
+        Assert.assertTrue("" + count, count >= 499 && count <= 501);
+        Assert.assertEquals(0, client.getNumOutstanding());
+    }
+
+    @AfterClass
+    public static void teardown() {
+        if (client != null) client.close();
+        for (MyDBReplicatedServer replica : replicas) replica.close();
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(LoadGeneratorTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
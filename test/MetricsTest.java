@@ -0,0 +1,165 @@
+import client.MyDBClient;
+import com.codahale.metrics.MetricRegistry;
+import edu.umass.cs.nio.interfaces.NodeConfig;
+import edu.umass.cs.nio.nioutils.NodeConfigUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.InMemoryStorageEngine;
+import server.Metrics;
+import server.MyDBReplicatedServer;
+import server.ReplicatedServer;
+import server.StorageEngine;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends statements through in-memory replicated servers and checks that
+ * the client and the servers count them in their metrics, and that the
+ * metrics are written as CSV files.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class MetricsTest {
+    private static final int NUM_REQS = 100;
+
+    private static File csvDir;
+    private static final List<MyDBReplicatedServer> replicas = new
+            ArrayList<MyDBReplicatedServer>();
+    private static final List<InetSocketAddress> addresses = new
+            ArrayList<InetSocketAddress>();
+    private static Metrics clientMetrics;
+    private static MyDBClient client;
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        csvDir = Files.createTempDirectory("metrics").toFile();
+        csvDir.deleteOnExit();
+        File config = File.createTempFile("metrics", ".properties");
+        config.deleteOnExit();
+        FileWriter writer = new FileWriter(config);
+        for (int i = 0; i < 3; i++)
+            writer.write(ReplicatedServer.SERVER_PREFIX + "replica" + i + " " +
+                    "= localhost:" + (2340 + i) + "\n");
+        writer.close();
+        NodeConfig<String> nodeConfigServer = NodeConfigUtils
+                .getNodeConfigFromFile(config.getPath(), ReplicatedServer
+                        .SERVER_PREFIX, ReplicatedServer.SERVER_PORT_OFFSET);
+        NodeConfig<String> nodeConfigClient = NodeConfigUtils
+                .getNodeConfigFromFile(config.getPath(), ReplicatedServer
+                        .SERVER_PREFIX);
+        for (String node : nodeConfigServer.getNodeIDs()) {
+            replicas.add(new MyDBReplicatedServer(nodeConfigServer, node, null) {
+                @Override
+                protected StorageEngine createStorageEngine(InetSocketAddress
+                        isaDB, String keyspace) {
+                    return new InMemoryStorageEngine(keyspace);
+                }
+
+                @Override
+                protected Metrics createMetrics(String keyspace) {
+                    // reported on demand only
+                    return new Metrics(keyspace, new MetricRegistry(), false,
+                            csvDir, 3600);
+                }
+            });
+            addresses.add(new InetSocketAddress(nodeConfigClient
+                    .getNodeAddress(node), nodeConfigClient.getNodePort(node)));
+        }
+        clientMetrics = new Metrics("client", new MetricRegistry(), false,
+                null, 0);
+        client = new MyDBClient(nodeConfigClient, 1, 0, clientMetrics);
+    }
+
+    private static MetricRegistry registry(int replica) {
+        return replicas.get(replica).getMetrics().getRegistry();
+    }
+
+    @Test
+    public void test01_RequestsAreCounted() throws Exception {
+        client.sendAsync(addresses.get(0), "create table grade (id int, " +
+                "events list<int>, primary key (id));").get(10, TimeUnit
+                .SECONDS);
+        List<CompletableFuture<byte[]>> futures = new
+                ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < NUM_REQS; i++)
+            futures.add(client.sendAsync(addresses.get(i % 2), "update grade " +
+                    "SET events=events+[" + i + "] where id=" + i % 10 + ";"));
+        for (CompletableFuture<byte[]> future : futures)
+            future.get(10, TimeUnit.SECONDS);
+        try {
+            client.sendAsync(addresses.get(1), "update nosuchtable SET " +
+                    "events=events+[1] where id=1;").get(10, TimeUnit.SECONDS);
+            Assert.fail("Expected an error response");
+        } catch (ExecutionException e) {
+            // expected
+        }
+
+        MetricRegistry c = clientMetrics.getRegistry();
+        Assert.assertEquals(NUM_REQS + 2, c.timer("requests").getCount());
+        Assert.assertEquals(1, c.meter("errors").getCount());
+        Assert.assertEquals(0, c.meter("timeouts").getCount());
+        Assert.assertTrue(c.getGauges().containsKey("jvm.memory.heap.used"));
+
+        long requests = 0, errors = 0, ordered = 0;
+        for (int i = 0; i < replicas.size(); i++) {
+            long answered = registry(i).timer("requests").getCount();
+            requests += answered;
+            errors += registry(i).meter("errors").getCount();
+            ordered += registry(i).timer("order").getCount();
+            // a server applies a client's statement before replying to it
+            Assert.assertTrue(registry(i).timer("apply").getCount() >=
+                    answered);
+            Assert.assertTrue(registry(i).timer("execute").getCount() >=
+                    answered);
+            Assert.assertTrue(registry(i).timer("queue").getCount() > 0 ||
+                    answered == 0);
+        }
+        Assert.assertEquals(NUM_REQS + 2, requests);
+        Assert.assertEquals(1, errors);
+        Assert.assertEquals(NUM_REQS + 2, ordered);
+        Assert.assertTrue(registry(0).meter("messages.sent").getCount() > 0);
+        Assert.assertTrue(registry(2).meter("messages.received").getCount() >
+                0);
+    }
+
+    @Test
+    public void test02_CsvFiles() throws Exception {
+        Metrics metrics = replicas.get(0).getMetrics();
+        metrics.report();
+        File requests = new File(new File(csvDir, metrics.getName()),
+                "requests.csv");
+        List<String> lines = Files.readAllLines(requests.toPath());
+        // a header and a row
+        Assert.assertTrue(lines.toString(), lines.size() >= 2);
+        Assert.assertTrue(lines.get(0).contains("p99"));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        if (client != null) client.close();
+        if (clientMetrics != null) clientMetrics.close();
+        for (MyDBReplicatedServer replica : replicas) replica.close();
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(MetricsTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
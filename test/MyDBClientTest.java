@@ -0,0 +1,221 @@
+import client.MyDBClient;
+import edu.umass.cs.nio.AbstractBytePacketDemultiplexer;
+import edu.umass.cs.nio.MessageNIOTransport;
+import edu.umass.cs.nio.interfaces.NodeConfig;
+import edu.umass.cs.nio.nioutils.NIOHeader;
+import edu.umass.cs.nio.nioutils.NodeConfigUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.Envelope;
+import server.ReplicatedServer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends requests to stub servers that count what they receive and either
+ * answer or drop it, and checks the client's deadlines and fail-over.
+ * Servers A and B are in the client's node config; C is not.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class MyDBClientTest {
+    private static final List<StubServer> stubs = new ArrayList<StubServer>();
+    private static final List<MyDBClient> clients = new ArrayList<MyDBClient>();
+    private static NodeConfig<String> nodeConfig;
+    private static StubServer a;
+    private static StubServer b;
+    private static StubServer c;
+
+    /**
+     * Answers every request envelope with "ok", or with an error if it
+     * contains "fail", unless told to drop them.
+     */
+    private static class StubServer {
+        final InetSocketAddress isa;
+        final AtomicInteger received = new AtomicInteger();
+        volatile boolean dropping = false;
+        final MessageNIOTransport<String, byte[]> nio;
+
+        StubServer(int port) throws IOException {
+            this.isa = new InetSocketAddress("localhost", port);
+            this.nio = new MessageNIOTransport<String, byte[]>(isa
+                    .getAddress(), port, new AbstractBytePacketDemultiplexer() {
+                @Override
+                public boolean handleMessage(byte[] bytes, NIOHeader header) {
+                    Envelope envelope = new Envelope();
+                    if (!envelope.wrap(bytes, 0)) return true;
+                    received.incrementAndGet();
+                    if (!dropping)
+                        try {
+                            boolean error = envelope.payloadString().contains
+                                    ("fail");
+                            nio.send(header.sndr, Envelope.encode(error ?
+                                    Envelope.ERROR : Envelope.RESPONSE, 0,
+                                    envelope.id(), null, error ? "failed" :
+                                    "ok"));
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    return true;
+                }
+            });
+            stubs.add(this);
+        }
+    }
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        a = new StubServer(2370);
+        b = new StubServer(2371);
+        c = new StubServer(2372);
+        File config = File.createTempFile("client", ".properties");
+        config.deleteOnExit();
+        FileWriter writer = new FileWriter(config);
+        writer.write(ReplicatedServer.SERVER_PREFIX + "a = localhost:" + a.isa
+                .getPort() + "\n");
+        writer.write(ReplicatedServer.SERVER_PREFIX + "b = localhost:" + b.isa
+                .getPort() + "\n");
+        writer.close();
+        nodeConfig = NodeConfigUtils.getNodeConfigFromFile(config.getPath(),
+                ReplicatedServer.SERVER_PREFIX);
+    }
+
+    private static MyDBClient client() throws IOException {
+        MyDBClient client = new MyDBClient(nodeConfig, 1, 0);
+        clients.add(client);
+        return client;
+    }
+
+    private static void reset(boolean aDrops, boolean bDrops, boolean cDrops) {
+        a.dropping = aDrops;
+        b.dropping = bDrops;
+        c.dropping = cDrops;
+        for (StubServer stub : stubs) stub.received.set(0);
+    }
+
+    @Test
+    public void test01_RetryGoesToNextServer() throws Exception {
+        MyDBClient client = client();
+        reset(true, false, false);
+        Assert.assertEquals("ok", new String(client.sendAsync(a.isa, "select " +
+                "* from t", 300, 1).get(10, TimeUnit.SECONDS)));
+        Assert.assertEquals(1, a.received.get());
+        Assert.assertEquals(1, b.received.get());
+        Assert.assertEquals(0, client.getNumOutstanding());
+    }
+
+    @Test
+    public void test02_UnknownServerFailsOverInTurn() throws Exception {
+        MyDBClient client = client();
+        reset(false, false, true);
+        // each request failing over from C starts at the next configured
+        // server, so that they are spread over A and B
+        for (int i = 0; i < 2; i++)
+            Assert.assertEquals("ok", new String(client.sendAsync(c.isa,
+                    "select * from t", 300, 1).get(10, TimeUnit.SECONDS)));
+        Assert.assertEquals(2, c.received.get());
+        Assert.assertEquals(1, a.received.get());
+        Assert.assertEquals(1, b.received.get());
+    }
+
+    @Test
+    public void test03_TimesOutAfterLastAttempt() throws Exception {
+        MyDBClient client = client();
+        reset(true, true, true);
+        try {
+            client.sendAsync(a.isa, "select * from t", 200, 2).get(10,
+                    TimeUnit.SECONDS);
+            Assert.fail("Expected a timeout");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        // A, then B, then A again
+        Assert.assertEquals(2, a.received.get());
+        Assert.assertEquals(1, b.received.get());
+        Assert.assertEquals(0, client.getNumOutstanding());
+    }
+
+    @Test
+    public void test04_SendAsync() throws Exception {
+        MyDBClient client = client();
+        reset(false, false, false);
+        Assert.assertEquals("ok", new String(client.sendAsync(a.isa, "select " +
+                "* from t").get(10, TimeUnit.SECONDS)));
+        try {
+            client.sendAsync(b.isa, "fail").get(10, TimeUnit.SECONDS);
+            Assert.fail("Expected an error response");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+            Assert.assertEquals("failed", e.getCause().getMessage());
+        }
+        Assert.assertEquals(0, client.getNumOutstanding());
+    }
+
+    @Test
+    public void test05_CancelForgetsRequest() throws Exception {
+        MyDBClient client = client();
+        reset(true, true, true);
+        List<CompletableFuture<byte[]>> futures = new
+                ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < 100; i++)
+            futures.add(client.sendAsync(a.isa, "select * from t", 300, 1));
+        Assert.assertEquals(100, client.getNumOutstanding());
+        for (CompletableFuture<byte[]> future : futures)
+            Assert.assertTrue(future.cancel(true));
+        Assert.assertEquals(0, client.getNumOutstanding());
+        // the cancelled requests' deadlines were disarmed, so they are
+        // neither retried nor reported as timed out
+        Thread.sleep(600);
+        Assert.assertEquals(0, b.received.get());
+        Assert.assertEquals(0, client.getMetrics().getRegistry().meter
+                ("timeouts").getCount());
+
+        // responses to requests cancelled right after sending are ignored
+        reset(false, false, false);
+        futures.clear();
+        for (int i = 0; i < 100; i++) {
+            CompletableFuture<byte[]> future = client.sendAsync(a.isa,
+                    "select * from t");
+            future.cancel(true);
+            futures.add(future);
+        }
+        CompletableFuture<byte[]> answered = client.sendAsync(a.isa, "select " +
+                "* from t");
+        Assert.assertEquals("ok", new String(answered.get(10, TimeUnit
+                .SECONDS)));
+        Assert.assertEquals(0, client.getNumOutstanding());
+        for (CompletableFuture<byte[]> future : futures)
+            Assert.assertTrue(future.isDone());
+        // a completed future can no longer be cancelled
+        Assert.assertFalse(answered.cancel(true));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        for (MyDBClient client : clients) client.close();
+        for (StubServer stub : stubs) stub.nio.stop();
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(MyDBClientTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
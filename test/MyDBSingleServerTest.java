@@ -0,0 +1,266 @@
+import client.MyDBClient;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import edu.umass.cs.nio.AbstractBytePacketDemultiplexer;
+import edu.umass.cs.nio.MessageNIOTransport;
+import edu.umass.cs.nio.nioutils.NIOHeader;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.Envelope;
+import server.InMemoryStorageEngine;
+import server.MyDBSingleServer;
+import server.StorageEngine;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends statements to single servers backed by in-memory engines and
+ * checks how each client connection's statements are admitted and
+ * executed, that malformed messages are rejected, and that the
+ * connections of clients that have been answered are forgotten.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class MyDBSingleServerTest {
+    private static final List<MyDBSingleServer> servers = new
+            ArrayList<MyDBSingleServer>();
+    private static final List<MyDBClient> clients = new ArrayList<MyDBClient>();
+
+    /**
+     * Holds every asynchronous statement until the test releases it.
+     */
+    private static class GatedEngine extends InMemoryStorageEngine {
+        final BlockingQueue<Started> started = new LinkedBlockingQueue
+                <Started>();
+
+        GatedEngine(String keyspace) {
+            super(keyspace);
+        }
+
+        @Override
+        public ListenableFuture<Iterable<String>> executeAsync(String cql) {
+            Started statement = new Started(this, cql);
+            started.add(statement);
+            return statement.result;
+        }
+
+        /**
+         * @return the next statement started, or null if none is within
+         * the given time
+         */
+        Started next(long millis) throws InterruptedException {
+            return started.poll(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static class Started {
+        final GatedEngine engine;
+        final String cql;
+        final SettableFuture<Iterable<String>> result = SettableFuture.create();
+
+        Started(GatedEngine engine, String cql) {
+            this.engine = engine;
+            this.cql = cql;
+        }
+
+        void release() {
+            result.set(engine.execute(cql));
+        }
+    }
+
+    private static MyDBSingleServer server(int port, final int maxInFlight,
+                                           final StorageEngine engine) throws
+            IOException {
+        InetSocketAddress isa = new InetSocketAddress("localhost", port);
+        MyDBSingleServer server = new MyDBSingleServer(isa, isa, "demo") {
+            @Override
+            protected StorageEngine createStorageEngine(InetSocketAddress
+                    isaDB, String keyspace) {
+                return engine;
+            }
+
+            @Override
+            protected int maxInFlightPerConnection() {
+                return maxInFlight;
+            }
+        };
+        servers.add(server);
+        return server;
+    }
+
+    private static MyDBClient client() throws IOException {
+        MyDBClient client = new MyDBClient(null, 1, 0);
+        clients.add(client);
+        return client;
+    }
+
+    @Test
+    public void test01_InFlightWindow() throws Exception {
+        GatedEngine engine = new GatedEngine("demo");
+        engine.execute("create table t (k int, v int, primary key (k))");
+        InetSocketAddress isa = new InetSocketAddress("localhost", 2380);
+        server(isa.getPort(), 2, engine);
+        MyDBClient client = client();
+
+        List<CompletableFuture<byte[]>> futures = new
+                ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < 5; i++)
+            futures.add(client.sendAsync(isa, "insert into t (k, v) values (" +
+                    i + ", " + i + ")"));
+        List<Started> running = new ArrayList<Started>();
+        for (int i = 0; i < 2; i++) running.add(engine.next(10000));
+        Assert.assertFalse(running.contains(null));
+        // the window is full
+        Assert.assertNull(engine.next(200));
+
+        // each completion lets exactly one more in
+        for (int started = 2; started < 5; started++) {
+            running.remove(0).release();
+            Started next = engine.next(10000);
+            Assert.assertNotNull(next);
+            running.add(next);
+            Assert.assertNull(engine.next(100));
+        }
+        for (Started statement : running) statement.release();
+        for (CompletableFuture<byte[]> future : futures)
+            Assert.assertEquals("Executed the request", new String(future.get
+                    (10, TimeUnit.SECONDS)));
+
+        // the drained connection takes statements right away again
+        CompletableFuture<byte[]> future = client.sendAsync(isa, "insert " +
+                "into t (k, v) values (5, 5)");
+        Started next = engine.next(10000);
+        Assert.assertNotNull(next);
+        next.release();
+        future.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals("[Row[6]]", engine.execute("select count(*) " +
+                "from t").toString());
+    }
+
+    @Test
+    public void test02_MalformedEnvelope() throws Exception {
+        InetSocketAddress isa = new InetSocketAddress("localhost", 2381);
+        server(isa.getPort(), 1, new InMemoryStorageEngine("demo"));
+        final BlockingQueue<byte[]> replies = new LinkedBlockingQueue<byte[]>();
+        MessageNIOTransport<String, byte[]> nio = new MessageNIOTransport
+                <String, byte[]>(new AbstractBytePacketDemultiplexer() {
+            @Override
+            public boolean handleMessage(byte[] bytes, NIOHeader header) {
+                replies.add(bytes);
+                return true;
+            }
+        });
+        try {
+            // cut short, so that the payload runs past the end
+            byte[] request = Envelope.encode(Envelope.REQUEST, 0, 7, null,
+                    "create table t (k int, primary key (k))");
+            nio.send(isa, Arrays.copyOf(request, request.length - 5));
+            Envelope reply = new Envelope();
+            Assert.assertTrue(reply.wrap(replies.poll(10, TimeUnit.SECONDS),
+                    0));
+            Assert.assertEquals(Envelope.ERROR, reply.opcode());
+            Assert.assertEquals(7, reply.id());
+
+            // a truncated batch is rejected as a whole
+            byte[] member = Envelope.encode(Envelope.REQUEST, 0, 8, null,
+                    "create table u (k int, primary key (k))");
+            byte[] batch = Envelope.encodeBatch(Arrays.asList(member, member),
+                    2 * member.length);
+            nio.send(isa, Arrays.copyOf(batch, batch.length - 1));
+            Assert.assertTrue(reply.wrap(replies.poll(10, TimeUnit.SECONDS),
+                    0));
+            Assert.assertEquals(Envelope.ERROR, reply.opcode());
+            Assert.assertNull(replies.poll(200, TimeUnit.MILLISECONDS));
+        } finally {
+            nio.stop();
+        }
+
+        // nothing was executed, and the server still serves requests
+        MyDBClient client = client();
+        try {
+            client.sendAsync(isa, "select * from u").get(10, TimeUnit.SECONDS);
+            Assert.fail("Expected an error response");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        Assert.assertEquals("Executed the request", new String(client
+                .sendAsync(isa, "create table t (k int, primary key (k))")
+                .get(10, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void test03_ConnectionOrder() throws Exception {
+        InMemoryStorageEngine engine = new InMemoryStorageEngine("demo");
+        engine.execute("create table l (k int, events list<int>, primary " +
+                "key (k))");
+        engine.execute("insert into l (k, events) values (1, [])");
+        InetSocketAddress isa = new InetSocketAddress("localhost", 2382);
+        server(isa.getPort(), 1, engine);
+        MyDBClient client = client();
+
+        // pipelined, so that many are received before the first completes
+        final int appends = 200;
+        List<CompletableFuture<byte[]>> futures = new
+                ArrayList<CompletableFuture<byte[]>>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < appends; i++) {
+            futures.add(client.sendAsync(isa, "update l set events = events " +
+                    "+ [" + i + "] where k = 1"));
+            expected.append(i == 0 ? "" : ", ").append(i);
+        }
+        for (CompletableFuture<byte[]> future : futures)
+            future.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals("[Row[[" + expected + "]]]", engine.execute(
+                "select events from l where k = 1").toString());
+    }
+
+    @Test
+    public void test04_IdleConnectionsForgotten() throws Exception {
+        InMemoryStorageEngine engine = new InMemoryStorageEngine("demo");
+        engine.execute("create table t (k int, primary key (k))");
+        InetSocketAddress isa = new InetSocketAddress("localhost", 2383);
+        MyDBSingleServer server = server(isa.getPort(), 2, engine);
+        for (int c = 0; c < 5; c++) {
+            MyDBClient client = client();
+            List<CompletableFuture<byte[]>> futures = new
+                    ArrayList<CompletableFuture<byte[]>>();
+            for (int i = 0; i < 10; i++)
+                futures.add(client.sendAsync(isa, "insert into t (k) values " +
+                        "(" + (10 * c + i) + ")"));
+            for (CompletableFuture<byte[]> future : futures)
+                future.get(10, TimeUnit.SECONDS);
+        }
+        for (int i = 0; i < 1000 && server.getConnections() > 0; i++)
+            Thread.sleep(10);
+        Assert.assertEquals(0, server.getConnections());
+        Assert.assertEquals("[Row[50]]", engine.execute("select count(*) " +
+                "from t").toString());
+    }
+
+    @AfterClass
+    public static void teardown() {
+        for (MyDBClient client : clients) client.close();
+        for (MyDBSingleServer server : servers) server.close();
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(MyDBSingleServerTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+import client.MyDBClient;
+import com.google.common.util.concurrent.Futures;
+import edu.umass.cs.nio.nioutils.NIOHeader;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.InMemoryStorageEngine;
+import server.MyDBSingleServer;
+import server.StorageEngine;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pages through results in the storage engine and selects more rows than
+ * fit in one message through an in-memory server, with and without client
+ * batching, checking that the rows come back whole and in order and that
+ * the replies to a batch are not much larger than a page.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class PagedRowsTest {
+    private static final int NUM_ROWS = 300;
+    // about 2KB per row, so that the rows take several pages
+    private static final String PADDING = new String(new char[2000])
+            .replace('\0', 'x');
+
+    private static final InetSocketAddress address = new InetSocketAddress(
+            "localhost", 2360);
+    private static MyDBSingleServer server;
+    private static MyDBClient client;
+    private static MyDBClient batchingClient;
+    // the largest message the batching client received
+    private static final AtomicInteger largest = new AtomicInteger();
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        server = new MyDBSingleServer(address, address, "demo") {
+            @Override
+            protected StorageEngine createStorageEngine(InetSocketAddress
+                    isaDB, String keyspace) {
+                return users(new InMemoryStorageEngine(keyspace));
+            }
+        };
+        client = new MyDBClient(null, 1, 0);
+        batchingClient = new MyDBClient(null, 8, 1000) {
+            @Override
+            protected void handleResponse(byte[] bytes, NIOHeader header) {
+                synchronized (largest) {
+                    largest.set(Math.max(largest.get(), bytes.length));
+                }
+                super.handleResponse(bytes, header);
+            }
+        };
+    }
+
+    private static StorageEngine users(StorageEngine engine) {
+        engine.execute("create table users (id int, name text, primary key " +
+                "(id))");
+        for (int i = 0; i < NUM_ROWS; i++)
+            engine.execute("insert into users (id, name) values (" + i + ", '" +
+                    i + PADDING + "')");
+        return engine;
+    }
+
+    private static String row(int id) {
+        return "Row[" + id + ", " + id + PADDING + "]";
+    }
+
+    /**
+     * @return the rows of all users, in the order the server returns them
+     */
+    private static List<String> expected() {
+        List<String> rows = new ArrayList<String>();
+        for (String row : users(new InMemoryStorageEngine("demo")).execute(
+                "select * from users"))
+            rows.add(row);
+        return rows;
+    }
+
+    @Test
+    public void test01_EnginePages() {
+        StorageEngine engine = new InMemoryStorageEngine("demo");
+        engine.execute("create table t (k int, primary key (k))");
+        for (int k = 0; k < 20; k++)
+            engine.execute("insert into t (k) values (" + k + ")");
+        List<Integer> sizes = new ArrayList<Integer>();
+        List<String> rows = new ArrayList<String>();
+        StorageEngine.Page page = Futures.getUnchecked(engine
+                .executePagedAsync("select * from t", 7));
+        while (true) {
+            sizes.add(page.rows().size());
+            rows.addAll(page.rows());
+            if (page.last()) break;
+            page = Futures.getUnchecked(page.next());
+        }
+        Assert.assertEquals("[7, 7, 6]", sizes.toString());
+        List<String> all = new ArrayList<String>();
+        for (String row : engine.execute("select * from t")) all.add(row);
+        Assert.assertEquals(all, rows);
+
+        page = Futures.getUnchecked(engine.executePagedAsync("select * from " +
+                "t where k = 99", 7));
+        Assert.assertTrue(page.last());
+        Assert.assertTrue(page.rows().isEmpty());
+    }
+
+    @Test
+    public void test02_LargeSelect() throws Exception {
+        byte[] response = client.sendAsync(address, "select * from users")
+                .get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(expected(), MyDBClient.rows(response));
+        Assert.assertEquals(Collections.singletonList(row(7)), MyDBClient
+                .rows(client.sendAsync(address, "SELECT * FROM users WHERE " +
+                        "id = 7;").get(10, TimeUnit.SECONDS)));
+        Assert.assertTrue(MyDBClient.rows(client.sendAsync(address, "select " +
+                "* from users where id = -1").get(10, TimeUnit.SECONDS))
+                .isEmpty());
+        // other statements are still acknowledged
+        Assert.assertEquals("Executed the request", new String(client
+                .sendAsync(address, "create table other (k int, primary " +
+                        "key (k))").get(10, TimeUnit.SECONDS)));
+        try {
+            client.sendAsync(address, "select * from nosuchtable").get(10,
+                    TimeUnit.SECONDS);
+            Assert.fail("Expected an error response");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        Assert.assertEquals(0, client.getNumOutstanding());
+    }
+
+    @Test
+    public void test03_PageCallback() throws Exception {
+        final List<List<String>> pages = new ArrayList<List<String>>();
+        final CompletableFuture<byte[]> done = new CompletableFuture<byte[]>();
+        client.callbackSend(address, "select * from users", new MyDBClient
+                .PageCallback() {
+            @Override
+            public void handlePage(List<String> rows, NIOHeader header) {
+                pages.add(rows);
+            }
+
+            @Override
+            public void handleResponse(byte[] bytes, NIOHeader header) {
+                done.complete(bytes);
+            }
+        });
+        Assert.assertEquals(0, done.get(10, TimeUnit.SECONDS).length);
+        // each page within the message size limit
+        Assert.assertTrue(pages.size() >= NUM_ROWS * PADDING.length() /
+                MyDBSingleServer.PAGE_BYTES);
+        List<String> rows = new ArrayList<String>();
+        for (List<String> page : pages) {
+            int bytes = 0;
+            for (String row : page) bytes += row.length();
+            Assert.assertTrue(bytes <= MyDBSingleServer.PAGE_BYTES);
+            rows.addAll(page);
+        }
+        Assert.assertEquals(expected(), rows);
+    }
+
+    @Test
+    public void test04_SelectsInBatches() throws Exception {
+        List<CompletableFuture<byte[]>> futures = new
+                ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(batchingClient.sendAsync(address, "select * from " +
+                    "users"));
+            futures.add(batchingClient.sendAsync(address, "select * from " +
+                    "users where id = " + i));
+        }
+        List<String> expected = expected();
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(expected, MyDBClient.rows(futures.get(2 * i)
+                    .get(10, TimeUnit.SECONDS)));
+            Assert.assertEquals(Collections.singletonList(row(i)),
+                    MyDBClient.rows(futures.get(2 * i + 1).get(10, TimeUnit
+                            .SECONDS)));
+        }
+    }
+
+    @Test
+    public void test05_BatchRepliesWithinPageSize() throws Exception {
+        largest.set(0);
+        List<CompletableFuture<byte[]>> futures = new
+                ArrayList<CompletableFuture<byte[]>>();
+        // the last pages of a batch of them take several pages together
+        for (int i = 0; i < 8; i++)
+            futures.add(batchingClient.sendAsync(address, "select * from " +
+                    "users"));
+        List<String> expected = expected();
+        for (CompletableFuture<byte[]> future : futures)
+            Assert.assertEquals(expected, MyDBClient.rows(future.get(10,
+                    TimeUnit.SECONDS)));
+        // a page and the envelopes around it
+        Assert.assertTrue(largest.get() <= MyDBSingleServer.PAGE_BYTES +
+                1024);
+    }
+
+    @AfterClass
+    public static void teardown() throws IOException {
+        if (client != null) client.close();
+        if (batchingClient != null) batchingClient.close();
+        if (server != null) server.close();
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(PagedRowsTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import edu.umass.cs.gigapaxos.paxospackets.RequestPacket;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.InMemoryStorageEngine;
+import server.PaxosOrder;
+import server.StorageEngine;
+import server.TotalOrder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands decisions to the Paxos application of one replica, restores
+ * another from its checkpoint and checks that both end up with the same
+ * rows and numbering, and that the mode refuses to start without the
+ * classes its log needs. These tests do not run Paxos itself.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class PaxosOrderTest {
+    /**
+     * Applies each delivered statement to its engine right away and
+     * records the sequence numbers.
+     */
+    private static class Replica implements TotalOrder.Delivery, PaxosOrder
+            .State {
+        final StorageEngine engine = new InMemoryStorageEngine("demo");
+        final List<Long> delivered = new ArrayList<Long>();
+        final List<String> installs = new ArrayList<String>();
+        final PaxosOrder.Application application = new PaxosOrder
+                .Application("replica", this, this);
+
+        @Override
+        public void deliver(long seq, String origin, long tag, String cql) {
+            delivered.add(seq);
+            engine.execute(cql);
+        }
+
+        @Override
+        public List<String> take(long seq) {
+            return engine.snapshot();
+        }
+
+        @Override
+        public void install(long applied, long seq, List<String> statements) {
+            installs.add(applied + ".." + seq);
+            engine.restore(statements);
+        }
+
+        void decide(long tag, String cql) {
+            // as Paxos hands them over
+            Assert.assertTrue(application.execute(new RequestPacket("a " + tag +
+                    " " + cql, false).setReturnRequestValue()));
+        }
+
+        String rows() {
+            return engine.execute("select * from t").toString();
+        }
+    }
+
+    @Test
+    public void test01_CheckpointCarriesState() {
+        Replica first = new Replica();
+        first.decide(1, "create table t (k int, v text, primary key (k))");
+        first.decide(2, "insert into t (k, v) values (1, 'one\ntwo')");
+        first.decide(3, "insert into t (k, v) values (2, 'it''s')");
+        String checkpoint = first.application.checkpoint("mydb");
+
+        Replica second = new Replica();
+        Assert.assertTrue(second.application.restore("mydb", checkpoint));
+        Assert.assertEquals("[0..3]", second.installs.toString());
+        Assert.assertEquals(first.rows(), second.rows());
+
+        // numbering goes on from the checkpoint
+        first.decide(4, "update t set v = 'x' where k = 1");
+        second.decide(4, "update t set v = 'x' where k = 1");
+        Assert.assertEquals("[4]", second.delivered.toString());
+        Assert.assertEquals(first.rows(), second.rows());
+    }
+
+    @Test
+    public void test02_NewGroupKeepsDatabase() {
+        Replica replica = new Replica();
+        replica.engine.execute("create table t (k int, primary key (k))");
+        replica.engine.execute("insert into t (k) values (1)");
+        Assert.assertTrue(replica.application.restore("mydb", null));
+        Assert.assertTrue(replica.installs.isEmpty());
+        Assert.assertEquals("[Row[1]]", replica.rows());
+        Assert.assertFalse(replica.application.restore("mydb", "garbage"));
+    }
+
+    @Test
+    public void test03_UnavailableWithoutLogClasses() {
+        Assume.assumeFalse(PaxosOrder.isAvailable());
+        try {
+            new PaxosOrder("replica", null, new Replica(), new Replica());
+            Assert.fail("Expected the mode to be unavailable");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("Derby"));
+        }
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(PaxosOrderTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
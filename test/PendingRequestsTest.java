@@ -0,0 +1,73 @@
+import client.PendingRequests;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the client's bounded table of outstanding requests.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class PendingRequestsTest {
+
+    @Test
+    public void test01_PutRemove() {
+        PendingRequests<String> pending = new PendingRequests<String>(4);
+        long a = pending.put("a");
+        long b = pending.put("b");
+        Assert.assertNotEquals(a, b);
+        Assert.assertEquals(2, pending.size());
+        Assert.assertEquals("a", pending.remove(a));
+        Assert.assertNull(pending.remove(a));
+        Assert.assertEquals("b", pending.get(b));
+        Assert.assertEquals(1, pending.size());
+    }
+
+    @Test
+    public void test02_BoundedCapacity() {
+        PendingRequests<String> pending = new PendingRequests<String>(4);
+        long first = pending.put("0");
+        for (int i = 1; i < pending.capacity(); i++)
+            Assert.assertTrue(pending.put("" + i) > 0);
+        Assert.assertEquals(-1, pending.put("full"));
+
+        // a freed slot is reused by a new id, never by the old one
+        Assert.assertEquals("0", pending.remove(first));
+        long reused = pending.put("again");
+        Assert.assertTrue(reused > first);
+        Assert.assertNull(pending.get(first));
+        Assert.assertEquals("again", pending.get(reused));
+    }
+
+    @Test
+    public void test03_ConcurrentPutRemove() throws InterruptedException {
+        final PendingRequests<Integer> pending = new PendingRequests<Integer>(1024);
+        final AtomicInteger completed = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    long id = pending.put(i);
+                    if (id > 0 && pending.remove(id) == i)
+                        completed.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        Assert.assertEquals(threads.length * 100000, completed.get());
+        Assert.assertEquals(0, pending.size());
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(PendingRequestsTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedId;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolOptions;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.Futures;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.PreparedStatementCache;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks the prepared statement cache's hits, misses, eviction and
+ * flushing on schema changes against a stub session that prepares every
+ * statement with int variables and records what it was asked to prepare.
+ * These tests do not need a running Cassandra instance.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class PreparedStatementCacheTest {
+    // never connected; only its configuration is used, which tells the
+    // protocol version without asking a node
+    private static final Cluster cluster = new Cluster("stub", Collections
+            .singletonList(new InetSocketAddress("127.0.0.1", 9042)), new
+            Configuration(Configuration.builder().build()) {
+        @Override
+        public ProtocolOptions getProtocolOptions() {
+            return new ProtocolOptions() {
+                @Override
+                public ProtocolVersion getProtocolVersion() {
+                    return ProtocolVersion.V4;
+                }
+            };
+        }
+    }) {
+    };
+
+    /**
+     * @return a stub of the interface whose methods are answered by the
+     * handler, or by a default value if it returns null
+     */
+    private static <T> T stub(Class<T> type, final InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new
+                Class<?>[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                Object result = handler.invoke(proxy, method, args);
+                if (result != null || !method.getReturnType().isPrimitive())
+                    return result;
+                return method.getReturnType() == boolean.class ? false : 0;
+            }
+        }));
+    }
+
+    /**
+     * @return the variables of a prepared statement with n int markers;
+     * the driver only builds these itself
+     */
+    private static ColumnDefinitions intVariables(int n) throws Exception {
+        Class<?> definition = Class.forName(ColumnDefinitions.class.getName()
+                + "$Definition");
+        Constructor<?> newDefinition = definition.getDeclaredConstructor
+                (String.class, String.class, String.class, DataType.class);
+        newDefinition.setAccessible(true);
+        Object definitions = Array.newInstance(definition, n);
+        for (int i = 0; i < n; i++)
+            Array.set(definitions, i, newDefinition.newInstance("demo", "t",
+                    "c" + i, DataType.cint()));
+        Constructor<ColumnDefinitions> newDefinitions = ColumnDefinitions
+                .class.getDeclaredConstructor(definitions.getClass(),
+                        CodecRegistry.class);
+        newDefinitions.setAccessible(true);
+        return newDefinitions.newInstance(definitions, CodecRegistry
+                .DEFAULT_INSTANCE);
+    }
+
+    /**
+     * @return the id the driver would give a statement with the variables,
+     * which binding it needs
+     */
+    private static PreparedId preparedId(ColumnDefinitions variables) throws
+            Exception {
+        Class<?> digest = Class.forName(PreparedId.class.getPackage().getName()
+                + ".MD5Digest");
+        Method wrap = digest.getDeclaredMethod("wrap", byte[].class);
+        wrap.setAccessible(true);
+        Constructor<PreparedId> newId = PreparedId.class.getDeclaredConstructor
+                (digest, ColumnDefinitions.class, ColumnDefinitions.class,
+                        int[].class, ProtocolVersion.class);
+        newId.setAccessible(true);
+        return newId.newInstance(wrap.invoke(null, (Object) new byte[16]),
+                variables, null, null, ProtocolVersion.V4);
+    }
+
+    /**
+     * Records the statements prepared; those containing "fail" fail to
+     * prepare.
+     */
+    private static class StubSession implements InvocationHandler {
+        final List<String> prepared = Collections.synchronizedList(new
+                ArrayList<String>());
+        final Session session = stub(Session.class, this);
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Exception {
+            if (method.getName().equals("getCluster")) return cluster;
+            if (method.getName().equals("getLoggedKeyspace")) return "demo";
+            if (method.getName().equals("prepareAsync")) {
+                final String cql = (String) args[0];
+                prepared.add(cql);
+                if (cql.contains("fail"))
+                    return Futures.immediateFailedFuture(new
+                            IllegalStateException("unable to prepare"));
+                int markers = 0;
+                for (char c : cql.toCharArray()) if (c == '?') markers++;
+                final ColumnDefinitions variables = intVariables(markers);
+                final PreparedId id = preparedId(variables);
+                return Futures.immediateFuture(stub(PreparedStatement.class,
+                        new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object ps, Method method, Object[]
+                            args) {
+                        if (method.getName().equals("getVariables"))
+                            return variables;
+                        if (method.getName().equals("getPreparedId"))
+                            return id;
+                        if (method.getName().equals("getQueryString"))
+                            return cql;
+                        if (method.getName().equals("getCodecRegistry"))
+                            return CodecRegistry.DEFAULT_INSTANCE;
+                        if (method.getName().equals("bind") && (args == null
+                                || args.length == 0 || Array.getLength(args[0])
+                                == 0))
+                            return new BoundStatement((PreparedStatement) ps);
+                        return null;
+                    }
+                }));
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+
+        int times(String cql) {
+            return Collections.frequency(prepared, cql);
+        }
+    }
+
+    private static Statement statementFor(PreparedStatementCache cache,
+                                          String cql) {
+        return Futures.getUnchecked(cache.statementFor(cql));
+    }
+
+    private static String insert(String table, int k, int v) {
+        return "insert into " + table + " (k, v) values (" + k + ", " + v + ")";
+    }
+
+    private static final String SHAPE = "insert into t (k, v) values (?, ?)";
+
+    @Test
+    public void test01_HitsAndMisses() {
+        StubSession stub = new StubSession();
+        PreparedStatementCache cache = new PreparedStatementCache(stub.session,
+                4);
+        Statement first = statementFor(cache, insert("t", 1, 2));
+        Statement second = statementFor(cache, insert("t", 3, 4));
+        Assert.assertTrue(first instanceof BoundStatement);
+        Assert.assertTrue(second instanceof BoundStatement);
+        Assert.assertEquals(3, ((BoundStatement) second).getInt(0));
+        Assert.assertEquals(4, ((BoundStatement) second).getInt(1));
+        Assert.assertEquals(1, stub.times(SHAPE));
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(0, cache.getUnprepared());
+
+        // literals that do not fit the variables go as raw text
+        Statement text = statementFor(cache, "insert into t (k, v) values " +
+                "(5, 'x')");
+        Assert.assertTrue(text instanceof SimpleStatement);
+    }
+
+    @Test
+    public void test02_LeastRecentlyUsedIsEvicted() {
+        StubSession stub = new StubSession();
+        PreparedStatementCache cache = new PreparedStatementCache(stub.session,
+                2);
+        statementFor(cache, insert("t", 1, 1));
+        statementFor(cache, insert("u", 1, 1));
+        // t is used again, so u is the eldest when w comes in
+        statementFor(cache, insert("t", 2, 2));
+        statementFor(cache, insert("w", 1, 1));
+        statementFor(cache, insert("t", 3, 3));
+        Assert.assertEquals(1, stub.times(SHAPE));
+        statementFor(cache, insert("u", 2, 2));
+        Assert.assertEquals(2, stub.times("insert into u (k, v) values (?, " +
+                "?)"));
+        Assert.assertEquals(4, cache.getMisses());
+        Assert.assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void test03_SchemaChangeFlushes() {
+        StubSession stub = new StubSession();
+        PreparedStatementCache cache = new PreparedStatementCache(stub.session,
+                4);
+        statementFor(cache, insert("t", 1, 1));
+        statementFor(cache, insert("t", 2, 2));
+        Assert.assertEquals(1, stub.times(SHAPE));
+        Assert.assertTrue(statementFor(cache, "alter table t add w int")
+                instanceof SimpleStatement);
+        statementFor(cache, insert("t", 3, 3));
+        Assert.assertEquals(2, stub.times(SHAPE));
+    }
+
+    @Test
+    public void test04_FailedPreparationFallsBack() {
+        StubSession stub = new StubSession();
+        PreparedStatementCache cache = new PreparedStatementCache(stub.session,
+                4);
+        String cql = "insert into fail (k, v) values (1, 1)";
+        Statement statement = statementFor(cache, cql);
+        Assert.assertTrue(statement instanceof SimpleStatement);
+        Assert.assertEquals(cql, ((SimpleStatement) statement)
+                .getQueryString());
+        // not cached, so it is tried again
+        statementFor(cache, cql);
+        Assert.assertEquals(2, stub.times("insert into fail (k, v) values (?, " +
+                "?)"));
+
+        // a disabled cache prepares nothing
+        StubSession none = new StubSession();
+        Assert.assertTrue(statementFor(new PreparedStatementCache(none
+                .session, 0), insert("t", 1, 1)) instanceof SimpleStatement);
+        Assert.assertTrue(none.prepared.isEmpty());
+    }
+
+    @AfterClass
+    public static void teardown() {
+        cluster.close();
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(PreparedStatementCacheTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
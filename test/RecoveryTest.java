@@ -0,0 +1,314 @@
+import client.MyDBClient;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import edu.umass.cs.nio.interfaces.NodeConfig;
+import edu.umass.cs.nio.nioutils.NodeConfigUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.InMemoryStorageEngine;
+import server.LamportOrder;
+import server.MyDBReplicatedServer;
+import server.ReplicatedServer;
+import server.StorageEngine;
+import server.TotalOrder;
+import server.WriteAheadLog;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restarts a server with a write-ahead log: a write acknowledged once
+ * logged but never applied is applied after the restart, one that was
+ * applied is not applied again, and the order numbers new statements after
+ * the logged ones. A write that may well fail is acknowledged only once
+ * applied, and Lamport ordering refuses to resume.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class RecoveryTest {
+    private static final String NODE = "solo";
+    private static final List<MyDBReplicatedServer> servers = new
+            ArrayList<MyDBReplicatedServer>();
+    private static File dir;
+    private static MyDBClient client;
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        dir = Files.createTempDirectory("recovery").toFile();
+        dir.deleteOnExit();
+        client = new MyDBClient(null, 1, 0);
+    }
+
+    /**
+     * @return an engine with an empty table, as the database was before the
+     * first write
+     */
+    private static InMemoryStorageEngine engine() {
+        InMemoryStorageEngine engine = new InMemoryStorageEngine(NODE);
+        engine.execute("create table t (k int, v int, primary key (k))");
+        return engine;
+    }
+
+    /**
+     * Holds back the statements that contain a given text, as a database
+     * that has yet to apply them, until released.
+     */
+    private static class HoldingEngine extends InMemoryStorageEngine {
+        private final String text;
+        private final List<Runnable> held = new ArrayList<Runnable>();
+        private boolean released = false;
+
+        HoldingEngine(String text) {
+            super(NODE);
+            this.text = text;
+        }
+
+        @Override
+        public ListenableFuture<Iterable<String>> executeAsync(final String
+                                                                       cql) {
+            if (!cql.contains(text)) return super.executeAsync(cql);
+            final SettableFuture<Iterable<String>> future = SettableFuture
+                    .create();
+            Runnable run = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.set(execute(cql));
+                    } catch (RuntimeException e) {
+                        future.setException(e);
+                    }
+                }
+            };
+            synchronized (this) {
+                if (!released) {
+                    held.add(run);
+                    return future;
+                }
+            }
+            run.run();
+            return future;
+        }
+
+        void release() {
+            List<Runnable> runs;
+            synchronized (this) {
+                released = true;
+                runs = new ArrayList<Runnable>(held);
+                held.clear();
+            }
+            for (Runnable run : runs) run.run();
+        }
+    }
+
+    private static NodeConfig<String> nodeConfig(int port) throws
+            IOException {
+        File config = File.createTempFile("recovery", ".properties");
+        config.deleteOnExit();
+        FileWriter writer = new FileWriter(config);
+        writer.write(ReplicatedServer.SERVER_PREFIX + NODE + " = localhost:" +
+                port + "\n");
+        writer.close();
+        return NodeConfigUtils.getNodeConfigFromFile(config.getPath(),
+                ReplicatedServer.SERVER_PREFIX, ReplicatedServer
+                        .SERVER_PORT_OFFSET);
+    }
+
+    /**
+     * Starts the server on its own port, as the previous one may not have
+     * released its port yet, with the log in the same directory.
+     *
+     * @return the address clients send to
+     */
+    private static InetSocketAddress start(int port, final StorageEngine
+            engine) throws IOException {
+        servers.add(new MyDBReplicatedServer(nodeConfig(port), NODE, null) {
+            @Override
+            protected StorageEngine createStorageEngine(InetSocketAddress
+                    isaDB, String keyspace) {
+                return engine;
+            }
+
+            @Override
+            protected WriteAheadLog createWriteAheadLog() throws IOException {
+                return new WriteAheadLog(dir, 1 << 20, true);
+            }
+        });
+        return new InetSocketAddress("localhost", port);
+    }
+
+    private static MyDBReplicatedServer last() {
+        return servers.get(servers.size() - 1);
+    }
+
+    private static String count(StorageEngine engine) {
+        return engine.execute("select count(*) from t").toString();
+    }
+
+    private static void awaitApplied(long seq) throws InterruptedException {
+        for (int i = 0; i < 1000 && last().getAppliedThrough() < seq; i++)
+            Thread.sleep(10);
+        Assert.assertEquals(seq, last().getAppliedThrough());
+    }
+
+    @Test
+    public void test01_AcknowledgedWriteSurvivesRestart() throws Exception {
+        // writes never get through to this database
+        InMemoryStorageEngine stuck = new InMemoryStorageEngine(NODE) {
+            @Override
+            public ListenableFuture<Iterable<String>> executeAsync(String cql) {
+                return SettableFuture.create();
+            }
+        };
+        stuck.execute("create table t (k int, v int, primary key (k))");
+        InetSocketAddress isa = start(2390, stuck);
+        Assert.assertEquals("Executed the request", new String(client
+                .sendAsync(isa, "insert into t (k, v) values (1, 1)").get(10,
+                        TimeUnit.SECONDS)));
+        Assert.assertEquals("[Row[0]]", count(stuck));
+        Assert.assertEquals(0, last().getAppliedThrough());
+        last().close();
+
+        InMemoryStorageEngine engine = engine();
+        isa = start(2391, engine);
+        awaitApplied(1);
+        Assert.assertEquals("[Row[1, 1]]", engine.execute("select * from t " +
+                "where k = 1").toString());
+
+        // numbering goes on after the logged write
+        client.sendAsync(isa, "insert into t (k, v) values (2, 2)").get(10,
+                TimeUnit.SECONDS);
+        awaitApplied(2);
+        Assert.assertEquals("[Row[2]]", count(engine));
+    }
+
+    @Test
+    public void test02_CleanRestartReplaysNothing() throws Exception {
+        // closing checkpointed everything applied
+        last().close();
+        InMemoryStorageEngine engine = engine();
+        InetSocketAddress isa = start(2392, engine);
+        Assert.assertEquals(2, last().getAppliedThrough());
+        Assert.assertEquals("[Row[0]]", count(engine));
+        client.sendAsync(isa, "insert into t (k, v) values (3, 3)").get(10,
+                TimeUnit.SECONDS);
+        awaitApplied(3);
+        Assert.assertEquals("[Row[1]]", count(engine));
+    }
+
+    @Test
+    public void test03_AppliedWriteNotReplayed() throws Exception {
+        // the update of row 1 is never applied, that of row 2 is
+        HoldingEngine engine = new HoldingEngine("k = 1");
+        engine.execute("create table t (k int, v int, primary key (k))");
+        engine.execute("create table l (k int, events list<int>, primary " +
+                "key (k))");
+        engine.execute("insert into l (k, events) values (1, [])");
+        engine.execute("insert into l (k, events) values (2, [])");
+        InetSocketAddress isa = start(2393, engine);
+        client.sendAsync(isa, "update l set events = events + [4] where k = " +
+                "1").get(10, TimeUnit.SECONDS);
+        client.sendAsync(isa, "update l set events = events + [5] where k = " +
+                "2").get(10, TimeUnit.SECONDS);
+        // acknowledged once logged, so possibly not applied yet
+        Timer applied = last().getMetrics().getRegistry().timer("apply");
+        for (int i = 0; i < 1000 && applied.getCount() < 1; i++)
+            Thread.sleep(10);
+        Assert.assertEquals("[Row[2, [5]]]", engine.execute("select * from " +
+                "l where k = 2").toString());
+        // nothing beyond the first is applied through
+        Assert.assertEquals(3, last().getAppliedThrough());
+        // the database as it was, before closing the server closes it
+        InMemoryStorageEngine restarted = engine();
+        restarted.restore(engine.snapshot());
+        last().close();
+
+        start(2394, restarted);
+        awaitApplied(5);
+        Assert.assertEquals("[Row[1, [4]], Row[2, [5]]]", restarted.execute(
+                "select * from l").toString());
+    }
+
+    @Test
+    public void test04_FailingWriteAcknowledgedOnceApplied() throws
+            Exception {
+        last().close();
+        HoldingEngine engine = new HoldingEngine("insert");
+        engine.execute("create table t (k int, v int, primary key (k))");
+        InetSocketAddress isa = start(2395, engine);
+        CompletableFuture<byte[]> missing = client.sendAsync(isa, "insert " +
+                "into missing (k) values (1)");
+        // acknowledged once logged, so after the first one was logged
+        Assert.assertEquals("Executed the request", new String(client
+                .sendAsync(isa, "insert into t (k, v) values (6, 6)").get(10,
+                        TimeUnit.SECONDS)));
+        Assert.assertFalse(missing.isDone());
+        engine.release();
+        try {
+            missing.get(10, TimeUnit.SECONDS);
+            Assert.fail("Expected the write to fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("missing"));
+        }
+    }
+
+    @Test
+    public void test05_LamportRefusesToResume() throws Exception {
+        last().close();
+        try {
+            new MyDBReplicatedServer(nodeConfig(2396), NODE, null) {
+                @Override
+                protected StorageEngine createStorageEngine(InetSocketAddress
+                        isaDB, String keyspace) {
+                    return engine();
+                }
+
+                @Override
+                protected WriteAheadLog createWriteAheadLog() throws
+                        IOException {
+                    return new WriteAheadLog(dir, 1 << 20, true);
+                }
+
+                @Override
+                protected TotalOrder createOrder(Set<String> nodes, TotalOrder
+                        .Transport transport, TotalOrder.Delivery delivery) {
+                    return new LamportOrder(NODE, nodes, transport, delivery);
+                }
+            };
+            Assert.fail("Expected Lamport ordering not to resume");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("Lamport"));
+        }
+        // and released its port
+        start(2396, engine());
+        Assert.assertEquals(7, last().getAppliedThrough());
+    }
+
+    @AfterClass
+    public static void teardown() {
+        if (client != null) client.close();
+        for (MyDBReplicatedServer server : servers) server.close();
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(RecoveryTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
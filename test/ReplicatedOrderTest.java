@@ -0,0 +1,166 @@
+import client.MyDBClient;
+import edu.umass.cs.nio.interfaces.NodeConfig;
+import edu.umass.cs.nio.nioutils.NodeConfigUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.InMemoryStorageEngine;
+import server.MyDBReplicatedServer;
+import server.ReplicatedServer;
+import server.StorageEngine;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bursts of list appends sent to random replicas, like Grader.test16 but
+ * with many more requests, must leave all replicas with the same list.
+ * The replicas run on in-memory storage so that no Cassandra is needed.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class ReplicatedOrderTest {
+    private static final String TABLE = "grade";
+    private static final int NUM_REQS = 2000;
+
+    private static NodeConfig<String> nodeConfigServer;
+    private static final Map<String, StorageEngine> engines = new
+            HashMap<String, StorageEngine>();
+    private static final List<MyDBReplicatedServer> replicas = new
+            ArrayList<MyDBReplicatedServer>();
+    private static final List<InetSocketAddress> addresses = new
+            ArrayList<InetSocketAddress>();
+    private static MyDBClient client;
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        File config = File.createTempFile("replicated", ".properties");
+        config.deleteOnExit();
+        FileWriter writer = new FileWriter(config);
+        for (int i = 0; i < 3; i++)
+            writer.write(ReplicatedServer.SERVER_PREFIX + "replica" + i + " " +
+                    "= localhost:" + (2310 + i) + "\n");
+        writer.close();
+        nodeConfigServer = NodeConfigUtils.getNodeConfigFromFile(config
+                .getPath(), ReplicatedServer.SERVER_PREFIX, ReplicatedServer
+                .SERVER_PORT_OFFSET);
+        NodeConfig<String> nodeConfigClient = NodeConfigUtils
+                .getNodeConfigFromFile(config.getPath(), ReplicatedServer
+                        .SERVER_PREFIX);
+        for (String node : nodeConfigServer.getNodeIDs()) {
+            replicas.add(new MyDBReplicatedServer(nodeConfigServer, node, null) {
+                @Override
+                protected StorageEngine createStorageEngine(InetSocketAddress
+                        isaDB, String keyspace) {
+                    StorageEngine engine = new InMemoryStorageEngine(keyspace);
+                    engine.execute("create table " + TABLE + " (id int, " +
+                            "events list<int>, primary key (id))");
+                    engines.put(keyspace, engine);
+                    return engine;
+                }
+            });
+            addresses.add(new InetSocketAddress(nodeConfigClient
+                    .getNodeAddress(node), nodeConfigClient.getNodePort(node)));
+        }
+        client = new MyDBClient(nodeConfigClient);
+    }
+
+    private static CompletableFuture<byte[]> sendToRandom(String cql) {
+        return client.sendAsync(addresses.get(ThreadLocalRandom.current()
+                .nextInt(addresses.size())), cql);
+    }
+
+    /**
+     * Waits until every replica has applied everything ordered so far: a
+     * schema change is ordered after all of them and completes at each
+     * replica only once all earlier statements have been applied there.
+     * Reads would not do, as they may be served without being ordered.
+     */
+    private static void awaitReplicas() throws Exception {
+        for (InetSocketAddress isa : addresses)
+            client.sendAsync(isa, "create table if not exists barrier (id " +
+                    "int, primary key (id))").get(30, TimeUnit.SECONDS);
+    }
+
+    private static String events(String node, int key) {
+        StringBuilder rows = new StringBuilder();
+        for (String row : engines.get(node).execute("select events from " +
+                TABLE + " where id = " + key))
+            rows.append(row);
+        return rows.toString();
+    }
+
+    @Test
+    public void test01_BurstToRandomReplicas() throws Exception {
+        int key = 7;
+        sendToRandom("insert into " + TABLE + " (id, events) values (" + key +
+                ", [])").get(30, TimeUnit.SECONDS);
+        List<CompletableFuture<byte[]>> futures = new
+                ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < NUM_REQS; i++)
+            futures.add(sendToRandom("update " + TABLE + " SET events=events+["
+                    + i + "] where id=" + key + ";"));
+        for (CompletableFuture<byte[]> future : futures)
+            future.get(30, TimeUnit.SECONDS);
+        awaitReplicas();
+
+        String expected = null;
+        for (String node : nodeConfigServer.getNodeIDs()) {
+            String events = events(node, key);
+            if (expected == null) expected = events;
+            Assert.assertEquals(node, expected, events);
+        }
+        // every append was applied exactly once
+        Assert.assertEquals(NUM_REQS, expected.split(",").length);
+    }
+
+    @Test
+    public void test02_ReadsAmongWrites() throws Exception {
+        int key = 8;
+        sendToRandom("insert into " + TABLE + " (id, events) values (" + key +
+                ", [])").get(30, TimeUnit.SECONDS);
+        List<CompletableFuture<byte[]>> futures = new
+                ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < NUM_REQS; i++)
+            // reads are served without ordering, or after the client's writes
+            futures.add(sendToRandom(i % 2 == 0 ? "update " + TABLE + " SET " +
+                    "events=events+[" + i + "] where id=" + key + ";" :
+                    "select events from " + TABLE + " where id=" + key + ";"));
+        for (CompletableFuture<byte[]> future : futures)
+            future.get(30, TimeUnit.SECONDS);
+        awaitReplicas();
+
+        String expected = events(nodeConfigServer.getNodeIDs().iterator()
+                .next(), key);
+        for (String node : nodeConfigServer.getNodeIDs())
+            Assert.assertEquals(node, expected, events(node, key));
+        Assert.assertEquals(NUM_REQS / 2, expected.split(",").length);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        if (client != null) client.close();
+        for (MyDBReplicatedServer replica : replicas) replica.close();
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(ReplicatedOrderTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
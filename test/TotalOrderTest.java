@@ -0,0 +1,275 @@
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.LamportOrder;
+import server.SequencerOrder;
+import server.TotalOrder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Runs the total order protocols over a simulated network that delivers
+ * messages in random order and checks that all servers deliver the same
+ * statements in the same order, each exactly once, or, across ordering
+ * domains, that each domain and each barrier is ordered the same, and
+ * that commuting statements are ordered the same against all others.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class TotalOrderTest {
+    private static final Set<String> NODES = new LinkedHashSet<String>(Arrays
+            .asList("s0", "s1", "s2", "s3"));
+
+    private static class Network {
+        final Random random = new Random(42);
+        final List<Object[]> inFlight = new ArrayList<Object[]>();
+        final Map<String, TotalOrder> nodes = new HashMap<String, TotalOrder>();
+        final Map<String, List<String>> delivered = new HashMap<String,
+                List<String>>();
+        final Map<String, List<Long>> seqs = new HashMap<String, List<Long>>();
+        boolean oneDomain = true;
+        int messages = 0;
+
+        TotalOrder.Transport transport() {
+            return new TotalOrder.Transport() {
+                @Override
+                public void send(String node, byte[] bytes) {
+                    inFlight.add(new Object[]{node, bytes});
+                    messages++;
+                }
+            };
+        }
+
+        TotalOrder.Delivery delivery(final String node) {
+            final List<String> list = new ArrayList<String>();
+            final List<Long> seqList = new ArrayList<Long>();
+            delivered.put(node, list);
+            seqs.put(node, seqList);
+            return new TotalOrder.Delivery() {
+                @Override
+                public void deliver(long seq, String origin, long tag, String
+                        cql) {
+                    if (oneDomain) Assert.assertEquals(list.size() + 1, seq);
+                    list.add(origin + ":" + tag + ":" + cql);
+                    seqList.add(seq);
+                }
+            };
+        }
+
+        /**
+         * Delivers one random message in flight.
+         */
+        boolean step() {
+            if (inFlight.isEmpty()) return false;
+            Object[] m = inFlight.remove(random.nextInt(inFlight.size()));
+            Assert.assertTrue(nodes.get(m[0]).handleMessage((byte[]) m[1]));
+            return true;
+        }
+    }
+
+    private static int run(boolean lamport, int proposals) throws IOException {
+        Network net = new Network();
+        for (String node : NODES)
+            net.nodes.put(node, lamport ? new LamportOrder(node, NODES, net
+                    .transport(), net.delivery(node), 0) : new SequencerOrder
+                    (node, NODES, net.transport(), net.delivery(node)));
+        List<String> ids = new ArrayList<String>(NODES);
+        for (int i = 0; i < proposals; i++) {
+            String node = ids.get(net.random.nextInt(ids.size()));
+            net.nodes.get(node).propose(i, "update t set v = v + [" + i + "] " +
+                    "where k = 1", 0, null);
+            // let a few messages through between proposals
+            for (int j = net.random.nextInt(4); j > 0; j--) net.step();
+        }
+        while (net.step()) ;
+
+        List<String> expected = net.delivered.get(ids.get(0));
+        Assert.assertEquals(proposals, expected.size());
+        Assert.assertEquals(proposals, new HashSet<String>(expected).size());
+        for (String node : ids)
+            Assert.assertEquals(node, expected, net.delivered.get(node));
+        return net.messages;
+    }
+
+    /**
+     * Proposes statements on a few rows, one domain each, and every tenth a
+     * barrier.
+     */
+    private static void runDomains(int proposals) throws IOException {
+        Network net = new Network();
+        net.oneDomain = false;
+        for (String node : NODES)
+            net.nodes.put(node, new SequencerOrder(node, NODES, net.transport(),
+                    net.delivery(node)));
+        List<String> ids = new ArrayList<String>(NODES);
+        for (int i = 0; i < proposals; i++) {
+            String node = ids.get(net.random.nextInt(ids.size()));
+            int k = net.random.nextInt(5);
+            if (i % 10 == 9)
+                net.nodes.get(node).propose(i, "truncate t" + i, TotalOrder
+                        .BARRIER, null);
+            else
+                net.nodes.get(node).propose(i, "update t set v = v + [" + i +
+                        "] where k = " + k, k, null);
+            for (int j = net.random.nextInt(4); j > 0; j--) net.step();
+        }
+        while (net.step()) ;
+
+        Map<String, Map<String, List<String>>> byNode = new HashMap<String,
+                Map<String, List<String>>>();
+        for (String node : ids) {
+            List<String> list = net.delivered.get(node);
+            List<Long> seqList = net.seqs.get(node);
+            Assert.assertEquals(proposals, new HashSet<String>(list).size());
+            Map<String, List<String>> domains = new HashMap<String,
+                    List<String>>();
+            for (int i = 0; i < list.size(); i++) {
+                String cql = list.get(i);
+                if (cql.contains("truncate")) {
+                    // everything numbered before a barrier precedes it
+                    Set<Long> before = new HashSet<Long>(seqList.subList(0, i));
+                    for (long seq = 1; seq < seqList.get(i); seq++)
+                        Assert.assertTrue(cql, before.contains(seq));
+                    Assert.assertEquals(cql, seqList.get(i).longValue(), i + 1);
+                }
+                String domain = cql.contains("truncate") ? "barrier" : cql
+                        .substring(cql.lastIndexOf("k = "));
+                if (!domains.containsKey(domain))
+                    domains.put(domain, new ArrayList<String>());
+                domains.get(domain).add(cql);
+            }
+            byNode.put(node, domains);
+        }
+        for (String node : ids)
+            Assert.assertEquals(node, byNode.get(ids.get(0)), byNode.get(node));
+    }
+
+    /**
+     * Proposes set additions, which commute, and list appends, which do
+     * not, on a few rows.
+     *
+     * @return the number of times two servers delivered the same two
+     * statements in different orders
+     */
+    private static int runCommuting(int proposals) throws IOException {
+        Network net = new Network();
+        net.oneDomain = false;
+        for (String node : NODES)
+            net.nodes.put(node, new SequencerOrder(node, NODES, net.transport(),
+                    net.delivery(node)));
+        List<String> ids = new ArrayList<String>(NODES);
+        for (int i = 0; i < proposals; i++) {
+            String node = ids.get(net.random.nextInt(ids.size()));
+            int k = net.random.nextInt(3);
+            if (net.random.nextInt(4) == 0)
+                net.nodes.get(node).propose(i, "update t set v = v + [" + i +
+                        "] where k = " + k, k, null);
+            else
+                net.nodes.get(node).propose(i, "update t set s = s + {" + i +
+                        "} where k = " + k, k, "s+{}");
+            for (int j = net.random.nextInt(4); j > 0; j--) net.step();
+        }
+        while (net.step()) ;
+
+        // per domain, the appends in order with the additions in between as
+        // sets
+        Map<String, Map<String, List<Object>>> byNode = new HashMap<String,
+                Map<String, List<Object>>>();
+        for (String node : ids) {
+            List<String> list = net.delivered.get(node);
+            Assert.assertEquals(proposals, new HashSet<String>(list).size());
+            Map<String, List<Object>> domains = new HashMap<String,
+                    List<Object>>();
+            // the set of additions each domain's segments end with, if any
+            Map<String, Set<String>> open = new HashMap<String, Set<String>>();
+            for (String cql : list) {
+                String domain = cql.substring(cql.lastIndexOf("k = "));
+                if (!domains.containsKey(domain))
+                    domains.put(domain, new ArrayList<Object>());
+                List<Object> segments = domains.get(domain);
+                if (cql.contains("v + [")) {
+                    segments.add(cql);
+                    open.remove(domain);
+                } else {
+                    Set<String> additions = open.get(domain);
+                    if (additions == null) {
+                        segments.add(additions = new HashSet<String>());
+                        open.put(domain, additions);
+                    }
+                    additions.add(cql);
+                }
+            }
+            byNode.put(node, domains);
+        }
+        for (String node : ids)
+            Assert.assertEquals(node, byNode.get(ids.get(0)), byNode.get(node));
+
+        int reordered = 0;
+        List<String> first = net.delivered.get(ids.get(0));
+        for (String node : ids) {
+            List<String> list = net.delivered.get(node);
+            for (int i = 0; i + 1 < list.size(); i++)
+                if (first.indexOf(list.get(i)) > first.indexOf(list.get(i + 1))
+                        && list.get(i).substring(list.get(i).lastIndexOf("k ="))
+                        .equals(list.get(i + 1).substring(list.get(i + 1)
+                                .lastIndexOf("k ="))))
+                    reordered++;
+        }
+        return reordered;
+    }
+
+    @Test
+    public void test01_Sequencer() throws IOException {
+        run(false, 500);
+    }
+
+    @Test
+    public void test02_Lamport() throws IOException {
+        run(true, 500);
+    }
+
+    @Test
+    public void test03_LamportSingleServer() throws IOException {
+        final List<String> delivered = new ArrayList<String>();
+        TotalOrder order = new LamportOrder("s0", new HashSet<String>(Arrays
+                .asList("s0")), null, new TotalOrder.Delivery() {
+            @Override
+            public void deliver(long seq, String origin, long tag, String cql) {
+                delivered.add(cql);
+            }
+        }, 0);
+        order.propose(1, "a", 0, null);
+        order.propose(2, "b", 0, null);
+        Assert.assertEquals(Arrays.asList("a", "b"), delivered);
+    }
+
+    @Test
+    public void test04_SequencerDomains() throws IOException {
+        runDomains(1000);
+    }
+
+    @Test
+    public void test05_SequencerCommutingRuns() throws IOException {
+        // runs of additions need not wait for each other
+        Assert.assertTrue(runCommuting(1000) > 0);
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(TotalOrderTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
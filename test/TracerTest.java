@@ -0,0 +1,177 @@
+import client.MyDBClient;
+import edu.umass.cs.nio.interfaces.NodeConfig;
+import edu.umass.cs.nio.nioutils.NodeConfigUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.InMemoryStorageEngine;
+import server.MyDBReplicatedServer;
+import server.ReplicatedServer;
+import server.StorageEngine;
+import server.Tracer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records events into a tracer's rings from several threads, checks that
+ * recording allocates nothing, and follows a traced statement from the
+ * client through the replicas.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class TracerTest {
+    private static final List<MyDBReplicatedServer> replicas = new
+            ArrayList<MyDBReplicatedServer>();
+    private static MyDBClient client;
+
+    private static Set<Tracer.Event> events(Tracer tracer, long trace) {
+        Set<Tracer.Event> events = EnumSet.noneOf(Tracer.Event.class);
+        for (Tracer.Record record : tracer.records())
+            if (record.trace == trace) events.add(record.event);
+        return events;
+    }
+
+    @Test
+    public void test01_RingsKeepTheLatestEvents() throws Exception {
+        final Tracer tracer = new Tracer("test", 1, 64);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 1; t <= 4; t++) {
+            final long trace = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (Tracer.Event event : Tracer.Event.values())
+                        tracer.record(trace, event);
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        for (long trace = 1; trace <= 4; trace++)
+            Assert.assertEquals(EnumSet.allOf(Tracer.Event.class), events
+                    (tracer, trace));
+        // grouped by trace, in order of time within each
+        List<Tracer.Record> records = tracer.records();
+        for (int i = 1; i < records.size(); i++)
+            if (records.get(i).trace == records.get(i - 1).trace)
+                Assert.assertTrue(records.get(i).nanos >= records.get(i - 1)
+                        .nanos);
+        Assert.assertEquals(4, tracer.dump().split("\n").length);
+
+        // one thread, one ring
+        Tracer small = new Tracer("test", 1, 8);
+        for (int i = 0; i < 100; i++)
+            small.record(i + 1, Tracer.Event.DB_START);
+        List<Long> kept = new ArrayList<Long>();
+        for (Tracer.Record record : small.records()) kept.add(record.trace);
+        Collections.sort(kept);
+        Assert.assertEquals(Arrays.asList(93L, 94L, 95L, 96L, 97L, 98L, 99L,
+                100L), kept);
+    }
+
+    @Test
+    public void test02_RecordingAllocatesNothing() {
+        Tracer off = new Tracer("test", 0, 64);
+        Assert.assertEquals(0, off.sample());
+        Tracer on = new Tracer("test", 1, 64);
+        Assert.assertTrue(on.sample() > 0);
+        com.sun.management.ThreadMXBean mx = (com.sun.management
+                .ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int round = 0; round < 3; round++) {
+            long before = mx.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100000; i++) {
+                off.record(off.sample(), Tracer.Event.SERVER_RECEIVE);
+                on.record(i + 1, Tracer.Event.DB_END);
+            }
+            long allocated = mx.getThreadAllocatedBytes(thread) - before;
+            // a few bytes per call would add up to megabytes
+            if (round > 0) Assert.assertTrue("" + allocated, allocated < 64 *
+                    1024);
+        }
+        Assert.assertTrue(off.records().isEmpty());
+    }
+
+    @Test
+    public void test03_TracedThroughReplicas() throws Exception {
+        File config = File.createTempFile("tracer", ".properties");
+        config.deleteOnExit();
+        FileWriter writer = new FileWriter(config);
+        for (int i = 0; i < 3; i++)
+            writer.write(ReplicatedServer.SERVER_PREFIX + "replica" + i + " " +
+                    "= localhost:" + (2350 + i) + "\n");
+        writer.close();
+        NodeConfig<String> nodeConfigServer = NodeConfigUtils
+                .getNodeConfigFromFile(config.getPath(), ReplicatedServer
+                        .SERVER_PREFIX, ReplicatedServer.SERVER_PORT_OFFSET);
+        NodeConfig<String> nodeConfigClient = NodeConfigUtils
+                .getNodeConfigFromFile(config.getPath(), ReplicatedServer
+                        .SERVER_PREFIX);
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (String node : nodeConfigServer.getNodeIDs()) {
+            replicas.add(new MyDBReplicatedServer(nodeConfigServer, node, null) {
+                @Override
+                protected StorageEngine createStorageEngine(InetSocketAddress
+                        isaDB, String keyspace) {
+                    StorageEngine engine = new InMemoryStorageEngine(keyspace);
+                    engine.execute("create table grade (id int, events " +
+                            "list<int>, primary key (id))");
+                    return engine;
+                }
+            });
+            addresses.add(new InetSocketAddress(nodeConfigClient
+                    .getNodeAddress(node), nodeConfigClient.getNodePort(node)));
+        }
+        Tracer tracer = new Tracer("client", 1, 64);
+        client = new MyDBClient(nodeConfigClient, 1, 0, null, tracer);
+
+        // each server applies the first statement before the one to the
+        // same row it is sent next
+        for (int i = 0; i < addresses.size(); i++)
+            client.sendAsync(addresses.get(i), "update grade SET events=" +
+                    "events+[" + i + "] where id=1;").get(10, TimeUnit.SECONDS);
+        long trace = tracer.records().get(0).trace;
+        Assert.assertEquals(EnumSet.of(Tracer.Event.CLIENT_SEND, Tracer.Event
+                .CLIENT_RECEIVE), events(tracer, trace));
+
+        int origins = 0;
+        for (MyDBReplicatedServer replica : replicas) {
+            Set<Tracer.Event> events = events(replica.getTracer(), trace);
+            Assert.assertTrue(events.toString(), events.containsAll(EnumSet
+                    .of(Tracer.Event.ORDERED, Tracer.Event.DB_START, Tracer
+                            .Event.DB_END)));
+            if (events.contains(Tracer.Event.SERVER_RECEIVE)) {
+                origins++;
+                Assert.assertTrue(events.contains(Tracer.Event.REPLY_SENT));
+            }
+        }
+        Assert.assertEquals(1, origins);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        if (client != null) client.close();
+        for (MyDBReplicatedServer replica : replicas) replica.close();
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(TracerTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import server.WriteAheadLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends to a write-ahead log across segment rollovers, reopens it and
+ * checks that the records come back in order, and that a torn tail is cut
+ * off.
+ */
+@FixMethodOrder(org.junit.runners.MethodSorters.NAME_ASCENDING)
+public class WriteAheadLogTest {
+    private static final int SEGMENT_BYTES = 1024;
+
+    private static File newDir() throws IOException {
+        File dir = Files.createTempDirectory("wal").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static byte[] record(int i) {
+        return ("insert into t (k, v) values (" + i + ", " + i + ")").getBytes
+                (StandardCharsets.UTF_8);
+    }
+
+    private static List<String> replay(WriteAheadLog wal) {
+        final List<String> records = new ArrayList<String>();
+        wal.replay(new WriteAheadLog.Visitor() {
+            @Override
+            public void visit(long seq, byte[] record) {
+                records.add(seq + ":" + new String(record, StandardCharsets
+                        .UTF_8));
+            }
+        });
+        return records;
+    }
+
+    @Test
+    public void test01_AppendRollAndReopen() throws Exception {
+        File dir = newDir();
+        WriteAheadLog wal = new WriteAheadLog(dir, SEGMENT_BYTES, true);
+        int n = 200;
+        final CountDownLatch durable = new CountDownLatch(n);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 1; i <= n; i++) {
+            // sequence numbers need not increase
+            long seq = i % 2 == 0 ? i - 1 : i + 1;
+            wal.append(seq, record(i), new Runnable() {
+                @Override
+                public void run() {
+                    durable.countDown();
+                }
+            });
+            expected.add(seq + ":" + new String(record(i), StandardCharsets
+                    .UTF_8));
+        }
+        Assert.assertTrue(durable.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(wal.getSegments() > 1);
+        Assert.assertTrue(wal.getForces() <= n);
+        Assert.assertEquals(expected, replay(wal));
+        wal.close();
+
+        wal = new WriteAheadLog(dir, SEGMENT_BYTES, true);
+        Assert.assertEquals(n, wal.getRecords());
+        Assert.assertEquals(n, wal.getLastSeq());
+        Assert.assertEquals(expected, replay(wal));
+        wal.append(n + 2, record(n + 2), null);
+        wal.close();
+        Assert.assertEquals(n + 1, new WriteAheadLog(dir, SEGMENT_BYTES, false)
+                .getRecords());
+    }
+
+    @Test
+    public void test02_TornTail() throws Exception {
+        File dir = newDir();
+        WriteAheadLog wal = new WriteAheadLog(dir, SEGMENT_BYTES, false);
+        for (int i = 1; i <= 3; i++) wal.append(i, record(i), null);
+        wal.close();
+
+        // corrupt the last byte of the third record
+        File segment = dir.listFiles()[0];
+        int end = 3 * (16 + record(1).length) - 1;
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(end);
+        int b = raf.read();
+        raf.seek(end);
+        raf.write(b ^ 0xff);
+        raf.close();
+
+        wal = new WriteAheadLog(dir, SEGMENT_BYTES, false);
+        Assert.assertEquals(2, wal.getRecords());
+        wal.append(4, record(4), null);
+        List<String> records = replay(wal);
+        Assert.assertEquals(3, records.size());
+        Assert.assertTrue(records.get(2).startsWith("4:"));
+        wal.close();
+    }
+
+    @Test
+    public void test03_Truncate() throws Exception {
+        File dir = newDir();
+        WriteAheadLog wal = new WriteAheadLog(dir, SEGMENT_BYTES, false);
+        int n = 100;
+        for (int i = 1; i <= n; i++) wal.append(i, record(i), null);
+        int segments = wal.getSegments();
+        Assert.assertTrue(segments > 2);
+        Assert.assertEquals(0, wal.truncate(0));
+        // only segments entirely at or below the number go
+        int deleted = wal.truncate(n / 2);
+        Assert.assertTrue(deleted > 0);
+        Assert.assertEquals(segments - deleted, wal.getSegments());
+        List<String> records = replay(wal);
+        Assert.assertEquals(records.size(), wal.getRecords());
+        Assert.assertTrue(records.get(0).compareTo("1:") > 0);
+        Assert.assertEquals((n / 2 + 1) + ":" + new String(record(n / 2 + 1),
+                StandardCharsets.UTF_8), records.get(records.size() - n / 2));
+        // the segment being appended to stays
+        Assert.assertEquals(segments - 1, deleted + wal.truncate(n));
+        Assert.assertEquals(1, wal.getSegments());
+        wal.close();
+        Assert.assertEquals(1, dir.listFiles().length);
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(WriteAheadLogTest.class);
+        for (Failure failure : result.getFailures()) {
+            System.out.println(failure.toString());
+            failure.getException().printStackTrace();
+        }
+    }
+}